@@ -0,0 +1,42 @@
+import java.lang.management.ManagementFactory;
+
+/**
+ * Counts the bytes of heap the current thread has allocated, using the
+ * HotSpot extension of ThreadMXBean.  Taking the difference of two
+ * readings around a block of code gives what that code allocated, which
+ * is how the render loop is checked for per-frame garbage.
+ */
+final class AllocationMeter {
+
+	private static final com.sun.management.ThreadMXBean THREADS = threads();
+
+	private AllocationMeter() {
+	}
+
+	private static com.sun.management.ThreadMXBean threads() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+			if (threads.isThreadAllocatedMemorySupported()) {
+				threads.setThreadAllocatedMemoryEnabled(true);
+				return threads;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return  true if this JVM can count allocations per thread.
+	 */
+	static boolean isSupported() {
+		return THREADS != null;
+	}
+
+	/**
+	 * @return  the bytes the calling thread has allocated so far, or 0 if
+	 *          the JVM cannot tell.
+	 */
+	static long allocatedBytes() {
+		return THREADS == null ? 0L : THREADS.getCurrentThreadAllocatedBytes();
+	}
+}
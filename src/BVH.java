@@ -0,0 +1,432 @@
+import java.util.Arrays;
+
+/**
+ * A bounding volume hierarchy over axis aligned boxes, kept in flat
+ * primitive arrays.
+ *
+ * <P>
+ * Node i's box is bounds[6 * i .. 6 * i + 5] (min x, y, z then max x, y, z).
+ * A leaf has count[i] &gt; 0 and holds primitives[start[i]] to
+ * primitives[start[i] + count[i] - 1]; an interior node has count[i] == 0
+ * and its children are start[i] and start[i] + 1.  Node 0 is the root and
+ * children always come after their parent, so walking the nodes backwards
+ * visits every child before its parent -- which is all refit needs.
+ *
+ * <P>
+ * The tree is built top down with the surface area heuristic, evaluated on
+ * BINS buckets of primitive centroids per axis rather than at every
+ * primitive, which builds in O(n log n) and gives trees nearly as good as
+ * a full sweep.  A node stays a leaf when no split is expected
+ * to be cheaper to traverse than testing its primitives.  MeshBVH and
+ * SceneBVH walk the nodes; this class only builds and refits them.
+ */
+final class BVH {
+
+	private static final int BINS = 12;
+	/** Cost of visiting a node relative to testing one primitive. */
+	private static final float TRAVERSAL_COST = 1.0f;
+
+	final int[] primitives;
+	final float[] bounds;
+	final int[] start;
+	final int[] count;
+	private int nodeCount;
+	private int depth;
+
+	/**
+	 * Build a tree.
+	 *
+	 * @param boxes     six floats per primitive: min x, y, z, max x, y, z.
+	 * @param maxLeaf   the most primitives a leaf may hold.
+	 */
+	BVH(float[] boxes, int maxLeaf) {
+		int primitiveCount = boxes.length / 6;
+		primitives = new int[primitiveCount];
+		for (int i = 0; i < primitiveCount; i++) {
+			primitives[i] = i;
+		}
+		int maxNodes = Math.max(2 * primitiveCount - 1, 1);
+		bounds = new float[maxNodes * 6];
+		start = new int[maxNodes];
+		count = new int[maxNodes];
+		nodeCount = 1;
+		start[0] = 0;
+		count[0] = primitiveCount;
+		fitLeaf(0, boxes);
+		depth = 1;
+		if (primitiveCount <= 1) {
+			return;
+		}
+
+		new Builder(boxes, maxLeaf).build();
+	}
+
+	/*
+	 * The state of one build.  It keeps its own copy of the boxes and their
+	 * centroids in the order of primitives, swapping them as it
+	 * partitions, so every pass over a node reads memory in order.  Bins
+	 * for all three axes are filled in one pass over a node's primitives;
+	 * bin b of an axis is at axis * BINS + b.
+	 */
+	private final class Builder {
+		private final float[] boxes;
+		private final int maxLeaf;
+		private final float[] sorted;
+		private final float[] centroids;
+		private final int[] binCounts = new int[3 * BINS];
+		private final float[] binBounds = new float[3 * BINS * 6];
+		private final float[] rightArea = new float[BINS];
+		private final float[] binScale = new float[3];
+		private final float[] box = new float[6];
+		private final float[] nodeCentroids = new float[6];
+		private final float[] leftCentroids = new float[6];
+		private final float[] rightCentroids = new float[6];
+		// nodes still to split: node and depth pairs, and the bounds of
+		// their centroids.
+		private int[] stack = new int[64];
+		private float[] stackCentroids = new float[32 * 6];
+		private int top;
+		// bins per axis for the node being split: BINS, or fewer for
+		// small nodes, where the sweeps would cost more than the binning.
+		private int bins;
+		private int bestAxis;
+		private int bestBin;
+
+		Builder(float[] boxes, int maxLeaf) {
+			this.boxes = boxes;
+			this.maxLeaf = maxLeaf;
+			sorted = boxes.clone();
+			centroids = new float[count[0] * 3];
+			empty(nodeCentroids, 0);
+			for (int i = 0; i < count[0]; i++) {
+				for (int axis = 0; axis < 3; axis++) {
+					centroids[i * 3 + axis] = 0.5f * (boxes[i * 6 + axis] + boxes[i * 6 + 3 + axis]);
+				}
+				growPoint(nodeCentroids, centroids, i);
+			}
+		}
+
+		void build() {
+			push(0, 1, nodeCentroids);
+			while (top > 0) {
+				top--;
+				int node = stack[top * 2];
+				int level = stack[top * 2 + 1];
+				System.arraycopy(stackCentroids, top * 6, nodeCentroids, 0, 6);
+				depth = Math.max(depth, level);
+				int n = count[node];
+				if (n <= 1) {
+					continue;
+				}
+				float bestCost = findSplit(start[node], n);
+				boolean mustSplit = n > maxLeaf;
+				if (bestAxis < 0) {
+					if (mustSplit) {
+						// every centroid is the same point: halve the run
+						// so leaves stay small.
+						int left = split(node, n / 2);
+						fitLeaf(left, boxes);
+						fitLeaf(left + 1, boxes);
+						push(left + 1, level + 1, nodeCentroids);
+						push(left, level + 1, nodeCentroids);
+					}
+					continue;
+				}
+				float nodeArea = area(bounds, node * 6);
+				if (!mustSplit && TRAVERSAL_COST * nodeArea + bestCost >= n * nodeArea) {
+					continue;
+				}
+				int left = split(node, partition(start[node], n));
+				empty(bounds, left);
+				empty(bounds, left + 1);
+				for (int b = 0; b < bins; b++) {
+					grow(bounds, b <= bestBin ? left : left + 1, binBounds, bestAxis * BINS + b);
+				}
+				push(left + 1, level + 1, rightCentroids);
+				push(left, level + 1, leftCentroids);
+			}
+		}
+
+		/*
+		 * Bin a node's primitives and find the cheapest split, leaving its
+		 * axis and last left bin in bestAxis and bestBin (bestAxis is -1 if
+		 * the centroids are all one point).
+		 *
+		 * @return  the split's cost.
+		 */
+		private float findSplit(int first, int n) {
+			bins = Math.min(BINS, n);
+			for (int axis = 0; axis < 3; axis++) {
+				for (int b = axis * BINS; b < axis * BINS + bins; b++) {
+					binCounts[b] = 0;
+					empty(binBounds, b);
+				}
+				float extent = nodeCentroids[3 + axis] - nodeCentroids[axis];
+				binScale[axis] = extent > 0.0f ? bins / extent : 0.0f;
+			}
+			for (int i = first; i < first + n; i++) {
+				for (int axis = 0; axis < 3; axis++) {
+					int b = axis * BINS + bin(i, axis);
+					binCounts[b]++;
+					grow(binBounds, b, sorted, i);
+				}
+			}
+
+			// for each axis whose centroids are spread out, sweep from the
+			// right to get the area of every right side, then from the
+			// left to cost each split.
+			float bestCost = Float.MAX_VALUE;
+			bestAxis = -1;
+			bestBin = 0;
+			for (int axis = 0; axis < 3; axis++) {
+				if (binScale[axis] == 0.0f) {
+					continue;
+				}
+				empty(box, 0);
+				for (int b = bins - 1; b > 0; b--) {
+					grow(box, 0, binBounds, axis * BINS + b);
+					rightArea[b] = area(box, 0);
+				}
+				empty(box, 0);
+				int leftCount = 0;
+				for (int b = 0; b < bins - 1; b++) {
+					grow(box, 0, binBounds, axis * BINS + b);
+					leftCount += binCounts[axis * BINS + b];
+					int rightCount = n - leftCount;
+					if (leftCount == 0 || rightCount == 0) {
+						continue;
+					}
+					float cost = leftCount * area(box, 0) + rightCount * rightArea[b + 1];
+					if (cost < bestCost) {
+						bestCost = cost;
+						bestAxis = axis;
+						bestBin = b;
+					}
+				}
+			}
+			return bestCost;
+		}
+
+		/*
+		 * Move a node's primitives in bins up to bestBin in front of the
+		 * rest, gathering each side's centroid bounds on the way.
+		 *
+		 * @return  the number in front.
+		 */
+		private int partition(int first, int n) {
+			empty(leftCentroids, 0);
+			empty(rightCentroids, 0);
+			int i = first;
+			int j = first + n - 1;
+			while (i <= j) {
+				if (bin(i, bestAxis) <= bestBin) {
+					growPoint(leftCentroids, centroids, i);
+					i++;
+				} else {
+					growPoint(rightCentroids, centroids, i);
+					swap(i, j--);
+				}
+			}
+			return i - first;
+		}
+
+		private int bin(int i, int axis) {
+			return Math.min(bins - 1, (int) ((centroids[i * 3 + axis] - nodeCentroids[axis]) * binScale[axis]));
+		}
+
+		private void swap(int i, int j) {
+			int primitive = primitives[i];
+			primitives[i] = primitives[j];
+			primitives[j] = primitive;
+			for (int k = 0; k < 6; k++) {
+				float value = sorted[i * 6 + k];
+				sorted[i * 6 + k] = sorted[j * 6 + k];
+				sorted[j * 6 + k] = value;
+			}
+			for (int k = 0; k < 3; k++) {
+				float value = centroids[i * 3 + k];
+				centroids[i * 3 + k] = centroids[j * 3 + k];
+				centroids[j * 3 + k] = value;
+			}
+		}
+
+		private void push(int node, int level, float[] centroidBounds) {
+			if (top * 2 + 2 > stack.length) {
+				stack = Arrays.copyOf(stack, stack.length * 2);
+				stackCentroids = Arrays.copyOf(stackCentroids, stackCentroids.length * 2);
+			}
+			stack[top * 2] = node;
+			stack[top * 2 + 1] = level;
+			System.arraycopy(centroidBounds, 0, stackCentroids, top * 6, 6);
+			top++;
+		}
+	}
+
+	/**
+	 * @return  the number of nodes in the tree.
+	 */
+	int nodeCount() {
+		return nodeCount;
+	}
+
+	/**
+	 * @return  true if a node is a leaf.
+	 */
+	boolean isLeaf(int node) {
+		return count[node] > 0;
+	}
+
+	/**
+	 * Recompute every node's box from new primitive boxes without
+	 * changing the tree's shape.  Cheap, but the tree degrades if the
+	 * primitives move far from where it was built.
+	 *
+	 * @param boxes  six floats per primitive, as given to the constructor.
+	 */
+	void refit(float[] boxes) {
+		for (int node = nodeCount - 1; node >= 0; node--) {
+			if (count[node] > 0) {
+				fitLeaf(node, boxes);
+			} else {
+				int base = node * 6;
+				int left = start[node] * 6;
+				int right = left + 6;
+				for (int axis = 0; axis < 3; axis++) {
+					bounds[base + axis] = min(bounds[left + axis], bounds[right + axis]);
+					bounds[base + 3 + axis] = max(bounds[left + 3 + axis], bounds[right + 3 + axis]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Where a ray enters a node's box.
+	 *
+	 * @param inverseX  1 / the ray's direction, per axis.
+	 * @param maxT      ignore entries further along the ray than this.
+	 * @return  the entry distance along the ray, or Float.POSITIVE_INFINITY
+	 *          if it misses the box within maxT.
+	 */
+	float intersect(int node, float originX, float originY, float originZ, float inverseX, float inverseY,
+			float inverseZ, float maxT) {
+		return intersect(bounds, node, originX, originY, originZ, inverseX, inverseY, inverseZ, maxT);
+	}
+
+	/**
+	 * Where a ray enters box i of an array of boxes laid out like bounds.
+	 */
+	static float intersect(float[] bounds, int box, float originX, float originY, float originZ, float inverseX,
+			float inverseY, float inverseZ, float maxT) {
+		int base = box * 6;
+		float t1 = (bounds[base] - originX) * inverseX;
+		float t2 = (bounds[base + 3] - originX) * inverseX;
+		float near = Math.min(t1, t2);
+		float far = Math.max(t1, t2);
+		t1 = (bounds[base + 1] - originY) * inverseY;
+		t2 = (bounds[base + 4] - originY) * inverseY;
+		near = Math.max(near, Math.min(t1, t2));
+		far = Math.min(far, Math.max(t1, t2));
+		t1 = (bounds[base + 2] - originZ) * inverseZ;
+		t2 = (bounds[base + 5] - originZ) * inverseZ;
+		near = Math.max(near, Math.min(t1, t2));
+		far = Math.min(far, Math.max(t1, t2));
+		return (far >= Math.max(near, 0.0f) && near <= maxT) ? near : Float.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * @param box  min x, y, z, max x, y, z.
+	 * @return  true if a node's box overlaps the box.
+	 */
+	boolean overlaps(int node, float[] box) {
+		return overlaps(bounds, node, box);
+	}
+
+	/**
+	 * @return  true if box i of an array of boxes overlaps the box.
+	 */
+	static boolean overlaps(float[] bounds, int i, float[] box) {
+		int base = i * 6;
+		return bounds[base] <= box[3] && bounds[base + 3] >= box[0] && bounds[base + 1] <= box[4]
+				&& bounds[base + 4] >= box[1] && bounds[base + 2] <= box[5] && bounds[base + 5] >= box[2];
+	}
+
+	/**
+	 * @return  the number of nodes on the longest path from the root to a
+	 *          leaf, which is as deep as a traversal stack can get.
+	 */
+	int depth() {
+		return depth;
+	}
+
+	/*
+	 * Turn a node into an interior node whose children hold its first
+	 * leftCount primitives and the rest.
+	 *
+	 * @return  the left child.
+	 */
+	private int split(int node, int leftCount) {
+		int left = nodeCount;
+		nodeCount += 2;
+		start[left] = start[node];
+		count[left] = leftCount;
+		start[left + 1] = start[node] + leftCount;
+		count[left + 1] = count[node] - leftCount;
+		start[node] = left;
+		count[node] = 0;
+		return left;
+	}
+
+	private void fitLeaf(int node, float[] boxes) {
+		empty(bounds, node);
+		for (int i = start[node]; i < start[node] + count[node]; i++) {
+			grow(bounds, node, boxes, primitives[i]);
+		}
+	}
+
+	private static void empty(float[] boxes, int box) {
+		int base = box * 6;
+		boxes[base] = boxes[base + 1] = boxes[base + 2] = Float.MAX_VALUE;
+		boxes[base + 3] = boxes[base + 4] = boxes[base + 5] = -Float.MAX_VALUE;
+	}
+
+	private static void grow(float[] boxes, int box, float[] others, int other) {
+		int base = box * 6;
+		int o = other * 6;
+		for (int axis = 0; axis < 3; axis++) {
+			boxes[base + axis] = min(boxes[base + axis], others[o + axis]);
+			boxes[base + 3 + axis] = max(boxes[base + 3 + axis], others[o + 3 + axis]);
+		}
+	}
+
+	private static void growPoint(float[] box, float[] points, int point) {
+		for (int axis = 0; axis < 3; axis++) {
+			box[axis] = min(box[axis], points[point * 3 + axis]);
+			box[3 + axis] = max(box[3 + axis], points[point * 3 + axis]);
+		}
+	}
+
+	/*
+	 * Half the surface area of a box, or 0 for an empty one.
+	 */
+	private static float area(float[] boxes, int base) {
+		float dx = boxes[base + 3] - boxes[base];
+		float dy = boxes[base + 4] - boxes[base + 1];
+		float dz = boxes[base + 5] - boxes[base + 2];
+		if (dx < 0.0f || dy < 0.0f || dz < 0.0f) {
+			return 0.0f;
+		}
+		return dx * dy + dy * dz + dz * dx;
+	}
+
+	/*
+	 * Math.min and Math.max without their NaN and -0.0 handling, which
+	 * boxes never need and which keeps them out of the hot loops.
+	 */
+	private static float min(float a, float b) {
+		return a < b ? a : b;
+	}
+
+	private static float max(float a, float b) {
+		return a > b ? a : b;
+	}
+}
@@ -0,0 +1,271 @@
+/**
+ * Assigns point lights to the clusters (froxels) of the view frustum, so
+ * each fragment only looks at the lights that can reach it.
+ *
+ * <P>
+ * The screen is cut into tilesX by tilesY tiles and the view depth into
+ * slices that grow exponentially with distance: slice 0 holds everything
+ * nearer than near, and the rest split near to far evenly in log(depth),
+ * the last one running on to infinity.  A fragment finds its cluster
+ * from gl_FragCoord and its view depth the same way (see
+ * directional.frag).
+ *
+ * <P>
+ * build takes each light into view space and, for each slice its sphere
+ * reaches, projects the part of the sphere's box that lies in the slice
+ * to find the tiles it covers.  The projection goes through the
+ * projection matrix itself, so perspective and orthographic views both
+ * work.  Boxes are conservative, so a cluster may list a light that just
+ * misses it, but never leaves one out.  Slices are filled one at a time
+ * on the calling thread and then joined into one light index list.  build
+ * runs every frame, so it allocates nothing once its arrays have grown to
+ * the scene; even a fork-join pool reused from frame to frame allocates
+ * now and then, and 1024 lights take well under a millisecond.
+ *
+ * <P>
+ * The result is laid out as the shader reads it in std430: for every
+ * cluster, (x + tilesX * (y + tilesY * slice)), the offset and count of
+ * its run in the index list.
+ */
+final class ClusteredLights {
+
+	/** Floats per light: world x, y, z, radius, then red, green, blue, unused. */
+	static final int LIGHT_FLOATS = 8;
+
+	final int tilesX;
+	final int tilesY;
+	final int slices;
+	/** Where slice 1 starts, and how many slices each factor of e in depth covers. */
+	final float near;
+	final float slicesPerLog;
+
+	/** Offset and count of each cluster's lights in indices. */
+	private final int[] grid;
+	private int[] indices = new int[1024];
+	private int indexCount;
+
+	/* view x, y, depth and radius of each light. */
+	private float[] view = new float[1024];
+	private int lightCount;
+	private float[] projection;
+	/* per slice: light, first and last tile x, first and last tile y. */
+	private final IntList[] covered;
+	/* per slice: the light indices of its clusters, one run after another. */
+	private final int[][] sliceIndices;
+	private final int[] sliceSizes;
+	private final int[] sliceStarts;
+	private final int[][] rectangles;
+
+	/**
+	 * @param tilesX  clusters across the screen.
+	 * @param tilesY  clusters up the screen.
+	 * @param slices  clusters in depth, at least 2.
+	 * @param near    the view depth where slice 1 starts.
+	 * @param far     the view depth where the last slice starts.
+	 */
+	ClusteredLights(int tilesX, int tilesY, int slices, float near, float far) {
+		this.tilesX = tilesX;
+		this.tilesY = tilesY;
+		this.slices = slices;
+		this.near = near;
+		this.slicesPerLog = (float) ((slices - 1) / Math.log(far / near));
+		grid = new int[tilesX * tilesY * slices * 2];
+		covered = new IntList[slices];
+		sliceIndices = new int[slices][256];
+		sliceSizes = new int[slices];
+		sliceStarts = new int[slices];
+		rectangles = new int[slices][4];
+		for (int slice = 0; slice < slices; slice++) {
+			covered[slice] = new IntList(64);
+		}
+	}
+
+	/**
+	 * @return  the number of clusters.
+	 */
+	int clusterCount() {
+		return tilesX * tilesY * slices;
+	}
+
+	/**
+	 * @return  the offset and count of each cluster's lights, valid until
+	 *          the next build.
+	 */
+	int[] grid() {
+		return grid;
+	}
+
+	/**
+	 * @return  every cluster's light indices, one run after another; only
+	 *          the first indexCount are in use.
+	 */
+	int[] indices() {
+		return indices;
+	}
+
+	/**
+	 * @return  the number of light indices the last build wrote.
+	 */
+	int indexCount() {
+		return indexCount;
+	}
+
+	/**
+	 * @return  the slice a view depth falls in, as the shader works it out.
+	 */
+	int slice(float depth) {
+		if (depth < near) {
+			return 0;
+		}
+		return Math.min(slices - 1, 1 + (int) Math.floor(Math.log(depth / near) * slicesPerLog));
+	}
+
+	/**
+	 * Assign lights to clusters.
+	 *
+	 * @param lights      LIGHT_FLOATS per light.
+	 * @param count       the number of lights.
+	 * @param viewing     the column major viewing matrix.
+	 * @param projection  the column major projection matrix.
+	 */
+	void build(float[] lights, int count, float[] viewing, float[] projection) {
+		if (view.length < count * 4) {
+			view = new float[Math.max(count * 4, view.length * 2)];
+		}
+		for (int light = 0; light < count; light++) {
+			int from = light * LIGHT_FLOATS;
+			float x = lights[from], y = lights[from + 1], z = lights[from + 2];
+			view[light * 4] = viewing[0] * x + viewing[4] * y + viewing[8] * z + viewing[12];
+			view[light * 4 + 1] = viewing[1] * x + viewing[5] * y + viewing[9] * z + viewing[13];
+			view[light * 4 + 2] = -(viewing[2] * x + viewing[6] * y + viewing[10] * z + viewing[14]);
+			view[light * 4 + 3] = lights[from + 3];
+		}
+		lightCount = count;
+		this.projection = projection;
+
+		for (int slice = 0; slice < slices; slice++) {
+			fillSlice(slice);
+		}
+
+		int total = 0;
+		for (int slice = 0; slice < slices; slice++) {
+			sliceStarts[slice] = total;
+			total += sliceSizes[slice];
+		}
+		if (indices.length < total) {
+			indices = new int[Math.max(total, indices.length * 2)];
+		}
+		indexCount = total;
+		int clustersPerSlice = tilesX * tilesY;
+		for (int slice = 0; slice < slices; slice++) {
+			System.arraycopy(sliceIndices[slice], 0, indices, sliceStarts[slice], sliceSizes[slice]);
+			for (int cluster = slice * clustersPerSlice; cluster < (slice + 1) * clustersPerSlice; cluster++) {
+				grid[cluster * 2] += sliceStarts[slice];
+			}
+		}
+	}
+
+	/*
+	 * Find the tiles each light covers in one slice, then list the lights
+	 * of each of the slice's clusters.  Offsets are relative to the
+	 * slice's own list until build joins them.
+	 */
+	private void fillSlice(int slice) {
+		// slice 0 also takes what is behind the eye, for orthographic views.
+		float sliceNear = slice == 0 ? Float.NEGATIVE_INFINITY
+				: (float) (near * Math.exp((slice - 1) / slicesPerLog));
+		float sliceFar = slice == slices - 1 ? Float.POSITIVE_INFINITY
+				: (float) (near * Math.exp(slice / slicesPerLog));
+		int clustersPerSlice = tilesX * tilesY;
+		int firstCluster = slice * clustersPerSlice;
+		for (int cluster = firstCluster; cluster < firstCluster + clustersPerSlice; cluster++) {
+			grid[cluster * 2] = 0;
+			grid[cluster * 2 + 1] = 0;
+		}
+		IntList lights = covered[slice];
+		lights.clear();
+		int[] rectangle = rectangles[slice];
+		for (int light = 0; light < lightCount; light++) {
+			float depth = view[light * 4 + 2];
+			float radius = view[light * 4 + 3];
+			float low = Math.max(depth - radius, sliceNear);
+			float high = Math.min(depth + radius, sliceFar);
+			if (low > high || !tiles(light, low, high, rectangle)) {
+				continue;
+			}
+			lights.add(light);
+			lights.add(rectangle[0], rectangle[1], rectangle[2]);
+			lights.add(rectangle[3]);
+			for (int y = rectangle[2]; y <= rectangle[3]; y++) {
+				for (int x = rectangle[0]; x <= rectangle[1]; x++) {
+					grid[(firstCluster + y * tilesX + x) * 2 + 1]++;
+				}
+			}
+		}
+
+		int offset = 0;
+		for (int cluster = firstCluster; cluster < firstCluster + clustersPerSlice; cluster++) {
+			grid[cluster * 2] = offset;
+			offset += grid[cluster * 2 + 1];
+		}
+		if (sliceIndices[slice].length < offset) {
+			sliceIndices[slice] = new int[Math.max(offset, sliceIndices[slice].length * 2)];
+		}
+		sliceSizes[slice] = offset;
+		// the counts become fill positions and end up back where they were.
+		int[] list = sliceIndices[slice];
+		for (int cluster = firstCluster; cluster < firstCluster + clustersPerSlice; cluster++) {
+			grid[cluster * 2 + 1] = 0;
+		}
+		for (int i = 0; i < lights.size(); i += 5) {
+			int light = lights.get(i);
+			for (int y = lights.get(i + 3); y <= lights.get(i + 4); y++) {
+				for (int x = lights.get(i + 1); x <= lights.get(i + 2); x++) {
+					int cluster = firstCluster + y * tilesX + x;
+					list[grid[cluster * 2] + grid[cluster * 2 + 1]++] = light;
+				}
+			}
+		}
+	}
+
+	/*
+	 * The tiles covered by the part of a light's box between two view
+	 * depths: first and last x, first and last y.  False if none are.
+	 */
+	private boolean tiles(int light, float low, float high, int[] rectangle) {
+		float x = view[light * 4], y = view[light * 4 + 1], radius = view[light * 4 + 3];
+		float[] p = projection;
+		float minX = Float.POSITIVE_INFINITY, maxX = Float.NEGATIVE_INFINITY;
+		float minY = Float.POSITIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY;
+		for (int corner = 0; corner < 8; corner++) {
+			float cx = (corner & 1) == 0 ? x - radius : x + radius;
+			float cy = (corner & 2) == 0 ? y - radius : y + radius;
+			float cz = -((corner & 4) == 0 ? low : high);
+			float w = p[3] * cx + p[7] * cy + p[11] * cz + p[15];
+			if (w <= 0.0f) {
+				// behind the eye: the box may cover anything.
+				minX = minY = -1.0f;
+				maxX = maxY = 1.0f;
+				break;
+			}
+			float ndcX = (p[0] * cx + p[4] * cy + p[8] * cz + p[12]) / w;
+			float ndcY = (p[1] * cx + p[5] * cy + p[9] * cz + p[13]) / w;
+			minX = Math.min(minX, ndcX);
+			maxX = Math.max(maxX, ndcX);
+			minY = Math.min(minY, ndcY);
+			maxY = Math.max(maxY, ndcY);
+		}
+		if (maxX < -1.0f || minX > 1.0f || maxY < -1.0f || minY > 1.0f) {
+			return false;
+		}
+		rectangle[0] = tile(minX, tilesX);
+		rectangle[1] = tile(maxX, tilesX);
+		rectangle[2] = tile(minY, tilesY);
+		rectangle[3] = tile(maxY, tilesY);
+		return true;
+	}
+
+	private static int tile(float ndc, int tiles) {
+		return Math.max(0, Math.min(tiles - 1, (int) Math.floor((ndc * 0.5f + 0.5f) * tiles)));
+	}
+}
@@ -0,0 +1,210 @@
+import java.util.stream.IntStream;
+
+/**
+ * Every object in the scene, stored as a structure of arrays: entity i's
+ * mesh is mesh[i], its position x[i], y[i], z[i], and so on.
+ *
+ * <P>
+ * Each entity is turned about y by its yaw and uniformly scaled, and may
+ * follow the figure eight the cow has always moved along: at time t, with
+ * a = speed * t + phase, it is offset by amplitudeX * sin(a + pi/2) in x
+ * and amplitudeZ * sin(2a) in z before being turned and scaled.  The
+ * result is then moved, unturned, to its base position, so
+ * T(base) * Ry(yaw) * S(scale) * T(offset).  Its modeling matrix is kept,
+ * column major, at transforms[16 * i] so it can go straight to OpenGL.
+ *
+ * <P>
+ * The rotation and scale part of a matrix only changes when an entity is
+ * added or turned, so update only rewrites the translation column, and it
+ * uses sin(a + pi/2) = cos(a) and sin(2a) = 2 sin(a) cos(a) so each moving
+ * entity costs one sine and one cosine, which share one range reduction
+ * and are evaluated as short polynomials rather than with Math.sin and
+ * Math.cos (a few times slower, for accuracy animation does not need).
+ * Large stores are updated in
+ * parallel chunks of CHUNK entities; small ones on the calling thread,
+ * where update allocates nothing.
+ */
+final class EntityStore {
+
+	/** Entities per parallel task. */
+	static final int CHUNK = 1 << 14;
+
+	final int[] mesh;
+	final float[] x;
+	final float[] y;
+	final float[] z;
+	/** Degrees about y. */
+	final float[] yaw;
+	final float[] scale;
+	final float[] amplitudeX;
+	final float[] amplitudeZ;
+	final float[] speed;
+	final float[] phase;
+	/** Column major modeling matrices, 16 floats per entity. */
+	final float[] transforms;
+
+	private final float[] cosYaw;
+	private final float[] sinYaw;
+	private int count;
+
+	/**
+	 * @param capacity  the most entities the store will hold.
+	 */
+	EntityStore(int capacity) {
+		mesh = new int[capacity];
+		x = new float[capacity];
+		y = new float[capacity];
+		z = new float[capacity];
+		yaw = new float[capacity];
+		scale = new float[capacity];
+		amplitudeX = new float[capacity];
+		amplitudeZ = new float[capacity];
+		speed = new float[capacity];
+		phase = new float[capacity];
+		cosYaw = new float[capacity];
+		sinYaw = new float[capacity];
+		transforms = new float[capacity * 16];
+	}
+
+	/**
+	 * Add a still entity.
+	 *
+	 * @param mesh     which mesh it draws.
+	 * @param x        base position.
+	 * @param y        base position.
+	 * @param z        base position.
+	 * @param degrees  its yaw.
+	 * @param scale    its uniform scale.
+	 * @return  the new entity's index.
+	 */
+	int add(int mesh, float x, float y, float z, float degrees, float scale) {
+		int entity = count++;
+		this.mesh[entity] = mesh;
+		this.x[entity] = x;
+		this.y[entity] = y;
+		this.z[entity] = z;
+		this.scale[entity] = scale;
+		amplitudeX[entity] = 0.0f;
+		amplitudeZ[entity] = 0.0f;
+		speed[entity] = 0.0f;
+		phase[entity] = 0.0f;
+		transforms[entity * 16 + 15] = 1.0f;
+		setYaw(entity, degrees);
+		return entity;
+	}
+
+	/**
+	 * Make an entity move along the figure eight.
+	 *
+	 * @param amplitudeX  half the width of the path in x.
+	 * @param amplitudeZ  half its depth in z.
+	 * @param speed       radians of a per unit of time.
+	 * @param phase       where on the path it is at time 0, in radians.
+	 */
+	void setPath(int entity, float amplitudeX, float amplitudeZ, float speed, float phase) {
+		this.amplitudeX[entity] = amplitudeX;
+		this.amplitudeZ[entity] = amplitudeZ;
+		this.speed[entity] = speed;
+		this.phase[entity] = (float) (phase % (2.0 * Math.PI));
+	}
+
+	/**
+	 * Turn an entity about y.
+	 */
+	void turn(int entity, float degrees) {
+		setYaw(entity, yaw[entity] + degrees);
+	}
+
+	/**
+	 * @return  the Matrix4 type of an entity's matrix: RIGID unless it is
+	 *          scaled, when it is AFFINE.
+	 */
+	int type(int entity) {
+		return scale[entity] == 1.0f ? Matrix4.RIGID : Matrix4.AFFINE;
+	}
+
+	/**
+	 * @return  the number of entities.
+	 */
+	int count() {
+		return count;
+	}
+
+	/**
+	 * Move every entity to where it is at time t and rewrite the
+	 * translations of their matrices.
+	 */
+	void update(float t) {
+		update(t, 0, count);
+	}
+
+	/**
+	 * Update entities first to end - 1, in parallel if there are more
+	 * than CHUNK of them.
+	 */
+	void update(float t, int first, int end) {
+		if (end - first <= CHUNK) {
+			updateRange(t, first, end);
+			return;
+		}
+		IntStream.range(0, (end - first + CHUNK - 1) / CHUNK).parallel().forEach(chunk -> {
+			int from = first + chunk * CHUNK;
+			updateRange(t, from, Math.min(end, from + CHUNK));
+		});
+	}
+
+	/**
+	 * Update entities first to end - 1 on the calling thread.
+	 */
+	void updateRange(float t, int first, int end) {
+		for (int i = first; i < end; i++) {
+			float px = 0.0f;
+			float pz = 0.0f;
+			if (amplitudeX[i] != 0.0f || amplitudeZ[i] != 0.0f) {
+				// a = quadrant * pi/2 + r with |r| <= pi/4, where short
+				// Taylor series are good to float precision.
+				double a = speed[i] * t + phase[i];
+				double quadrant = Math.rint(a * (2.0 / Math.PI));
+				float r = (float) (a - quadrant * (Math.PI / 2.0));
+				float r2 = r * r;
+				float sinR = r * (1.0f - r2 / 6.0f * (1.0f - r2 / 20.0f * (1.0f - r2 / 42.0f * (1.0f - r2 / 72.0f))));
+				float cosR = 1.0f - r2 / 2.0f * (1.0f - r2 / 12.0f * (1.0f - r2 / 30.0f * (1.0f - r2 / 56.0f)));
+				int q = (int) (long) quadrant;
+				float sin = (q & 1) == 0 ? sinR : cosR;
+				float cos = (q & 1) == 0 ? cosR : -sinR;
+				if ((q & 2) != 0) {
+					sin = -sin;
+					cos = -cos;
+				}
+				px = amplitudeX[i] * cos;
+				pz = amplitudeZ[i] * 2.0f * sin * cos;
+			}
+			float s = scale[i];
+			float c = cosYaw[i];
+			float n = sinYaw[i];
+			int base = i * 16;
+			transforms[base + 12] = x[i] + s * (c * px + n * pz);
+			transforms[base + 13] = y[i];
+			transforms[base + 14] = z[i] + s * (c * pz - n * px);
+		}
+	}
+
+	/*
+	 * Rewrite the rotation and scale columns: Ry(yaw) * S(scale).
+	 */
+	private void setYaw(int entity, float degrees) {
+		yaw[entity] = degrees;
+		double radians = Math.toRadians(degrees);
+		float c = (float) Math.cos(radians);
+		float n = (float) Math.sin(radians);
+		cosYaw[entity] = c;
+		sinYaw[entity] = n;
+		float s = scale[entity];
+		int base = entity * 16;
+		transforms[base] = c * s;
+		transforms[base + 2] = -n * s;
+		transforms[base + 5] = s;
+		transforms[base + 8] = n * s;
+		transforms[base + 10] = c * s;
+	}
+}
@@ -0,0 +1,111 @@
+import java.util.Arrays;
+
+/**
+ * A growable array of primitive floats.  This is used by the OBJ
+ * loader in place of ArrayList&lt;Float&gt; so that coordinates are
+ * stored without boxing and can be handed to OpenGL as a plain array.
+ */
+final class FloatList {
+
+	private float[] data;
+	private int size;
+
+	/**
+	 * Create an empty list.
+	 * 
+	 * @param initialCapacity  the number of floats to reserve up front.
+	 */
+	FloatList(int initialCapacity) {
+		data = new float[Math.max(initialCapacity, 4)];
+	}
+
+	/**
+	 * Append a single value.
+	 * 
+	 * @param value  the value to append.
+	 */
+	void add(float value) {
+		if (size == data.length) {
+			grow(size + 1);
+		}
+		data[size++] = value;
+	}
+
+	/**
+	 * Append three values -- the common case for xyz triples.
+	 */
+	void add(float x, float y, float z) {
+		if (size + 3 > data.length) {
+			grow(size + 3);
+		}
+		data[size++] = x;
+		data[size++] = y;
+		data[size++] = z;
+	}
+
+	/**
+	 * Append every value held by another list.
+	 * 
+	 * @param other  the list to copy from.
+	 */
+	void addAll(FloatList other) {
+		if (size + other.size > data.length) {
+			grow(size + other.size);
+		}
+		System.arraycopy(other.data, 0, data, size, other.size);
+		size += other.size;
+	}
+
+	float get(int index) {
+		return data[index];
+	}
+
+	void set(int index, float value) {
+		data[index] = value;
+	}
+
+	int size() {
+		return size;
+	}
+
+	void clear() {
+		size = 0;
+	}
+
+	/**
+	 * Make sure at least the given number of floats fit without
+	 * another reallocation.
+	 * 
+	 * @param capacity  the required capacity.
+	 */
+	void ensureCapacity(int capacity) {
+		if (capacity > data.length) {
+			grow(capacity);
+		}
+	}
+
+	/**
+	 * The backing array.  Only the first size() entries are valid
+	 * and the array is replaced whenever the list grows.
+	 * 
+	 * @return  the backing array.
+	 */
+	float[] array() {
+		return data;
+	}
+
+	/**
+	 * @return  a copy of the list trimmed to its size.
+	 */
+	float[] toArray() {
+		return Arrays.copyOf(data, size);
+	}
+
+	private void grow(int minCapacity) {
+		int capacity = data.length + (data.length >> 1);
+		if (capacity < minCapacity) {
+			capacity = minCapacity;
+		}
+		data = Arrays.copyOf(data, capacity);
+	}
+}
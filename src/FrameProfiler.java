@@ -0,0 +1,302 @@
+import com.jogamp.opengl.GL2ES2;
+import com.jogamp.opengl.GL2GL3;
+import com.jogamp.opengl.GL4;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Per-phase CPU and GPU timing for the render loop.
+ *
+ * <P>
+ * A frame is split into named phases (clearing, uniform uploads, each
+ * object's draw, ...).  Each phase is wrapped in a GL_TIME_ELAPSED query
+ * and its CPU time is taken with System.nanoTime.  Query results are only
+ * read FRAMES_IN_FLIGHT frames later, when the GPU has long finished with
+ * them, and only if they are available -- the profiler never waits on
+ * the GPU.  Frames whose results were not ready are recorded as -1.
+ *
+ * <P>
+ * Results are kept as moving averages for the overlay (a bar per phase,
+ * drawn with scissored clears so no shader is needed) and, if a file was
+ * given, written to a CSV with one row per frame and a CPU and GPU column
+ * per phase, in microseconds.  The CSV rolls over to name.1 every
+ * ROLL_ROWS rows so it never grows without bound.  Nothing is allocated
+ * per frame.
+ */
+final class FrameProfiler {
+
+	/** Frames between issuing a query and reading its result. */
+	static final int FRAMES_IN_FLIGHT = 4;
+
+	/** Rows written before the CSV is rolled over. */
+	static final int ROLL_ROWS = 10000;
+
+	/* weight of the newest frame in the moving averages. */
+	private static final float SMOOTHING = 0.05f;
+
+	/* overlay: one 16.7 ms frame fills the bar area. */
+	private static final float OVERLAY_BUDGET_MS = 1000.0f / 60.0f;
+	private static final int BAR_HEIGHT = 5;
+
+	private static final float[][] COLORS = {
+			{ 0.90f, 0.30f, 0.25f }, { 0.95f, 0.65f, 0.20f }, { 0.85f, 0.85f, 0.30f },
+			{ 0.35f, 0.80f, 0.35f }, { 0.30f, 0.70f, 0.90f }, { 0.55f, 0.45f, 0.90f },
+			{ 0.90f, 0.45f, 0.75f }, { 0.70f, 0.70f, 0.70f } };
+
+	private final String[] names;
+	private int phaseCount;
+
+	private final int[] queries;
+	private final boolean[] issued;
+	private final long[] cpuNanos;
+	private final long[] startNanos;
+	private final long[] frameNumbers = new long[FRAMES_IN_FLIGHT];
+	private long frame;
+
+	private final float[] cpuAverage;
+	private final float[] gpuAverage;
+	private final int[] available = new int[1];
+	private final long[] elapsed = new long[1];
+
+	private Path csvPath;
+	private Writer csv;
+	private int rows;
+	private final StringBuilder row = new StringBuilder(256);
+	private char[] rowChars = new char[256];
+
+	/**
+	 * @param maxPhases  the most phases that will be registered.
+	 */
+	FrameProfiler(int maxPhases) {
+		names = new String[maxPhases];
+		queries = new int[FRAMES_IN_FLIGHT * maxPhases];
+		issued = new boolean[FRAMES_IN_FLIGHT * maxPhases];
+		cpuNanos = new long[FRAMES_IN_FLIGHT * maxPhases];
+		startNanos = new long[maxPhases];
+		cpuAverage = new float[maxPhases];
+		gpuAverage = new float[maxPhases];
+	}
+
+	/**
+	 * Register a phase.  Phases must be registered before init.
+	 *
+	 * @param name  the name used in the CSV header.
+	 * @return  the phase number to pass to begin and end.
+	 */
+	int phase(String name) {
+		names[phaseCount] = name;
+		return phaseCount++;
+	}
+
+	/**
+	 * @return  the name of a phase.
+	 */
+	String name(int phase) {
+		return names[phase];
+	}
+
+	/**
+	 * @return  the number of registered phases.
+	 */
+	int phaseCount() {
+		return phaseCount;
+	}
+
+	/**
+	 * Create the query objects.
+	 */
+	void init(GL4 gl) {
+		gl.glGenQueries(FRAMES_IN_FLIGHT * phaseCount, queries, 0);
+	}
+
+	/**
+	 * Start a phase.  A phase may run at most once per frame and phases
+	 * may not overlap, since only one GL_TIME_ELAPSED query can be active.
+	 */
+	void begin(GL4 gl, int phase) {
+		int slot = slot(phase);
+		gl.glBeginQuery(GL2GL3.GL_TIME_ELAPSED, queries[slot]);
+		startNanos[phase] = System.nanoTime();
+	}
+
+	/**
+	 * End the phase started last.
+	 */
+	void end(GL4 gl, int phase) {
+		int slot = slot(phase);
+		cpuNanos[slot] += System.nanoTime() - startNanos[phase];
+		gl.glEndQuery(GL2GL3.GL_TIME_ELAPSED);
+		issued[slot] = true;
+	}
+
+	/**
+	 * Finish the frame: collect the results of the oldest frame in the
+	 * ring, whose queries are about to be reused, and move on.
+	 */
+	void endFrame(GL4 gl) {
+		frameNumbers[(int) (frame % FRAMES_IN_FLIGHT)] = frame;
+		frame++;
+		int ring = (int) (frame % FRAMES_IN_FLIGHT);
+		if (frame < FRAMES_IN_FLIGHT) {
+			return; // nothing has been issued in this part of the ring yet.
+		}
+		row.setLength(0);
+		row.append(frameNumbers[ring]);
+		for (int phase = 0; phase < phaseCount; phase++) {
+			int slot = ring * names.length + phase;
+			long cpu = -1;
+			long gpu = -1;
+			if (issued[slot]) {
+				cpu = cpuNanos[slot];
+				gl.glGetQueryObjectiv(queries[slot], GL2ES2.GL_QUERY_RESULT_AVAILABLE, available, 0);
+				if (available[0] != 0) {
+					gl.glGetQueryObjectui64v(queries[slot], GL2ES2.GL_QUERY_RESULT, elapsed, 0);
+					gpu = elapsed[0];
+					gpuAverage[phase] += (gpu / 1.0e6f - gpuAverage[phase]) * SMOOTHING;
+				}
+				cpuAverage[phase] += (cpu / 1.0e6f - cpuAverage[phase]) * SMOOTHING;
+			}
+			row.append(',').append(cpu < 0 ? -1 : cpu / 1000).append(',').append(gpu < 0 ? -1 : gpu / 1000);
+			issued[slot] = false;
+			cpuNanos[slot] = 0;
+		}
+		writeRow();
+	}
+
+	/**
+	 * @return  the moving average CPU time of a phase in milliseconds.
+	 */
+	float cpuMillis(int phase) {
+		return cpuAverage[phase];
+	}
+
+	/**
+	 * @return  the moving average GPU time of a phase in milliseconds.
+	 */
+	float gpuMillis(int phase) {
+		return gpuAverage[phase];
+	}
+
+	/**
+	 * @return  every phase's average times, for a title bar or the log.
+	 */
+	String summary() {
+		StringBuilder text = new StringBuilder();
+		for (int phase = 0; phase < phaseCount; phase++) {
+			text.append(phase == 0 ? "" : "  ").append(names[phase]);
+			text.append(String.format(" %.2f/%.2f", cpuAverage[phase], gpuAverage[phase]));
+		}
+		return text.append(" ms cpu/gpu").toString();
+	}
+
+	/**
+	 * Draw the averages as bars in the bottom left corner: for each phase
+	 * a CPU bar in the phase's colour with a darker GPU bar under it.
+	 * Uses scissored clears, and leaves the scissor test off and the
+	 * clear colour black.
+	 */
+	void drawOverlay(GL4 gl, int width, int height) {
+		int x = 8;
+		int y = 8;
+		float pixelsPerMilli = (width / 2.0f) / OVERLAY_BUDGET_MS;
+		gl.glEnable(GL4.GL_SCISSOR_TEST);
+		for (int phase = phaseCount - 1; phase >= 0; phase--) {
+			float[] color = COLORS[phase % COLORS.length];
+			bar(gl, x, y, gpuAverage[phase] * pixelsPerMilli, color, 0.6f);
+			bar(gl, x, y + BAR_HEIGHT, cpuAverage[phase] * pixelsPerMilli, color, 1.0f);
+			y += 2 * BAR_HEIGHT + 3;
+			if (y > height) {
+				break;
+			}
+		}
+		gl.glDisable(GL4.GL_SCISSOR_TEST);
+		gl.glClearColor(0.0f, 0.0f, 0.0f, 0.0f);
+	}
+
+	private void bar(GL4 gl, int x, int y, float length, float[] color, float shade) {
+		int pixels = Math.max(1, Math.round(length));
+		gl.glScissor(x, y, pixels, BAR_HEIGHT);
+		gl.glClearColor(color[0] * shade, color[1] * shade, color[2] * shade, 1.0f);
+		gl.glClear(GL4.GL_COLOR_BUFFER_BIT);
+	}
+
+	/**
+	 * Start writing rows to a CSV file, replacing any old one.
+	 */
+	void startCsv(String file) {
+		stopCsv();
+		csvPath = Paths.get(file);
+		openCsv();
+	}
+
+	/**
+	 * Stop writing the CSV and close it.
+	 */
+	void stopCsv() {
+		if (csv != null) {
+			try {
+				csv.close();
+			} catch (IOException e) {
+				System.out.println("Could not close " + csvPath + ": " + e);
+			}
+			csv = null;
+		}
+	}
+
+	/**
+	 * Delete the queries and close the CSV.
+	 */
+	void dispose(GL4 gl) {
+		if (phaseCount > 0) {
+			gl.glDeleteQueries(FRAMES_IN_FLIGHT * phaseCount, queries, 0);
+		}
+		stopCsv();
+	}
+
+	private int slot(int phase) {
+		return (int) (frame % FRAMES_IN_FLIGHT) * names.length + phase;
+	}
+
+	private void openCsv() {
+		try {
+			csv = Files.newBufferedWriter(csvPath, StandardCharsets.US_ASCII);
+			StringBuilder header = new StringBuilder("frame");
+			for (int phase = 0; phase < phaseCount; phase++) {
+				header.append(",cpu_us_").append(names[phase]).append(",gpu_us_").append(names[phase]);
+			}
+			csv.write(header.append('\n').toString());
+			rows = 0;
+		} catch (IOException e) {
+			System.out.println("Could not write " + csvPath + ": " + e);
+			csv = null;
+		}
+	}
+
+	private void writeRow() {
+		if (csv == null) {
+			return;
+		}
+		row.append('\n');
+		if (rowChars.length < row.length()) {
+			rowChars = new char[row.length() * 2];
+		}
+		row.getChars(0, row.length(), rowChars, 0);
+		try {
+			csv.write(rowChars, 0, row.length());
+			if (++rows >= ROLL_ROWS) {
+				csv.close();
+				Files.move(csvPath, Paths.get(csvPath + ".1"), StandardCopyOption.REPLACE_EXISTING);
+				openCsv();
+			}
+		} catch (IOException e) {
+			System.out.println("Could not write " + csvPath + ": " + e);
+			stopCsv();
+		}
+	}
+}
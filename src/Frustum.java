@@ -0,0 +1,134 @@
+/**
+ * The six planes of a view frustum, used to skip objects that cannot be
+ * seen before any of their state is sent to OpenGL.
+ *
+ * <P>
+ * The planes are pulled out of projection * view (Gribb and Hartmann,
+ * "Fast Extraction of Viewing Frustum Planes from the World-View-Projection
+ * Matrix") so they are in world space with their normals pointing into the
+ * frustum.  Tests are conservative: an object is only reported outside when
+ * it is entirely behind one plane, so a few objects near the corners are
+ * drawn even though they are not visible.
+ */
+final class Frustum {
+
+	private static final int LEFT = 0, RIGHT = 1, BOTTOM = 2, TOP = 3, NEAR = 4, FAR = 5;
+
+	/** a, b, c, d for each plane; a point p is inside when a*x + b*y + c*z + d >= 0. */
+	private final float[] planes = new float[6 * 4];
+	private final float[] clip = new float[16];
+
+	/**
+	 * Recompute the planes for a camera.  Matrices are column major, as
+	 * PMVMatrix hands them out.
+	 *
+	 * @param projection  the projection matrix.
+	 * @param view        the viewing matrix.
+	 */
+	void update(float[] projection, float[] view) {
+		for (int column = 0; column < 4; column++) {
+			for (int row = 0; row < 4; row++) {
+				float sum = 0.0f;
+				for (int k = 0; k < 4; k++) {
+					sum += projection[k * 4 + row] * view[column * 4 + k];
+				}
+				clip[column * 4 + row] = sum;
+			}
+		}
+		for (int i = 0; i < 4; i++) {
+			// row 3 of clip plus or minus rows 0, 1 and 2.
+			float w = clip[i * 4 + 3];
+			planes[LEFT * 4 + i] = w + clip[i * 4];
+			planes[RIGHT * 4 + i] = w - clip[i * 4];
+			planes[BOTTOM * 4 + i] = w + clip[i * 4 + 1];
+			planes[TOP * 4 + i] = w - clip[i * 4 + 1];
+			planes[NEAR * 4 + i] = w + clip[i * 4 + 2];
+			planes[FAR * 4 + i] = w - clip[i * 4 + 2];
+		}
+		for (int plane = 0; plane < 6; plane++) {
+			int base = plane * 4;
+			float length = (float) Math.sqrt(planes[base] * planes[base] + planes[base + 1] * planes[base + 1]
+					+ planes[base + 2] * planes[base + 2]);
+			if (length > 0.0f) {
+				for (int i = 0; i < 4; i++) {
+					planes[base + i] /= length;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param x       world space centre of the sphere.
+	 * @param y       world space centre of the sphere.
+	 * @param z       world space centre of the sphere.
+	 * @param radius  radius of the sphere.
+	 * @return  false if the sphere is entirely outside the frustum.
+	 */
+	boolean intersectsSphere(float x, float y, float z, float radius) {
+		for (int base = 0; base < planes.length; base += 4) {
+			if (planes[base] * x + planes[base + 1] * y + planes[base + 2] * z + planes[base + 3] < -radius) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Test a model's bounds, placed in the world by its modeling matrix.
+	 * The bounding sphere is tried first; when it straddles a plane the
+	 * box, transformed into a world space box around it, is tried too.
+	 *
+	 * @param model   the object's modeling matrix, column major.
+	 * @param min     model space minimum corner of the bounding box.
+	 * @param max     model space maximum corner of the bounding box.
+	 * @param center  model space centre of the bounding sphere.
+	 * @param radius  model space radius of the bounding sphere.
+	 * @return  false if the object is entirely outside the frustum.
+	 */
+	boolean intersects(float[] model, float[] min, float[] max, float[] center, float radius) {
+		float m0 = model[0], m1 = model[1], m2 = model[2];
+		float m4 = model[4], m5 = model[5], m6 = model[6];
+		float m8 = model[8], m9 = model[9], m10 = model[10];
+		float m12 = model[12], m13 = model[13], m14 = model[14];
+
+		float scale = (float) Math.sqrt(Math.max(m0 * m0 + m1 * m1 + m2 * m2,
+				Math.max(m4 * m4 + m5 * m5 + m6 * m6, m8 * m8 + m9 * m9 + m10 * m10)));
+		float sx = m0 * center[0] + m4 * center[1] + m8 * center[2] + m12;
+		float sy = m1 * center[0] + m5 * center[1] + m9 * center[2] + m13;
+		float sz = m2 * center[0] + m6 * center[1] + m10 * center[2] + m14;
+		float worldRadius = radius * scale;
+
+		boolean straddles = false;
+		for (int base = 0; base < planes.length; base += 4) {
+			float distance = planes[base] * sx + planes[base + 1] * sy + planes[base + 2] * sz + planes[base + 3];
+			if (distance < -worldRadius) {
+				return false;
+			}
+			if (distance < worldRadius) {
+				straddles = true;
+			}
+		}
+		if (!straddles) {
+			return true;
+		}
+
+		// centre and half extents of the box in world space (Arvo).
+		float cx = (min[0] + max[0]) * 0.5f, cy = (min[1] + max[1]) * 0.5f, cz = (min[2] + max[2]) * 0.5f;
+		float ex = (max[0] - min[0]) * 0.5f, ey = (max[1] - min[1]) * 0.5f, ez = (max[2] - min[2]) * 0.5f;
+		float wx = m0 * cx + m4 * cy + m8 * cz + m12;
+		float wy = m1 * cx + m5 * cy + m9 * cz + m13;
+		float wz = m2 * cx + m6 * cy + m10 * cz + m14;
+		float hx = Math.abs(m0) * ex + Math.abs(m4) * ey + Math.abs(m8) * ez;
+		float hy = Math.abs(m1) * ex + Math.abs(m5) * ey + Math.abs(m9) * ez;
+		float hz = Math.abs(m2) * ex + Math.abs(m6) * ey + Math.abs(m10) * ez;
+		for (int base = 0; base < planes.length; base += 4) {
+			float a = planes[base], b = planes[base + 1], c = planes[base + 2];
+			float distance = a * wx + b * wy + c * wz + planes[base + 3];
+			float reach = Math.abs(a) * hx + Math.abs(b) * hy + Math.abs(c) * hz;
+			if (distance < -reach) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
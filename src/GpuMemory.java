@@ -0,0 +1,199 @@
+import com.jogamp.opengl.GL2ES3;
+import com.jogamp.opengl.GL4;
+
+import java.nio.Buffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Owns the lifetime of every GPU buffer and vertex array the renderer
+ * creates, and keeps count of the memory they use.
+ *
+ * <P>
+ * Buffers are created at exactly the size asked for and filed under a
+ * category ("mesh positions", "uniforms", ...) and a label naming what
+ * they hold.  The live and peak bytes per category can be reported at any
+ * time.  Deleting a buffer that was not created here, or deleting one
+ * twice, throws.  Whatever is still alive when dispose is called is
+ * reported as a leak, then deleted.
+ *
+ * <P>
+ * Only the rendering thread may use it.
+ */
+final class GpuMemory {
+
+	private static final class Allocation {
+		final String category;
+		final String label;
+		final long bytes;
+
+		Allocation(String category, String label, long bytes) {
+			this.category = category;
+			this.label = label;
+			this.bytes = bytes;
+		}
+	}
+
+	private final Map<Integer, Allocation> buffers = new HashMap<>();
+	private final Map<Integer, String> vertexArrays = new HashMap<>();
+	/** category -> { live bytes, live buffers, peak bytes }. */
+	private final Map<String, long[]> categories = new TreeMap<>();
+	private long liveBytes;
+	private long peakBytes;
+	private final int[] name = new int[1];
+
+	/**
+	 * Create a mutable buffer with glBufferData.  The target is left
+	 * unbound.
+	 *
+	 * @param category  what kind of data it holds, for the report.
+	 * @param label     which data it holds, for the report.
+	 * @param target    the target to create it through.
+	 * @param bytes     its size.
+	 * @param data      its contents, or null.
+	 * @param usage     the usage hint.
+	 * @return  the buffer's name.
+	 */
+	int createBuffer(GL4 gl, String category, String label, int target, long bytes, Buffer data, int usage) {
+		gl.glGenBuffers(1, name, 0);
+		gl.glBindBuffer(target, name[0]);
+		gl.glBufferData(target, bytes, data, usage);
+		gl.glBindBuffer(target, 0);
+		return track(name[0], category, label, bytes);
+	}
+
+	/**
+	 * Create an immutable buffer with glBufferStorage.
+	 *
+	 * @param category  what kind of data it holds, for the report.
+	 * @param label     which data it holds, for the report.
+	 * @param bytes     its size.
+	 * @param data      its contents, or null.
+	 * @param flags     the storage flags; 0 for a buffer only written by
+	 *                  copies.
+	 * @return  the buffer's name.
+	 */
+	int createStorage(GL4 gl, String category, String label, long bytes, Buffer data, int flags) {
+		gl.glGenBuffers(1, name, 0);
+		gl.glBindBuffer(GL2ES3.GL_COPY_WRITE_BUFFER, name[0]);
+		gl.glBufferStorage(GL2ES3.GL_COPY_WRITE_BUFFER, bytes, data, flags);
+		gl.glBindBuffer(GL2ES3.GL_COPY_WRITE_BUFFER, 0);
+		return track(name[0], category, label, bytes);
+	}
+
+	/**
+	 * Delete a buffer created here.
+	 */
+	void deleteBuffer(GL4 gl, int buffer) {
+		Allocation allocation = buffers.remove(buffer);
+		if (allocation == null) {
+			throw new IllegalArgumentException("Buffer " + buffer + " is not a live buffer");
+		}
+		long[] totals = categories.get(allocation.category);
+		totals[0] -= allocation.bytes;
+		totals[1]--;
+		liveBytes -= allocation.bytes;
+		name[0] = buffer;
+		gl.glDeleteBuffers(1, name, 0);
+	}
+
+	/**
+	 * Create a vertex array object.
+	 *
+	 * @param label  what it is for, for the report.
+	 * @return  its name.
+	 */
+	int createVertexArray(GL4 gl, String label) {
+		gl.glGenVertexArrays(1, name, 0);
+		vertexArrays.put(name[0], label);
+		return name[0];
+	}
+
+	/**
+	 * Delete a vertex array object created here.
+	 */
+	void deleteVertexArray(GL4 gl, int vertexArray) {
+		if (vertexArrays.remove(vertexArray) == null) {
+			throw new IllegalArgumentException("Vertex array " + vertexArray + " is not a live vertex array");
+		}
+		name[0] = vertexArray;
+		gl.glDeleteVertexArrays(1, name, 0);
+	}
+
+	/**
+	 * @return  the bytes in every live buffer.
+	 */
+	long liveBytes() {
+		return liveBytes;
+	}
+
+	/**
+	 * @return  the most bytes that were ever live at once.
+	 */
+	long peakBytes() {
+		return peakBytes;
+	}
+
+	/**
+	 * @return  the bytes in a category's live buffers.
+	 */
+	long liveBytes(String category) {
+		long[] totals = categories.get(category);
+		return totals == null ? 0L : totals[0];
+	}
+
+	/**
+	 * @return  live and peak bytes per category, one line each.
+	 */
+	String report() {
+		StringBuilder text = new StringBuilder();
+		text.append(String.format("GPU memory: %d bytes live in %d buffers and %d vertex arrays, peak %d%n",
+				liveBytes, buffers.size(), vertexArrays.size(), peakBytes));
+		for (Map.Entry<String, long[]> entry : categories.entrySet()) {
+			long[] totals = entry.getValue();
+			text.append(String.format("  %-16s %12d bytes in %d buffers, peak %d%n", entry.getKey(), totals[0],
+					totals[1], totals[2]));
+		}
+		return text.toString();
+	}
+
+	/**
+	 * Report everything still alive as a leak and delete it.
+	 *
+	 * @return  the number of leaked buffers and vertex arrays.
+	 */
+	int dispose(GL4 gl) {
+		int leaks = buffers.size() + vertexArrays.size();
+		if (leaks > 0) {
+			System.out.println("GPU memory leaked: " + liveBytes + " bytes in " + buffers.size() + " buffers, "
+					+ vertexArrays.size() + " vertex arrays");
+			for (Map.Entry<Integer, Allocation> entry : buffers.entrySet()) {
+				Allocation allocation = entry.getValue();
+				System.out.println("  buffer " + entry.getKey() + ": " + allocation.category + " "
+						+ allocation.label + ", " + allocation.bytes + " bytes");
+			}
+			for (Map.Entry<Integer, String> entry : vertexArrays.entrySet()) {
+				System.out.println("  vertex array " + entry.getKey() + ": " + entry.getValue());
+			}
+			for (Integer buffer : buffers.keySet().toArray(new Integer[0])) {
+				deleteBuffer(gl, buffer);
+			}
+			for (Integer vertexArray : vertexArrays.keySet().toArray(new Integer[0])) {
+				deleteVertexArray(gl, vertexArray);
+			}
+		}
+		return leaks;
+	}
+
+	private int track(int buffer, String category, String label, long bytes) {
+		buffers.put(buffer, new Allocation(category, label, bytes));
+		long[] totals = categories.computeIfAbsent(category, key -> new long[3]);
+		totals[0] += bytes;
+		totals[1]++;
+		totals[2] = Math.max(totals[2], totals[0]);
+		liveBytes += bytes;
+		peakBytes = Math.max(peakBytes, liveBytes);
+		return buffer;
+	}
+}
@@ -0,0 +1,111 @@
+import java.util.Arrays;
+
+/**
+ * A growable array of primitive ints.  This is used by the OBJ
+ * loader in place of ArrayList&lt;Integer&gt; so that face indices are
+ * stored without boxing and can be handed to OpenGL as a plain array.
+ */
+final class IntList {
+
+	private int[] data;
+	private int size;
+
+	/**
+	 * Create an empty list.
+	 * 
+	 * @param initialCapacity  the number of ints to reserve up front.
+	 */
+	IntList(int initialCapacity) {
+		data = new int[Math.max(initialCapacity, 4)];
+	}
+
+	/**
+	 * Append a single value.
+	 * 
+	 * @param value  the value to append.
+	 */
+	void add(int value) {
+		if (size == data.length) {
+			grow(size + 1);
+		}
+		data[size++] = value;
+	}
+
+	/**
+	 * Append three values -- the common case for triangle corners.
+	 */
+	void add(int x, int y, int z) {
+		if (size + 3 > data.length) {
+			grow(size + 3);
+		}
+		data[size++] = x;
+		data[size++] = y;
+		data[size++] = z;
+	}
+
+	/**
+	 * Append every value held by another list.
+	 * 
+	 * @param other  the list to copy from.
+	 */
+	void addAll(IntList other) {
+		if (size + other.size > data.length) {
+			grow(size + other.size);
+		}
+		System.arraycopy(other.data, 0, data, size, other.size);
+		size += other.size;
+	}
+
+	int get(int index) {
+		return data[index];
+	}
+
+	void set(int index, int value) {
+		data[index] = value;
+	}
+
+	int size() {
+		return size;
+	}
+
+	void clear() {
+		size = 0;
+	}
+
+	/**
+	 * Make sure at least the given number of ints fit without
+	 * another reallocation.
+	 * 
+	 * @param capacity  the required capacity.
+	 */
+	void ensureCapacity(int capacity) {
+		if (capacity > data.length) {
+			grow(capacity);
+		}
+	}
+
+	/**
+	 * The backing array.  Only the first size() entries are valid
+	 * and the array is replaced whenever the list grows.
+	 * 
+	 * @return  the backing array.
+	 */
+	int[] array() {
+		return data;
+	}
+
+	/**
+	 * @return  a copy of the list trimmed to its size.
+	 */
+	int[] toArray() {
+		return Arrays.copyOf(data, size);
+	}
+
+	private void grow(int minCapacity) {
+		int capacity = data.length + (data.length >> 1);
+		if (capacity < minCapacity) {
+			capacity = minCapacity;
+		}
+		data = Arrays.copyOf(data, capacity);
+	}
+}
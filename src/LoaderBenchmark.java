@@ -0,0 +1,377 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Microbenchmarks for the loading and per-frame hot paths: parsing
+ * cow.obj and a synthetic OBJ with millions of faces, streaming the
+ * synthetic file in bounded memory, expanding parsed triangles into the
+ * arrays handed to OpenGL, orienting the triangles and generating smooth
+ * normals, composing the transforms of many objects, moving every entity
+ * of a large EntityStore, and ray and box queries through bounding volume
+ * hierarchies compared with testing every triangle.
+ *
+ * <P>
+ * Each benchmark runs a number of untimed warm-up iterations so the JIT
+ * has compiled it, then times each measured iteration separately.  The
+ * report gives the mean and minimum time per operation and, like JMH's
+ * gc profiler, the bytes the benchmark thread allocated per operation
+ * (see AllocationMeter); work done on ForkJoinPool threads by the
+ * parallel benchmarks is not counted.  Results feed a sink so the work
+ * cannot be optimized away.
+ *
+ * <P>
+ * Usage: java LoaderBenchmark [--obj file] [--faces N] [--objects N]
+ * [--entities N] [--warmup N] [--iterations N]
+ */
+final class LoaderBenchmark {
+
+	private interface Operation {
+		long run() throws Exception;
+	}
+
+	private static long sink;
+
+	/** Rays cast per ray benchmark operation on cow.obj. */
+	private static final int RAYS = 1000;
+	/** Rays per operation on the synthetic mesh, where brute force is slow. */
+	private static final int SYNTHETIC_RAYS = 16;
+
+	private final int warmup;
+	private final int iterations;
+
+	private LoaderBenchmark(int warmup, int iterations) {
+		this.warmup = warmup;
+		this.iterations = iterations;
+	}
+
+	public static void main(String[] args) throws Exception {
+		String obj = "obj/cow.obj";
+		int faces = 2000000;
+		int objects = 10000;
+		int entityCount = 1000000;
+		int warmup = 5;
+		int iterations = 10;
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			switch (args[i]) {
+			case "--obj":
+				obj = args[i + 1];
+				break;
+			case "--faces":
+				faces = Integer.parseInt(args[i + 1]);
+				break;
+			case "--objects":
+				objects = Integer.parseInt(args[i + 1]);
+				break;
+			case "--entities":
+				entityCount = Integer.parseInt(args[i + 1]);
+				break;
+			case "--warmup":
+				warmup = Integer.parseInt(args[i + 1]);
+				break;
+			case "--iterations":
+				iterations = Integer.parseInt(args[i + 1]);
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown option " + args[i]);
+			}
+		}
+		if (!AllocationMeter.isSupported()) {
+			System.out.println("This JVM cannot count allocations; B/op will read 0.");
+		}
+		LoaderBenchmark benchmark = new LoaderBenchmark(warmup, Math.max(iterations, 1));
+		System.out.printf("%-36s %12s %12s %14s%n", "Benchmark", "mean ms/op", "min ms/op", "alloc B/op");
+
+		byte[] cow = Files.readAllBytes(Paths.get(obj));
+		benchmark.measure("parse " + obj, () -> parse(cow).triangles.size());
+		OBJParser cowParsed = parse(cow);
+		benchmark.measure("expand " + obj, () -> expand(cowParsed));
+
+		byte[] synthetic = syntheticOBJ(faces);
+		benchmark.measure("parse synthetic " + faces + " faces", () -> parse(synthetic).triangles.size());
+		Path file = Files.createTempFile("synthetic", ".obj");
+		try {
+			Files.write(file, synthetic);
+			String name = file.toString();
+			benchmark.measure("parallel parse synthetic", () -> ParallelOBJLoader.load(name).triangles.size());
+			benchmark.measure("stream synthetic", () -> StreamingOBJLoader.load(name,
+					(vertices, normals, triangles) -> sink += vertices.get(0) > 0.0f ? 1 : 0));
+		} finally {
+			Files.delete(file);
+		}
+		OBJParser syntheticParsed = parse(synthetic);
+		benchmark.measure("expand synthetic", () -> expand(syntheticParsed));
+		benchmark.measure("parallel expand synthetic", () -> {
+			OBJinfo info = new OBJinfo();
+			info.expandParsed(syntheticParsed, true);
+			return info.getVertexList().length;
+		});
+		benchmark.measure("orient and generate normals " + obj, () -> normals(cowParsed));
+		benchmark.measure("orient and generate normals synthetic", () -> normals(syntheticParsed));
+
+		OBJinfo cowInfo = new OBJinfo();
+		cowInfo.expandParsed(cowParsed, false);
+		MeshBVH cowBVH = expandedBVH(cowInfo.getVertexList());
+		benchmark.measure("build BVH " + obj, () -> expandedBVH(cowInfo.getVertexList()).nodeCount());
+		float[] cowRays = rays(cowBVH, RAYS);
+		benchmark.measure("BVH " + RAYS + " rays " + obj, () -> castRays(cowBVH, cowRays, false));
+		benchmark.measure("brute force " + RAYS + " rays " + obj, () -> castRays(cowBVH, cowRays, true));
+		float[] cowBoxes = queryBoxes(cowBVH, RAYS);
+		IntList overlapping = new IntList(1024);
+		benchmark.measure("BVH " + RAYS + " box queries " + obj, () -> {
+			long total = 0;
+			int[] stack = new int[cowBVH.stackSize()];
+			float[] box = new float[6];
+			for (int i = 0; i < RAYS; i++) {
+				System.arraycopy(cowBoxes, i * 6, box, 0, 6);
+				overlapping.clear();
+				total += cowBVH.overlaps(box, overlapping, stack);
+			}
+			return total;
+		});
+		benchmark.measure("brute force " + RAYS + " box queries " + obj, () -> {
+			long total = 0;
+			float[] box = new float[6];
+			for (int i = 0; i < RAYS; i++) {
+				System.arraycopy(cowBoxes, i * 6, box, 0, 6);
+				for (int triangle = 0; triangle < cowBVH.triangleCount(); triangle++) {
+					if (cowBVH.triangleOverlapsBox(triangle, box)) {
+						total++;
+					}
+				}
+			}
+			return total;
+		});
+		OBJinfo syntheticInfo = new OBJinfo();
+		syntheticInfo.expandParsed(syntheticParsed, true);
+		float[] syntheticTriangles = syntheticInfo.getVertexList();
+		MeshBVH syntheticBVH = expandedBVH(syntheticTriangles);
+		float[] syntheticRays = rays(syntheticBVH, SYNTHETIC_RAYS);
+		benchmark.measure("BVH " + SYNTHETIC_RAYS + " rays synthetic",
+				() -> castRays(syntheticBVH, syntheticRays, false));
+		benchmark.measure("brute force " + SYNTHETIC_RAYS + " rays synthetic",
+				() -> castRays(syntheticBVH, syntheticRays, true));
+
+		Matrix4 rotation = new Matrix4().rotate(30.0f, 0.0f, 1.0f, 0.0f);
+		Matrix4 model = new Matrix4();
+		Matrix4 normal = new Matrix4();
+		int objectCount = objects;
+		benchmark.measure("compose " + objects + " transforms", () -> {
+			long checksum = 0;
+			for (int i = 0; i < objectCount; i++) {
+				model.set(rotation).scale(1.0f, 1.0f, 1.0f).translate(i, 0.0f, -i);
+				model.normalMatrix(normal);
+				checksum += Float.floatToRawIntBits(model.m[12] + normal.m[0]);
+			}
+			return checksum;
+		});
+
+		EntityStore entities = new EntityStore(entityCount);
+		for (int i = 0; i < entityCount; i++) {
+			int entity = entities.add(i % 3, i % 1000, 0.0f, i / 1000, i * 137.5f, 1.0f);
+			entities.setPath(entity, 0.5f, 0.5f, 1.0f, i * 0.618034f);
+		}
+		float[] time = new float[1];
+		benchmark.measure("update " + entityCount + " entities", () -> {
+			time[0] += 0.01f;
+			entities.updateRange(time[0], 0, entities.count());
+			return Float.floatToRawIntBits(entities.transforms[12]);
+		});
+		benchmark.measure("parallel update " + entityCount + " entities", () -> {
+			time[0] += 0.01f;
+			entities.update(time[0]);
+			return Float.floatToRawIntBits(entities.transforms[12]);
+		});
+
+		// picking through the scene BVH refit over every entity.
+		entities.update(0.0f);
+		MeshBVH[] meshes = { cowBVH, cowBVH, cowBVH };
+		SceneBVH scene = new SceneBVH(entities, meshes, 0, entities.count());
+		benchmark.measure("refit scene BVH " + entityCount + " entities", () -> {
+			scene.refit();
+			return 1;
+		});
+		float[] sceneBox = new float[6];
+		scene.bounds(0, sceneBox);
+		RayHit hit = new RayHit();
+		benchmark.measure("scene BVH " + RAYS + " rays", () -> {
+			long hits = 0;
+			Random random = new Random(7);
+			for (int i = 0; i < RAYS; i++) {
+				// straight down onto a random entity's neighbourhood.
+				int entity = random.nextInt(entities.count());
+				float x = entities.transforms[entity * 16 + 12] + random.nextFloat() - 0.5f;
+				float z = entities.transforms[entity * 16 + 14] + random.nextFloat() - 0.5f;
+				if (scene.raycast(x, 100.0f, z, 0.0f, -1.0f, 0.0f, hit.reset(Float.MAX_VALUE))) {
+					hits++;
+				}
+			}
+			return hits;
+		});
+		System.out.println("sink " + sink);
+	}
+
+	private static OBJParser parse(byte[] source) throws IOException {
+		OBJParser parser = new OBJParser();
+		parser.parse(ByteBuffer.wrap(source));
+		return parser;
+	}
+
+	private static long expand(OBJParser parsed) {
+		OBJinfo info = new OBJinfo();
+		info.expandParsed(parsed, false);
+		return info.getVertexList().length;
+	}
+
+	/*
+	 * Orient a parsed mesh and replace all of its normals.  Both steps
+	 * leave a mesh they have already processed as it is, so the same
+	 * mesh can be measured over and over.
+	 */
+	private static long normals(OBJParser parsed) {
+		return MeshNormals.orient(parsed) + MeshNormals.generate(parsed, true);
+	}
+
+	/*
+	 * A BVH over an expanded triangle list: xyzw per corner, three corners
+	 * per triangle, so the indices just count up.
+	 */
+	private static MeshBVH expandedBVH(float[] triangleList) {
+		int[] indices = new int[triangleList.length / 4];
+		for (int i = 0; i < indices.length; i++) {
+			indices[i] = i;
+		}
+		return new MeshBVH(triangleList, 4, indices);
+	}
+
+	/*
+	 * Rays from a sphere around a mesh toward random points in its box:
+	 * origin then direction, six floats each.
+	 */
+	private static float[] rays(MeshBVH mesh, int count) {
+		float[] box = mesh.bounds();
+		float radius = 0.0f;
+		for (int axis = 0; axis < 3; axis++) {
+			radius = Math.max(radius, box[axis + 3] - box[axis]);
+		}
+		Random random = new Random(42);
+		float[] rays = new float[count * 6];
+		for (int i = 0; i < count; i++) {
+			for (int axis = 0; axis < 3; axis++) {
+				float center = 0.5f * (box[axis] + box[axis + 3]);
+				float target = box[axis] + random.nextFloat() * (box[axis + 3] - box[axis]);
+				float origin = center + (float) random.nextGaussian() * radius;
+				rays[i * 6 + axis] = origin;
+				rays[i * 6 + 3 + axis] = target - origin;
+			}
+		}
+		return rays;
+	}
+
+	/*
+	 * Small boxes at random points in a mesh's box, six floats each.
+	 */
+	private static float[] queryBoxes(MeshBVH mesh, int count) {
+		float[] box = mesh.bounds();
+		Random random = new Random(43);
+		float[] boxes = new float[count * 6];
+		for (int i = 0; i < count; i++) {
+			for (int axis = 0; axis < 3; axis++) {
+				float size = 0.05f * (box[axis + 3] - box[axis]);
+				float center = box[axis] + random.nextFloat() * (box[axis + 3] - box[axis]);
+				boxes[i * 6 + axis] = center - size;
+				boxes[i * 6 + 3 + axis] = center + size;
+			}
+		}
+		return boxes;
+	}
+
+	private static long castRays(MeshBVH mesh, float[] rays, boolean bruteForce) {
+		long checksum = 0;
+		int[] stack = new int[mesh.stackSize()];
+		RayHit hit = new RayHit();
+		for (int i = 0; i < rays.length; i += 6) {
+			hit.reset(Float.MAX_VALUE);
+			if (bruteForce) {
+				for (int triangle = 0; triangle < mesh.triangleCount(); triangle++) {
+					float t = mesh.intersectTriangle(triangle, rays[i], rays[i + 1], rays[i + 2], rays[i + 3],
+							rays[i + 4], rays[i + 5]);
+					if (t < hit.distance) {
+						hit.distance = t;
+						hit.triangle = triangle;
+					}
+				}
+			} else {
+				mesh.raycast(rays[i], rays[i + 1], rays[i + 2], rays[i + 3], rays[i + 4], rays[i + 5], hit, stack);
+			}
+			checksum += hit.triangle;
+		}
+		return checksum;
+	}
+
+	/*
+	 * A square grid of quads split into triangles, with a normal per
+	 * vertex, written the way exporters write OBJ files.
+	 */
+	static byte[] syntheticOBJ(int faces) {
+		int side = (int) Math.ceil(Math.sqrt(faces / 2.0)) + 1;
+		ByteArrayOutputStream out = new ByteArrayOutputStream(faces * 40);
+		StringBuilder line = new StringBuilder(64);
+		for (int row = 0; row < side; row++) {
+			for (int column = 0; column < side; column++) {
+				float height = (float) Math.sin(row * 0.1) * (float) Math.cos(column * 0.1);
+				line.setLength(0);
+				line.append("v ").append(column * 0.01f).append(' ').append(height).append(' ')
+						.append(row * 0.01f).append('\n');
+				line.append("vn 0.0 1.0 0.0\n");
+				out.write(line.toString().getBytes(StandardCharsets.US_ASCII), 0, line.length());
+			}
+		}
+		int written = 0;
+		for (int row = 0; row + 1 < side && written < faces; row++) {
+			for (int column = 0; column + 1 < side && written < faces; column++) {
+				int a = row * side + column + 1, b = a + 1, c = a + side, d = c + 1;
+				line.setLength(0);
+				line.append("f ").append(a).append("//").append(a).append(' ').append(c).append("//").append(c)
+						.append(' ').append(b).append("//").append(b).append('\n');
+				written++;
+				if (written < faces) {
+					line.append("f ").append(b).append("//").append(b).append(' ').append(c).append("//")
+							.append(c).append(' ').append(d).append("//").append(d).append('\n');
+					written++;
+				}
+				out.write(line.toString().getBytes(StandardCharsets.US_ASCII), 0, line.length());
+			}
+		}
+		return out.toByteArray();
+	}
+
+	private void measure(String name, Operation operation) throws Exception {
+		for (int i = 0; i < warmup; i++) {
+			sink += operation.run();
+		}
+		long[] nanos = new long[iterations];
+		long allocated = 0;
+		for (int i = 0; i < iterations; i++) {
+			long bytesBefore = AllocationMeter.allocatedBytes();
+			long start = System.nanoTime();
+			sink += operation.run();
+			nanos[i] = System.nanoTime() - start;
+			allocated += AllocationMeter.allocatedBytes() - bytesBefore;
+		}
+		long total = 0;
+		for (long time : nanos) {
+			total += time;
+		}
+		Arrays.sort(nanos);
+		System.out.printf(Locale.ROOT, "%-36s %12.3f %12.3f %14d%n", name, total / 1.0e6 / iterations,
+				nanos[0] / 1.0e6, allocated / iterations);
+	}
+}
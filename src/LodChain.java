@@ -0,0 +1,95 @@
+/**
+ * A chain of levels of detail for one mesh.  Every level indexes the same
+ * vertices, so the levels are stored back to back in one index array and
+ * a renderer only needs the offset and count of the level it draws.
+ * Level 0 is the full mesh.
+ *
+ * <P>
+ * Each level records the geometric error of its simplification in model
+ * units.  selectLevel turns that into pixels with the current projection
+ * and picks the coarsest level whose error stays below a pixel threshold.
+ */
+final class LodChain {
+
+	/** Stop simplifying once a level has fewer triangles than this. */
+	private static final int MIN_TRIANGLES = 32;
+
+	final int[] indices;
+	final int[] offsets;
+	final int[] counts;
+	final float[] errors;
+
+	private LodChain(int[] indices, int[] offsets, int[] counts, float[] errors) {
+		this.indices = indices;
+		this.offsets = offsets;
+		this.counts = counts;
+		this.errors = errors;
+	}
+
+	/**
+	 * Build a chain by repeatedly halving the triangle count.
+	 *
+	 * @param vertices   xyzw positions.
+	 * @param indices    the full resolution triangles.
+	 * @param maxLevels  the most levels to build, including level 0.
+	 * @param maxError   give up on a level once collapses cost more than
+	 *                   this, in model units.
+	 * @return  the chain.
+	 */
+	static LodChain build(float[] vertices, int[] indices, int maxLevels, float maxError) {
+		int[][] levels = new int[maxLevels][];
+		float[] errors = new float[maxLevels];
+		levels[0] = indices;
+		int count = 1;
+		while (count < maxLevels && levels[count - 1].length / 3 >= MIN_TRIANGLES * 2) {
+			int[] previous = levels[count - 1];
+			MeshSimplifier.Result result = MeshSimplifier.simplify(vertices, previous, previous.length / 2,
+					maxError);
+			if (result.indices.length > previous.length * 3 / 4) {
+				break; // the error limit stopped it from getting much simpler.
+			}
+			levels[count] = result.indices;
+			// simplifying an already simplified level adds to its error.
+			errors[count] = errors[count - 1] + result.error;
+			count++;
+		}
+		int total = 0;
+		for (int level = 0; level < count; level++) {
+			total += levels[level].length;
+		}
+		int[] all = new int[total];
+		int[] offsets = new int[count];
+		int[] counts = new int[count];
+		float[] trimmedErrors = new float[count];
+		int offset = 0;
+		for (int level = 0; level < count; level++) {
+			System.arraycopy(levels[level], 0, all, offset, levels[level].length);
+			offsets[level] = offset;
+			counts[level] = levels[level].length;
+			trimmedErrors[level] = errors[level];
+			offset += levels[level].length;
+		}
+		return new LodChain(all, offsets, counts, trimmedErrors);
+	}
+
+	int levelCount() {
+		return counts.length;
+	}
+
+	/**
+	 * Pick the coarsest level whose error, projected to the screen, is
+	 * within the threshold.
+	 *
+	 * @param pixelsPerUnit   how many pixels one model unit covers at the
+	 *                        object's distance (including its scale).
+	 * @param pixelThreshold  the largest error allowed on screen, in pixels.
+	 * @return  the level to draw.
+	 */
+	int selectLevel(float pixelsPerUnit, float pixelThreshold) {
+		int level = 0;
+		while (level + 1 < counts.length && errors[level + 1] * pixelsPerUnit <= pixelThreshold) {
+			level++;
+		}
+		return level;
+	}
+}
@@ -0,0 +1,321 @@
+/**
+ * A 4x4 transform held in a primitive array, column major like OpenGL, so
+ * it can be passed straight to glUniformMatrix4fv.  Every operation works
+ * in place and nothing allocates, so the render loop can keep its
+ * matrices in fields and rebuild them each frame for free.
+ *
+ * <P>
+ * Each matrix remembers what kind of transform it holds.  Products of
+ * affine matrices skip the constant bottom row, translations only touch
+ * the last column, and the normal matrix of a rigid transform is its
+ * rotation part -- the inverse transpose is only computed for matrices
+ * that scale or shear.
+ */
+final class Matrix4 {
+
+	/** Nothing but the identity. */
+	static final int IDENTITY = 0;
+	/** A translation only. */
+	static final int TRANSLATION = 1;
+	/** Rotations and translations: the upper 3x3 is orthonormal. */
+	static final int RIGID = 2;
+	/** Any transform whose bottom row is 0 0 0 1. */
+	static final int AFFINE = 3;
+	/** Anything else, such as a projection. */
+	static final int GENERAL = 4;
+
+	/** The elements, m[column * 4 + row]. */
+	final float[] m = new float[16];
+
+	private int type;
+	private final float[] product = new float[16];
+
+	/**
+	 * Create an identity matrix.
+	 */
+	Matrix4() {
+		identity();
+	}
+
+	/**
+	 * @return  IDENTITY, TRANSLATION, RIGID, AFFINE or GENERAL.
+	 */
+	int type() {
+		return type;
+	}
+
+	/**
+	 * Make this the identity.
+	 *
+	 * @return  this matrix.
+	 */
+	Matrix4 identity() {
+		for (int i = 0; i < 16; i++) {
+			m[i] = (i % 5 == 0) ? 1.0f : 0.0f;
+		}
+		type = IDENTITY;
+		return this;
+	}
+
+	/**
+	 * Copy another matrix.
+	 *
+	 * @param other  the matrix to copy.
+	 * @return  this matrix.
+	 */
+	Matrix4 set(Matrix4 other) {
+		System.arraycopy(other.m, 0, m, 0, 16);
+		type = other.type;
+		return this;
+	}
+
+	/**
+	 * Copy column major elements, such as a PMVMatrix hands out.
+	 *
+	 * @param elements  16 floats.
+	 * @param offset    index of the first one.
+	 * @return  this matrix.
+	 */
+	Matrix4 set(float[] elements, int offset) {
+		System.arraycopy(elements, offset, m, 0, 16);
+		type = (m[3] == 0.0f && m[7] == 0.0f && m[11] == 0.0f && m[15] == 1.0f) ? AFFINE : GENERAL;
+		return this;
+	}
+
+	/**
+	 * Copy column major elements whose kind of transform the caller
+	 * already knows, such as an EntityStore matrix, so the fast paths
+	 * still apply.
+	 *
+	 * @param elements  16 floats.
+	 * @param offset    index of the first one.
+	 * @param type      what they hold: TRANSLATION, RIGID, AFFINE or
+	 *                  GENERAL.
+	 * @return  this matrix.
+	 */
+	Matrix4 set(float[] elements, int offset, int type) {
+		System.arraycopy(elements, offset, m, 0, 16);
+		this.type = type;
+		return this;
+	}
+
+	/**
+	 * Make this a pure translation.
+	 *
+	 * @return  this matrix.
+	 */
+	Matrix4 translation(float x, float y, float z) {
+		identity();
+		m[12] = x;
+		m[13] = y;
+		m[14] = z;
+		type = TRANSLATION;
+		return this;
+	}
+
+	/**
+	 * Post-multiply by a translation: this = this * T.
+	 *
+	 * @return  this matrix.
+	 */
+	Matrix4 translate(float x, float y, float z) {
+		if (type == GENERAL) {
+			for (int row = 0; row < 4; row++) {
+				m[12 + row] += m[row] * x + m[4 + row] * y + m[8 + row] * z;
+			}
+			return this;
+		}
+		m[12] += m[0] * x + m[4] * y + m[8] * z;
+		m[13] += m[1] * x + m[5] * y + m[9] * z;
+		m[14] += m[2] * x + m[6] * y + m[10] * z;
+		type = Math.max(type, TRANSLATION);
+		return this;
+	}
+
+	/**
+	 * Post-multiply by a scale: this = this * S.  A scale of 1 on every
+	 * axis leaves the matrix, and its type, alone.
+	 *
+	 * @return  this matrix.
+	 */
+	Matrix4 scale(float x, float y, float z) {
+		if (x == 1.0f && y == 1.0f && z == 1.0f) {
+			return this;
+		}
+		for (int row = 0; row < 4; row++) {
+			m[row] *= x;
+			m[4 + row] *= y;
+			m[8 + row] *= z;
+		}
+		type = Math.max(type, AFFINE);
+		return this;
+	}
+
+	/**
+	 * Post-multiply by a rotation about an axis: this = this * R, as
+	 * glRotatef does.
+	 *
+	 * @param degrees  the angle, counterclockwise looking down the axis.
+	 * @return  this matrix.
+	 */
+	Matrix4 rotate(float degrees, float x, float y, float z) {
+		float length = (float) Math.sqrt(x * x + y * y + z * z);
+		if (length == 0.0f) {
+			return this;
+		}
+		x /= length;
+		y /= length;
+		z /= length;
+		double radians = Math.toRadians(degrees);
+		float c = (float) Math.cos(radians);
+		float s = (float) Math.sin(radians);
+		float t = 1.0f - c;
+		// the rotation's columns
+		float r0 = t * x * x + c, r1 = t * x * y + s * z, r2 = t * x * z - s * y;
+		float r4 = t * x * y - s * z, r5 = t * y * y + c, r6 = t * y * z + s * x;
+		float r8 = t * x * z + s * y, r9 = t * y * z - s * x, r10 = t * z * z + c;
+		int rows = type == GENERAL ? 4 : 3;
+		for (int row = 0; row < rows; row++) {
+			float a = m[row], b = m[4 + row], d = m[8 + row];
+			m[row] = a * r0 + b * r1 + d * r2;
+			m[4 + row] = a * r4 + b * r5 + d * r6;
+			m[8 + row] = a * r8 + b * r9 + d * r10;
+		}
+		type = Math.max(type, RIGID);
+		return this;
+	}
+
+	/**
+	 * this = a * b.  Either argument may be this matrix.
+	 *
+	 * @return  this matrix.
+	 */
+	Matrix4 multiply(Matrix4 a, Matrix4 b) {
+		if (a.type == IDENTITY) {
+			return set(b);
+		}
+		if (b.type == IDENTITY) {
+			return set(a);
+		}
+		float[] x = a.m, y = b.m, p = product;
+		if (a.type != GENERAL && b.type != GENERAL) {
+			for (int column = 0; column < 4; column++) {
+				int c = column * 4;
+				float y0 = y[c], y1 = y[c + 1], y2 = y[c + 2];
+				p[c] = x[0] * y0 + x[4] * y1 + x[8] * y2;
+				p[c + 1] = x[1] * y0 + x[5] * y1 + x[9] * y2;
+				p[c + 2] = x[2] * y0 + x[6] * y1 + x[10] * y2;
+				p[c + 3] = 0.0f;
+			}
+			p[12] += x[12];
+			p[13] += x[13];
+			p[14] += x[14];
+			p[15] = 1.0f;
+		} else {
+			for (int column = 0; column < 4; column++) {
+				int c = column * 4;
+				for (int row = 0; row < 4; row++) {
+					p[c + row] = x[row] * y[c] + x[4 + row] * y[c + 1] + x[8 + row] * y[c + 2]
+							+ x[12 + row] * y[c + 3];
+				}
+			}
+		}
+		System.arraycopy(p, 0, m, 0, 16);
+		type = Math.max(a.type, b.type);
+		return this;
+	}
+
+	/**
+	 * Compute the matrix that transforms normals the way this one
+	 * transforms positions: the inverse transpose of the upper 3x3, with
+	 * no translation.  Rigid transforms are their own normal matrix, so
+	 * only affine and general matrices pay for the inverse.
+	 *
+	 * @param normal  where to put the result; not this matrix.
+	 * @return  the normal matrix.
+	 */
+	Matrix4 normalMatrix(Matrix4 normal) {
+		float[] n = normal.m;
+		if (type <= TRANSLATION) {
+			return normal.identity();
+		}
+		normal.identity();
+		if (type == RIGID) {
+			System.arraycopy(m, 0, n, 0, 3);
+			System.arraycopy(m, 4, n, 4, 3);
+			System.arraycopy(m, 8, n, 8, 3);
+			normal.type = RIGID;
+			return normal;
+		}
+		// cofactors of the upper 3x3 divided by its determinant.
+		float a = m[0], b = m[4], c = m[8];
+		float d = m[1], e = m[5], f = m[9];
+		float g = m[2], h = m[6], i = m[10];
+		float c00 = e * i - f * h, c01 = f * g - d * i, c02 = d * h - e * g;
+		float determinant = a * c00 + b * c01 + c * c02;
+		float inverse = determinant == 0.0f ? 0.0f : 1.0f / determinant;
+		// (A^-1)^T = cofactor(A) / det, cofactor(A)[row][column] stored
+		// column major.
+		n[0] = c00 * inverse;
+		n[1] = (c * h - b * i) * inverse;
+		n[2] = (b * f - c * e) * inverse;
+		n[4] = c01 * inverse;
+		n[5] = (a * i - c * g) * inverse;
+		n[6] = (c * d - a * f) * inverse;
+		n[8] = c02 * inverse;
+		n[9] = (b * g - a * h) * inverse;
+		n[10] = (a * e - b * d) * inverse;
+		normal.type = AFFINE;
+		return normal;
+	}
+
+	/**
+	 * this = the inverse of a matrix, by cofactors.  A singular matrix
+	 * gives all zeros.
+	 *
+	 * @param source  the matrix to invert; not this matrix.
+	 * @return  this matrix.
+	 */
+	Matrix4 invert(Matrix4 source) {
+		float[] a = source.m, inv = m;
+		inv[0] = a[5] * a[10] * a[15] - a[5] * a[11] * a[14] - a[9] * a[6] * a[15] + a[9] * a[7] * a[14]
+				+ a[13] * a[6] * a[11] - a[13] * a[7] * a[10];
+		inv[4] = -a[4] * a[10] * a[15] + a[4] * a[11] * a[14] + a[8] * a[6] * a[15] - a[8] * a[7] * a[14]
+				- a[12] * a[6] * a[11] + a[12] * a[7] * a[10];
+		inv[8] = a[4] * a[9] * a[15] - a[4] * a[11] * a[13] - a[8] * a[5] * a[15] + a[8] * a[7] * a[13]
+				+ a[12] * a[5] * a[11] - a[12] * a[7] * a[9];
+		inv[12] = -a[4] * a[9] * a[14] + a[4] * a[10] * a[13] + a[8] * a[5] * a[14] - a[8] * a[6] * a[13]
+				- a[12] * a[5] * a[10] + a[12] * a[6] * a[9];
+		inv[1] = -a[1] * a[10] * a[15] + a[1] * a[11] * a[14] + a[9] * a[2] * a[15] - a[9] * a[3] * a[14]
+				- a[13] * a[2] * a[11] + a[13] * a[3] * a[10];
+		inv[5] = a[0] * a[10] * a[15] - a[0] * a[11] * a[14] - a[8] * a[2] * a[15] + a[8] * a[3] * a[14]
+				+ a[12] * a[2] * a[11] - a[12] * a[3] * a[10];
+		inv[9] = -a[0] * a[9] * a[15] + a[0] * a[11] * a[13] + a[8] * a[1] * a[15] - a[8] * a[3] * a[13]
+				- a[12] * a[1] * a[11] + a[12] * a[3] * a[9];
+		inv[13] = a[0] * a[9] * a[14] - a[0] * a[10] * a[13] - a[8] * a[1] * a[14] + a[8] * a[2] * a[13]
+				+ a[12] * a[1] * a[10] - a[12] * a[2] * a[9];
+		inv[2] = a[1] * a[6] * a[15] - a[1] * a[7] * a[14] - a[5] * a[2] * a[15] + a[5] * a[3] * a[14]
+				+ a[13] * a[2] * a[7] - a[13] * a[3] * a[6];
+		inv[6] = -a[0] * a[6] * a[15] + a[0] * a[7] * a[14] + a[4] * a[2] * a[15] - a[4] * a[3] * a[14]
+				- a[12] * a[2] * a[7] + a[12] * a[3] * a[6];
+		inv[10] = a[0] * a[5] * a[15] - a[0] * a[7] * a[13] - a[4] * a[1] * a[15] + a[4] * a[3] * a[13]
+				+ a[12] * a[1] * a[7] - a[12] * a[3] * a[5];
+		inv[14] = -a[0] * a[5] * a[14] + a[0] * a[6] * a[13] + a[4] * a[1] * a[14] - a[4] * a[2] * a[13]
+				- a[12] * a[1] * a[6] + a[12] * a[2] * a[5];
+		inv[3] = -a[1] * a[6] * a[11] + a[1] * a[7] * a[10] + a[5] * a[2] * a[11] - a[5] * a[3] * a[10]
+				- a[9] * a[2] * a[7] + a[9] * a[3] * a[6];
+		inv[7] = a[0] * a[6] * a[11] - a[0] * a[7] * a[10] - a[4] * a[2] * a[11] + a[4] * a[3] * a[10]
+				+ a[8] * a[2] * a[7] - a[8] * a[3] * a[6];
+		inv[11] = -a[0] * a[5] * a[11] + a[0] * a[7] * a[9] + a[4] * a[1] * a[11] - a[4] * a[3] * a[9]
+				- a[8] * a[1] * a[7] + a[8] * a[3] * a[5];
+		inv[15] = a[0] * a[5] * a[10] - a[0] * a[6] * a[9] - a[4] * a[1] * a[10] + a[4] * a[2] * a[9]
+				+ a[8] * a[1] * a[6] - a[8] * a[2] * a[5];
+		float determinant = a[0] * inv[0] + a[1] * inv[4] + a[2] * inv[8] + a[3] * inv[12];
+		float scale = determinant == 0.0f ? 0.0f : 1.0f / determinant;
+		for (int i = 0; i < 16; i++) {
+			inv[i] *= scale;
+		}
+		type = source.type == IDENTITY ? IDENTITY : Math.max(source.type, AFFINE);
+		return this;
+	}
+}
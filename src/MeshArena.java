@@ -0,0 +1,322 @@
+import com.jogamp.opengl.GL;
+import com.jogamp.opengl.GL2ES3;
+import com.jogamp.opengl.GL4;
+import com.jogamp.opengl.util.GLBuffers;
+
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One vertex and index arena that every mesh is sub-allocated from, behind
+ * a single vertex array object.
+ *
+ * <P>
+ * The vertices are kept in the buffers of one VertexLayout -- a buffer per
+ * attribute or one interleaved buffer -- and the indices in another, and
+ * the VAO's attribute setup comes from the layout too.  A mesh is
+ * given a contiguous run of vertices and of indices; its indices are
+ * relative to its first vertex, so draws pass that vertex as baseVertex and
+ * meshes never have to be re-indexed.  Because the attribute layout is the
+ * same for every mesh, the whole scene can be drawn with one
+ * glMultiDrawElementsIndirect and no state changes between meshes.
+ *
+ * <P>
+ * The VAO also holds the DRAW_ID attribute: an instanced attribute over the
+ * integers 0, 1, 2, ... so a draw's baseInstance reaches the vertex shader
+ * as its draw number.  Its divisor is as large as it can be, so every
+ * instance of an instanced draw with a baseInstance of 0 reads draw 0.
+ *
+ * <P>
+ * Runs are handed out first fit (see RangeAllocator) and can be freed and
+ * reused.  When a mesh does not fit in any free run the live meshes are
+ * packed together at the start of new buffers -- the same size if that
+ * frees enough room, otherwise twice the size -- with the copies done on
+ * the GPU, and their ranges are updated in place.  Every buffer goes
+ * through GpuMemory, and the bytes each mesh holds can be reported.
+ */
+final class MeshArena {
+
+	/**
+	 * Where a mesh lives in the arena.  baseVertex and firstIndex change
+	 * when the arena is compacted, so read them when drawing rather than
+	 * keeping copies.
+	 */
+	static final class Range {
+		final String name;
+		int baseVertex;
+		final int vertexCount;
+		int firstIndex;
+		final int indexCount;
+
+		Range(String name, int baseVertex, int vertexCount, int firstIndex, int indexCount) {
+			this.name = name;
+			this.baseVertex = baseVertex;
+			this.vertexCount = vertexCount;
+			this.firstIndex = firstIndex;
+			this.indexCount = indexCount;
+		}
+	}
+
+	private final GpuMemory memory;
+	private final VertexLayout layout;
+	private final int[] locations;
+	private final int drawIdLocation;
+
+	/* the layout's streams, then the indices, then the draw ids. */
+	private final int indexSlot;
+	private final int drawIdSlot;
+	private final int[] buffers;
+	private int vertexArray;
+	private final RangeAllocator vertices;
+	private final RangeAllocator indices;
+	private final List<Range> live = new ArrayList<>();
+	private int compactions;
+
+	/**
+	 * @param memory          where the buffers come from.
+	 * @param layout          how every mesh's vertices are stored.
+	 * @param vertexCapacity  vertices to make room for at first.
+	 * @param indexCapacity   indices to make room for at first.
+	 * @param positionLocation  the POSITION attribute location.
+	 * @param normalLocation    the NORMAL attribute location.
+	 * @param texCoordLocation  the TEXCOORD attribute location.
+	 * @param drawIdLocation    the DRAW_ID attribute location.
+	 */
+	MeshArena(GpuMemory memory, VertexLayout layout, int vertexCapacity, int indexCapacity, int positionLocation,
+			int normalLocation, int texCoordLocation, int drawIdLocation) {
+		this.memory = memory;
+		this.layout = layout;
+		this.vertices = new RangeAllocator(vertexCapacity);
+		this.indices = new RangeAllocator(indexCapacity);
+		this.locations = new int[] { positionLocation, normalLocation, texCoordLocation };
+		this.drawIdLocation = drawIdLocation;
+		indexSlot = layout.streamCount();
+		drawIdSlot = indexSlot + 1;
+		buffers = new int[drawIdSlot + 1];
+	}
+
+	/**
+	 * Create the VAO and the buffers.
+	 *
+	 * @param maxDraws  the most draws one multi-draw will make.
+	 */
+	void init(GL4 gl, int maxDraws) {
+		vertexArray = memory.createVertexArray(gl, "mesh arena");
+		storage(gl, buffers, vertices.capacity(), indices.capacity());
+
+		IntBuffer drawIds = GLBuffers.newDirectIntBuffer(maxDraws);
+		for (int i = 0; i < maxDraws; i++) {
+			drawIds.put(i, i);
+		}
+		buffers[drawIdSlot] = memory.createStorage(gl, "draw ids", "0.." + (maxDraws - 1), maxDraws * 4L, drawIds,
+				0);
+		gl.glBindVertexArray(vertexArray);
+		gl.glBindBuffer(GL.GL_ARRAY_BUFFER, buffers[drawIdSlot]);
+		gl.glEnableVertexAttribArray(drawIdLocation);
+		gl.glVertexAttribIPointer(drawIdLocation, 1, GL.GL_UNSIGNED_INT, 0, 0L);
+		gl.glVertexAttribDivisor(drawIdLocation, Integer.MAX_VALUE);
+		for (int location : locations) {
+			gl.glEnableVertexAttribArray(location);
+		}
+		bindVertexBuffers(gl);
+		gl.glBindVertexArray(0);
+	}
+
+	/**
+	 * Find room for a mesh, compacting or growing the arena if no free
+	 * run is long enough.
+	 *
+	 * @param name         the mesh's name, for the report.
+	 * @param vertexCount  the mesh's vertex count.
+	 * @param indexCount   the mesh's index count.
+	 * @return  where the mesh goes.
+	 */
+	Range allocate(GL4 gl, String name, int vertexCount, int indexCount) {
+		if (vertices.largestFree() < vertexCount || indices.largestFree() < indexCount) {
+			int vertexCapacity = vertices.capacity();
+			int indexCapacity = indices.capacity();
+			if (vertices.capacity() - vertices.used() < vertexCount) {
+				vertexCapacity = Math.max(vertexCapacity * 2, vertices.used() + vertexCount);
+			}
+			if (indices.capacity() - indices.used() < indexCount) {
+				indexCapacity = Math.max(indexCapacity * 2, indices.used() + indexCount);
+			}
+			relocate(gl, vertexCapacity, indexCapacity);
+		}
+		Range range = new Range(name, vertices.allocate(vertexCount), vertexCount, indices.allocate(indexCount),
+				indexCount);
+		live.add(range);
+		return range;
+	}
+
+	/**
+	 * Give a mesh's runs back.  Its data stays where it is until the
+	 * space is handed out again.
+	 */
+	void free(Range range) {
+		if (!live.remove(range)) {
+			throw new IllegalArgumentException(range.name + " is not in the arena");
+		}
+		vertices.free(range.baseVertex, range.vertexCount);
+		indices.free(range.firstIndex, range.indexCount);
+	}
+
+	/**
+	 * Pack every live mesh together at the start of the arena.
+	 */
+	void defragment(GL4 gl) {
+		relocate(gl, vertices.capacity(), indices.capacity());
+	}
+
+	/**
+	 * @return  the VAO every mesh is drawn with.
+	 */
+	int vertexArray() {
+		return vertexArray;
+	}
+
+	/**
+	 * @return  how every mesh's vertices are stored.
+	 */
+	VertexLayout layout() {
+		return layout;
+	}
+
+	/**
+	 * @return  the buffer holding one of the layout's streams.  It changes
+	 *          when the arena is compacted or grows, so look it up again
+	 *          rather than keeping it.
+	 */
+	int vertexBuffer(int stream) {
+		return buffers[stream];
+	}
+
+	/**
+	 * @return  the buffer holding every index.
+	 */
+	int indexBuffer() {
+		return buffers[indexSlot];
+	}
+
+	/**
+	 * @return  byte offset of a mesh's first vertex in one of the
+	 *          layout's streams.
+	 */
+	long vertexOffset(Range range, int stream) {
+		return (long) range.baseVertex * layout.stride(stream);
+	}
+
+	/**
+	 * @return  byte offset of a mesh's first index.
+	 */
+	long indexOffset(Range range) {
+		return range.firstIndex * 4L;
+	}
+
+	/**
+	 * @return  the bytes a mesh holds in the arena.
+	 */
+	long bytes(Range range) {
+		return (long) range.vertexCount * layout.bytesPerVertex() + range.indexCount * 4L;
+	}
+
+	/**
+	 * @return  how full the arena is and what each mesh holds, one line
+	 *          each.
+	 */
+	String report() {
+		StringBuilder text = new StringBuilder();
+		text.append(String.format("mesh arena: %d of %d vertices (%s), %d of %d indices, %d meshes,"
+				+ " %d compactions%n", vertices.used(), vertices.capacity(), layout, indices.used(),
+				indices.capacity(), live.size(), compactions));
+		for (Range range : live) {
+			text.append(String.format("  %-16s %8d vertices %9d indices %12d bytes%n", range.name,
+					range.vertexCount, range.indexCount, bytes(range)));
+		}
+		return text.toString();
+	}
+
+	/**
+	 * Delete the VAO and the buffers.
+	 */
+	void dispose(GL4 gl) {
+		memory.deleteVertexArray(gl, vertexArray);
+		for (int buffer : buffers) {
+			memory.deleteBuffer(gl, buffer);
+		}
+		live.clear();
+	}
+
+	/*
+	 * Copy every live mesh, packed in offset order, into new buffers of
+	 * the given capacities and update the ranges.  Pending uploads look
+	 * the buffers and offsets up again each frame, and GL runs the copies
+	 * in order, so data already sent to the old buffers comes along.
+	 */
+	private void relocate(GL4 gl, int vertexCapacity, int indexCapacity) {
+		int[] moved = new int[indexSlot + 1];
+		storage(gl, moved, vertexCapacity, indexCapacity);
+
+		live.sort((a, b) -> Integer.compare(a.baseVertex, b.baseVertex));
+		int nextVertex = 0;
+		for (Range range : live) {
+			for (int stream = 0; stream < indexSlot; stream++) {
+				int stride = layout.stride(stream);
+				copy(gl, stream, moved, (long) range.baseVertex * stride, (long) nextVertex * stride,
+						(long) range.vertexCount * stride);
+			}
+			range.baseVertex = nextVertex;
+			nextVertex += range.vertexCount;
+		}
+		live.sort((a, b) -> Integer.compare(a.firstIndex, b.firstIndex));
+		int nextIndex = 0;
+		for (Range range : live) {
+			copy(gl, indexSlot, moved, range.firstIndex * 4L, nextIndex * 4L, range.indexCount * 4L);
+			range.firstIndex = nextIndex;
+			nextIndex += range.indexCount;
+		}
+		gl.glBindBuffer(GL2ES3.GL_COPY_READ_BUFFER, 0);
+		gl.glBindBuffer(GL2ES3.GL_COPY_WRITE_BUFFER, 0);
+
+		for (int i = 0; i <= indexSlot; i++) {
+			memory.deleteBuffer(gl, buffers[i]);
+			buffers[i] = moved[i];
+		}
+		vertices.reset(nextVertex, vertexCapacity);
+		indices.reset(nextIndex, indexCapacity);
+		compactions++;
+		gl.glBindVertexArray(vertexArray);
+		bindVertexBuffers(gl);
+		gl.glBindVertexArray(0);
+	}
+
+	private void copy(GL4 gl, int kind, int[] moved, long from, long to, long bytes) {
+		if (bytes == 0) {
+			return;
+		}
+		gl.glBindBuffer(GL2ES3.GL_COPY_READ_BUFFER, buffers[kind]);
+		gl.glBindBuffer(GL2ES3.GL_COPY_WRITE_BUFFER, moved[kind]);
+		gl.glCopyBufferSubData(GL2ES3.GL_COPY_READ_BUFFER, GL2ES3.GL_COPY_WRITE_BUFFER, from, to, bytes);
+	}
+
+	/*
+	 * Point the vertex attributes (VAO state) at the current buffers.
+	 */
+	private void bindVertexBuffers(GL4 gl) {
+		layout.bind(gl, buffers, locations);
+		gl.glBindBuffer(GL.GL_ELEMENT_ARRAY_BUFFER, buffers[indexSlot]);
+	}
+
+	/*
+	 * Create the stream and index buffers in target.  Immutable storage:
+	 * it is only ever written by buffer copies.
+	 */
+	private void storage(GL4 gl, int[] target, int vertexCapacity, int indexCapacity) {
+		for (int stream = 0; stream < indexSlot; stream++) {
+			target[stream] = memory.createStorage(gl, "mesh " + layout.streamName(stream), "arena",
+					(long) vertexCapacity * layout.stride(stream), null, 0);
+		}
+		target[indexSlot] = memory.createStorage(gl, "mesh indices", "arena", indexCapacity * 4L, null, 0);
+	}
+}
@@ -0,0 +1,308 @@
+/**
+ * A bounding volume hierarchy over one mesh's triangles, for picking
+ * triangles with rays and finding the triangles inside a box.
+ *
+ * <P>
+ * Everything is in the mesh's own model space: callers with a transformed
+ * instance take the ray or box into model space first (SceneBVH does).
+ * The tree itself is a BVH over the triangles' boxes with at most
+ * MAX_LEAF triangles per leaf.  Ray casts visit the nearer child first and
+ * skip any node further away than the closest hit so far; box queries use
+ * an exact separating axis test on each candidate triangle (Akenine-Moller,
+ * "Fast 3D Triangle-Box Overlap Testing").
+ *
+ * <P>
+ * Queries only read the tree, so any number of threads may run them at
+ * once, each with its own RayHit and stack -- scratch space of at least
+ * stackSize() ints, passed in so that queries allocate nothing.
+ */
+final class MeshBVH {
+
+	static final int MAX_LEAF = 4;
+
+	private final float[] positions;
+	private final int stride;
+	private final int[] indices;
+	private final BVH tree;
+
+	/**
+	 * Build the tree for a mesh.
+	 *
+	 * @param positions  vertex positions, stride floats per vertex with x,
+	 *                   y, z first.
+	 * @param stride     floats per vertex.
+	 * @param indices    three vertex indices per triangle.
+	 */
+	MeshBVH(float[] positions, int stride, int[] indices) {
+		this.positions = positions;
+		this.stride = stride;
+		this.indices = indices;
+		int triangles = indices.length / 3;
+		float[] boxes = new float[triangles * 6];
+		for (int triangle = 0; triangle < triangles; triangle++) {
+			int base = triangle * 6;
+			for (int axis = 0; axis < 3; axis++) {
+				float a = positions[indices[triangle * 3] * stride + axis];
+				float b = positions[indices[triangle * 3 + 1] * stride + axis];
+				float c = positions[indices[triangle * 3 + 2] * stride + axis];
+				boxes[base + axis] = Math.min(a, Math.min(b, c));
+				boxes[base + 3 + axis] = Math.max(a, Math.max(b, c));
+			}
+		}
+		tree = new BVH(boxes, MAX_LEAF);
+	}
+
+	/**
+	 * @return  the number of triangles.
+	 */
+	int triangleCount() {
+		return indices.length / 3;
+	}
+
+	/**
+	 * @return  the number of nodes in the tree.
+	 */
+	int nodeCount() {
+		return tree.nodeCount();
+	}
+
+	/**
+	 * @return  the ints a query's stack needs.
+	 */
+	int stackSize() {
+		return tree.depth() + 1;
+	}
+
+	/**
+	 * @return  min x, y, z, max x, y, z of the whole mesh.
+	 */
+	float[] bounds() {
+		float[] box = new float[6];
+		System.arraycopy(tree.bounds, 0, box, 0, 6);
+		return box;
+	}
+
+	/**
+	 * Find the nearest triangle a ray hits.  The direction need not be
+	 * unit length; distances are measured in multiples of it.
+	 *
+	 * @param hit  holds the nearest hit so far: only triangles closer than
+	 *             hit.distance count, and the closest one found replaces
+	 *             its distance and triangle.
+	 * @return  true if a closer triangle was found.
+	 */
+	boolean raycast(float originX, float originY, float originZ, float directionX, float directionY,
+			float directionZ, RayHit hit, int[] stack) {
+		float inverseX = inverse(directionX);
+		float inverseY = inverse(directionY);
+		float inverseZ = inverse(directionZ);
+		int top = 0;
+		boolean found = false;
+		if (tree.intersect(0, originX, originY, originZ, inverseX, inverseY, inverseZ,
+				hit.distance) == Float.POSITIVE_INFINITY) {
+			return false;
+		}
+		stack[top++] = 0;
+		while (top > 0) {
+			int node = stack[--top];
+			if (tree.isLeaf(node)) {
+				for (int i = tree.start[node]; i < tree.start[node] + tree.count[node]; i++) {
+					int triangle = tree.primitives[i];
+					float t = intersectTriangle(triangle, originX, originY, originZ, directionX, directionY,
+							directionZ);
+					if (t < hit.distance) {
+						hit.distance = t;
+						hit.triangle = triangle;
+						found = true;
+					}
+				}
+				continue;
+			}
+			int left = tree.start[node];
+			int right = left + 1;
+			float leftT = tree.intersect(left, originX, originY, originZ, inverseX, inverseY, inverseZ, hit.distance);
+			float rightT = tree.intersect(right, originX, originY, originZ, inverseX, inverseY, inverseZ,
+					hit.distance);
+			// push the further child first so the nearer one is popped
+			// first and shrinks hit.distance for the other.
+			if (leftT > rightT) {
+				int swap = left;
+				left = right;
+				right = swap;
+				float swapT = leftT;
+				leftT = rightT;
+				rightT = swapT;
+			}
+			if (rightT != Float.POSITIVE_INFINITY) {
+				stack[top++] = right;
+			}
+			if (leftT != Float.POSITIVE_INFINITY) {
+				stack[top++] = left;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Find every triangle that overlaps a box.
+	 *
+	 * @param box        min x, y, z, max x, y, z.
+	 * @param triangles  the overlapping triangles are appended here.
+	 * @return  the number appended.
+	 */
+	int overlaps(float[] box, IntList triangles, int[] stack) {
+		int top = 0;
+		int found = 0;
+		stack[top++] = 0;
+		while (top > 0) {
+			int node = stack[--top];
+			if (!tree.overlaps(node, box)) {
+				continue;
+			}
+			if (tree.isLeaf(node)) {
+				for (int i = tree.start[node]; i < tree.start[node] + tree.count[node]; i++) {
+					if (triangleOverlapsBox(tree.primitives[i], box)) {
+						triangles.add(tree.primitives[i]);
+						found++;
+					}
+				}
+			} else {
+				stack[top++] = tree.start[node] + 1;
+				stack[top++] = tree.start[node];
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * @return  true if any triangle overlaps a box, stopping at the first.
+	 */
+	boolean anyOverlaps(float[] box, int[] stack) {
+		int top = 0;
+		stack[top++] = 0;
+		while (top > 0) {
+			int node = stack[--top];
+			if (!tree.overlaps(node, box)) {
+				continue;
+			}
+			if (tree.isLeaf(node)) {
+				for (int i = tree.start[node]; i < tree.start[node] + tree.count[node]; i++) {
+					if (triangleOverlapsBox(tree.primitives[i], box)) {
+						return true;
+					}
+				}
+			} else {
+				stack[top++] = tree.start[node] + 1;
+				stack[top++] = tree.start[node];
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Where a ray crosses a triangle (Moller and Trumbore, "Fast, Minimum
+	 * Storage Ray/Triangle Intersection").  Both sides of the triangle
+	 * count.
+	 *
+	 * @return  the distance along the ray, or Float.POSITIVE_INFINITY if
+	 *          it misses or the triangle is behind the origin.
+	 */
+	float intersectTriangle(int triangle, float originX, float originY, float originZ, float directionX,
+			float directionY, float directionZ) {
+		int a = indices[triangle * 3] * stride;
+		int b = indices[triangle * 3 + 1] * stride;
+		int c = indices[triangle * 3 + 2] * stride;
+		float ax = positions[a], ay = positions[a + 1], az = positions[a + 2];
+		float e1x = positions[b] - ax, e1y = positions[b + 1] - ay, e1z = positions[b + 2] - az;
+		float e2x = positions[c] - ax, e2y = positions[c + 1] - ay, e2z = positions[c + 2] - az;
+		float px = directionY * e2z - directionZ * e2y;
+		float py = directionZ * e2x - directionX * e2z;
+		float pz = directionX * e2y - directionY * e2x;
+		float determinant = e1x * px + e1y * py + e1z * pz;
+		if (Math.abs(determinant) < 1.0e-12f) {
+			return Float.POSITIVE_INFINITY; // parallel to the triangle.
+		}
+		float inverse = 1.0f / determinant;
+		float tx = originX - ax, ty = originY - ay, tz = originZ - az;
+		float u = (tx * px + ty * py + tz * pz) * inverse;
+		if (u < 0.0f || u > 1.0f) {
+			return Float.POSITIVE_INFINITY;
+		}
+		float qx = ty * e1z - tz * e1y;
+		float qy = tz * e1x - tx * e1z;
+		float qz = tx * e1y - ty * e1x;
+		float v = (directionX * qx + directionY * qy + directionZ * qz) * inverse;
+		if (v < 0.0f || u + v > 1.0f) {
+			return Float.POSITIVE_INFINITY;
+		}
+		float t = (e2x * qx + e2y * qy + e2z * qz) * inverse;
+		return t >= 0.0f ? t : Float.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * The separating axis test between a triangle and a box: the box's
+	 * three axes, the triangle's normal and the nine cross products of
+	 * their edges.
+	 */
+	boolean triangleOverlapsBox(int triangle, float[] box) {
+		float cx = 0.5f * (box[0] + box[3]), cy = 0.5f * (box[1] + box[4]), cz = 0.5f * (box[2] + box[5]);
+		float hx = 0.5f * (box[3] - box[0]), hy = 0.5f * (box[4] - box[1]), hz = 0.5f * (box[5] - box[2]);
+		int a = indices[triangle * 3] * stride;
+		int b = indices[triangle * 3 + 1] * stride;
+		int c = indices[triangle * 3 + 2] * stride;
+		// the triangle relative to the box's center.
+		float v0x = positions[a] - cx, v0y = positions[a + 1] - cy, v0z = positions[a + 2] - cz;
+		float v1x = positions[b] - cx, v1y = positions[b + 1] - cy, v1z = positions[b + 2] - cz;
+		float v2x = positions[c] - cx, v2y = positions[c + 1] - cy, v2z = positions[c + 2] - cz;
+
+		// the box's axes.
+		if (Math.max(v0x, Math.max(v1x, v2x)) < -hx || Math.min(v0x, Math.min(v1x, v2x)) > hx
+				|| Math.max(v0y, Math.max(v1y, v2y)) < -hy || Math.min(v0y, Math.min(v1y, v2y)) > hy
+				|| Math.max(v0z, Math.max(v1z, v2z)) < -hz || Math.min(v0z, Math.min(v1z, v2z)) > hz) {
+			return false;
+		}
+
+		float e0x = v1x - v0x, e0y = v1y - v0y, e0z = v1z - v0z;
+		float e1x = v2x - v1x, e1y = v2y - v1y, e1z = v2z - v1z;
+		float e2x = v0x - v2x, e2y = v0y - v2y, e2z = v0z - v2z;
+
+		// edge x box axis: each axis is (0, -ez, ey), (ez, 0, -ex) or
+		// (-ey, ex, 0) for a triangle edge e.
+		if (separates(0.0f, -e0z, e0y, v0x, v0y, v0z, v1x, v1y, v1z, v2x, v2y, v2z, hx, hy, hz)
+				|| separates(0.0f, -e1z, e1y, v0x, v0y, v0z, v1x, v1y, v1z, v2x, v2y, v2z, hx, hy, hz)
+				|| separates(0.0f, -e2z, e2y, v0x, v0y, v0z, v1x, v1y, v1z, v2x, v2y, v2z, hx, hy, hz)
+				|| separates(e0z, 0.0f, -e0x, v0x, v0y, v0z, v1x, v1y, v1z, v2x, v2y, v2z, hx, hy, hz)
+				|| separates(e1z, 0.0f, -e1x, v0x, v0y, v0z, v1x, v1y, v1z, v2x, v2y, v2z, hx, hy, hz)
+				|| separates(e2z, 0.0f, -e2x, v0x, v0y, v0z, v1x, v1y, v1z, v2x, v2y, v2z, hx, hy, hz)
+				|| separates(-e0y, e0x, 0.0f, v0x, v0y, v0z, v1x, v1y, v1z, v2x, v2y, v2z, hx, hy, hz)
+				|| separates(-e1y, e1x, 0.0f, v0x, v0y, v0z, v1x, v1y, v1z, v2x, v2y, v2z, hx, hy, hz)
+				|| separates(-e2y, e2x, 0.0f, v0x, v0y, v0z, v1x, v1y, v1z, v2x, v2y, v2z, hx, hy, hz)) {
+			return false;
+		}
+
+		// the triangle's plane.
+		float nx = e0y * e1z - e0z * e1y;
+		float ny = e0z * e1x - e0x * e1z;
+		float nz = e0x * e1y - e0y * e1x;
+		float distance = nx * v0x + ny * v0y + nz * v0z;
+		float radius = hx * Math.abs(nx) + hy * Math.abs(ny) + hz * Math.abs(nz);
+		return Math.abs(distance) <= radius;
+	}
+
+	private static boolean separates(float ax, float ay, float az, float v0x, float v0y, float v0z, float v1x,
+			float v1y, float v1z, float v2x, float v2y, float v2z, float hx, float hy, float hz) {
+		float p0 = ax * v0x + ay * v0y + az * v0z;
+		float p1 = ax * v1x + ay * v1y + az * v1z;
+		float p2 = ax * v2x + ay * v2y + az * v2z;
+		float radius = hx * Math.abs(ax) + hy * Math.abs(ay) + hz * Math.abs(az);
+		return Math.min(p0, Math.min(p1, p2)) > radius || Math.max(p0, Math.max(p1, p2)) < -radius;
+	}
+
+	/*
+	 * 1 / d, with a zero component nudged so the slab test never sees
+	 * 0 * infinity.
+	 */
+	static float inverse(float d) {
+		return 1.0f / (d == 0.0f ? 1.0e-30f : d);
+	}
+}
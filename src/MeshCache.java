@@ -0,0 +1,210 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+/**
+ * Binary sidecar cache for loaded meshes.  Once an OBJ file has been
+ * parsed its final indexed arrays are written next to it as
+ * &lt;name&gt;.objcache; later loads map that file and hand out direct
+ * buffers that view the mapping, so nothing is parsed or copied.
+ *
+ * <P>
+ * The file starts with a header holding a magic number, the format
+ * version, the processing options applied to the mesh, and the key of
+ * the source it was built from: its absolute path, size, modification
+ * time and a CRC32C of its contents.  A cache whose key or options do
+ * not match, or that was written with a different byte order, is
+ * ignored and rebuilt.  Data sections are written in native byte order
+ * and start on 4 byte boundaries so the mapped views can be passed to
+ * OpenGL as they are.
+ */
+final class MeshCache {
+
+	/** Bump whenever the layout or the meaning of the arrays changes. */
+	static final int VERSION = 4;
+
+	/** Set in the options of a mesh that went through MeshOptimizer. */
+	static final int OPTIMIZED = 1;
+
+	/** Set in the options of a mesh whose normals were all generated. */
+	static final int REGENERATED_NORMALS = 2;
+
+	static final String SUFFIX = ".objcache";
+
+	private static final int MAGIC = 0x4F424A43; // "OBJC"
+
+	/**
+	 * The arrays stored in a cache file.  The buffers are direct and in
+	 * native byte order; indices is a ShortBuffer or an IntBuffer.
+	 */
+	static final class Mesh {
+		final FloatBuffer vertices;
+		final FloatBuffer normals;
+		final FloatBuffer texture;
+		final java.nio.Buffer indices;
+
+		Mesh(FloatBuffer vertices, FloatBuffer normals, FloatBuffer texture, java.nio.Buffer indices) {
+			this.vertices = vertices;
+			this.normals = normals;
+			this.texture = texture;
+			this.indices = indices;
+		}
+	}
+
+	private MeshCache() {
+	}
+
+	/**
+	 * @param source  the OBJ file name.
+	 * @return  the name of its cache file.
+	 */
+	static String cacheFileFor(String source) {
+		return source + SUFFIX;
+	}
+
+	/**
+	 * Map the cache for a source file.
+	 *
+	 * @param source   the OBJ file name.
+	 * @param options  the options the mesh must have been built with.
+	 * @return  the cached mesh, or null if there is no cache or it is stale.
+	 */
+	static Mesh read(String source, int options) {
+		Path cachePath = Paths.get(cacheFileFor(source));
+		if (!Files.isRegularFile(cachePath)) {
+			return null;
+		}
+		try (FileChannel channel = FileChannel.open(cachePath, StandardOpenOption.READ)) {
+			MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			mapped.order(ByteOrder.nativeOrder());
+			if (mapped.remaining() < 12 || mapped.getInt() != MAGIC || mapped.getInt() != VERSION
+					|| mapped.getInt() != options) {
+				return null;
+			}
+			String path = readString(mapped);
+			long size = mapped.getLong();
+			long modified = mapped.getLong();
+			long hash = mapped.getLong();
+			File file = new File(source);
+			if (!path.equals(file.getAbsolutePath()) || size != file.length() || modified != file.lastModified()
+					|| hash != contentHash(source)) {
+				return null;
+			}
+			int vertexCount = mapped.getInt();
+			int normalCount = mapped.getInt();
+			int textureCount = mapped.getInt();
+			int indexCount = mapped.getInt();
+			int indexSize = mapped.getInt();
+			FloatBuffer vertices = slice(mapped, vertexCount * 4).asFloatBuffer();
+			FloatBuffer normals = slice(mapped, normalCount * 4).asFloatBuffer();
+			FloatBuffer texture = slice(mapped, textureCount * 4).asFloatBuffer();
+			java.nio.Buffer indices = indexSize == 2 ? slice(mapped, indexCount * 2).asShortBuffer()
+					: slice(mapped, indexCount * 4).asIntBuffer();
+			return new Mesh(vertices, normals, texture, indices);
+		} catch (IOException | RuntimeException e) {
+			System.out.println("Ignoring unreadable mesh cache " + cachePath + ": " + e);
+			return null;
+		}
+	}
+
+	/**
+	 * Write the cache for a source file.  The data goes to a temporary
+	 * file that is then moved over the old cache, so a reader never sees
+	 * a half written file.
+	 *
+	 * @param source   the OBJ file name.
+	 * @param options  the options the mesh was built with.
+	 * @param mesh     the arrays to store.
+	 */
+	static void write(String source, int options, Mesh mesh) {
+		Path cachePath = Paths.get(cacheFileFor(source));
+		try {
+			File file = new File(source);
+			byte[] path = file.getAbsolutePath().getBytes(StandardCharsets.UTF_8);
+			int indexSize = mesh.indices instanceof ShortBuffer ? 2 : 4;
+			int header = 4 * 3 + 4 + align4(path.length) + 8 * 3 + 4 * 5;
+			long length = header + 4L * (mesh.vertices.remaining() + mesh.normals.remaining()
+					+ mesh.texture.remaining()) + align4(indexSize * mesh.indices.remaining());
+			ByteBuffer out = ByteBuffer.allocateDirect((int) length).order(ByteOrder.nativeOrder());
+			out.putInt(MAGIC).putInt(VERSION).putInt(options);
+			out.putInt(path.length).put(path);
+			out.position(align4(out.position()));
+			out.putLong(file.length()).putLong(file.lastModified()).putLong(contentHash(source));
+			out.putInt(mesh.vertices.remaining()).putInt(mesh.normals.remaining()).putInt(mesh.texture.remaining());
+			out.putInt(mesh.indices.remaining()).putInt(indexSize);
+			out.asFloatBuffer().put(mesh.vertices.duplicate());
+			out.position(out.position() + 4 * mesh.vertices.remaining());
+			out.asFloatBuffer().put(mesh.normals.duplicate());
+			out.position(out.position() + 4 * mesh.normals.remaining());
+			out.asFloatBuffer().put(mesh.texture.duplicate());
+			out.position(out.position() + 4 * mesh.texture.remaining());
+			if (indexSize == 2) {
+				out.asShortBuffer().put(((ShortBuffer) mesh.indices).duplicate());
+			} else {
+				out.asIntBuffer().put(((IntBuffer) mesh.indices).duplicate());
+			}
+			out.position(0);
+			Path temporary = Files.createTempFile(cachePath.toAbsolutePath().getParent(), "mesh", ".tmp");
+			try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+				while (out.hasRemaining()) {
+					channel.write(out);
+				}
+			}
+			Files.move(temporary, cachePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			System.out.println("Could not write mesh cache " + cachePath + ": " + e);
+		}
+	}
+
+	/**
+	 * CRC32C of a file's contents, computed over a memory mapping of the
+	 * whole file in blocks of at most 1 GB.
+	 */
+	static long contentHash(String source) throws IOException {
+		CRC32C crc = new CRC32C();
+		try (FileChannel channel = FileChannel.open(Paths.get(source), StandardOpenOption.READ)) {
+			long size = channel.size();
+			for (long position = 0; position < size; position += 1L << 30) {
+				long length = Math.min(1L << 30, size - position);
+				crc.update(channel.map(FileChannel.MapMode.READ_ONLY, position, length));
+			}
+		}
+		return crc.getValue();
+	}
+
+	private static String readString(ByteBuffer in) {
+		int length = in.getInt();
+		byte[] bytes = new byte[length];
+		in.get(bytes);
+		in.position(align4(in.position()));
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/*
+	 * Take the next bytes of the buffer as a native order view and skip
+	 * past them, keeping the position 4 byte aligned.
+	 */
+	private static ByteBuffer slice(ByteBuffer in, int bytes) {
+		ByteBuffer view = in.slice().order(ByteOrder.nativeOrder());
+		view.limit(bytes);
+		in.position(in.position() + align4(bytes));
+		return view;
+	}
+
+	private static int align4(int value) {
+		return (value + 3) & ~3;
+	}
+}
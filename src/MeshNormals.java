@@ -0,0 +1,400 @@
+import java.util.stream.IntStream;
+
+/**
+ * Load time repair of a parsed OBJ file's winding and generation of its
+ * vertex normals.
+ *
+ * <P>
+ * orient makes every triangle wind the same way as its neighbours.  Two
+ * triangles that share an edge should run along it in opposite
+ * directions, so starting from one triangle of each connected piece of
+ * the mesh a breadth first walk across shared edges flips every
+ * neighbour that runs the same way.  Edges shared by more than two
+ * triangles are not walked across.  Each piece then keeps whichever of
+ * its two windings agrees with the normals in the file, or, where it has
+ * none, the winding most of its triangles were written with, so a mesh
+ * that is already consistent comes out unchanged.
+ *
+ * <P>
+ * generate computes smooth vertex normals.  Every triangle adds its
+ * normal to each of its corners weighted by its area and by the angle at
+ * that corner, so a vertex's normal does not depend on how the surface
+ * around it was split into triangles.  Only triangles in the same
+ * smoothing group are averaged; triangles in group 0 keep their own face
+ * normal.  Face normals and corner angles are computed per triangle and
+ * the sums per vertex, each in parallel batches on the common
+ * ForkJoinPool.  A vertex gathers the corners that touch it rather than
+ * triangles scattering into vertices, so no two tasks write the same
+ * slot and the result does not depend on the number of threads.
+ */
+final class MeshNormals {
+
+	/** Triangles or vertices per parallel task. */
+	private static final int BATCH = 1 << 14;
+
+	private MeshNormals() {
+	}
+
+	/**
+	 * Make the winding of each connected piece of a mesh consistent.
+	 * Flipped triangles have their second and third corners swapped,
+	 * along with those corners' normal and texture indices.
+	 *
+	 * @param mesh  the parsed file.
+	 * @return  the number of triangles flipped.
+	 */
+	static int orient(OBJParser mesh) {
+		int[] triangles = mesh.triangles.array();
+		int[] textures = mesh.triangleTextures.array();
+		float[] positions = mesh.vertices.array();
+		float[] normals = mesh.normals.array();
+		int triangleCount = mesh.triangles.size() / 6;
+		VertexCorners around = new VertexCorners(triangles, triangleCount, mesh.vertices.size() / 3, null);
+		boolean[] visited = new boolean[triangleCount];
+		boolean[] flip = new boolean[triangleCount];
+		int[] queue = new int[triangleCount];
+		int flipped = 0;
+		for (int seed = 0; seed < triangleCount; seed++) {
+			if (visited[seed] || !around.contains(seed)) {
+				continue;
+			}
+			// the piece is queue[0 .. tail).
+			int head = 0, tail = 0;
+			visited[seed] = true;
+			queue[tail++] = seed;
+			while (head < tail) {
+				int triangle = queue[head++];
+				for (int corner = 0; corner < 3; corner++) {
+					int a = triangles[triangle * 6 + corner];
+					int b = triangles[triangle * 6 + (corner + 1) % 3];
+					int neighbour = around.across(triangles, triangle, a, b);
+					if (neighbour < 0 || visited[neighbour]) {
+						continue;
+					}
+					// the neighbour must run b to a where this runs a to b.
+					flip[neighbour] = flip[triangle] != runs(triangles, neighbour, a, b);
+					visited[neighbour] = true;
+					queue[tail++] = neighbour;
+				}
+			}
+			int reversed = 0;
+			boolean fileNormals = true;
+			double agreement = 0.0;
+			for (int i = 0; i < tail; i++) {
+				int triangle = queue[i];
+				if (flip[triangle]) {
+					reversed++;
+				}
+				if (triangles[triangle * 6 + 3] == 0) {
+					fileNormals = false;
+				} else if (fileNormals) {
+					float[] face = faceNormal(positions, triangles, triangle);
+					double dot = 0.0;
+					for (int corner = 0; corner < 3; corner++) {
+						int normal = (triangles[triangle * 6 + 3 + corner] - 1) * 3;
+						dot += face[0] * normals[normal] + face[1] * normals[normal + 1]
+								+ face[2] * normals[normal + 2];
+					}
+					agreement += flip[triangle] ? -dot : dot;
+				}
+			}
+			boolean invert = fileNormals ? agreement < 0.0 : reversed * 2 > tail;
+			for (int i = 0; i < tail; i++) {
+				int triangle = queue[i];
+				if (flip[triangle] != invert) {
+					swap(triangles, triangle * 6 + 1, triangle * 6 + 2);
+					swap(triangles, triangle * 6 + 4, triangle * 6 + 5);
+					swap(textures, triangle * 3 + 1, triangle * 3 + 2);
+					flipped++;
+				}
+			}
+		}
+		return flipped;
+	}
+
+	/**
+	 * Generate normals.  The new normals are added to the mesh's normal
+	 * list and the triangles' normal indices point at them.
+	 *
+	 * @param mesh  the parsed file, already oriented.
+	 * @param all   true to replace every normal in the file; false to
+	 *              only fill in triangles that have none.
+	 * @return  the number of normals generated.
+	 */
+	static int generate(OBJParser mesh, boolean all) {
+		int[] triangles = mesh.triangles.array();
+		int[] groups = mesh.triangleGroups.array();
+		float[] positions = mesh.vertices.array();
+		int triangleCount = mesh.triangles.size() / 6;
+		int vertexCount = mesh.vertices.size() / 3;
+		boolean[] selected = new boolean[triangleCount];
+		// flat triangles get one normal each, numbered after the smooth ones.
+		int[] flatSlot = new int[triangleCount];
+		int flatCount = 0;
+		for (int triangle = 0; triangle < triangleCount; triangle++) {
+			selected[triangle] = all || triangles[triangle * 6 + 3] == 0;
+			if (selected[triangle] && groups[triangle] == 0) {
+				flatSlot[triangle] = flatCount++;
+			}
+		}
+		VertexCorners around = new VertexCorners(triangles, triangleCount, vertexCount, selected);
+		if (around.corners.length == 0) {
+			return 0;
+		}
+
+		// face normals, twice the triangle's area long, and the angle at
+		// each corner.
+		float[] faces = new float[triangleCount * 3];
+		float[] angles = new float[triangleCount * 3];
+		forBatches(triangleCount, (first, end) -> {
+			for (int triangle = first; triangle < end; triangle++) {
+				if (around.contains(triangle)) {
+					faceAndAngles(positions, triangles, triangle, faces, angles);
+				}
+			}
+		});
+
+		// one smooth normal per vertex per smoothing group around it.
+		int[] slotStart = new int[vertexCount + 1];
+		forBatches(vertexCount, (first, end) -> {
+			for (int vertex = first; vertex < end; vertex++) {
+				int count = 0;
+				for (int i = around.start[vertex]; i < around.start[vertex + 1]; i++) {
+					if (isFirstOfGroup(around, groups, vertex, i)) {
+						count++;
+					}
+				}
+				slotStart[vertex + 1] = count;
+			}
+		});
+		for (int vertex = 0; vertex < vertexCount; vertex++) {
+			slotStart[vertex + 1] += slotStart[vertex];
+		}
+		int smoothCount = slotStart[vertexCount];
+		int base = all ? 0 : mesh.normals.size() / 3;
+		float[] generated = new float[(smoothCount + flatCount) * 3];
+		forBatches(vertexCount, (first, end) -> {
+			for (int vertex = first; vertex < end; vertex++) {
+				int slot = slotStart[vertex];
+				for (int i = around.start[vertex]; i < around.start[vertex + 1]; i++) {
+					if (!isFirstOfGroup(around, groups, vertex, i)) {
+						continue;
+					}
+					int group = groups[around.corners[i] / 3];
+					float x = 0.0f, y = 0.0f, z = 0.0f;
+					for (int j = i; j < around.start[vertex + 1]; j++) {
+						int corner = around.corners[j];
+						int triangle = corner / 3;
+						if (groups[triangle] == group) {
+							x += faces[triangle * 3] * angles[corner];
+							y += faces[triangle * 3 + 1] * angles[corner];
+							z += faces[triangle * 3 + 2] * angles[corner];
+							triangles[triangle * 6 + 3 + corner % 3] = base + slot + 1;
+						}
+					}
+					store(generated, slot, x, y, z);
+					slot++;
+				}
+			}
+		});
+		forBatches(triangleCount, (first, end) -> {
+			for (int triangle = first; triangle < end; triangle++) {
+				if (around.contains(triangle) && groups[triangle] == 0) {
+					int slot = smoothCount + flatSlot[triangle];
+					store(generated, slot, faces[triangle * 3], faces[triangle * 3 + 1], faces[triangle * 3 + 2]);
+					for (int corner = 0; corner < 3; corner++) {
+						triangles[triangle * 6 + 3 + corner] = base + slot + 1;
+					}
+				}
+			}
+		});
+
+		if (all) {
+			mesh.normals.clear();
+		}
+		mesh.normals.ensureCapacity(mesh.normals.size() + generated.length);
+		for (int i = 0; i < generated.length; i += 3) {
+			mesh.normals.add(generated[i], generated[i + 1], generated[i + 2]);
+		}
+		return smoothCount + flatCount;
+	}
+
+	/*
+	 * Whether corner list entry i of a vertex is smooth and the first one
+	 * of its smoothing group around that vertex.  A vertex rarely has
+	 * more than a dozen corners, so a linear search is the cheapest way.
+	 */
+	private static boolean isFirstOfGroup(VertexCorners around, int[] groups, int vertex, int i) {
+		int group = groups[around.corners[i] / 3];
+		if (group == 0) {
+			return false;
+		}
+		for (int j = around.start[vertex]; j < i; j++) {
+			if (groups[around.corners[j] / 3] == group) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static void faceAndAngles(float[] positions, int[] triangles, int triangle, float[] faces,
+			float[] angles) {
+		float[] face = faceNormal(positions, triangles, triangle);
+		faces[triangle * 3] = face[0];
+		faces[triangle * 3 + 1] = face[1];
+		faces[triangle * 3 + 2] = face[2];
+		// every corner's edge vectors span the same parallelogram, so
+		// |e1 x e2| is the face normal's length at all three.
+		double twiceArea = Math.sqrt(face[0] * face[0] + face[1] * face[1] + face[2] * face[2]);
+		for (int corner = 0; corner < 3; corner++) {
+			int p = (triangles[triangle * 6 + corner] - 1) * 3;
+			int q = (triangles[triangle * 6 + (corner + 1) % 3] - 1) * 3;
+			int r = (triangles[triangle * 6 + (corner + 2) % 3] - 1) * 3;
+			double dot = 0.0;
+			for (int axis = 0; axis < 3; axis++) {
+				dot += (positions[q + axis] - positions[p + axis]) * (positions[r + axis] - positions[p + axis]);
+			}
+			angles[triangle * 3 + corner] = (float) Math.atan2(twiceArea, dot);
+		}
+	}
+
+	/*
+	 * (b - a) x (c - a): the normal of a triangle as it is wound, twice
+	 * its area long.
+	 */
+	private static float[] faceNormal(float[] positions, int[] triangles, int triangle) {
+		int a = (triangles[triangle * 6] - 1) * 3;
+		int b = (triangles[triangle * 6 + 1] - 1) * 3;
+		int c = (triangles[triangle * 6 + 2] - 1) * 3;
+		float ux = positions[b] - positions[a], uy = positions[b + 1] - positions[a + 1],
+				uz = positions[b + 2] - positions[a + 2];
+		float vx = positions[c] - positions[a], vy = positions[c + 1] - positions[a + 1],
+				vz = positions[c + 2] - positions[a + 2];
+		return new float[] { uy * vz - uz * vy, uz * vx - ux * vz, ux * vy - uy * vx };
+	}
+
+	/*
+	 * Store a unit normal.  Degenerate triangles can leave nothing to
+	 * normalize; they get +y rather than NaNs.
+	 */
+	private static void store(float[] normals, int slot, float x, float y, float z) {
+		double length = Math.sqrt(x * x + y * y + z * z);
+		if (length == 0.0) {
+			normals[slot * 3 + 1] = 1.0f;
+			return;
+		}
+		normals[slot * 3] = (float) (x / length);
+		normals[slot * 3 + 1] = (float) (y / length);
+		normals[slot * 3 + 2] = (float) (z / length);
+	}
+
+	/*
+	 * Whether a triangle, as stored, runs from vertex a straight to b.
+	 */
+	private static boolean runs(int[] triangles, int triangle, int a, int b) {
+		for (int corner = 0; corner < 3; corner++) {
+			if (triangles[triangle * 6 + corner] == a && triangles[triangle * 6 + (corner + 1) % 3] == b) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static void swap(int[] array, int i, int j) {
+		int value = array[i];
+		array[i] = array[j];
+		array[j] = value;
+	}
+
+	private interface Range {
+		void run(int first, int end);
+	}
+
+	/*
+	 * Run over 0 .. count - 1 in parallel batches, or on the calling
+	 * thread if there is only one batch.
+	 */
+	private static void forBatches(int count, Range range) {
+		if (count <= BATCH) {
+			range.run(0, count);
+			return;
+		}
+		IntStream.range(0, (count + BATCH - 1) / BATCH).parallel()
+				.forEach(batch -> range.run(batch * BATCH, Math.min(count, (batch + 1) * BATCH)));
+	}
+
+	/**
+	 * The corners around each vertex: triangle * 3 + corner for every
+	 * corner of a chosen set of triangles, grouped by vertex with a
+	 * counting sort.  Corners of vertex v (0-based) are corners[start[v]]
+	 * to corners[start[v + 1] - 1].  Triangles with an index outside the
+	 * vertex list are left out.
+	 */
+	private static final class VertexCorners {
+		final int[] start;
+		final int[] corners;
+		private final boolean[] included;
+
+		VertexCorners(int[] triangles, int triangleCount, int vertexCount, boolean[] selected) {
+			start = new int[vertexCount + 1];
+			included = new boolean[triangleCount];
+			int total = 0;
+			for (int triangle = 0; triangle < triangleCount; triangle++) {
+				if (selected != null && !selected[triangle]) {
+					continue;
+				}
+				boolean valid = true;
+				for (int corner = 0; corner < 3; corner++) {
+					int vertex = triangles[triangle * 6 + corner];
+					valid &= vertex >= 1 && vertex <= vertexCount;
+				}
+				if (!valid) {
+					continue;
+				}
+				included[triangle] = true;
+				for (int corner = 0; corner < 3; corner++) {
+					start[triangles[triangle * 6 + corner]]++;
+				}
+				total += 3;
+			}
+			for (int vertex = 0; vertex < vertexCount; vertex++) {
+				start[vertex + 1] += start[vertex];
+			}
+			corners = new int[total];
+			int[] next = start.clone();
+			for (int triangle = 0; triangle < triangleCount; triangle++) {
+				if (included[triangle]) {
+					for (int corner = 0; corner < 3; corner++) {
+						corners[next[triangles[triangle * 6 + corner] - 1]++] = triangle * 3 + corner;
+					}
+				}
+			}
+		}
+
+		boolean contains(int triangle) {
+			return included[triangle];
+		}
+
+		/*
+		 * The one other triangle with an edge between vertices a and b, or
+		 * -1 if the edge is open or shared by more than two triangles.
+		 */
+		int across(int[] triangles, int triangle, int a, int b) {
+			int found = -1;
+			for (int i = start[a - 1]; i < start[a]; i++) {
+				int other = corners[i] / 3;
+				if (other == triangle) {
+					continue;
+				}
+				int base = other * 6;
+				if (triangles[base] == b || triangles[base + 1] == b || triangles[base + 2] == b) {
+					if (found >= 0) {
+						return -1;
+					}
+					found = other;
+				}
+			}
+			return found;
+		}
+	}
+}
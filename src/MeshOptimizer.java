@@ -0,0 +1,280 @@
+import java.util.Arrays;
+
+/**
+ * Reorders indexed meshes for the GPU vertex caches.
+ *
+ * <P>
+ * optimizeTriangleOrder implements Tom Forsyth's "Linear-Speed Vertex
+ * Cache Optimisation": every vertex gets a score from its position in a
+ * simulated LRU cache and from how many unused triangles still reference
+ * it, and the triangle with the highest total score among those touching
+ * the cache is emitted next.  optimizeVertexOrder then renumbers the
+ * vertices in the order the triangles first reference them so vertex
+ * fetches walk through memory mostly forwards.
+ *
+ * <P>
+ * acmr and atvr measure the result with a FIFO post-transform cache,
+ * which is closer to what current hardware does than the LRU used for
+ * scoring.
+ */
+final class MeshOptimizer {
+
+	/** Size of the LRU cache Forsyth's scoring function models. */
+	static final int SCORING_CACHE_SIZE = 32;
+
+	/** Size of the FIFO cache used when reporting ACMR/ATVR. */
+	static final int MEASURE_CACHE_SIZE = 16;
+
+	private static final float CACHE_DECAY_POWER = 1.5f;
+	private static final float LAST_TRIANGLE_SCORE = 0.75f;
+	private static final float VALENCE_BOOST_SCALE = 2.0f;
+	private static final float VALENCE_BOOST_POWER = 0.5f;
+
+	/*
+	 * Scores only depend on cache position and remaining valence, so they
+	 * are tabulated once.  Vertices with more remaining triangles than the
+	 * table holds use the last entry.
+	 */
+	private static final int MAX_VALENCE = 64;
+	private static final float[] CACHE_SCORE = new float[SCORING_CACHE_SIZE];
+	private static final float[] VALENCE_SCORE = new float[MAX_VALENCE];
+
+	static {
+		for (int position = 0; position < SCORING_CACHE_SIZE; position++) {
+			if (position < 3) {
+				// the last triangle's vertices get a fixed score so the
+				// algorithm does not simply walk a strip.
+				CACHE_SCORE[position] = LAST_TRIANGLE_SCORE;
+			} else {
+				float scaler = 1.0f / (SCORING_CACHE_SIZE - 3);
+				float score = 1.0f - (position - 3) * scaler;
+				CACHE_SCORE[position] = (float) Math.pow(score, CACHE_DECAY_POWER);
+			}
+		}
+		for (int valence = 1; valence < MAX_VALENCE; valence++) {
+			VALENCE_SCORE[valence] = VALENCE_BOOST_SCALE * (float) Math.pow(valence, -VALENCE_BOOST_POWER);
+		}
+	}
+
+	private MeshOptimizer() {
+	}
+
+	private static float vertexScore(int cachePosition, int remainingValence) {
+		if (remainingValence == 0) {
+			return -1.0f; // no triangle needs this vertex any more.
+		}
+		float score = cachePosition < 0 ? 0.0f : CACHE_SCORE[cachePosition];
+		return score + VALENCE_SCORE[Math.min(remainingValence, MAX_VALENCE - 1)];
+	}
+
+	/**
+	 * Reorder the triangles of an indexed triangle list for the
+	 * post-transform vertex cache.
+	 *
+	 * @param indices      three vertex numbers per triangle.  Not changed.
+	 * @param vertexCount  the number of vertices the indices refer to.
+	 * @return  the same triangles in the new order.
+	 */
+	static int[] optimizeTriangleOrder(int[] indices, int vertexCount) {
+		int triangleCount = indices.length / 3;
+		if (triangleCount == 0) {
+			return indices.clone();
+		}
+
+		// vertex -> triangle adjacency in compressed rows.
+		int[] valence = new int[vertexCount];
+		for (int index : indices) {
+			valence[index]++;
+		}
+		int[] adjacencyStart = new int[vertexCount + 1];
+		for (int vertex = 0; vertex < vertexCount; vertex++) {
+			adjacencyStart[vertex + 1] = adjacencyStart[vertex] + valence[vertex];
+		}
+		int[] adjacency = new int[indices.length];
+		int[] fill = Arrays.copyOf(adjacencyStart, vertexCount);
+		for (int i = 0; i < indices.length; i++) {
+			adjacency[fill[indices[i]]++] = i / 3;
+		}
+
+		float[] vertexScores = new float[vertexCount];
+		for (int vertex = 0; vertex < vertexCount; vertex++) {
+			vertexScores[vertex] = vertexScore(-1, valence[vertex]);
+		}
+		float[] triangleScores = new float[triangleCount];
+		boolean[] emitted = new boolean[triangleCount];
+		int best = -1;
+		float bestScore = -1.0f;
+		for (int triangle = 0; triangle < triangleCount; triangle++) {
+			int base = triangle * 3;
+			triangleScores[triangle] = vertexScores[indices[base]] + vertexScores[indices[base + 1]]
+					+ vertexScores[indices[base + 2]];
+			if (triangleScores[triangle] > bestScore) {
+				bestScore = triangleScores[triangle];
+				best = triangle;
+			}
+		}
+
+		int[] cache = new int[SCORING_CACHE_SIZE + 3];
+		int[] nextCache = new int[SCORING_CACHE_SIZE + 3];
+		int cacheSize = 0;
+		int[] result = new int[indices.length];
+		int emittedCount = 0;
+		int scanPosition = 0;
+
+		while (best >= 0) {
+			int base = best * 3;
+			emitted[best] = true;
+			System.arraycopy(indices, base, result, emittedCount * 3, 3);
+			emittedCount++;
+
+			// drop the triangle from its vertices' adjacency lists.
+			for (int corner = 0; corner < 3; corner++) {
+				int vertex = indices[base + corner];
+				int start = adjacencyStart[vertex];
+				int last = start + valence[vertex] - 1;
+				for (int i = start; i <= last; i++) {
+					if (adjacency[i] == best) {
+						adjacency[i] = adjacency[last];
+						break;
+					}
+				}
+				valence[vertex]--;
+			}
+
+			// the new triangle's vertices move to the front of the cache.
+			int nextSize = 0;
+			for (int corner = 0; corner < 3; corner++) {
+				int vertex = indices[base + corner];
+				if (nextSize == 0 || (nextCache[0] != vertex && (nextSize < 2 || nextCache[1] != vertex))) {
+					nextCache[nextSize++] = vertex;
+				}
+			}
+			for (int i = 0; i < cacheSize; i++) {
+				int vertex = cache[i];
+				if (vertex != indices[base] && vertex != indices[base + 1] && vertex != indices[base + 2]) {
+					nextCache[nextSize++] = vertex;
+				}
+			}
+			int[] swap = cache;
+			cache = nextCache;
+			nextCache = swap;
+			cacheSize = nextSize;
+
+			// rescore every vertex that was or is in the cache, then the
+			// triangles that still use them, looking for the next best.
+			best = -1;
+			bestScore = -1.0f;
+			for (int i = 0; i < cacheSize; i++) {
+				int vertex = cache[i];
+				int position = i < SCORING_CACHE_SIZE ? i : -1;
+				vertexScores[vertex] = vertexScore(position, valence[vertex]);
+			}
+			for (int i = 0; i < cacheSize; i++) {
+				int vertex = cache[i];
+				int end = adjacencyStart[vertex] + valence[vertex];
+				for (int a = adjacencyStart[vertex]; a < end; a++) {
+					int triangle = adjacency[a];
+					int t = triangle * 3;
+					float score = vertexScores[indices[t]] + vertexScores[indices[t + 1]]
+							+ vertexScores[indices[t + 2]];
+					triangleScores[triangle] = score;
+					if (score > bestScore) {
+						bestScore = score;
+						best = triangle;
+					}
+				}
+			}
+			if (cacheSize > SCORING_CACHE_SIZE) {
+				cacheSize = SCORING_CACHE_SIZE; // the extra entries fell out.
+			}
+
+			if (best < 0 && emittedCount < triangleCount) {
+				// nothing in the cache has work left -- start somewhere new.
+				while (scanPosition < triangleCount && emitted[scanPosition]) {
+					scanPosition++;
+				}
+				best = scanPosition < triangleCount ? scanPosition : -1;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Renumber vertices in the order the triangles first use them.  The
+	 * index array is rewritten in place.
+	 *
+	 * @param indices      three vertex numbers per triangle.
+	 * @param vertexCount  the number of vertices the indices refer to.
+	 * @return  remap[old] = new vertex number, or -1 for vertices no
+	 *          triangle references.
+	 */
+	static int[] optimizeVertexOrder(int[] indices, int vertexCount) {
+		int[] remap = new int[vertexCount];
+		Arrays.fill(remap, -1);
+		int next = 0;
+		for (int i = 0; i < indices.length; i++) {
+			int vertex = indices[i];
+			if (remap[vertex] < 0) {
+				remap[vertex] = next++;
+			}
+			indices[i] = remap[vertex];
+		}
+		return remap;
+	}
+
+	/**
+	 * Move per-vertex data to the positions given by a remap.
+	 *
+	 * @param data        the attribute array.
+	 * @param components  floats per vertex.
+	 * @param remap       remap[old] = new vertex number, or -1 to drop.
+	 * @param newCount    number of vertices after the remap.
+	 * @return  the remapped attribute array.
+	 */
+	static float[] remapVertices(float[] data, int components, int[] remap, int newCount) {
+		float[] result = new float[newCount * components];
+		for (int vertex = 0; vertex < remap.length; vertex++) {
+			if (remap[vertex] >= 0) {
+				System.arraycopy(data, vertex * components, result, remap[vertex] * components, components);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Count the vertex shader invocations a FIFO post-transform cache of
+	 * the given size needs for an index list.
+	 */
+	static int transformCount(int[] indices, int vertexCount, int cacheSize) {
+		int[] insertedAt = new int[vertexCount];
+		Arrays.fill(insertedAt, -cacheSize - 1);
+		int misses = 0;
+		for (int index : indices) {
+			// a vertex is still cached if fewer than cacheSize misses
+			// have happened since it was inserted.
+			if (misses - insertedAt[index] > cacheSize) {
+				insertedAt[index] = misses;
+				misses++;
+			}
+		}
+		return misses;
+	}
+
+	/**
+	 * Average cache miss ratio: vertex shader invocations per triangle.
+	 * 3.0 is the worst case, 0.5 the best achievable on a regular mesh.
+	 */
+	static float acmr(int[] indices, int vertexCount) {
+		return indices.length == 0 ? 0.0f
+				: transformCount(indices, vertexCount, MEASURE_CACHE_SIZE) / (indices.length / 3.0f);
+	}
+
+	/**
+	 * Average transform to vertex ratio: vertex shader invocations per
+	 * vertex.  1.0 means every vertex is transformed exactly once.
+	 */
+	static float atvr(int[] indices, int vertexCount) {
+		return vertexCount == 0 ? 0.0f
+				: transformCount(indices, vertexCount, MEASURE_CACHE_SIZE) / (float) vertexCount;
+	}
+}
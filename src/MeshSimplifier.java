@@ -0,0 +1,434 @@
+import java.util.Arrays;
+
+/**
+ * Quadric error mesh simplification (Garland and Heckbert) for building
+ * levels of detail.
+ *
+ * <P>
+ * Vertices that share a position are welded first, so the collapses work
+ * on the shape of the mesh and not on the normal/texture seams of the
+ * indexed vertex list.  Edges are collapsed onto one of their end points
+ * rather than onto an optimal new position.  That keeps every level an
+ * index list into the original vertex buffer, so a whole LOD chain shares
+ * one VBO and differs only in the element range that is drawn.
+ *
+ * <P>
+ * Planes are not area weighted, so the square root of a collapse's cost
+ * bounds how far the surviving vertex is from the planes of the triangles
+ * it replaced; that is the error reported for a level.  Open boundaries
+ * get extra constraint planes so the silhouette of an open mesh (the ends
+ * of a cylinder, for example) is preserved, and a collapse that would flip
+ * a triangle is rejected.
+ */
+final class MeshSimplifier {
+
+	/** Weight of the planes that pin boundary edges in place. */
+	private static final double BOUNDARY_WEIGHT = 10.0;
+
+	/**
+	 * One simplified level.
+	 */
+	static final class Result {
+		/** three vertex numbers per triangle, into the original vertices. */
+		final int[] indices;
+		/** the largest collapse error accepted, in model units. */
+		final float error;
+
+		Result(int[] indices, float error) {
+			this.indices = indices;
+			this.error = error;
+		}
+	}
+
+	private MeshSimplifier() {
+	}
+
+	/**
+	 * Simplify an indexed triangle list.
+	 *
+	 * @param vertices     xyzw positions.
+	 * @param indices      three vertex numbers per triangle.
+	 * @param targetCount  the number of indices to stop at.
+	 * @param maxError     the largest error, in model units, a collapse
+	 *                     may introduce.
+	 * @return  the simplified indices and the error reached.
+	 */
+	static Result simplify(float[] vertices, int[] indices, int targetCount, float maxError) {
+		int vertexCount = vertices.length / 4;
+		int triangleCount = indices.length / 3;
+
+		// weld vertices with identical positions.
+		int[] weld = new int[vertexCount];
+		TripleIndexMap positions = new TripleIndexMap(vertexCount);
+		for (int vertex = 0; vertex < vertexCount; vertex++) {
+			weld[vertex] = positions.putIfAbsent(Float.floatToIntBits(vertices[vertex * 4]),
+					Float.floatToIntBits(vertices[vertex * 4 + 1]), Float.floatToIntBits(vertices[vertex * 4 + 2]),
+					vertex);
+		}
+
+		// union-find over welded vertices; collapses point one root at another.
+		int[] parent = new int[vertexCount];
+		for (int vertex = 0; vertex < vertexCount; vertex++) {
+			parent[vertex] = weld[vertex];
+		}
+
+		int[] corners = new int[indices.length];
+		boolean[] removed = new boolean[triangleCount];
+		int liveTriangles = triangleCount;
+		for (int i = 0; i < indices.length; i++) {
+			corners[i] = weld[indices[i]];
+		}
+		for (int triangle = 0; triangle < triangleCount; triangle++) {
+			if (isDegenerate(corners, triangle)) {
+				removed[triangle] = true;
+				liveTriangles--;
+			}
+		}
+
+		// triangles around each welded vertex.
+		IntList[] around = new IntList[vertexCount];
+		for (int triangle = 0; triangle < triangleCount; triangle++) {
+			if (!removed[triangle]) {
+				for (int corner = 0; corner < 3; corner++) {
+					int vertex = corners[triangle * 3 + corner];
+					if (around[vertex] == null) {
+						around[vertex] = new IntList(8);
+					}
+					around[vertex].add(triangle);
+				}
+			}
+		}
+
+		double[] quadrics = new double[vertexCount * 10];
+		for (int triangle = 0; triangle < triangleCount; triangle++) {
+			if (!removed[triangle]) {
+				addTriangleQuadric(quadrics, vertices, corners, triangle);
+			}
+		}
+
+		// unique edges, and constraint planes along the open boundary.
+		long[] edges = new long[indices.length];
+		int edgeCount = 0;
+		for (int triangle = 0; triangle < triangleCount; triangle++) {
+			if (!removed[triangle]) {
+				for (int corner = 0; corner < 3; corner++) {
+					int a = corners[triangle * 3 + corner];
+					int b = corners[triangle * 3 + (corner + 1) % 3];
+					edges[edgeCount++] = edgeKey(a, b);
+				}
+			}
+		}
+		Arrays.sort(edges, 0, edgeCount);
+		int unique = 0;
+		for (int i = 0; i < edgeCount; i++) {
+			int run = 1;
+			while (i + run < edgeCount && edges[i + run] == edges[i]) {
+				run++;
+			}
+			if (run == 1) {
+				addBoundaryQuadric(quadrics, vertices, around, corners, edges[i]);
+			}
+			edges[unique++] = edges[i];
+			i += run - 1;
+		}
+
+		EdgeHeap heap = new EdgeHeap(unique);
+		for (int edge = 0; edge < unique; edge++) {
+			heap.push(edge, collapseCost(quadrics, vertices, edges[edge], null));
+		}
+
+		float reached = 0.0f;
+		double maxCost = (double) maxError * maxError;
+		int[] direction = new int[1];
+		while (liveTriangles * 3 > targetCount && heap.size() > 0) {
+			float storedCost = heap.peekCost();
+			int edge = heap.pop();
+			int a = find(parent, (int) (edges[edge] >>> 32));
+			int b = find(parent, (int) edges[edge]);
+			if (a == b) {
+				continue;
+			}
+			long current = edgeKey(a, b);
+			double cost = collapseCost(quadrics, vertices, current, direction);
+			if (cost > storedCost * 1.0001 + 1e-12) {
+				// the neighbourhood changed since this edge was queued.
+				edges[edge] = current;
+				heap.push(edge, (float) cost);
+				continue;
+			}
+			if (cost > maxCost) {
+				break;
+			}
+			int from = direction[0] == 0 ? a : b;
+			int to = from == a ? b : a;
+			if (flipsTriangle(vertices, corners, around[from], removed, parent, from, to)) {
+				continue;
+			}
+
+			parent[from] = to;
+			for (int q = 0; q < 10; q++) {
+				quadrics[to * 10 + q] += quadrics[from * 10 + q];
+			}
+			IntList moved = around[from];
+			for (int i = 0; i < moved.size(); i++) {
+				int triangle = moved.get(i);
+				if (removed[triangle]) {
+					continue;
+				}
+				for (int corner = 0; corner < 3; corner++) {
+					corners[triangle * 3 + corner] = find(parent, corners[triangle * 3 + corner]);
+				}
+				if (isDegenerate(corners, triangle)) {
+					removed[triangle] = true;
+					liveTriangles--;
+				} else {
+					around[to].add(triangle);
+				}
+			}
+			around[from] = null;
+			reached = Math.max(reached, (float) Math.sqrt(Math.max(cost, 0.0)));
+		}
+
+		// a corner keeps its own vertex (and so its own normal) unless it
+		// was collapsed away; then it takes the surviving position's vertex.
+		int[] result = new int[liveTriangles * 3];
+		int last = 0;
+		for (int triangle = 0; triangle < triangleCount; triangle++) {
+			if (!removed[triangle]) {
+				for (int corner = 0; corner < 3; corner++) {
+					int original = indices[triangle * 3 + corner];
+					int root = find(parent, weld[original]);
+					result[last++] = root == weld[original] ? original : root;
+				}
+			}
+		}
+		return new Result(result, reached);
+	}
+
+	private static boolean isDegenerate(int[] corners, int triangle) {
+		int a = corners[triangle * 3], b = corners[triangle * 3 + 1], c = corners[triangle * 3 + 2];
+		return a == b || b == c || a == c;
+	}
+
+	private static long edgeKey(int a, int b) {
+		return a < b ? ((long) a << 32) | b : ((long) b << 32) | a;
+	}
+
+	private static int find(int[] parent, int vertex) {
+		while (parent[vertex] != vertex) {
+			parent[vertex] = parent[parent[vertex]];
+			vertex = parent[vertex];
+		}
+		return vertex;
+	}
+
+	/*
+	 * Quadrics are stored as the 10 unique entries of the symmetric 4x4
+	 * matrix pp^T for plane p = (a, b, c, d).
+	 */
+	private static void addPlane(double[] quadrics, int vertex, double a, double b, double c, double d,
+			double weight) {
+		int q = vertex * 10;
+		quadrics[q] += weight * a * a;
+		quadrics[q + 1] += weight * a * b;
+		quadrics[q + 2] += weight * a * c;
+		quadrics[q + 3] += weight * a * d;
+		quadrics[q + 4] += weight * b * b;
+		quadrics[q + 5] += weight * b * c;
+		quadrics[q + 6] += weight * b * d;
+		quadrics[q + 7] += weight * c * c;
+		quadrics[q + 8] += weight * c * d;
+		quadrics[q + 9] += weight * d * d;
+	}
+
+	private static void addTriangleQuadric(double[] quadrics, float[] vertices, int[] corners, int triangle) {
+		int p0 = corners[triangle * 3] * 4, p1 = corners[triangle * 3 + 1] * 4, p2 = corners[triangle * 3 + 2] * 4;
+		double ux = vertices[p1] - vertices[p0], uy = vertices[p1 + 1] - vertices[p0 + 1],
+				uz = vertices[p1 + 2] - vertices[p0 + 2];
+		double vx = vertices[p2] - vertices[p0], vy = vertices[p2 + 1] - vertices[p0 + 1],
+				vz = vertices[p2 + 2] - vertices[p0 + 2];
+		double nx = uy * vz - uz * vy, ny = uz * vx - ux * vz, nz = ux * vy - uy * vx;
+		double length = Math.sqrt(nx * nx + ny * ny + nz * nz);
+		if (length == 0.0) {
+			return;
+		}
+		nx /= length;
+		ny /= length;
+		nz /= length;
+		double d = -(nx * vertices[p0] + ny * vertices[p0 + 1] + nz * vertices[p0 + 2]);
+		for (int corner = 0; corner < 3; corner++) {
+			addPlane(quadrics, corners[triangle * 3 + corner], nx, ny, nz, d, 1.0);
+		}
+	}
+
+	/*
+	 * A boundary edge gets a plane through it perpendicular to its
+	 * triangle, so moving either end point off the boundary costs error.
+	 */
+	private static void addBoundaryQuadric(double[] quadrics, float[] vertices, IntList[] around, int[] corners,
+			long edge) {
+		int a = (int) (edge >>> 32), b = (int) edge;
+		IntList triangles = around[a];
+		if (triangles == null) {
+			return;
+		}
+		for (int i = 0; i < triangles.size(); i++) {
+			int triangle = triangles.get(i);
+			int t = triangle * 3;
+			boolean hasB = corners[t] == b || corners[t + 1] == b || corners[t + 2] == b;
+			if (!hasB) {
+				continue;
+			}
+			int p0 = corners[t] * 4, p1 = corners[t + 1] * 4, p2 = corners[t + 2] * 4;
+			double ux = vertices[p1] - vertices[p0], uy = vertices[p1 + 1] - vertices[p0 + 1],
+					uz = vertices[p1 + 2] - vertices[p0 + 2];
+			double vx = vertices[p2] - vertices[p0], vy = vertices[p2 + 1] - vertices[p0 + 1],
+					vz = vertices[p2 + 2] - vertices[p0 + 2];
+			double nx = uy * vz - uz * vy, ny = uz * vx - ux * vz, nz = ux * vy - uy * vx;
+			double ex = vertices[b * 4] - vertices[a * 4], ey = vertices[b * 4 + 1] - vertices[a * 4 + 1],
+					ez = vertices[b * 4 + 2] - vertices[a * 4 + 2];
+			// plane normal = edge x triangle normal.
+			double px = ey * nz - ez * ny, py = ez * nx - ex * nz, pz = ex * ny - ey * nx;
+			double length = Math.sqrt(px * px + py * py + pz * pz);
+			if (length == 0.0) {
+				return;
+			}
+			px /= length;
+			py /= length;
+			pz /= length;
+			double d = -(px * vertices[a * 4] + py * vertices[a * 4 + 1] + pz * vertices[a * 4 + 2]);
+			addPlane(quadrics, a, px, py, pz, d, BOUNDARY_WEIGHT);
+			addPlane(quadrics, b, px, py, pz, d, BOUNDARY_WEIGHT);
+			return;
+		}
+	}
+
+	/*
+	 * Error of a position under the sum of two vertices' quadrics.
+	 */
+	private static double evaluate(double[] quadrics, int a, int b, float[] vertices, int vertex) {
+		double x = vertices[vertex * 4], y = vertices[vertex * 4 + 1], z = vertices[vertex * 4 + 2];
+		int qa = a * 10, qb = b * 10;
+		double q0 = quadrics[qa] + quadrics[qb], q1 = quadrics[qa + 1] + quadrics[qb + 1],
+				q2 = quadrics[qa + 2] + quadrics[qb + 2], q3 = quadrics[qa + 3] + quadrics[qb + 3],
+				q4 = quadrics[qa + 4] + quadrics[qb + 4], q5 = quadrics[qa + 5] + quadrics[qb + 5],
+				q6 = quadrics[qa + 6] + quadrics[qb + 6], q7 = quadrics[qa + 7] + quadrics[qb + 7],
+				q8 = quadrics[qa + 8] + quadrics[qb + 8], q9 = quadrics[qa + 9] + quadrics[qb + 9];
+		return q0 * x * x + 2 * q1 * x * y + 2 * q2 * x * z + 2 * q3 * x + q4 * y * y + 2 * q5 * y * z
+				+ 2 * q6 * y + q7 * z * z + 2 * q8 * z + q9;
+	}
+
+	/*
+	 * The cheaper of collapsing a onto b or b onto a, under the summed
+	 * quadric.  direction[0] is set to 0 when a should move and 1 when b
+	 * should.
+	 */
+	private static float collapseCost(double[] quadrics, float[] vertices, long edge, int[] direction) {
+		int a = (int) (edge >>> 32), b = (int) edge;
+		double atB = evaluate(quadrics, a, b, vertices, b);
+		double atA = evaluate(quadrics, a, b, vertices, a);
+		if (direction != null) {
+			direction[0] = atB <= atA ? 0 : 1;
+		}
+		return (float) Math.max(0.0, Math.min(atA, atB));
+	}
+
+	/*
+	 * Would moving 'from' onto 'to' turn any surviving triangle around?
+	 */
+	private static boolean flipsTriangle(float[] vertices, int[] corners, IntList triangles, boolean[] removed,
+			int[] parent, int from, int to) {
+		for (int i = 0; i < triangles.size(); i++) {
+			int triangle = triangles.get(i);
+			if (removed[triangle]) {
+				continue;
+			}
+			int t = triangle * 3;
+			int a = find(parent, corners[t]), b = find(parent, corners[t + 1]), c = find(parent, corners[t + 2]);
+			if (a == to || b == to || c == to) {
+				continue; // this triangle disappears with the edge.
+			}
+			double[] before = normal(vertices, a, b, c);
+			double[] after = normal(vertices, a == from ? to : a, b == from ? to : b, c == from ? to : c);
+			if (before[0] * after[0] + before[1] * after[1] + before[2] * after[2] <= 0.0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static double[] normal(float[] vertices, int a, int b, int c) {
+		double ux = vertices[b * 4] - vertices[a * 4], uy = vertices[b * 4 + 1] - vertices[a * 4 + 1],
+				uz = vertices[b * 4 + 2] - vertices[a * 4 + 2];
+		double vx = vertices[c * 4] - vertices[a * 4], vy = vertices[c * 4 + 1] - vertices[a * 4 + 1],
+				vz = vertices[c * 4 + 2] - vertices[a * 4 + 2];
+		return new double[] { uy * vz - uz * vy, uz * vx - ux * vz, ux * vy - uy * vx };
+	}
+
+	/*
+	 * Binary min-heap of edge numbers keyed by collapse cost.
+	 */
+	private static final class EdgeHeap {
+		private int[] edges;
+		private float[] costs;
+		private int size;
+
+		EdgeHeap(int capacity) {
+			edges = new int[Math.max(capacity, 4)];
+			costs = new float[edges.length];
+		}
+
+		int size() {
+			return size;
+		}
+
+		float peekCost() {
+			return costs[0];
+		}
+
+		void push(int edge, float cost) {
+			if (size == edges.length) {
+				edges = Arrays.copyOf(edges, size * 2);
+				costs = Arrays.copyOf(costs, size * 2);
+			}
+			int i = size++;
+			while (i > 0) {
+				int up = (i - 1) >> 1;
+				if (costs[up] <= cost) {
+					break;
+				}
+				edges[i] = edges[up];
+				costs[i] = costs[up];
+				i = up;
+			}
+			edges[i] = edge;
+			costs[i] = cost;
+		}
+
+		int pop() {
+			int top = edges[0];
+			size--;
+			int edge = edges[size];
+			float cost = costs[size];
+			int i = 0;
+			while (true) {
+				int child = i * 2 + 1;
+				if (child >= size) {
+					break;
+				}
+				if (child + 1 < size && costs[child + 1] < costs[child]) {
+					child++;
+				}
+				if (costs[child] >= cost) {
+					break;
+				}
+				edges[i] = edges[child];
+				costs[i] = costs[child];
+				i = child;
+			}
+			edges[i] = edge;
+			costs[i] = cost;
+			return top;
+		}
+	}
+}
@@ -5,11 +5,36 @@ import com.jogamp.opengl.*;
 import com.jogamp.opengl.util.Animator;
 import com.jogamp.opengl.util.GLBuffers;
 import com.jogamp.opengl.util.PMVMatrix;
-import com.jogamp.opengl.util.glsl.ShaderCode;
-import com.jogamp.opengl.util.glsl.ShaderProgram;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.jogamp.opengl.GL.*;
 import static com.jogamp.opengl.GL.GL_FLOAT;
@@ -40,7 +65,35 @@ public class MovingObjectsDemo {
         int ELEMENT = 1;
         int GLOBAL_MATRICES = 2;
         int MODEL_MATRIX = 3;
-        int MAX = 4;
+        int LIGHTING = 4;
+        int DRAW_DATA = 5;
+        int INDIRECT = 6;
+        int POINT_LIGHTS = 7;
+        int LIGHT_GRID = 8;
+        int LIGHT_INDICES = 9;
+        int MAX = 10;
+    }
+
+    // mirrors the defines in semantic.glsl.
+    private interface Semantic {
+
+        interface Attr {
+            int POSITION = 0;
+            int COLOR = 1;
+            int NORMAL = 2;
+            int TEXCOORD = 3;
+            int DRAW_ID = 4;
+        }
+
+        interface Uniform {
+            int TRANSFORM0 = 1;
+            int TRANSFORM1 = 2;
+            int LIGHTING = 3;
+            int DRAW_DATA = 4;
+            int POINT_LIGHTS = 5;
+            int LIGHT_GRID = 6;
+            int LIGHT_INDICES = 7;
+        }
     }
 
     /**
@@ -60,20 +113,210 @@ public class MovingObjectsDemo {
             new HelloTriangleSimple().setup();
         }
 
-        private final int[] nbrVertices = new int[4];
+        private final LodChain[] lodChains = new LodChain[4];
+        private final float[][] boundingCenter = new float[4][];
+        private final float[] boundingRadius = new float[4];
+        private final float[][] boundsMin = new float[4][];
+        private final float[][] boundsMax = new float[4][];
         private final IntBuffer bufferName = GLBuffers.newDirectIntBuffer(Buffer.MAX);
-        private final IntBuffer vertexArrayName = GLBuffers.newDirectIntBuffer(4);
+        // every GPU buffer and vertex array is created through gpuMemory,
+        // which counts their bytes and reports leaks at dispose. G prints
+        // its report (from the rendering thread) along with the arena's.
+        private final GpuMemory gpuMemory = new GpuMemory();
+        private volatile boolean memoryReportRequested = false;
         private Program program;
+        // every mesh lives in one arena behind one VAO, and the scene is
+        // drawn with a single glMultiDrawElementsIndirect. Each frame the
+        // visible objects' commands and per-draw data (modeling matrix,
+        // normal matrix, position scale and offset) are written here.
+        private static final int MAX_DRAWS = 256;
+        private static final int DRAW_FLOATS = 40;
+        private Program sceneProgram;
+        private MeshArena arena;
+        private final MeshArena.Range[] meshRanges = new MeshArena.Range[3];
+        private final IntBuffer drawCommands = GLBuffers.newDirectIntBuffer(MAX_DRAWS * 5);
+        private final FloatBuffer drawData = GLBuffers.newDirectFloatBuffer(MAX_DRAWS * DRAW_FLOATS);
+        private int sceneDraws;
+        private long sceneTriangles;
         private long start;
-        private final PMVMatrix rotationMatrix = new PMVMatrix();
         private final PMVMatrix viewMatrix = new PMVMatrix();
         private final PMVMatrix projectionMatrix = new PMVMatrix();
-        private final float[][] instanceOffsets = new float[10][3];
+        // per-frame transforms, rebuilt in place so display() does not
+        // allocate; viewing and projecting are copies of viewMatrix and
+        // projectionMatrix taken with the camera.
+        private final Matrix4 entityMatrix = new Matrix4();
+        private final Matrix4 normalMatrix = new Matrix4();
+        private final float[] viewing = new float[16];
+        private final float[] projecting = new float[16];
+        // M measures what display() allocates on the rendering thread.
+        private boolean measureAllocations = false;
+        private int framesMeasured;
+        private long bytesAllocated;
+        // the crowd: INSTANCE_COUNT cows on a grid, drawn with one
+        // instanced call (I) or, for comparison, one draw each (U).
+        private static final int INSTANCE_COUNT = 100000;
+        // every object: the three scene objects first, then the crowd.
+        private static final int SCENE_ENTITIES = 3;
+        private final EntityStore entities = new EntityStore(SCENE_ENTITIES + INSTANCE_COUNT);
+        private final FloatBuffer crowdData = GLBuffers.newDirectFloatBuffer(INSTANCE_COUNT * 16);
+        // bounding volume hierarchies: one per mesh, built on the loader
+        // threads, and one over the scene objects and one over the crowd,
+        // refit every frame they move. A click picks the nearest triangle
+        // under the mouse, and the cow reports what it runs into.
+        private final MeshBVH[] meshBVH = new MeshBVH[3];
+        private SceneBVH sceneBVH;
+        private SceneBVH crowdBVH;
+        private final IntList collisionCandidates = new IntList(8);
+        private final boolean[] touching = new boolean[SCENE_ENTITIES];
+        // the window position of a click not yet picked, x << 32 | y.
+        private final AtomicLong pickRequest = new AtomicLong(-1L);
+        private final RayHit pickHit = new RayHit();
+        private final Matrix4 pickProjection = new Matrix4();
+        private final Matrix4 pickView = new Matrix4();
+        private final Matrix4 pickInverse = new Matrix4();
+        private final float[] pickNear = new float[3];
+        private final float[] pickFar = new float[3];
+        // degrees the arrow keys have turned the cow by since the last frame.
+        private final AtomicInteger cowTurn = new AtomicInteger();
+        private Program instancedProgram;
         private boolean useInstanced = false;
+        private boolean separateDraws = false;
+        private int framesTimed;
+        private long frameNanos;
+        private long lastFrameReport;
+        // reorder meshes for the vertex caches when they are first cached.
+        private boolean optimizeMeshes = true;
+        // replace the normals in the model files with ones generated from
+        // their triangles and smoothing groups.
+        private boolean regenerateNormals = true;
+        // how vertices are stored on the GPU -- encoded, and interleaved
+        // into one stride or kept a buffer per attribute -- and what the
+        // vertex shader needs to decode each object's positions.
+        private VertexLayout vertexLayout = new VertexLayout(VertexQuantizer.Format.SNORM16, true);
+        private final float[][] positionScale = new float[4][];
+        private final float[][] positionOffset = new float[4][];
+        // levels of detail: how many to build per mesh, and the largest
+        // simplification error (in pixels) allowed on screen.
+        private static final int LOD_LEVELS = 5;
+        private static final float LOD_PIXEL_ERROR = 1.0f;
+        private boolean lodEnabled = true;
+        // projection state needed to turn model units into pixels.
+        private boolean orthographic = false;
+        private static final float FIELD_OF_VIEW = 60.0f;
+        private static final float NEAR_PLANE = 0.01f;
+        private static final float ORTHO_HEIGHT = 200.0f;
+        private int viewportWidth = 600;
+        private int viewportHeight = 600;
+        // frustum culling: objects whose bounds are outside the view are
+        // skipped before any of their uniforms are set.
+        private final Frustum frustum = new Frustum();
+        private boolean cullingEnabled = true;
+        private int objectsDrawn;
+        private int objectsCulled;
+        private int lastCulled = -1;
+        private long totalCulled;
+        // occlusion culling (Q): once the scene is drawn, each object's
+        // world box is drawn inside an occlusion query, and objects the
+        // last result found hidden are left out of the multi-draw.
+        private final OcclusionCuller occlusion = new OcclusionCuller(SCENE_ENTITIES);
+        private Program occlusionProgram;
+        private int boxVertexArray;
+        private boolean occlusionEnabled = false;
+        private final float[][] meshBoxes = new float[3][];
+        private final float[] occlusionBox = new float[6];
+        // the entities that passed the frustum test this frame.
+        private final int[] occlusionTests = new int[SCENE_ENTITIES];
+        private int occlusionTestCount;
+        private int occlusionQueries;
+        private int objectsOccluded;
+        private long trianglesOccluded;
+        private int lastOccluded = -1;
+        private long totalOccluded;
+        // the camera position in world space, for the occlusion tests.
+        private final float[] eye = new float[3];
+        // point lights (K cycles how many) circle the scene. Every frame
+        // ClusteredLights lists the ones that reach each cluster of the
+        // view frustum, and directional.frag only visits those, so the
+        // cost per fragment follows the lights nearby, not the total.
+        private static final int[] POINT_LIGHT_COUNTS = {0, 64, 256, 1024, 4096};
+        private static final int MAX_POINT_LIGHTS = 4096;
+        private volatile int pointLightCount = 1024;
+        // per light: orbit radius, height, angular speed and phase.
+        private final float[] pointLightOrbits = new float[MAX_POINT_LIGHTS * 4];
+        private final float[] pointLights = new float[MAX_POINT_LIGHTS * ClusteredLights.LIGHT_FLOATS];
+        private final ClusteredLights lightClusters = new ClusteredLights(16, 8, 24, 1.0f, 1000.0f);
+        private final FloatBuffer pointLightData = GLBuffers.newDirectFloatBuffer(pointLights.length);
+        private final IntBuffer lightGridData = GLBuffers.newDirectIntBuffer(lightClusters.clusterCount() * 2);
+        private IntBuffer lightIndexData = GLBuffers.newDirectIntBuffer(1 << 16);
+        // uniform locations, resolved once when the programs are linked.
+        private int modelMatrixLocation;
+        private int normalMatrixLocation;
+        private int positionScaleLocation;
+        private int positionOffsetLocation;
+        private int instancedScaleLocation;
+        private int instancedOffsetLocation;
+        private int boxMinLocation;
+        private int boxMaxLocation;
+        // the camera (view then projection) and lighting uniform blocks are
+        // only uploaded when something has changed them.
+        private final FloatBuffer cameraData = GLBuffers.newDirectFloatBuffer(32);
+        private final FloatBuffer lightingData = GLBuffers.newDirectFloatBuffer(24);
+        private boolean cameraDirty = true;
+        private boolean lightingDirty = true;
+        // the point light count in the lighting block. K changes
+        // pointLightCount on the event thread; display reads it once a
+        // frame and rewrites the block when the two differ.
+        private int lightingLightCount = -1;
         private boolean step = false;
 
         private float t = 0.0f;
 
+        // what the last frame sent to the GPU.
+        private int drawCalls;
+        private long trianglesDrawn;
+        // set while benchmarking: every frame waits for the GPU to finish.
+        private boolean finishFrames = false;
+        // T turns on per-phase CPU/GPU timing, the overlay and the CSV.
+        private static final String WINDOW_TITLE = "Graphics Project 2 - Nicholas Nassar";
+        private static final String PROFILE_CSV = "frame-profile.csv";
+        private final FrameProfiler profiler = new FrameProfiler(8);
+        private int scenePhase;
+        private int clearPhase;
+        private int uniformsPhase;
+        private int crowdPhase;
+        private int occlusionPhase;
+        private int lightsPhase;
+        private boolean profiling = false;
+        private volatile boolean profilingRequested = false;
+        private long lastTitleUpdate;
+        // models are read and packed on the loader threads and streamed to
+        // the GPU through a persistently mapped staging buffer, at most
+        // 4 MB a frame; each object is drawn as soon as its data is there.
+        private static final String[] MODEL_FILES = {"obj/cow.obj", "obj/cylinder.obj", "obj/coneProject2.obj"};
+        private ExecutorService loader;
+        private final List<CompletableFuture<PreparedMesh>> loads = new ArrayList<>();
+        private final PreparedMesh[] uploading = new PreparedMesh[3];
+        private final boolean[] ready = new boolean[3];
+        private final StagingUploader stagingUploader = new StagingUploader(1 << 20, 4, 4 << 20);
+        private long initNanos;
+        private boolean firstFrameShown = false;
+        // program binaries are cached here (see Program). R watches the
+        // shader directory and rebuilds the programs a changed file is
+        // part of; the new programs are swapped in between frames once the
+        // driver has linked them.
+        private static final String SHADER_DIRECTORY = "src/";
+        private static final String SHADER_CACHE = "shader-cache";
+        // GL_COMPLETION_STATUS_KHR from KHR_parallel_shader_compile.
+        private static final int COMPLETION_STATUS = 0x91B1;
+        // without it, frames to let a reload compile before asking for its
+        // link status, which waits for the driver to finish.
+        private static final int LINK_WAIT_FRAMES = 2;
+        private boolean parallelCompile;
+        // every program, set once in init; a reload rebuilds each in place.
+        private Program[] programs;
+        private WatchService shaderWatcher;
+        private final ConcurrentLinkedQueue<String> changedShaders = new ConcurrentLinkedQueue<>();
+
         private void setup() {
 
             GLProfile glProfile = GLProfile.get(GLProfile.GL4);
@@ -81,7 +324,7 @@ public class MovingObjectsDemo {
 
             window = GLWindow.create(glCapabilities);
 
-            window.setTitle("Graphics Project 2 - Nicholas Nassar");
+            window.setTitle(WINDOW_TITLE);
             window.setSize(600, 600);
 
             window.setContextCreationFlags(GLContext.CTX_OPTION_DEBUG);
@@ -89,6 +332,13 @@ public class MovingObjectsDemo {
 
             window.addGLEventListener(this);
             window.addKeyListener(this);
+            window.addMouseListener(new MouseAdapter() {
+                @Override
+                public void mouseClicked(MouseEvent e) {
+                    // picked on the rendering thread, which owns the BVHs.
+                    pickRequest.set(((long) e.getX() << 32) | (e.getY() & 0xffffffffL));
+                }
+            });
 
             animator = new Animator(window);
             animator.start();
@@ -102,30 +352,237 @@ public class MovingObjectsDemo {
             });
         }
 
+        /**
+         * Renders the scene into an offscreen framebuffer instead of a window, for a fixed
+         * number of frames with t advancing by the same step each frame, and prints timing
+         * statistics as JSON. No window system or GPU is needed: on a headless machine Mesa's
+         * llvmpipe provides the context.
+         *
+         * @param frames  -- frames to time
+         * @param warmup  -- frames rendered first and not timed
+         * @param width   -- framebuffer width
+         * @param height  -- framebuffer height
+         * @param crowd   -- "instanced" or "separate" to also draw the crowd, or null
+         * @param lights  -- the number of point lights, at most MAX_POINT_LIGHTS
+         * @return the statistics as a JSON object
+         */
+        public String benchmark(int frames, int warmup, int width, int height, String crowd, int lights) {
+            GLProfile glProfile = GLProfile.get(GLProfile.GL4);
+            GLCapabilities glCapabilities = new GLCapabilities(glProfile);
+            glCapabilities.setOnscreen(false);
+            glCapabilities.setFBO(true);
+            glCapabilities.setDepthBits(24);
+
+            GLOffscreenAutoDrawable drawable = GLDrawableFactory.getFactory(glProfile)
+                    .createOffscreenAutoDrawable(null, glCapabilities, null, width, height);
+            drawable.setContextCreationFlags(GLContext.CTX_OPTION_DEBUG);
+            drawable.addGLEventListener(this);
+            useInstanced = "instanced".equals(crowd);
+            separateDraws = "separate".equals(crowd);
+            pointLightCount = Math.max(0, Math.min(MAX_POINT_LIGHTS, lights));
+            finishFrames = true;
+            step = false;
+            try {
+                // the first display() also runs init() and reshape(). Every
+                // model is on the GPU before timing starts.
+                for (int i = 0; i < warmup || !loadsFinished(); i++) {
+                    drawable.display();
+                }
+                double[] milliseconds = new double[frames];
+                long totalDrawCalls = 0;
+                long totalTriangles = 0;
+                for (int i = 0; i < frames; i++) {
+                    long frameStart = System.nanoTime();
+                    drawable.display();
+                    milliseconds[i] = (System.nanoTime() - frameStart) / 1.0e6;
+                    totalDrawCalls += drawCalls;
+                    totalTriangles += trianglesDrawn;
+                }
+                return benchmarkJson(milliseconds, totalDrawCalls, totalTriangles, width, height, crowd);
+            } finally {
+                drawable.destroy();
+            }
+        }
+
+        private String benchmarkJson(double[] milliseconds, long totalDrawCalls, long totalTriangles, int width,
+                                     int height, String crowd) {
+            int frames = milliseconds.length;
+            double sum = 0.0;
+            for (double frame : milliseconds) {
+                sum += frame;
+            }
+            double[] sorted = milliseconds.clone();
+            java.util.Arrays.sort(sorted);
+            StringBuilder json = new StringBuilder();
+            json.append("{\"frames\": ").append(frames);
+            json.append(", \"width\": ").append(width).append(", \"height\": ").append(height);
+            json.append(", \"crowd\": ").append(crowd == null ? "null" : "\"" + crowd + "\"");
+            json.append(", \"vertexFormat\": \"").append(vertexLayout.format).append('"');
+            json.append(", \"interleaved\": ").append(vertexLayout.interleaved);
+            json.append(", \"pointLights\": ").append(pointLightCount);
+            json.append(", \"lod\": ").append(lodEnabled).append(", \"culling\": ").append(cullingEnabled);
+            json.append(String.format(java.util.Locale.ROOT,
+                    ", \"frameMs\": {\"mean\": %.4f, \"p50\": %.4f, \"p99\": %.4f, \"max\": %.4f}",
+                    frames == 0 ? 0.0 : sum / frames, percentile(sorted, 0.50), percentile(sorted, 0.99),
+                    frames == 0 ? 0.0 : sorted[frames - 1]));
+            json.append(", \"drawCallsPerFrame\": ").append(frames == 0 ? 0 : totalDrawCalls / frames);
+            json.append(", \"trianglesPerFrame\": ").append(frames == 0 ? 0 : totalTriangles / frames);
+            json.append(", \"totalDrawCalls\": ").append(totalDrawCalls);
+            json.append(", \"totalTriangles\": ").append(totalTriangles);
+            return json.append('}').toString();
+        }
+
+        /*
+         * Nearest-rank percentile of sorted values.
+         */
+        private double percentile(double[] sorted, double fraction) {
+            if (sorted.length == 0) {
+                return 0.0;
+            }
+            int rank = (int) Math.ceil(fraction * sorted.length);
+            return sorted[Math.max(rank, 1) - 1];
+        }
+
         @Override
         public void init(GLAutoDrawable drawable) {
 
             GL4 gl = drawable.getGL().getGL4();
 
-            initDebug(gl);
-            program = new Program(gl, "src/", "passthrough", "directional");
+            initNanos = System.nanoTime();
+            initDebug(drawable, gl);
+            parallelCompile = gl.isExtensionAvailable("GL_KHR_parallel_shader_compile")
+                    || gl.isExtensionAvailable("GL_ARB_parallel_shader_compile");
+            long programsStart = System.nanoTime();
+            program = new Program(gl, SHADER_DIRECTORY, "passthrough", "directional", "semantic");
+            sceneProgram = new Program(gl, SHADER_DIRECTORY, "multidraw", "directional", "semantic");
+            instancedProgram = new Program(gl, SHADER_DIRECTORY, "instanced", "directional", "semantic");
+            occlusionProgram = new Program(gl, SHADER_DIRECTORY, "occlusion", "occlusion", "semantic");
+            programs = new Program[] {program, sceneProgram, instancedProgram, occlusionProgram};
+            System.out.printf("programs ready in %.1f ms%n", (System.nanoTime() - programsStart) / 1.0e6);
+            lookUpUniforms();
+
+            // the cow runs along the figure eight; the cylinder and the
+            // cones stand either side of its crossing.
+            entities.setPath(entities.add(0, 0.0f, 0.0f, 0.0f, 0.0f, 1.0f), 5.0f, 5.0f, 1.0f, 0.0f);
+            entities.add(1, -2.0f, 0.0f, 0.0f, 0.0f, 1.0f);
+            entities.add(2, 2.0f, 0.0f, 0.0f, 0.0f, 1.0f);
 
-            rotationMatrix.glLoadIdentity();
             viewMatrix.glLoadIdentity();
             viewMatrix.gluLookAt(0.0f, 0.0f, 25.0f, 0.0f, 0.0f, 0.0f, 0.0f, 1.0f, 0.0f);
 
             projectionMatrix.glLoadIdentity();
-            projectionMatrix.gluPerspective(60.0f, 1.0f, 0.01f, 1000.0f);
-
+            projectionMatrix.gluPerspective(FIELD_OF_VIEW, 1.0f, NEAR_PLANE, 1000.0f);
+
+            clearPhase = profiler.phase("clear");
+            uniformsPhase = profiler.phase("uniforms");
+            scenePhase = profiler.phase("scene");
+            occlusionPhase = profiler.phase("occlusion");
+            lightsPhase = profiler.phase("lights");
+            placePointLights();
+            buildUniformBuffers(gl);
+            stagingUploader.init(gl, gpuMemory);
             buildObjects(gl);
+            // the boxes are made from gl_VertexID, but a vertex array must
+            // still be bound to draw.
+            boxVertexArray = gpuMemory.createVertexArray(gl, "occlusion boxes");
+            occlusion.init(gl);
+            crowdPhase = profiler.phase("crowd");
+            profiler.init(gl);
             gl.glEnable(GL_DEPTH_TEST);
             gl.glPolygonMode(gl.GL_FRONT_AND_BACK, gl.GL_FILL);
             start = System.currentTimeMillis();
         }
 
-        private void initDebug(GL4 gl) {
+        /*
+         * Resolve the uniform locations the draw code uses; called again
+         * whenever a program is reloaded.
+         */
+        private void lookUpUniforms() {
+            modelMatrixLocation = program.uniform("modelingMatrix");
+            normalMatrixLocation = program.uniform("normalMatrix");
+            positionScaleLocation = program.uniform("positionScale");
+            positionOffsetLocation = program.uniform("positionOffset");
+            instancedScaleLocation = instancedProgram.uniform("positionScale");
+            instancedOffsetLocation = instancedProgram.uniform("positionOffset");
+            boxMinLocation = occlusionProgram.uniform("boxMin");
+            boxMaxLocation = occlusionProgram.uniform("boxMax");
+        }
+
+        /*
+         * Start rebuilding the programs that use a changed shader file, and
+         * swap in any rebuilt program whose link has finished. Runs at the
+         * start of a frame, so a frame never mixes old and new programs.
+         */
+        private void reloadShaders(GL4 gl) {
+            for (String file = changedShaders.poll(); file != null; file = changedShaders.poll()) {
+                for (Program candidate : programs) {
+                    if (candidate.uses(file)) {
+                        candidate.reload(gl);
+                    }
+                }
+            }
+            boolean swapped = false;
+            for (Program candidate : programs) {
+                swapped |= candidate.poll(gl, parallelCompile);
+            }
+            if (swapped) {
+                // the blocks keep their bindings from semantic.glsl, so only
+                // the plain uniforms have to be found again.
+                lookUpUniforms();
+            }
+        }
+
+        /*
+         * Turn the shader directory watcher on or off. The watching thread
+         * only queues file names; reloadShaders does the GL work.
+         */
+        private void toggleShaderWatcher() {
+            if (shaderWatcher != null) {
+                try {
+                    shaderWatcher.close();
+                } catch (IOException e) {
+                    System.out.println("Could not stop watching shaders: " + e);
+                }
+                shaderWatcher = null;
+                System.out.println("shader hot reload off");
+                return;
+            }
+            try {
+                WatchService watcher = FileSystems.getDefault().newWatchService();
+                Paths.get(SHADER_DIRECTORY).register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY);
+                Thread thread = new Thread(() -> watchShaders(watcher), "shader watcher");
+                thread.setDaemon(true);
+                thread.start();
+                shaderWatcher = watcher;
+                System.out.println("shader hot reload on, watching " + SHADER_DIRECTORY);
+            } catch (IOException e) {
+                System.out.println("Could not watch " + SHADER_DIRECTORY + ": " + e);
+            }
+        }
 
-            window.getContext().addGLDebugListener(System.out::println);
+        private void watchShaders(WatchService watcher) {
+            try {
+                while (true) {
+                    WatchKey key = watcher.take();
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        String file = String.valueOf(event.context());
+                        if (file.endsWith(".vert") || file.endsWith(".frag") || file.endsWith(".glsl")) {
+                            if (!changedShaders.contains(file)) {
+                                changedShaders.add(file);
+                            }
+                        }
+                    }
+                    key.reset();
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                // stopped.
+            }
+        }
+
+        private void initDebug(GLAutoDrawable drawable, GL4 gl) {
+
+            drawable.getContext().addGLDebugListener(System.out::println);
             /*
              * sets up medium and high severity error messages to be printed.
              */
@@ -136,82 +593,593 @@ public class MovingObjectsDemo {
             gl.glDebugMessageControl(GL_DONT_CARE, GL_DONT_CARE, GL_DEBUG_SEVERITY_MEDIUM, 0, null, true);
         }
 
+        /*
+         * Creates the shared buffers, each exactly the size of the data it
+         * holds, and binds each to its binding point from semantic.glsl.
+         * The bindings are global state, so they only have to be made once.
+         */
+        private void buildUniformBuffers(GL4 gl) {
+            bufferName.put(Buffer.GLOBAL_MATRICES, gpuMemory.createBuffer(gl, "uniforms", "camera",
+                    GL_UNIFORM_BUFFER, cameraData.capacity() * 4L, null, GL_DYNAMIC_DRAW));
+            gl.glBindBufferBase(GL_UNIFORM_BUFFER, Semantic.Uniform.TRANSFORM0, bufferName.get(Buffer.GLOBAL_MATRICES));
+            bufferName.put(Buffer.LIGHTING, gpuMemory.createBuffer(gl, "uniforms", "lighting", GL_UNIFORM_BUFFER,
+                    lightingData.capacity() * 4L, null, GL_DYNAMIC_DRAW));
+            gl.glBindBufferBase(GL_UNIFORM_BUFFER, Semantic.Uniform.LIGHTING, bufferName.get(Buffer.LIGHTING));
+            bufferName.put(Buffer.DRAW_DATA, gpuMemory.createBuffer(gl, "draws", "draw data",
+                    GL4.GL_SHADER_STORAGE_BUFFER, drawData.capacity() * 4L, null, GL_DYNAMIC_DRAW));
+            gl.glBindBufferBase(GL4.GL_SHADER_STORAGE_BUFFER, Semantic.Uniform.DRAW_DATA,
+                    bufferName.get(Buffer.DRAW_DATA));
+            bufferName.put(Buffer.INDIRECT, gpuMemory.createBuffer(gl, "draws", "indirect commands",
+                    GL4.GL_DRAW_INDIRECT_BUFFER, drawCommands.capacity() * 4L, null, GL_DYNAMIC_DRAW));
+            bufferName.put(Buffer.POINT_LIGHTS, gpuMemory.createBuffer(gl, "lights", "point lights",
+                    GL4.GL_SHADER_STORAGE_BUFFER, pointLightData.capacity() * 4L, null, GL_DYNAMIC_DRAW));
+            gl.glBindBufferBase(GL4.GL_SHADER_STORAGE_BUFFER, Semantic.Uniform.POINT_LIGHTS,
+                    bufferName.get(Buffer.POINT_LIGHTS));
+            bufferName.put(Buffer.LIGHT_GRID, gpuMemory.createBuffer(gl, "lights", "light grid",
+                    GL4.GL_SHADER_STORAGE_BUFFER, lightGridData.capacity() * 4L, null, GL_DYNAMIC_DRAW));
+            gl.glBindBufferBase(GL4.GL_SHADER_STORAGE_BUFFER, Semantic.Uniform.LIGHT_GRID,
+                    bufferName.get(Buffer.LIGHT_GRID));
+            buildLightIndexBuffer(gl);
+        }
+
+        /*
+         * (Re)creates the light index list's buffer at the size of
+         * lightIndexData and binds it.
+         */
+        private void buildLightIndexBuffer(GL4 gl) {
+            bufferName.put(Buffer.LIGHT_INDICES, gpuMemory.createBuffer(gl, "lights", "light indices",
+                    GL4.GL_SHADER_STORAGE_BUFFER, lightIndexData.capacity() * 4L, null, GL_DYNAMIC_DRAW));
+            gl.glBindBufferBase(GL4.GL_SHADER_STORAGE_BUFFER, Semantic.Uniform.LIGHT_INDICES,
+                    bufferName.get(Buffer.LIGHT_INDICES));
+        }
+
+        /*
+         * Gives every point light its orbit around the scene and its
+         * colour. The orbits are spread with the golden angle, like the
+         * crowd, so the lights cover the disc evenly whatever their number.
+         */
+        private void placePointLights() {
+            for (int i = 0; i < MAX_POINT_LIGHTS; i++) {
+                float spread = (i + 0.5f) / MAX_POINT_LIGHTS;
+                pointLightOrbits[i * 4] = 16.0f * (float) Math.sqrt(spread);
+                pointLightOrbits[i * 4 + 1] = -3.0f + 6.0f * ((i * 0.618034f) % 1.0f);
+                pointLightOrbits[i * 4 + 2] = (i % 2 == 0 ? 1.0f : -1.0f) * (0.5f + (i * 0.381966f) % 1.0f);
+                pointLightOrbits[i * 4 + 3] = i * 2.3999632f;
+                int base = i * ClusteredLights.LIGHT_FLOATS;
+                pointLights[base + 3] = 1.5f + 2.0f * ((i * 0.7548777f) % 1.0f);
+                // a fully saturated hue at half intensity.
+                float hue = (i * 0.618034f * 6.0f) % 6.0f;
+                pointLights[base + 4] = 0.5f * Math.max(0.0f, Math.min(1.0f, Math.abs(hue - 3.0f) - 1.0f));
+                pointLights[base + 5] = 0.5f * Math.max(0.0f, Math.min(1.0f, 2.0f - Math.abs(hue - 2.0f)));
+                pointLights[base + 6] = 0.5f * Math.max(0.0f, Math.min(1.0f, 2.0f - Math.abs(hue - 4.0f)));
+            }
+        }
+
+        /*
+         * Moves the first count point lights along their orbits, assigns
+         * them to the view clusters and uploads the lights, the cluster
+         * grid and the light index list. The index buffer doubles when the
+         * list outgrows it.
+         */
+        private void updatePointLights(GL4 gl, int count) {
+            if (count == 0) {
+                return;
+            }
+            for (int i = 0; i < count; i++) {
+                float angle = pointLightOrbits[i * 4 + 3] + t * pointLightOrbits[i * 4 + 2];
+                int base = i * ClusteredLights.LIGHT_FLOATS;
+                pointLights[base] = pointLightOrbits[i * 4] * (float) Math.cos(angle);
+                pointLights[base + 1] = pointLightOrbits[i * 4 + 1];
+                pointLights[base + 2] = pointLightOrbits[i * 4] * (float) Math.sin(angle);
+            }
+            lightClusters.build(pointLights, count, viewing, projecting);
+
+            pointLightData.put(pointLights, 0, count * ClusteredLights.LIGHT_FLOATS).rewind();
+            gl.glBindBuffer(GL4.GL_SHADER_STORAGE_BUFFER, bufferName.get(Buffer.POINT_LIGHTS));
+            gl.glBufferSubData(GL4.GL_SHADER_STORAGE_BUFFER, 0L, count * ClusteredLights.LIGHT_FLOATS * 4L,
+                    pointLightData);
+            lightGridData.put(lightClusters.grid()).rewind();
+            gl.glBindBuffer(GL4.GL_SHADER_STORAGE_BUFFER, bufferName.get(Buffer.LIGHT_GRID));
+            gl.glBufferSubData(GL4.GL_SHADER_STORAGE_BUFFER, 0L, lightGridData.capacity() * 4L, lightGridData);
+            int indexCount = lightClusters.indexCount();
+            if (indexCount > lightIndexData.capacity()) {
+                gpuMemory.deleteBuffer(gl, bufferName.get(Buffer.LIGHT_INDICES));
+                lightIndexData = GLBuffers.newDirectIntBuffer(Math.max(indexCount, lightIndexData.capacity() * 2));
+                buildLightIndexBuffer(gl);
+            }
+            lightIndexData.put(lightClusters.indices(), 0, indexCount).rewind();
+            gl.glBindBuffer(GL4.GL_SHADER_STORAGE_BUFFER, bufferName.get(Buffer.LIGHT_INDICES));
+            gl.glBufferSubData(GL4.GL_SHADER_STORAGE_BUFFER, 0L, indexCount * 4L, lightIndexData);
+        }
+
+        /*
+         * Starts reading every model on the loader threads. Nothing is
+         * uploaded here: pollLoads picks each model up once it is ready, so
+         * the first frame does not wait for any of them.
+         */
         private void buildObjects(GL4 gl) {
-            // Object 1: Cow
-            OBJinfo obj = new OBJinfo();
-            obj.readOBJFile("obj/cow.obj");
-
-            FloatBuffer vertexBuffer = GLBuffers.newDirectFloatBuffer(obj.getVertexList());
-            FloatBuffer normalBuffer = GLBuffers.newDirectFloatBuffer(obj.getNormalList());
-
-            System.out.println("vertexBuffer Capacity = " + vertexBuffer.capacity() + "  normalBuffer Capacity = " + normalBuffer.capacity());
-            gl.glGenVertexArrays(3, vertexArrayName);
-            gl.glBindVertexArray(vertexArrayName.get(0));
-            gl.glGenBuffers(Buffer.MAX, bufferName);
-            gl.glBindBuffer(GL_ARRAY_BUFFER, bufferName.get(0));
-            gl.glBufferData(GL_ARRAY_BUFFER, (vertexBuffer.capacity() * 4 + normalBuffer.capacity()) * 3, null,
-                    GL_STATIC_DRAW);
-            gl.glBufferSubData(GL_ARRAY_BUFFER, 0L, vertexBuffer.capacity() * 4, vertexBuffer);
-            gl.glBufferSubData(GL_ARRAY_BUFFER, vertexBuffer.capacity() * 4, normalBuffer.capacity() * 4, normalBuffer);
-            nbrVertices[0] = vertexBuffer.capacity() / 4;
-            int vPosition = gl.glGetAttribLocation(program.name, "vPosition");
-            int vNormal = gl.glGetAttribLocation(program.name, "vNormal");
-            gl.glEnableVertexAttribArray(vPosition);
-            gl.glVertexAttribPointer(vPosition, 4, GL_FLOAT, false, 0, 0);
-            if (vNormal != -1) {
-                gl.glEnableVertexAttribArray(vNormal);
-                gl.glVertexAttribPointer(vNormal, 3, GL_FLOAT, false, 0, vertexBuffer.capacity() * 4);
-            }
-
-            // Object 2: Cylinder
-            OBJinfo cylinder = new OBJinfo();
-            cylinder.readOBJFile("obj/cylinder.obj");
-            vertexBuffer = GLBuffers.newDirectFloatBuffer(cylinder.getVertexList());
-            normalBuffer = GLBuffers.newDirectFloatBuffer(cylinder.getNormalList());
-
-            System.out.println("vertexBuffer Capacity = " + vertexBuffer.capacity() + "  normalBuffer Capacity = " + normalBuffer.capacity());
-
-            gl.glBindVertexArray(vertexArrayName.get(1));
-            gl.glBindBuffer(GL_ARRAY_BUFFER, bufferName.get(1));
-            gl.glBufferData(GL_ARRAY_BUFFER, (vertexBuffer.capacity() * 4 + normalBuffer.capacity()) * 3, null,
-                    GL_STATIC_DRAW);
-            gl.glBufferSubData(GL_ARRAY_BUFFER, 0L, vertexBuffer.capacity() * 4, vertexBuffer);
-            gl.glBufferSubData(GL_ARRAY_BUFFER, vertexBuffer.capacity() * 4, normalBuffer.capacity() * 4, normalBuffer);
-            nbrVertices[1] = vertexBuffer.capacity() / 4;
-            vPosition = gl.glGetAttribLocation(program.name, "vPosition");
-            vNormal = gl.glGetAttribLocation(program.name, "vNormal");
-            gl.glEnableVertexAttribArray(vPosition);
-            gl.glVertexAttribPointer(vPosition, 4, GL_FLOAT, false, 0, 0);
-            if (vNormal != -1) {
-                gl.glEnableVertexAttribArray(vNormal);
-                gl.glVertexAttribPointer(vNormal, 3, GL_FLOAT, false, 0, vertexBuffer.capacity() * 4);
-            }
-
-            // Object 3: Cones
-            OBJinfo cones = new OBJinfo();
-            cones.readOBJFile("obj/coneProject2.obj");
-            vertexBuffer = GLBuffers.newDirectFloatBuffer(cones.getVertexList());
-            normalBuffer = GLBuffers.newDirectFloatBuffer(cones.getNormalList());
-
-            System.out.println("vertexBuffer Capacity = " + vertexBuffer.capacity() + "  normalBuffer Capacity = " + normalBuffer.capacity());
-
-            gl.glBindVertexArray(vertexArrayName.get(2));
-            gl.glBindBuffer(GL_ARRAY_BUFFER, bufferName.get(2));
-            gl.glBufferData(GL_ARRAY_BUFFER, (vertexBuffer.capacity() * 4 + normalBuffer.capacity()) * 3, null,
-                    GL_STATIC_DRAW);
-            gl.glBufferSubData(GL_ARRAY_BUFFER, 0L, vertexBuffer.capacity() * 4, vertexBuffer);
-            gl.glBufferSubData(GL_ARRAY_BUFFER, vertexBuffer.capacity() * 4, normalBuffer.capacity() * 4, normalBuffer);
-            nbrVertices[2] = vertexBuffer.capacity() / 4;
-            vPosition = gl.glGetAttribLocation(program.name, "vPosition");
-            vNormal = gl.glGetAttribLocation(program.name, "vNormal");
-            gl.glEnableVertexAttribArray(vPosition);
-            gl.glVertexAttribPointer(vPosition, 4, GL_FLOAT, false, 0, 0);
-            if (vNormal != -1) {
-                gl.glEnableVertexAttribArray(vNormal);
-                gl.glVertexAttribPointer(vNormal, 3, GL_FLOAT, false, 0, vertexBuffer.capacity() * 4);
+            arena = new MeshArena(gpuMemory, vertexLayout, 1 << 16, 1 << 18, Semantic.Attr.POSITION,
+                    Semantic.Attr.NORMAL, Semantic.Attr.TEXCOORD, Semantic.Attr.DRAW_ID);
+            arena.init(gl, MAX_DRAWS);
+
+            loader = Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors() - 1),
+                    runnable -> {
+                        Thread thread = new Thread(runnable, "mesh loader");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+            loads.clear();
+            for (String filename : MODEL_FILES) {
+                loads.add(CompletableFuture.supplyAsync(
+                        () -> PreparedMesh.load(filename, optimizeMeshes, regenerateNormals, vertexLayout,
+                                LOD_LEVELS), loader));
             }
+        }
 
+        /*
+         * Called at the start of every frame: hands each model that has
+         * finished loading to buildObject, and keeps streaming the ones
+         * whose data is still on its way to the GPU. An object is drawn
+         * from the first frame after all of its data has been copied.
+         */
+        private void pollLoads(GL4 gl) {
+            stagingUploader.beginFrame();
+            for (int object = 0; object < loads.size(); object++) {
+                CompletableFuture<PreparedMesh> load = loads.get(object);
+                if (load != null && load.isDone()) {
+                    loads.set(object, null);
+                    try {
+                        buildObject(gl, object, load.join());
+                    } catch (CompletionException | CancellationException e) {
+                        System.out.println("Could not load " + MODEL_FILES[object] + ": "
+                                + (e.getCause() != null ? e.getCause() : e));
+                    }
+                }
+                PreparedMesh mesh = uploading[object];
+                MeshArena.Range range = meshRanges[object];
+                if (mesh != null && upload(gl, mesh, range)) {
+                    uploading[object] = null;
+                    ready[object] = true;
+                    System.out.printf("%s ready %.1f ms after init%n", MODEL_FILES[object],
+                            (System.nanoTime() - initNanos) / 1.0e6);
+                    reportMesh(mesh);
+                    if (object == 0) {
+                        buildInstances(gl);
+                    }
+                }
+            }
+            // once every model is in or has failed, over the ones that made it.
+            if (sceneBVH == null && loadsFinished()) {
+                sceneBVH = new SceneBVH(entities, meshBVH, 0, SCENE_ENTITIES);
+            }
+        }
 
+        /*
+         * What loading measured about a mesh: its size, the quantization
+         * error, each level of detail and its bounding volume hierarchy.
+         */
+        private void reportMesh(PreparedMesh mesh) {
+            System.out.println("  " + mesh.vertexCount + " vertices, " + mesh.lods.counts[0] / 3 + " triangles, "
+                    + mesh.layout);
+            if (mesh.layout.format != VertexQuantizer.Format.FLOAT) {
+                System.out.printf("  max position error %g, max normal error %.3f degrees, max uv error %g%n",
+                        mesh.maxPositionError, mesh.maxNormalErrorDegrees, mesh.maxTexCoordError);
+            }
+            for (int level = 0; level < mesh.lods.levelCount(); level++) {
+                System.out.println("  LOD " + level + ": " + mesh.lods.counts[level] / 3 + " triangles, error "
+                        + mesh.lods.errors[level]);
+            }
+            System.out.printf("  BVH: %d nodes in %.1f ms%n", mesh.bvh.nodeCount(), mesh.bvhMillis);
+        }
+
+        /*
+         * Streams as much of a mesh as the staging budget allows, vertex
+         * streams first. True once all of it has been sent.
+         */
+        private boolean upload(GL4 gl, PreparedMesh mesh, MeshArena.Range range) {
+            for (int stream = 0; stream < mesh.vertexData.length; stream++) {
+                if (!stagingUploader.upload(gl, mesh.vertexData[stream], arena.vertexBuffer(stream),
+                        arena.vertexOffset(range, stream))) {
+                    return false;
+                }
+            }
+            return stagingUploader.upload(gl, mesh.indexData, arena.indexBuffer(), arena.indexOffset(range));
+        }
+
+        /*
+         * True once every model has either been drawn or failed to load.
+         */
+        private boolean loadsFinished() {
+            for (int object = 0; object < loads.size(); object++) {
+                if (loads.get(object) != null || uploading[object] != null) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Finds room in the mesh arena for a mesh that has been read and
+         * packed on a loader thread (see PreparedMesh), and queues its
+         * positions, normals and indices for the staging uploader.
+         *
+         * @param gl     -- opengl context
+         * @param object -- index of the object
+         * @param mesh   -- the loaded mesh
+         */
+        private void buildObject(GL4 gl, int object, PreparedMesh mesh) {
+            if (mesh.vertexCount == 0 || mesh.indexCount == 0) {
+                System.out.println(MODEL_FILES[object] + " has no triangles");
+                return;
+            }
+            boundsMin[object] = mesh.boundsMin;
+            boundsMax[object] = mesh.boundsMax;
+            meshBoxes[object] = new float[] {mesh.boundsMin[0], mesh.boundsMin[1], mesh.boundsMin[2],
+                    mesh.boundsMax[0], mesh.boundsMax[1], mesh.boundsMax[2]};
+            boundingCenter[object] = mesh.boundingCenter;
+            boundingRadius[object] = mesh.boundingRadius;
+            meshBVH[object] = mesh.bvh;
+            positionScale[object] = mesh.positionScale;
+            positionOffset[object] = mesh.positionOffset;
+            lodChains[object] = mesh.lods;
+            meshRanges[object] = arena.allocate(gl, mesh.name, mesh.vertexCount, mesh.indexCount);
+            uploading[object] = mesh;
+        }
+
+        /**
+         * Adds the crowd to the entity store on a square grid below the
+         * scene, each cow turned by the golden angle from the last and
+         * trotting its own small figure eight, and makes the shader storage
+         * buffer their modeling matrices are streamed into every frame the
+         * crowd is shown.
+         *
+         * @param gl -- opengl context
+         */
+        private void buildInstances(GL4 gl) {
+            int side = (int) Math.ceil(Math.sqrt(INSTANCE_COUNT));
+            float spacing = 2.5f * boundingRadius[0];
+            float first = -0.5f * (side - 1) * spacing;
+            float stride = 0.25f * spacing;
+            for (int i = 0; i < INSTANCE_COUNT; i++) {
+                int cow = entities.add(0, first + (i % side) * spacing, -4.0f * boundingRadius[0],
+                        first + (i / side) * spacing, (float) Math.toDegrees(i * 2.3999632f), 1.0f);
+                entities.setPath(cow, stride, stride, 1.0f, i * 0.618034f);
+            }
+            entities.update(t, SCENE_ENTITIES, SCENE_ENTITIES + INSTANCE_COUNT);
+            long bvhStart = System.nanoTime();
+            crowdBVH = new SceneBVH(entities, meshBVH, SCENE_ENTITIES, SCENE_ENTITIES + INSTANCE_COUNT);
+            System.out.printf("crowd BVH built in %.1f ms%n", (System.nanoTime() - bvhStart) / 1.0e6);
+            bufferName.put(Buffer.MODEL_MATRIX, gpuMemory.createBuffer(gl, "instances", "crowd transforms",
+                    GL4.GL_SHADER_STORAGE_BUFFER, INSTANCE_COUNT * 64L, null, GL_DYNAMIC_DRAW));
+            gl.glBindBufferBase(GL4.GL_SHADER_STORAGE_BUFFER, Semantic.Uniform.TRANSFORM1,
+                    bufferName.get(Buffer.MODEL_MATRIX));
+        }
+
+        /**
+         * Adds one object to this frame's multi-draw unless its bounds are
+         * outside the view frustum, or occlusion culling is on and its last
+         * occlusion test found it hidden: an indirect command for its level
+         * of detail, and its matrices and position decoding in the per-draw
+         * data the vertex shader reads.
+         *
+         * @param entity -- the scene entity being drawn
+         * @param object -- the object to draw
+         * @param model  -- the object's modeling matrix
+         */
+        private void queueObject(int entity, int object, Matrix4 model) {
+            if (!ready[object]) {
+                return;
+            }
+            if (cullingEnabled && !frustum.intersects(model.m, boundsMin[object], boundsMax[object],
+                    boundingCenter[object], boundingRadius[object])) {
+                objectsCulled++;
+                occlusion.reset(entity);
+                return;
+            }
+            LodChain lods = lodChains[object];
+            int level = lodEnabled ? lods.selectLevel(pixelsPerUnit(object, model.m), LOD_PIXEL_ERROR) : 0;
+            if (occlusionEnabled) {
+                occlusionTests[occlusionTestCount++] = entity;
+                if (!occlusion.isVisible(entity)) {
+                    objectsOccluded++;
+                    trianglesOccluded += lods.counts[level] / 3;
+                    return;
+                }
+            }
+            objectsDrawn++;
+            MeshArena.Range range = meshRanges[object];
+            int draw = sceneDraws++;
+            // count, instanceCount, firstIndex, baseVertex, baseInstance --
+            // the base instance is the draw's DRAW_ID.
+            drawCommands.position(draw * 5);
+            drawCommands.put(lods.counts[level]).put(1).put(range.firstIndex + lods.offsets[level])
+                    .put(range.baseVertex).put(draw);
+            float[] scale = positionScale[object];
+            float[] offset = positionOffset[object];
+            drawData.position(draw * DRAW_FLOATS);
+            drawData.put(model.m).put(model.normalMatrix(normalMatrix).m);
+            drawData.put(scale).put(0.0f).put(offset).put(0.0f);
+            sceneTriangles += lods.counts[level] / 3;
+        }
+
+        /*
+         * Draws every queued object with one call.
+         */
+        private void drawScene(GL4 gl) {
+            beginPhase(gl, scenePhase);
+            if (sceneDraws > 0) {
+                gl.glBindBuffer(GL4.GL_DRAW_INDIRECT_BUFFER, bufferName.get(Buffer.INDIRECT));
+                gl.glBufferSubData(GL4.GL_DRAW_INDIRECT_BUFFER, 0L, sceneDraws * 5 * 4L, drawCommands.rewind());
+                gl.glBindBuffer(GL4.GL_SHADER_STORAGE_BUFFER, bufferName.get(Buffer.DRAW_DATA));
+                gl.glBufferSubData(GL4.GL_SHADER_STORAGE_BUFFER, 0L, sceneDraws * DRAW_FLOATS * 4L,
+                        drawData.rewind());
+                gl.glBindVertexArray(arena.vertexArray());
+                gl.glMultiDrawElementsIndirect(GL_TRIANGLES, GL_UNSIGNED_INT, 0L, sceneDraws, 0);
+                drawCalls++;
+                trianglesDrawn += sceneTriangles;
+            }
+            endPhase(gl, scenePhase);
+        }
+
+        /*
+         * Tests the world box of every object that passed the frustum test
+         * against the depth buffer the scene has just filled, with colour
+         * and depth writes off. An object whose box contains the camera
+         * would have its nearest faces clipped away, so it is not tested and
+         * counts as visible.
+         */
+        private void testOcclusion(GL4 gl) {
+            beginPhase(gl, occlusionPhase);
+            gl.glUseProgram(occlusionProgram.name);
+            gl.glBindVertexArray(boxVertexArray);
+            gl.glColorMask(false, false, false, false);
+            gl.glDepthMask(false);
+            gl.glDepthFunc(GL_LEQUAL);
+            for (int i = 0; i < occlusionTestCount; i++) {
+                int entity = occlusionTests[i];
+                if (!occlusion.canTest(entity)) {
+                    continue;
+                }
+                SceneBVH.transformBox(entities.transforms, entity * 16, meshBoxes[entities.mesh[entity]],
+                        occlusionBox, 0);
+                if (containsEye(occlusionBox)) {
+                    occlusion.reset(entity);
+                    continue;
+                }
+                gl.glUniform3fv(boxMinLocation, 1, occlusionBox, 0);
+                gl.glUniform3fv(boxMaxLocation, 1, occlusionBox, 3);
+                occlusion.begin(gl, entity);
+                gl.glDrawArrays(GL_TRIANGLES, 0, 36);
+                occlusion.end(gl, entity);
+                occlusionQueries++;
+            }
+            gl.glDepthFunc(GL_LESS);
+            gl.glDepthMask(true);
+            gl.glColorMask(true, true, true, true);
+            gl.glUseProgram(sceneProgram.name);
+            endPhase(gl, occlusionPhase);
+        }
+
+        /*
+         * True if the camera is inside a world box, or so close to it that
+         * the near plane could cut into it.
+         */
+        private boolean containsEye(float[] box) {
+            float margin = orthographic ? ORTHO_HEIGHT * 0.5f : NEAR_PLANE;
+            for (int axis = 0; axis < 3; axis++) {
+                if (eye[axis] < box[axis] - margin || eye[axis] > box[axis + 3] + margin) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void beginPhase(GL4 gl, int phase) {
+            if (profiling) {
+                profiler.begin(gl, phase);
+            }
+        }
+
+        private void endPhase(GL4 gl, int phase) {
+            if (profiling) {
+                profiler.end(gl, phase);
+            }
+        }
+
+        /*
+         * Finish the profiled frame: collect old query results, draw the
+         * overlay, and show the averages in the title once a second.
+         */
+        private void finishProfiledFrame(GL4 gl) {
+            profiler.endFrame(gl);
+            profiler.drawOverlay(gl, viewportWidth, viewportHeight);
+            long now = System.nanoTime();
+            if (window != null && now - lastTitleUpdate >= 1000000000L) {
+                window.setTitle(WINDOW_TITLE + " | " + profiler.summary());
+                lastTitleUpdate = now;
+            }
+        }
+
+        /**
+         * Moves the crowd along its paths, then draws it, either with a
+         * single instanced call whose vertex shader reads each copy's matrix
+         * from the storage buffer, or with one glDrawElements (and two
+         * uniform uploads) per cow. The
+         * whole crowd uses one level of detail -- the coarsest when LOD is
+         * on, since most of it is far away -- so both modes draw the same
+         * triangles.
+         *
+         * @param gl -- opengl context
+         */
+        private void drawInstances(GL4 gl) {
+            LodChain lods = lodChains[0];
+            MeshArena.Range range = meshRanges[0];
+            int level = lodEnabled ? lods.levelCount() - 1 : 0;
+            long offset = (range.firstIndex + lods.offsets[level]) * 4L;
+            entities.update(t, SCENE_ENTITIES, SCENE_ENTITIES + INSTANCE_COUNT);
+            crowdBVH.refit();
+            gl.glBindVertexArray(arena.vertexArray());
+            if (useInstanced) {
+                crowdData.clear();
+                crowdData.put(entities.transforms, SCENE_ENTITIES * 16, INSTANCE_COUNT * 16).flip();
+                gl.glBindBuffer(GL4.GL_SHADER_STORAGE_BUFFER, bufferName.get(Buffer.MODEL_MATRIX));
+                gl.glBufferSubData(GL4.GL_SHADER_STORAGE_BUFFER, 0L, INSTANCE_COUNT * 64L, crowdData);
+                gl.glBindBuffer(GL4.GL_SHADER_STORAGE_BUFFER, 0);
+                gl.glUseProgram(instancedProgram.name);
+                gl.glUniform3fv(instancedScaleLocation, 1, positionScale[0], 0);
+                gl.glUniform3fv(instancedOffsetLocation, 1, positionOffset[0], 0);
+                gl.glDrawElementsInstancedBaseVertexBaseInstance(GL_TRIANGLES, lods.counts[level], GL_UNSIGNED_INT,
+                        offset, INSTANCE_COUNT, range.baseVertex, 0);
+                drawCalls++;
+            } else {
+                gl.glUseProgram(program.name);
+                gl.glUniform3fv(positionScaleLocation, 1, positionScale[0], 0);
+                gl.glUniform3fv(positionOffsetLocation, 1, positionOffset[0], 0);
+                for (int i = 0; i < INSTANCE_COUNT; i++) {
+                    int base = (SCENE_ENTITIES + i) * 16;
+                    gl.glUniformMatrix4fv(modelMatrixLocation, 1, false, entities.transforms, base);
+                    gl.glUniformMatrix4fv(normalMatrixLocation, 1, false, entities.transforms, base);
+                    gl.glDrawElementsBaseVertex(GL_TRIANGLES, lods.counts[level], GL_UNSIGNED_INT, offset,
+                            range.baseVertex);
+                }
+                drawCalls += INSTANCE_COUNT;
+            }
+            gl.glUseProgram(sceneProgram.name);
+            trianglesDrawn += (long) lods.counts[level] / 3 * INSTANCE_COUNT;
+        }
+
+        /*
+         * Print when the cow starts or stops touching the cylinder or the
+         * cones: the scene BVH finds what the cow's box overlaps, then
+         * collide looks at the triangles.
+         */
+        private void reportCollisions() {
+            collisionCandidates.clear();
+            sceneBVH.overlapping(0, collisionCandidates);
+            for (int other = 1; other < SCENE_ENTITIES; other++) {
+                boolean now = false;
+                for (int i = 0; i < collisionCandidates.size(); i++) {
+                    if (collisionCandidates.get(i) == other) {
+                        now = sceneBVH.collide(0, other);
+                    }
+                }
+                if (now != touching[other]) {
+                    touching[other] = now;
+                    System.out.println("cow " + (now ? "runs into " : "clears ")
+                            + PreparedMesh.nameOf(MODEL_FILES[entities.mesh[other]]));
+                }
+            }
+        }
+
+        /**
+         * Casts a ray from the eye through a window position and prints the
+         * nearest triangle it hits, in the scene or, while it is drawn, the
+         * crowd. The ray runs from the near plane to the far plane, found by
+         * taking the position back through the inverse of projection *
+         * viewing.
+         *
+         * @param x -- window x, from the left
+         * @param y -- window y, from the top
+         */
+        private void pick(int x, int y) {
+            if (sceneBVH == null) {
+                return;
+            }
+            pickProjection.set(projecting, 0);
+            pickView.set(viewing, 0);
+            pickInverse.invert(pickView.multiply(pickProjection, pickView));
+            float ndcX = 2.0f * x / viewportWidth - 1.0f;
+            float ndcY = 1.0f - 2.0f * y / viewportHeight;
+            unproject(ndcX, ndcY, -1.0f, pickNear);
+            unproject(ndcX, ndcY, 1.0f, pickFar);
+            float dx = pickFar[0] - pickNear[0], dy = pickFar[1] - pickNear[1], dz = pickFar[2] - pickNear[2];
+
+            long start = System.nanoTime();
+            pickHit.reset(1.0f);
+            sceneBVH.raycast(pickNear[0], pickNear[1], pickNear[2], dx, dy, dz, pickHit);
+            if ((useInstanced || separateDraws) && crowdBVH != null) {
+                crowdBVH.raycast(pickNear[0], pickNear[1], pickNear[2], dx, dy, dz, pickHit);
+            }
+            double micros = (System.nanoTime() - start) / 1.0e3;
+            if (pickHit.found()) {
+                System.out.printf("picked %s %d, triangle %d, %.2f from the near plane (%.1f us)%n",
+                        PreparedMesh.nameOf(MODEL_FILES[entities.mesh[pickHit.entity]]), pickHit.entity,
+                        pickHit.triangle, pickHit.distance * (float) Math.sqrt(dx * dx + dy * dy + dz * dz), micros);
+            } else {
+                System.out.printf("picked nothing (%.1f us)%n", micros);
+            }
+        }
+
+        /*
+         * Take a normalized device coordinate back to world space through
+         * pickInverse.
+         */
+        private void unproject(float x, float y, float z, float[] world) {
+            float[] m = pickInverse.m;
+            float w = m[3] * x + m[7] * y + m[11] * z + m[15];
+            for (int i = 0; i < 3; i++) {
+                world[i] = (m[i] * x + m[4 + i] * y + m[8 + i] * z + m[12 + i]) / w;
+            }
+        }
+
+        /*
+         * Average the time from the start of display() until the GPU has
+         * finished the frame, and print it every two seconds while the
+         * crowd is shown.
+         */
+        private void reportFrameTime(long frameStart) {
+            frameNanos += System.nanoTime() - frameStart;
+            framesTimed++;
+            long now = System.nanoTime();
+            if (now - lastFrameReport >= 2000000000L) {
+                System.out.printf("crowd of %d cows, %s: %.3f ms per frame over %d frames%n", INSTANCE_COUNT,
+                        useInstanced ? "1 instanced draw" : INSTANCE_COUNT + " draws",
+                        frameNanos / 1.0e6 / framesTimed, framesTimed);
+                frameNanos = 0;
+                framesTimed = 0;
+                lastFrameReport = now;
+            }
+        }
+
+        /*
+         * Report the culling counters whenever the number of culled objects
+         * changes, so the console is not flooded every frame.
+         */
+        private void reportCulling() {
+            totalCulled += objectsCulled;
+            if (objectsCulled != lastCulled) {
+                System.out.println("culling: " + objectsDrawn + " drawn, " + objectsCulled + " of "
+                        + (objectsDrawn + objectsCulled + objectsOccluded) + " culled (" + totalCulled
+                        + " culled in total)");
+                lastCulled = objectsCulled;
+            }
+            totalOccluded += objectsOccluded;
+            if (occlusionEnabled && objectsOccluded != lastOccluded) {
+                System.out.println("occlusion: " + objectsOccluded + " of " + occlusionTestCount
+                        + " draws skipped (" + trianglesOccluded + " triangles), " + occlusionQueries
+                        + " queries issued (" + totalOccluded + " skipped in total)");
+                lastOccluded = objectsOccluded;
+            }
+        }
+
+        /*
+         * How many pixels one model unit of the object covers at the point
+         * of its bounding sphere nearest the camera. Matrices are column
+         * major.
+         */
+        private float pixelsPerUnit(int object, float[] model) {
+            float scale = (float) Math.sqrt(model[0] * model[0] + model[1] * model[1] + model[2] * model[2]);
+            if (orthographic) {
+                return viewportHeight / ORTHO_HEIGHT * scale;
+            }
+            float[] c = boundingCenter[object];
+            float wx = model[0] * c[0] + model[4] * c[1] + model[8] * c[2] + model[12];
+            float wy = model[1] * c[0] + model[5] * c[1] + model[9] * c[2] + model[13];
+            float wz = model[2] * c[0] + model[6] * c[1] + model[10] * c[2] + model[14];
+            float depth = -(viewing[2] * wx + viewing[6] * wy + viewing[10] * wz + viewing[14]);
+            float distance = Math.max(depth - boundingRadius[object] * scale, 0.01f);
+            float tanHalfFov = (float) Math.tan(Math.toRadians(FIELD_OF_VIEW * 0.5));
+            return viewportHeight / (2.0f * distance * tanHalfFov) * scale;
         }
 
         @Override
@@ -227,95 +1195,178 @@ public class MovingObjectsDemo {
 
             GL4 gl = drawable.getGL().getGL4();
 
+            long frameStart = System.nanoTime();
+            long allocatedBefore = measureAllocations ? AllocationMeter.allocatedBytes() : 0L;
+            if (profiling != profilingRequested) {
+                // switched here rather than in keyPressed so the CSV is only
+                // touched from the rendering thread.
+                profiling = profilingRequested;
+                if (profiling) {
+                    profiler.startCsv(PROFILE_CSV);
+                    System.out.println("profiling to " + PROFILE_CSV);
+                } else {
+                    profiler.stopCsv();
+                    if (window != null) {
+                        window.setTitle(WINDOW_TITLE);
+                    }
+                }
+            }
+            pollLoads(gl);
+            reloadShaders(gl);
+            occlusion.collect(gl);
+            if (memoryReportRequested) {
+                memoryReportRequested = false;
+                System.out.print(gpuMemory.report());
+                System.out.print(arena.report());
+            }
+            beginPhase(gl, clearPhase);
             gl.glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT);
-            gl.glUseProgram(program.name);
-            setupDirectedLights(gl);
-
-            gl.glBindVertexArray(vertexArrayName.get(0));
-            gl.glBindBuffer(GL_ARRAY_BUFFER, bufferName.get(0));
-            int modelMatrixLocation = gl.glGetUniformLocation(program.name, "modelingMatrix");
-            gl.glUniformMatrix4fv(modelMatrixLocation, 1, false, rotationMatrix.glGetMatrixf());
-            int viewMatrixLocation = gl.glGetUniformLocation(program.name, "viewingMatrix");
-            gl.glUniformMatrix4fv(viewMatrixLocation, 1, false, viewMatrix.glGetMatrixf());
-            int projectionMatrixLocation = gl.glGetUniformLocation(program.name, "projectionMatrix");
-            gl.glUniformMatrix4fv(projectionMatrixLocation, 1, false, projectionMatrix.glGetMatrixf());
-            int normalMatrixLocation = gl.glGetUniformLocation(program.name, "normalMatrix");
-            PMVMatrix scale = new PMVMatrix();
-            scale.glScalef(1.0f, 1.0f, 1.0f);
-            PMVMatrix translateMatrix = new PMVMatrix();
-            gl.glBindVertexArray(vertexArrayName.get(0));
-            gl.glBindBuffer(GL_ARRAY_BUFFER, bufferName.get(0));
+            endPhase(gl, clearPhase);
+            beginPhase(gl, uniformsPhase);
+            gl.glUseProgram(sceneProgram.name);
+            // one read, so the lighting block and the lights agree.
+            int lights = pointLightCount;
+            if (lightingDirty || lights != lightingLightCount) {
+                setupDirectedLights(gl, lights);
+            }
+            if (cameraDirty) {
+                updateCamera(gl);
+            }
+            endPhase(gl, uniformsPhase);
+            beginPhase(gl, lightsPhase);
+            updatePointLights(gl, lights);
+            endPhase(gl, lightsPhase);
+            objectsDrawn = 0;
+            objectsCulled = 0;
+            drawCalls = 0;
+            trianglesDrawn = 0;
+            sceneDraws = 0;
+            sceneTriangles = 0;
+            occlusionTestCount = 0;
+            occlusionQueries = 0;
+            objectsOccluded = 0;
+            trianglesOccluded = 0;
 
             // call function to move object (increment t)
             if (!step) {
                 moveAlongLine();
             }
 
-            // set of parametric equations. deltaY is unneeded since
-            // we are not doing any sort of motion on the Y axis.
-            float deltaX = (float) (5.0 * Math.sin(t + (Math.PI / 2)));
-            float deltaZ = (float) (5.0 * Math.sin(t * 2));
-
-            translateMatrix.glTranslatef(deltaX, 0.0f, deltaZ);
-            PMVMatrix trsMatrix = new PMVMatrix();
-            trsMatrix.glLoadIdentity();
-            trsMatrix.glMultMatrixf(rotationMatrix.glGetMatrixf());
-            trsMatrix.glMultMatrixf(scale.glGetMatrixf());
-            trsMatrix.glMultMatrixf(translateMatrix.glGetMatrixf());
-            gl.glUniformMatrix4fv(normalMatrixLocation, 1, false, trsMatrix.glGetMvitMatrixf());
-            gl.glUniformMatrix4fv(modelMatrixLocation, 1, false, trsMatrix.glGetMatrixf());
-            gl.glDrawArrays(GL_TRIANGLES, 0, nbrVertices[0]);
-
-            // Draw Cylinder
-            gl.glBindVertexArray(vertexArrayName.get(1));
-            gl.glBindBuffer(GL_ARRAY_BUFFER, bufferName.get(1));
-            PMVMatrix cylinderTranslate = new PMVMatrix();
-            cylinderTranslate.glTranslatef(-2.0f, 0.0f, 0.0f);
-            PMVMatrix cylindersMatrix = new PMVMatrix();
-            cylindersMatrix.glLoadIdentity();
-            cylindersMatrix.glMultMatrixf(cylinderTranslate.glGetMatrixf());
-            gl.glUniformMatrix4fv(normalMatrixLocation, 1, false, cylindersMatrix.glGetMvitMatrixf());
-            gl.glUniformMatrix4fv(modelMatrixLocation, 1, false, cylindersMatrix.glGetMatrixf());
-            gl.glDrawArrays(GL_TRIANGLES, 0, nbrVertices[1]);
-
-            // draw cones, projected at 2, 0, 0
-            gl.glBindVertexArray(vertexArrayName.get(2));
-            gl.glBindBuffer(GL_ARRAY_BUFFER, bufferName.get(2));
-            PMVMatrix conesTranslate = new PMVMatrix();
-            conesTranslate.glTranslatef(2.0f, 0.0f, 0.0f);
-            PMVMatrix conestrsMatrix = new PMVMatrix();
-            conestrsMatrix.glLoadIdentity();
-            conestrsMatrix.glMultMatrixf(conesTranslate.glGetMatrixf());
-            gl.glUniformMatrix4fv(normalMatrixLocation, 1, false, conestrsMatrix.glGetMvitMatrixf());
-            gl.glUniformMatrix4fv(modelMatrixLocation, 1, false, conestrsMatrix.glGetMatrixf());
-            gl.glDrawArrays(GL_TRIANGLES, 0, nbrVertices[2]);
+            // evaluate everyone's path at t: base * rotation * scale * path offset
+            int turn = cowTurn.getAndSet(0);
+            if (turn != 0) {
+                entities.turn(0, turn);
+            }
+            entities.update(t, 0, SCENE_ENTITIES);
+            if (sceneBVH != null) {
+                sceneBVH.refit();
+                reportCollisions();
+            }
+
+            for (int i = 0; i < SCENE_ENTITIES; i++) {
+                entityMatrix.set(entities.transforms, i * 16, entities.type(i));
+                queueObject(i, entities.mesh[i], entityMatrix);
+            }
+
+            drawScene(gl);
+            if (occlusionEnabled) {
+                testOcclusion(gl);
+            }
+            reportCulling();
+
+            if ((useInstanced || separateDraws) && ready[0]) {
+                beginPhase(gl, crowdPhase);
+                drawInstances(gl);
+                endPhase(gl, crowdPhase);
+                // wait for the GPU so the frame time covers its work too.
+                gl.glFinish();
+                reportFrameTime(frameStart);
+            } else if (finishFrames) {
+                gl.glFinish();
+            }
+            long click = pickRequest.getAndSet(-1L);
+            if (click != -1L) {
+                pick((int) (click >> 32), (int) click);
+            }
+            if (profiling) {
+                finishProfiledFrame(gl);
+            }
+            if (measureAllocations) {
+                reportAllocations(AllocationMeter.allocatedBytes() - allocatedBefore);
+            }
+            if (!firstFrameShown) {
+                firstFrameShown = true;
+                System.out.printf("first frame %.1f ms after init%n", (System.nanoTime() - initNanos) / 1.0e6);
+            }
+        }
+
+        /*
+         * Sum what display() allocates and print it every 600 frames. In the
+         * steady state (no keys pressed, no crowd timing) it should be zero.
+         */
+        private void reportAllocations(long bytes) {
+            bytesAllocated += bytes;
+            if (++framesMeasured == 600) {
+                System.out.println("display() allocated " + bytesAllocated + " bytes in " + framesMeasured
+                        + " frames");
+                bytesAllocated = 0;
+                framesMeasured = 0;
+            }
+        }
+
+        /*
+         * Upload the viewing and projection matrices into the camera
+         * uniform block and move the culling frustum with them.
+         */
+        private void updateCamera(GL4 gl) {
+            // absolute reads: glGetMatrixf hands out the matrix's own
+            // buffer, and a relative get would leave it at its limit.
+            viewMatrix.glGetMatrixf().get(0, viewing);
+            projectionMatrix.glGetMatrixf().get(0, projecting);
+            // the eye is -R^T t for a viewing matrix with rotation R and
+            // translation t.
+            for (int axis = 0; axis < 3; axis++) {
+                eye[axis] = -(viewing[axis * 4] * viewing[12] + viewing[axis * 4 + 1] * viewing[13]
+                        + viewing[axis * 4 + 2] * viewing[14]);
+            }
+            cameraData.put(viewing).put(projecting).rewind();
+            gl.glBindBuffer(GL_UNIFORM_BUFFER, bufferName.get(Buffer.GLOBAL_MATRICES));
+            gl.glBufferSubData(GL_UNIFORM_BUFFER, 0L, cameraData.capacity() * 4L, cameraData);
+            frustum.update(projecting, viewing);
+            cameraDirty = false;
         }
 
         /**
          * This method sets up the lighting information for the directed lights
-         * for this application.
+         * for this application. The values go into the lighting uniform block,
+         * laid out as std140 (see directional.frag), which every program shares.
          *
-         * @param gl -- opengl context
+         * @param gl     -- opengl context
+         * @param lights -- the number of point lights
          */
-        private void setupDirectedLights(GL4 gl) {
-            int ambientLightLocation = gl.glGetUniformLocation(program.name, "ambientLight");
-            int lightDirectionLocation = gl.glGetUniformLocation(program.name, "lightDirection");
-            int lightColorLocation = gl.glGetUniformLocation(program.name, "lightColor");
-            int shininessLocation = gl.glGetUniformLocation(program.name, "shininess");
-            int strengthLocation = gl.glGetUniformLocation(program.name, "strength");
-            int halfVectorLocation = gl.glGetUniformLocation(program.name, "halfVector");
+        private void setupDirectedLights(GL4 gl, int lights) {
             float[] ambientLight = {0.4f, 0.4f, 0.4f};
             float[] lightDirection = {0.0f, 0.7071f, 0.7071f};
             float[] lightColor = {0.5f, 0.5f, 0.5f};
             float[] halfVector = {0.0f, 0.45514f, 0.9240f};
             float strength = 1.0f;
             float shininess = 25.0f;
-            gl.glUniform1f(shininessLocation, shininess);
-            gl.glUniform1f(strengthLocation, strength);
-            gl.glUniform3f(halfVectorLocation, halfVector[0], halfVector[1], halfVector[2]);
-            gl.glUniform3f(lightColorLocation, lightColor[0], lightColor[1], lightColor[2]);
-            gl.glUniform3f(lightDirectionLocation, lightDirection[0], lightDirection[1], lightDirection[2]);
-            gl.glUniform3f(ambientLightLocation, ambientLight[0], ambientLight[1], ambientLight[2]);
+            lightingData.put(ambientLight).put(shininess);
+            lightingData.put(lightDirection).put(strength);
+            lightingData.put(lightColor).put(0.0f);
+            lightingData.put(halfVector).put(0.0f);
+            // the cluster counts are a uvec4: their int bits go in as is.
+            lightingData.put(Float.intBitsToFloat(lightClusters.tilesX))
+                    .put(Float.intBitsToFloat(lightClusters.tilesY))
+                    .put(Float.intBitsToFloat(lightClusters.slices))
+                    .put(Float.intBitsToFloat(lights));
+            lightingData.put(viewportWidth).put(viewportHeight).put(lightClusters.near)
+                    .put(lightClusters.slicesPerLog);
+            lightingData.rewind();
+            gl.glBindBuffer(GL_UNIFORM_BUFFER, bufferName.get(Buffer.LIGHTING));
+            gl.glBufferSubData(GL_UNIFORM_BUFFER, 0L, lightingData.capacity() * 4L, lightingData);
+            lightingDirty = false;
+            lightingLightCount = lights;
         }
 
         @Override
@@ -332,6 +1383,10 @@ public class MovingObjectsDemo {
 
             GL4 gl = drawable.getGL().getGL4();
             gl.glViewport(x, y, width, height);
+            viewportWidth = width;
+            viewportHeight = height;
+            // the clusters are found from window coordinates.
+            lightingDirty = true;
         }
 
         @Override
@@ -342,9 +1397,28 @@ public class MovingObjectsDemo {
         public void dispose(GLAutoDrawable drawable) {
             GL4 gl = drawable.getGL().getGL4();
 
-            gl.glDeleteProgram(program.name);
-            gl.glDeleteVertexArrays(1, vertexArrayName);
-            gl.glDeleteBuffers(Buffer.MAX, bufferName);
+            loader.shutdownNow();
+            if (shaderWatcher != null) {
+                toggleShaderWatcher();
+            }
+            program.delete(gl);
+            instancedProgram.delete(gl);
+            sceneProgram.delete(gl);
+            occlusionProgram.delete(gl);
+            occlusion.dispose(gl);
+            gpuMemory.deleteVertexArray(gl, boxVertexArray);
+            profiler.dispose(gl);
+            stagingUploader.dispose(gl);
+            arena.dispose(gl);
+            for (int buffer = 0; buffer < Buffer.MAX; buffer++) {
+                if (bufferName.get(buffer) != 0) {
+                    gpuMemory.deleteBuffer(gl, bufferName.get(buffer));
+                    bufferName.put(buffer, 0);
+                }
+            }
+            if (gpuMemory.dispose(gl) == 0) {
+                System.out.println("GPU memory: no leaks, peak " + gpuMemory.peakBytes() + " bytes");
+            }
         }
 
         @Override
@@ -361,26 +1435,71 @@ public class MovingObjectsDemo {
                     window.destroy();
                 }).start();
             } else if (keyCode == KeyEvent.VK_RIGHT) {
-                rotationMatrix.glRotatef(10.0f, 0.0f, 1.0f, 0.0f);
+                cowTurn.addAndGet(10);
             } else if (keyCode == KeyEvent.VK_LEFT) {
-                rotationMatrix.glRotatef(-10.0f, 0.0f, 1.0f, 0.0f);
+                cowTurn.addAndGet(-10);
             } else if (keyCode == KeyEvent.VK_X) {
                 viewMatrix.glLoadIdentity();
                 viewMatrix.gluLookAt(25.0f, 0.0f, 0.0f, 0.0f, 0.0f, 0.0f, 0.0f, 1.0f, 0.0f);
+                cameraDirty = true;
             } else if (keyCode == KeyEvent.VK_Z) {
                 viewMatrix.glLoadIdentity();
                 viewMatrix.gluLookAt(0.0f, 0.0f, 25.0f, 0.0f, 0.0f, 0.0f, 0.0f, 1.0f, 0.0f);
+                cameraDirty = true;
             } else if (keyCode == KeyEvent.VK_Y) {
                 viewMatrix.glLoadIdentity();
                 viewMatrix.gluLookAt(0.0f, 25.0f, 0.0f, 0.0f, 0.0f, 0.0f, 0.0f, 0.0f, 1.0f);
+                cameraDirty = true;
             } else if (keyCode == KeyEvent.VK_O) {
                 projectionMatrix.glLoadIdentity();
                 projectionMatrix.glOrthof(-100.0f, 100.0f, -100.0f, 100.0f, -100.0f, 100.0f);
+                orthographic = true;
+                cameraDirty = true;
             } else if (keyCode == KeyEvent.VK_P) {
                 projectionMatrix.glLoadIdentity();
-                projectionMatrix.gluPerspective(60.0f, 1.0f, 0.01f, 1000.0f);
+                projectionMatrix.gluPerspective(FIELD_OF_VIEW, 1.0f, NEAR_PLANE, 1000.0f);
+                orthographic = false;
+                cameraDirty = true;
+            } else if (keyCode == KeyEvent.VK_L) {
+                lodEnabled = !lodEnabled;
+            } else if (keyCode == KeyEvent.VK_K) {
+                int next = 0;
+                for (int count : POINT_LIGHT_COUNTS) {
+                    if (count > pointLightCount) {
+                        next = count;
+                        break;
+                    }
+                }
+                pointLightCount = next;
+                System.out.println(next + " point lights");
+            } else if (keyCode == KeyEvent.VK_R) {
+                toggleShaderWatcher();
+            } else if (keyCode == KeyEvent.VK_G) {
+                memoryReportRequested = true;
+            } else if (keyCode == KeyEvent.VK_T) {
+                profilingRequested = !profilingRequested;
+            } else if (keyCode == KeyEvent.VK_M) {
+                if (AllocationMeter.isSupported()) {
+                    measureAllocations = !measureAllocations;
+                    bytesAllocated = 0;
+                    framesMeasured = 0;
+                } else {
+                    System.out.println("this JVM cannot measure thread allocations");
+                }
+            } else if (keyCode == KeyEvent.VK_F) {
+                cullingEnabled = !cullingEnabled;
+                System.out.println("frustum culling " + (cullingEnabled ? "on" : "off"));
+            } else if (keyCode == KeyEvent.VK_Q) {
+                occlusionEnabled = !occlusionEnabled;
+                System.out.println("occlusion culling " + (occlusionEnabled ? "on" : "off"));
             } else if (keyCode == KeyEvent.VK_I) {
                 useInstanced = !useInstanced;
+                separateDraws = false;
+                startFrameTiming();
+            } else if (keyCode == KeyEvent.VK_U) {
+                separateDraws = !separateDraws;
+                useInstanced = false;
+                startFrameTiming();
                 //step and continous modes added
             } else if (keyCode == KeyEvent.VK_S) {
                 //step through one at a time
@@ -392,6 +1511,12 @@ public class MovingObjectsDemo {
             }
         }
 
+        private void startFrameTiming() {
+            frameNanos = 0;
+            framesTimed = 0;
+            lastFrameReport = System.nanoTime();
+        }
+
         // Moves object on the plane
         public void moveAlongLine() {
             t = t + 0.01f;
@@ -410,28 +1535,328 @@ public class MovingObjectsDemo {
          *
          * I think we will rewrite this one to do a few other things before the class is
          * over. Right now it works.
+         *
+         * The include (e.g. semantic) names a .glsl file in the same directory that is
+         * inserted after the #version line of both shaders. The locations of all active
+         * uniforms are looked up once after linking so drawing never has to ask the
+         * driver for them.
+         *
+         * Linked programs are saved with glGetProgramBinary in SHADER_CACHE, keyed by a
+         * hash of the sources and the driver's vendor, renderer and version strings, and
+         * later launches load them with glProgramBinary. If the driver rejects a binary
+         * (a driver update, say) the sources are compiled as usual.
+         *
+         * reload starts compiling the sources again without waiting for the result; poll
+         * swaps the new program in once it has linked, so a broken edit keeps the old
+         * program running.
          */
         private class Program {
 
             public int name = 0;
+            private final Map<String, Integer> uniformLocations = new HashMap<>();
+            private final String root;
+            private final String vertex;
+            private final String fragment;
+            private final String include;
+            // a reload that is still compiling, and its cache key.
+            private int pending = 0;
+            private String pendingKey;
+            private int pendingFrames;
+            private final int[] status = new int[1];
+
+            public Program(GL4 gl, String root, String vertex, String fragment, String include) {
+                this.root = root;
+                this.vertex = vertex;
+                this.fragment = fragment;
+                this.include = include;
+                String[] sources;
+                try {
+                    sources = readSources();
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Could not read the shaders of " + this, e);
+                }
+                String key = cacheKey(gl, sources);
+                name = loadBinary(gl, key);
+                if (name == 0) {
+                    name = compile(gl, sources);
+                    if (linked(gl, name)) {
+                        saveBinary(gl, name, key);
+                    }
+                }
+                cacheUniformLocations(gl);
+            }
 
-            public Program(GL4 gl, String root, String vertex, String fragment) {
+            /**
+             * @param file -- name of a file in the shader directory
+             * @return true if this program is built from the file
+             */
+            public boolean uses(String file) {
+                return file.equals(vertex + ".vert") || file.equals(fragment + ".frag")
+                        || file.equals(include + ".glsl");
+            }
 
-                ShaderCode vertShader = ShaderCode.create(gl, GL_VERTEX_SHADER, this.getClass(), root, null, vertex,
-                        "vert", null, true);
-                ShaderCode fragShader = ShaderCode.create(gl, GL_FRAGMENT_SHADER, this.getClass(), root, null, fragment,
-                        "frag", null, true);
+            /**
+             * Starts building the program again from its sources. Any reload still in
+             * progress is abandoned.
+             *
+             * @param gl -- opengl context
+             */
+            public void reload(GL4 gl) {
+                try {
+                    String[] sources = readSources();
+                    if (pending != 0) {
+                        gl.glDeleteProgram(pending);
+                    }
+                    pending = compile(gl, sources);
+                    pendingKey = cacheKey(gl, sources);
+                    pendingFrames = 0;
+                } catch (IOException e) {
+                    System.out.println("Could not reload " + this + ": " + e);
+                }
+            }
 
-                ShaderProgram shaderProgram = new ShaderProgram();
+            /**
+             * Swaps in a reloaded program if it has finished linking. With parallel
+             * shader compilation this never waits for the driver. Without it the link
+             * status can only be had by waiting, so it is not asked for until
+             * LINK_WAIT_FRAMES frames after the reload, giving a driver that compiles
+             * in the background the chance to finish first; one that compiles on the
+             * calling thread finished in reload.
+             *
+             * @param gl       -- opengl context
+             * @param parallel -- true if the driver can report completion without blocking
+             * @return true if the program changed, so its uniform locations must be looked
+             * up again
+             */
+            public boolean poll(GL4 gl, boolean parallel) {
+                if (pending == 0) {
+                    return false;
+                }
+                if (parallel) {
+                    gl.glGetProgramiv(pending, COMPLETION_STATUS, status, 0);
+                    if (status[0] == GL_FALSE) {
+                        return false;
+                    }
+                } else if (pendingFrames++ < LINK_WAIT_FRAMES) {
+                    return false;
+                }
+                int program = pending;
+                pending = 0;
+                if (!linked(gl, program)) {
+                    gl.glDeleteProgram(program);
+                    System.out.println("kept the old " + this);
+                    return false;
+                }
+                gl.glDeleteProgram(name);
+                name = program;
+                uniformLocations.clear();
+                cacheUniformLocations(gl);
+                saveBinary(gl, name, pendingKey);
+                System.out.println("reloaded " + this);
+                return true;
+            }
 
-                shaderProgram.add(vertShader);
-                shaderProgram.add(fragShader);
+            public void delete(GL4 gl) {
+                if (pending != 0) {
+                    gl.glDeleteProgram(pending);
+                    pending = 0;
+                }
+                gl.glDeleteProgram(name);
+            }
+
+            @Override
+            public String toString() {
+                return vertex + "/" + fragment;
+            }
 
-                shaderProgram.init(gl);
+            private String[] readSources() throws IOException {
+                String included = read(include + ".glsl");
+                return new String[]{insertAfterVersion(read(vertex + ".vert"), included),
+                        insertAfterVersion(read(fragment + ".frag"), included)};
+            }
 
-                name = shaderProgram.program();
+            private String read(String file) throws IOException {
+                return new String(Files.readAllBytes(Paths.get(root, file)), StandardCharsets.UTF_8);
+            }
 
-                shaderProgram.link(gl, System.err);
+            private String insertAfterVersion(String source, String included) {
+                int version = source.indexOf("#version");
+                int end = version < 0 ? -1 : source.indexOf('\n', version);
+                if (end < 0) {
+                    return included + "\n" + source;
+                }
+                return source.substring(0, end + 1) + included + "\n" + source.substring(end + 1);
+            }
+
+            /*
+             * Compiles both shaders and starts linking. Nothing here asks for a
+             * status, so a driver with parallel compilation can do the work on its own
+             * threads; the shaders' logs are printed when linking fails.
+             */
+            private int compile(GL4 gl, String[] sources) {
+                int program = gl.glCreateProgram();
+                int[] shaders = {shader(gl, GL_VERTEX_SHADER, sources[0]), shader(gl, GL_FRAGMENT_SHADER, sources[1])};
+                for (int shader : shaders) {
+                    gl.glAttachShader(program, shader);
+                }
+                gl.glProgramParameteri(program, GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GL_TRUE);
+                gl.glLinkProgram(program);
+                for (int shader : shaders) {
+                    // deleted once the program is, so the logs stay readable until then.
+                    gl.glDeleteShader(shader);
+                }
+                return program;
+            }
+
+            private int shader(GL4 gl, int type, String source) {
+                int shader = gl.glCreateShader(type);
+                gl.glShaderSource(shader, 1, new String[]{source}, new int[]{source.length()}, 0);
+                gl.glCompileShader(shader);
+                return shader;
+            }
+
+            private boolean linked(GL4 gl, int program) {
+                gl.glGetProgramiv(program, GL_LINK_STATUS, status, 0);
+                if (status[0] == GL_TRUE) {
+                    return true;
+                }
+                int[] shaders = new int[2];
+                int[] count = new int[1];
+                gl.glGetAttachedShaders(program, 2, count, 0, shaders, 0);
+                for (int i = 0; i < count[0]; i++) {
+                    gl.glGetShaderiv(shaders[i], GL_COMPILE_STATUS, status, 0);
+                    if (status[0] == GL_FALSE) {
+                        System.err.println(this + " shader did not compile:");
+                        System.err.println(infoLog(gl, shaders[i], true));
+                    }
+                }
+                System.err.println(this + " did not link:");
+                System.err.println(infoLog(gl, program, false));
+                return false;
+            }
+
+            private String infoLog(GL4 gl, int object, boolean shader) {
+                int[] length = new int[1];
+                if (shader) {
+                    gl.glGetShaderiv(object, GL_INFO_LOG_LENGTH, length, 0);
+                } else {
+                    gl.glGetProgramiv(object, GL_INFO_LOG_LENGTH, length, 0);
+                }
+                byte[] log = new byte[Math.max(length[0], 1)];
+                if (shader) {
+                    gl.glGetShaderInfoLog(object, log.length, length, 0, log, 0);
+                } else {
+                    gl.glGetProgramInfoLog(object, log.length, length, 0, log, 0);
+                }
+                return new String(log, 0, length[0], StandardCharsets.UTF_8);
+            }
+
+            private String cacheKey(GL4 gl, String[] sources) {
+                try {
+                    MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                    for (String text : new String[]{sources[0], sources[1], gl.glGetString(GL_VENDOR),
+                            gl.glGetString(GL_RENDERER), gl.glGetString(GL_VERSION)}) {
+                        digest.update(String.valueOf(text).getBytes(StandardCharsets.UTF_8));
+                        digest.update((byte) 0);
+                    }
+                    StringBuilder key = new StringBuilder();
+                    for (byte b : digest.digest()) {
+                        key.append(String.format("%02x", b));
+                    }
+                    return key.toString();
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+
+            private Path cacheFile(String key) {
+                return Paths.get(SHADER_CACHE, vertex + "-" + fragment + "-" + key.substring(0, 16) + ".bin");
+            }
+
+            /*
+             * The file holds the full key, the binary format and the binary.
+             * Returns 0 if there is no usable binary.
+             */
+            private int loadBinary(GL4 gl, String key) {
+                Path file = cacheFile(key);
+                if (!Files.isRegularFile(file)) {
+                    return 0;
+                }
+                try {
+                    ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(file));
+                    byte[] storedKey = new byte[in.getInt()];
+                    in.get(storedKey);
+                    if (!key.equals(new String(storedKey, StandardCharsets.US_ASCII))) {
+                        return 0;
+                    }
+                    int format = in.getInt();
+                    ByteBuffer binary = GLBuffers.newDirectByteBuffer(in.remaining());
+                    binary.put(in).flip();
+                    int program = gl.glCreateProgram();
+                    gl.glProgramBinary(program, format, binary, binary.remaining());
+                    gl.glGetProgramiv(program, GL_LINK_STATUS, status, 0);
+                    if (status[0] == GL_TRUE) {
+                        System.out.println("loaded " + this + " from " + file);
+                        return program;
+                    }
+                    gl.glDeleteProgram(program);
+                    System.out.println("the driver rejected " + file + "; compiling " + this);
+                } catch (IOException | RuntimeException e) {
+                    System.out.println("Could not read " + file + ": " + e);
+                }
+                return 0;
+            }
+
+            private void saveBinary(GL4 gl, int program, String key) {
+                int[] length = new int[1];
+                int[] format = new int[1];
+                gl.glGetProgramiv(program, GL_PROGRAM_BINARY_LENGTH, length, 0);
+                if (length[0] == 0) {
+                    return; // the driver has no binary formats.
+                }
+                ByteBuffer binary = GLBuffers.newDirectByteBuffer(length[0]);
+                gl.glGetProgramBinary(program, length[0], length, 0, format, 0, binary);
+                byte[] keyBytes = key.getBytes(StandardCharsets.US_ASCII);
+                ByteBuffer out = ByteBuffer.allocate(8 + keyBytes.length + length[0]);
+                out.putInt(keyBytes.length).put(keyBytes).putInt(format[0]);
+                binary.limit(length[0]);
+                out.put(binary);
+                Path file = cacheFile(key);
+                try {
+                    Files.createDirectories(file.getParent());
+                    Files.write(file, out.array());
+                } catch (IOException e) {
+                    System.out.println("Could not write " + file + ": " + e);
+                }
+            }
+
+            private void cacheUniformLocations(GL4 gl) {
+                int[] count = new int[1];
+                int[] maxLength = new int[1];
+                gl.glGetProgramiv(name, GL_ACTIVE_UNIFORMS, count, 0);
+                gl.glGetProgramiv(name, GL_ACTIVE_UNIFORM_MAX_LENGTH, maxLength, 0);
+                byte[] uniformName = new byte[Math.max(maxLength[0], 1)];
+                int[] length = new int[1];
+                int[] size = new int[1];
+                int[] type = new int[1];
+                for (int i = 0; i < count[0]; i++) {
+                    gl.glGetActiveUniform(name, i, uniformName.length, length, 0, size, 0, type, 0, uniformName, 0);
+                    String key = new String(uniformName, 0, length[0], StandardCharsets.US_ASCII);
+                    // members of uniform blocks have no location.
+                    int location = gl.glGetUniformLocation(name, key);
+                    if (location != -1) {
+                        uniformLocations.put(key.endsWith("[0]") ? key.substring(0, key.length() - 3) : key,
+                                location);
+                    }
+                }
+            }
+
+            /**
+             * @param uniform -- name of a uniform in the program
+             * @return the uniform's location, or -1 if the program has no such active uniform
+             */
+            public int uniform(String uniform) {
+                return uniformLocations.getOrDefault(uniform, -1);
             }
         }
 
@@ -496,13 +1921,57 @@ public class MovingObjectsDemo {
     }
 
     /**
-     * @param args
+     * @param args -- nothing to open the window, or --benchmark to render offscreen and
+     *             print frame statistics as JSON. The benchmark takes --frames N (default
+     *             600), --warmup N (default 60), --width N and --height N (default 600),
+     *             --crowd instanced|separate, --lights N (default 1024) and --output file.
      */
-    public static void main(String[] args) {
-        // TODO Auto-generated method stub
+    public static void main(String[] args) throws IOException {
         MovingObjectsDemo myInstance = new MovingObjectsDemo();
         HelloTriangleSimple example = myInstance.new HelloTriangleSimple();
-        example.main(args);
+        if (args.length == 0 || !args[0].equals("--benchmark")) {
+            example.main(args);
+            return;
+        }
+        int frames = 600;
+        int warmup = 60;
+        int width = 600;
+        int height = 600;
+        String crowd = null;
+        int lights = 1024;
+        String output = null;
+        for (int i = 1; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--frames":
+                    frames = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--warmup":
+                    warmup = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--width":
+                    width = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--height":
+                    height = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--crowd":
+                    crowd = args[i + 1];
+                    break;
+                case "--lights":
+                    lights = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--output":
+                    output = args[i + 1];
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown benchmark option " + args[i]);
+            }
+        }
+        String json = example.benchmark(frames, Math.max(warmup, 1), width, height, crowd, lights);
+        System.out.println(json);
+        if (output != null) {
+            Files.write(Paths.get(output), (json + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+        }
     }
 
 }
@@ -0,0 +1,634 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Byte level tokenizer for Wavefront OBJ files.
+ *
+ * This replaces the Scanner / String.split version that used to live in
+ * OBJinfo.  Lines are never turned into Strings -- the keyword is matched
+ * on the raw bytes and numbers are parsed in place straight into
+ * primitive lists.  Only numbers that cannot be converted exactly by the
+ * fast path (very long mantissas, large exponents, nan/inf) fall back to
+ * Float.parseFloat so the results are bit for bit the same as before.
+ *
+ * <P>
+ * Faces are stored the way OBJinfo has always stored them: six ints per
+ * triangle, the three 1-based vertex indices followed by the three
+ * 1-based normal indices; larger polygons are split into triangles as
+ * they are read.  The 1-based texture coordinate indices are
+ * kept separately in triangleTextures, three per triangle, with 0 for
+ * corners that have none.  Corners written without a normal get normal
+ * index 0; MeshNormals fills those in after the file is read.  The
+ * smoothing group in effect for each triangle is kept in triangleGroups:
+ * 0 after "s off" or "s 0", and 1 for faces before any s directive.
+ */
+final class OBJParser {
+
+	/*
+	 * Powers of ten that are exactly representable as floats.  A mantissa
+	 * below 2^24 multiplied or divided by one of these is correctly
+	 * rounded by IEEE arithmetic, which is what Float.parseFloat produces.
+	 */
+	private static final float[] FLOAT_POW10 = { 1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f,
+			1e10f };
+	private static final int MAX_EXACT_MANTISSA = 1 << 24;
+
+	private static final int RELATIVE_VERTEX = 1, RELATIVE_NORMAL = 2, RELATIVE_TEXTURE = 4;
+
+	final FloatList vertices;
+	final FloatList normals;
+	final FloatList texture;
+	final IntList triangles;
+	final IntList triangleTextures;
+	final IntList triangleGroups;
+
+	/*
+	 * Axis aligned bounds of every vertex read so far.
+	 */
+	final float[] min = { Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE };
+	final float[] max = { -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE };
+
+	/*
+	 * Positions in triangles whose index was written relative to this
+	 * parser's own vertex/normal counts.  Only kept for chunks of a file
+	 * that is parsed in pieces (see ParallelOBJLoader); append() shifts
+	 * them once the number of vertices in the earlier chunks is known.
+	 */
+	private final IntList relativeVertices;
+	private final IntList relativeNormals;
+	private final IntList relativeTextures;
+
+	/*
+	 * The smoothing group of the next face, and the first triangle whose
+	 * group came from an s directive in this parser (-1 if there was
+	 * none).  A chunk cannot know the group in effect where it starts, so
+	 * append() gives its earlier triangles the group the previous chunk
+	 * ended with.
+	 */
+	private int smoothingGroup = 1;
+	private int firstGroupedTriangle = -1;
+
+	/*
+	 * Vertices, normals and texture coordinates read before the last
+	 * discard(), so relative indices keep resolving against the whole
+	 * file.
+	 */
+	private int vertexBase;
+	private int normalBase;
+	private int textureBase;
+
+	/*
+	 * Scan position shared by the number readers so no per-line cursor
+	 * object is needed.
+	 */
+	private int cursor;
+
+	/*
+	 * The corners of the face being read: vertex, normal and texture
+	 * index and the RELATIVE_ bits of each, grown for large polygons.
+	 */
+	private int[] face = new int[4 * 8];
+
+	/**
+	 * Create a parser with empty lists sized for a small model.
+	 */
+	OBJParser() {
+		this(1000);
+	}
+
+	/**
+	 * Create a parser with empty lists.
+	 *
+	 * @param initialCapacity  number of floats/ints to reserve in each list.
+	 */
+	OBJParser(int initialCapacity) {
+		this(initialCapacity, false);
+	}
+
+	/**
+	 * Create a parser with empty lists.
+	 *
+	 * @param initialCapacity  number of floats/ints to reserve in each list.
+	 * @param chunk            true if this parser only sees part of a file,
+	 *                         so negative indices must be fixed up later.
+	 */
+	OBJParser(int initialCapacity, boolean chunk) {
+		vertices = new FloatList(initialCapacity);
+		normals = new FloatList(initialCapacity);
+		texture = new FloatList(initialCapacity);
+		triangles = new IntList(initialCapacity);
+		triangleTextures = new IntList(initialCapacity / 2);
+		triangleGroups = new IntList(initialCapacity / 6);
+		relativeVertices = chunk ? new IntList(16) : null;
+		relativeNormals = chunk ? new IntList(16) : null;
+		relativeTextures = chunk ? new IntList(16) : null;
+	}
+
+	/**
+	 * Read a whole stream.  The stream is consumed in fixed size blocks;
+	 * a line that straddles two blocks is moved to the front of the buffer
+	 * before the next read so no line is ever copied more than once.
+	 *
+	 * @param in  the stream to read.  It is not closed.
+	 * @throws IOException  if the stream cannot be read.
+	 */
+	void parse(InputStream in) throws IOException {
+		parseBlocks(in::read, null);
+	}
+
+	/**
+	 * Read a whole stream, running a callback after each block.  The
+	 * callback may take what the block added to the lists and discard()
+	 * it, so a file of any size can be read in a fixed amount of memory.
+	 *
+	 * @param in          the stream to read.  It is not closed.
+	 * @param blockDone   run after every block's complete lines.
+	 * @throws IOException  if the stream cannot be read, or the callback
+	 *                      throws it.
+	 */
+	void parse(InputStream in, BlockListener blockDone) throws IOException {
+		parseBlocks(in::read, blockDone);
+	}
+
+	/**
+	 * Something to run between blocks.
+	 */
+	interface BlockListener {
+		void blockParsed() throws IOException;
+	}
+
+	/**
+	 * Empty every list, remembering how many vertices, normals and texture
+	 * coordinates they held so that relative indices in later lines still
+	 * resolve.  The bounds are kept.
+	 */
+	void discard() {
+		vertexBase += vertices.size() / 3;
+		normalBase += normals.size() / 3;
+		textureBase += texture.size() / 2;
+		vertices.clear();
+		normals.clear();
+		texture.clear();
+		triangles.clear();
+		triangleTextures.clear();
+		triangleGroups.clear();
+	}
+
+	/**
+	 * Read the remaining bytes of a buffer, typically a memory-mapped
+	 * region of the file.  The buffer's position is advanced to its limit.
+	 *
+	 * @param source  the bytes to parse.
+	 * @throws IOException  if a mapped file cannot be read.
+	 */
+	void parse(ByteBuffer source) throws IOException {
+		parseBlocks((buffer, offset, length) -> {
+			int count = Math.min(length, source.remaining());
+			if (count == 0) {
+				return -1;
+			}
+			source.get(buffer, offset, count);
+			return count;
+		}, null);
+	}
+
+	/*
+	 * Anything that can fill a byte array the way InputStream.read does.
+	 */
+	private interface BlockSource {
+		int read(byte[] buffer, int offset, int length) throws IOException;
+	}
+
+	private void parseBlocks(BlockSource source, BlockListener blockDone) throws IOException {
+		byte[] buffer = new byte[1 << 16];
+		int filled = 0;
+		int read;
+		while ((read = source.read(buffer, filled, buffer.length - filled)) != -1) {
+			filled += read;
+			int consumed = parseLines(buffer, 0, filled, false);
+			filled -= consumed;
+			if (blockDone != null) {
+				blockDone.blockParsed();
+			}
+			if (filled > 0) {
+				if (consumed == 0 && filled == buffer.length) {
+					// a single line longer than the buffer.
+					byte[] larger = new byte[buffer.length * 2];
+					System.arraycopy(buffer, 0, larger, 0, filled);
+					buffer = larger;
+				} else {
+					System.arraycopy(buffer, consumed, buffer, 0, filled);
+				}
+			}
+		}
+		parseLines(buffer, 0, filled, true);
+		if (blockDone != null) {
+			blockDone.blockParsed();
+		}
+	}
+
+	/**
+	 * Append the results of a parser that read the next chunk of the same
+	 * file.  Positive indices are already file-global; indices the chunk
+	 * resolved from negative (relative) references are shifted by the
+	 * number of vertices and normals this parser holds.  The chunk's
+	 * triangles ahead of its first s directive take the smoothing group
+	 * this parser ended with.
+	 *
+	 * @param chunk  the parser for the following chunk.
+	 */
+	void append(OBJParser chunk) {
+		int vertexOffset = vertices.size() / 3;
+		int normalOffset = normals.size() / 3;
+		int textureOffset = texture.size() / 2;
+		int triangleBase = triangles.size();
+		int textureBase = triangleTextures.size();
+		vertices.addAll(chunk.vertices);
+		for (int axis = 0; axis < 3; axis++) {
+			min[axis] = Math.min(min[axis], chunk.min[axis]);
+			max[axis] = Math.max(max[axis], chunk.max[axis]);
+		}
+		normals.addAll(chunk.normals);
+		texture.addAll(chunk.texture);
+		triangles.addAll(chunk.triangles);
+		triangleTextures.addAll(chunk.triangleTextures);
+		int groupBase = triangleGroups.size();
+		triangleGroups.addAll(chunk.triangleGroups);
+		int ungrouped = chunk.firstGroupedTriangle < 0 ? chunk.triangleGroups.size() : chunk.firstGroupedTriangle;
+		for (int i = 0; i < ungrouped; i++) {
+			triangleGroups.set(groupBase + i, smoothingGroup);
+		}
+		if (chunk.firstGroupedTriangle >= 0) {
+			smoothingGroup = chunk.smoothingGroup;
+			if (firstGroupedTriangle < 0) {
+				firstGroupedTriangle = groupBase + chunk.firstGroupedTriangle;
+			}
+		}
+		if (chunk.relativeVertices != null) {
+			for (int i = 0; i < chunk.relativeVertices.size(); i++) {
+				int slot = triangleBase + chunk.relativeVertices.get(i);
+				triangles.set(slot, triangles.get(slot) + vertexOffset);
+			}
+			for (int i = 0; i < chunk.relativeNormals.size(); i++) {
+				int slot = triangleBase + chunk.relativeNormals.get(i);
+				triangles.set(slot, triangles.get(slot) + normalOffset);
+			}
+			for (int i = 0; i < chunk.relativeTextures.size(); i++) {
+				int slot = textureBase + chunk.relativeTextures.get(i);
+				triangleTextures.set(slot, triangleTextures.get(slot) + textureOffset);
+			}
+		}
+	}
+
+	/**
+	 * Parse every complete line in a region of a byte array.
+	 *
+	 * @param buffer      bytes holding the OBJ text.
+	 * @param start       first byte of the region.
+	 * @param end         one past the last byte of the region.
+	 * @param endOfInput  true if the last line may be unterminated.
+	 * @return  the number of bytes consumed.  Without endOfInput an
+	 *          unterminated trailing line is left for the next call.
+	 */
+	int parseLines(byte[] buffer, int start, int end, boolean endOfInput) {
+		int lineStart = start;
+		for (int i = start; i < end; i++) {
+			if (buffer[i] == '\n') {
+				parseLine(buffer, lineStart, i);
+				lineStart = i + 1;
+			}
+		}
+		if (endOfInput && lineStart < end) {
+			parseLine(buffer, lineStart, end);
+			lineStart = end;
+		}
+		return lineStart - start;
+	}
+
+	/**
+	 * Look at the first token in the line and hand the rest of the line to
+	 * the matching "process" method.  Comments, groups, objects and
+	 * material directives are skipped.
+	 */
+	private void parseLine(byte[] line, int start, int end) {
+		int pos = skipBlanks(line, start, end);
+		if (pos == end || line[pos] == '#') {
+			return; // blank line or comment.
+		}
+		int keywordEnd = tokenEnd(line, pos, end);
+		int keywordLength = keywordEnd - pos;
+		if (line[pos] == 'v') {
+			if (keywordLength == 1) {
+				processVertex(line, keywordEnd, end);
+			} else if (keywordLength == 2 && line[pos + 1] == 'n') {
+				processVertexNormal(line, keywordEnd, end);
+			} else if (keywordLength == 2 && line[pos + 1] == 't') {
+				processTextureCoordinate(line, keywordEnd, end);
+			}
+		} else if (line[pos] == 'f' && keywordLength == 1) {
+			processFace(line, start, keywordEnd, end);
+		} else if (line[pos] == 's' && keywordLength == 1) {
+			processSmoothing(line, keywordEnd, end);
+		}
+		// Unknown -- skip it for now.
+	}
+
+	private void processVertex(byte[] line, int pos, int end) {
+		cursor = pos;
+		float x = nextFloat(line, end);
+		float y = nextFloat(line, end);
+		float z = nextFloat(line, end);
+		vertices.add(x, y, z);
+		if (x < min[0]) {
+			min[0] = x;
+		}
+		if (x > max[0]) {
+			max[0] = x;
+		}
+		if (y < min[1]) {
+			min[1] = y;
+		}
+		if (y > max[1]) {
+			max[1] = y;
+		}
+		if (z < min[2]) {
+			min[2] = z;
+		}
+		if (z > max[2]) {
+			max[2] = z;
+		}
+	}
+
+	private void processVertexNormal(byte[] line, int pos, int end) {
+		cursor = pos;
+		float x = nextFloat(line, end);
+		float y = nextFloat(line, end);
+		float z = nextFloat(line, end);
+		normals.add(x, y, z);
+	}
+
+	/**
+	 * Process a texture coordinate: u, then optional v and w.  A missing v
+	 * is 0; w is ignored.
+	 */
+	private void processTextureCoordinate(byte[] line, int pos, int end) {
+		cursor = pos;
+		texture.add(nextFloat(line, end));
+		int start = skipBlanks(line, cursor, end);
+		texture.add(start == end ? 0.0f : nextFloat(line, end));
+	}
+
+	/**
+	 * Process a smoothing directive: s off, s 0, or s and a group number.
+	 */
+	private void processSmoothing(byte[] line, int pos, int end) {
+		int start = skipBlanks(line, pos, end);
+		int stop = tokenEnd(line, start, end);
+		smoothingGroup = stop - start == 3 && line[start] == 'o' ? 0 : parseInt(line, start, stop);
+		if (firstGroupedTriangle < 0) {
+			firstGroupedTriangle = triangleGroups.size();
+		}
+	}
+
+	/**
+	 * Process a face.  Each corner may be written v, v/vt, v//vn or
+	 * v/vt/vn.  Quads and larger polygons are split into a fan of
+	 * triangles around the first corner, which is right for the convex
+	 * polygons modelling packages write; faces with fewer than three
+	 * corners are skipped.  Negative (relative) indices are
+	 * resolved against the number of vertices, normals and texture
+	 * coordinates read so far.  If any corner has no normal the face keeps
+	 * none, so its normals are generated.
+	 */
+	private void processFace(byte[] line, int lineStart, int pos, int end) {
+		int corners = 0;
+		boolean allNormals = true;
+		int vertexCount = vertexBase + vertices.size() / 3;
+		int normalCount = normalBase + normals.size() / 3;
+		int textureCount = textureBase + texture.size() / 2;
+		pos = skipBlanks(line, pos, end);
+		while (pos < end) {
+			int cornerEnd = tokenEnd(line, pos, end);
+			int vertex = 0, normal = 0, textureIndex = 0, relative = 0;
+			int slash = indexOf(line, pos, cornerEnd, (byte) '/');
+			if (slash < 0) {
+				vertex = parseInt(line, pos, cornerEnd);
+			} else {
+				vertex = parseInt(line, pos, slash);
+				int secondSlash = indexOf(line, slash + 1, cornerEnd, (byte) '/');
+				int textureEnd = secondSlash < 0 ? cornerEnd : secondSlash;
+				textureIndex = parseInt(line, slash + 1, textureEnd);
+				if (secondSlash >= 0 && secondSlash + 1 < cornerEnd) {
+					normal = parseInt(line, secondSlash + 1, cornerEnd);
+				}
+			}
+			// before resolving: a chunk may resolve a relative normal to 0.
+			allNormals &= normal != 0;
+			if (vertex < 0) {
+				vertex += vertexCount + 1;
+				relative |= RELATIVE_VERTEX;
+			}
+			if (normal < 0) {
+				normal += normalCount + 1;
+				relative |= RELATIVE_NORMAL;
+			}
+			if (textureIndex < 0) {
+				textureIndex += textureCount + 1;
+				relative |= RELATIVE_TEXTURE;
+			}
+			if (corners * 4 == face.length) {
+				face = Arrays.copyOf(face, face.length * 2);
+			}
+			face[corners * 4] = vertex;
+			face[corners * 4 + 1] = normal;
+			face[corners * 4 + 2] = textureIndex;
+			face[corners * 4 + 3] = relative;
+			corners++;
+			pos = skipBlanks(line, cornerEnd, end);
+		}
+		if (corners < 3) {
+			System.out.println("Face skipped (" + corners + " corners): "
+					+ new String(line, lineStart, end - lineStart, StandardCharsets.ISO_8859_1).trim());
+			return;
+		}
+		for (int last = 2; last < corners; last++) {
+			addCorners(0, last - 1, last, allNormals);
+		}
+	}
+
+	/*
+	 * Append the triangle made of three of the face's corners, noting
+	 * which of its indices were relative.
+	 */
+	private void addCorners(int a, int b, int c, boolean withNormals) {
+		int slot = triangles.size();
+		int textureSlot = triangleTextures.size();
+		triangles.add(face[a * 4], face[b * 4], face[c * 4]);
+		if (withNormals) {
+			triangles.add(face[a * 4 + 1], face[b * 4 + 1], face[c * 4 + 1]);
+		} else {
+			triangles.add(0, 0, 0);
+		}
+		triangleTextures.add(face[a * 4 + 2], face[b * 4 + 2], face[c * 4 + 2]);
+		triangleGroups.add(smoothingGroup);
+		if (relativeVertices == null) {
+			return;
+		}
+		noteRelative(face[a * 4 + 3], slot, textureSlot, withNormals);
+		noteRelative(face[b * 4 + 3], slot + 1, textureSlot + 1, withNormals);
+		noteRelative(face[c * 4 + 3], slot + 2, textureSlot + 2, withNormals);
+	}
+
+	private void noteRelative(int relative, int slot, int textureSlot, boolean withNormals) {
+		if ((relative & RELATIVE_VERTEX) != 0) {
+			relativeVertices.add(slot);
+		}
+		if ((relative & RELATIVE_NORMAL) != 0 && withNormals) {
+			relativeNormals.add(slot + 3);
+		}
+		if ((relative & RELATIVE_TEXTURE) != 0) {
+			relativeTextures.add(textureSlot);
+		}
+	}
+
+	/*
+	 * ------------------------------------------------------------------
+	 * Low level scanning helpers.  None of these allocate except for the
+	 * Float.parseFloat fallback.
+	 * ------------------------------------------------------------------
+	 */
+
+	private static boolean isBlank(byte b) {
+		return b == ' ' || b == '\t' || b == '\r';
+	}
+
+	private static int skipBlanks(byte[] line, int pos, int end) {
+		while (pos < end && isBlank(line[pos])) {
+			pos++;
+		}
+		return pos;
+	}
+
+	private static int tokenEnd(byte[] line, int pos, int end) {
+		while (pos < end && !isBlank(line[pos])) {
+			pos++;
+		}
+		return pos;
+	}
+
+	private static int indexOf(byte[] line, int pos, int end, byte value) {
+		for (; pos < end; pos++) {
+			if (line[pos] == value) {
+				return pos;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Parse the next blank separated float and advance the cursor past it.
+	 * A missing token reads as 0.
+	 */
+	private float nextFloat(byte[] line, int end) {
+		int start = skipBlanks(line, cursor, end);
+		int stop = tokenEnd(line, start, end);
+		cursor = stop;
+		if (start == stop) {
+			System.out.println("Missing coordinate in line!");
+			return 0.0f;
+		}
+		return parseFloat(line, start, stop);
+	}
+
+	/**
+	 * Parse a decimal integer.  An empty token reads as 0.
+	 */
+	static int parseInt(byte[] text, int start, int end) {
+		boolean negative = false;
+		int pos = start;
+		if (pos < end && (text[pos] == '-' || text[pos] == '+')) {
+			negative = text[pos] == '-';
+			pos++;
+		}
+		int value = 0;
+		for (; pos < end; pos++) {
+			int digit = text[pos] - '0';
+			if (digit < 0 || digit > 9) {
+				throw new NumberFormatException(
+						"For input string: \"" + new String(text, start, end - start, StandardCharsets.ISO_8859_1) + "\"");
+			}
+			value = value * 10 + digit;
+		}
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Parse a float exactly as Float.parseFloat would.  Plain decimal
+	 * numbers whose significant digits fit in 24 bits and whose decimal
+	 * exponent is within +/-10 are converted with a single correctly rounded
+	 * float multiply or divide.  Everything else goes through
+	 * Float.parseFloat.
+	 */
+	static float parseFloat(byte[] text, int start, int end) {
+		int pos = start;
+		boolean negative = false;
+		if (pos < end && (text[pos] == '-' || text[pos] == '+')) {
+			negative = text[pos] == '-';
+			pos++;
+		}
+		long mantissa = 0;
+		int exponent = 0;
+		int digits = 0;
+		boolean seenPoint = false;
+		boolean exact = true;
+		for (; pos < end; pos++) {
+			byte b = text[pos];
+			if (b >= '0' && b <= '9') {
+				digits++;
+				if (mantissa < MAX_EXACT_MANTISSA) {
+					mantissa = mantissa * 10 + (b - '0');
+					if (seenPoint) {
+						exponent--;
+					}
+				} else {
+					exact = false;
+				}
+			} else if (b == '.' && !seenPoint) {
+				seenPoint = true;
+			} else {
+				break;
+			}
+		}
+		if (pos < end && (text[pos] == 'e' || text[pos] == 'E')) {
+			pos++;
+			boolean negativeExponent = false;
+			if (pos < end && (text[pos] == '-' || text[pos] == '+')) {
+				negativeExponent = text[pos] == '-';
+				pos++;
+			}
+			int explicit = 0;
+			int exponentStart = pos;
+			for (; pos < end && text[pos] >= '0' && text[pos] <= '9' && explicit < 1000; pos++) {
+				explicit = explicit * 10 + (text[pos] - '0');
+			}
+			if (pos == exponentStart) {
+				exact = false;
+			}
+			exponent += negativeExponent ? -explicit : explicit;
+		}
+		if (!exact || digits == 0 || pos != end || mantissa > MAX_EXACT_MANTISSA
+				|| exponent < -10 || exponent > 10) {
+			return Float.parseFloat(new String(text, start, end - start, StandardCharsets.ISO_8859_1));
+		}
+		float value = (float) mantissa;
+		if (exponent < 0) {
+			value /= FLOAT_POW10[-exponent];
+		} else if (exponent > 0) {
+			value *= FLOAT_POW10[exponent];
+		}
+		return negative ? -value : value;
+	}
+}
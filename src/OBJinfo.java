@@ -1,7 +1,13 @@
-import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.util.ArrayList;
-import java.util.Scanner;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.stream.IntStream;
 
 /**
  * 
@@ -16,30 +22,35 @@ import java.util.Scanner;
  * to release as a "beta" version.  It has a default 
  * constructor and you can request the vertex array
  * using getVertexList and the normal array using getNormalList.
+ * An indexed form with shared vertices is available through
+ * getIndexedVertexList, getIndexedNormalList and getIndexList, or
+ * as direct buffers ready for OpenGL.  readOBJFileCached keeps a
+ * binary copy of the indexed mesh next to the OBJ file so the text
+ * only has to be parsed once.  An axis aligned bounding box and a
+ * bounding sphere are computed as the model is read.  Quads and
+ * larger polygons are split into triangles as they are read.
+ * <P>
+ * Once a file is parsed its winding is made consistent and any face
+ * written without normals gets smooth normals that follow the file's
+ * smoothing groups (see MeshNormals); setRegenerateNormals replaces the
+ * file's own normals the same way.
  * <P>
  * The main routine other than these is the readOBJFile 
- * method that opens and reads the Wavefront OBJ file. 
+ * method that opens and reads the Wavefront OBJ file.  The
+ * text itself is tokenized by OBJParser.  Large files can be
+ * read with readOBJFileParallel instead, which spreads the work
+ * over every core.  Files too large to hold in memory can be
+ * streamed in batches with StreamingOBJLoader.
  * 
  * <P>
  * Bugs:
  *    <ul>
- *    <LI>On my cow model it appears that the normals in the
- *    model are flipped for a portion of the triangles.  
- *    I'm not sure why this is happening yet -- but the
- *    data is there and the vertices are correct.  An
- *    ambient only call produces correct output and I've 
- *    tried to shade triangles with normals that are
- *    pointing away from the light source a different color and
- *    all the triangles show up.  </LI>
- *    
- *    <LI>There is debugging code still in the methods here.  It 
- *    shouldn't cause problems and will eventually be removed. 
- *    </LI>
  *    <LI>
- *    Textures are not processed. 
+ *    Texture coordinates are read, but materials and texture
+ *    images are not.
  *    </LI>
  *    <LI>
- *    The smoothing and object directives are not implemented.
+ *    The object directive is not implemented.
  *    </LI>
  *    </UL>
  *    
@@ -47,171 +58,404 @@ import java.util.Scanner;
  */
 public class OBJinfo {
 
-	private ArrayList<Float> vertices, normals, texture;
-	private ArrayList<Integer> triangles;
+	/*
+	 * Number of triangles handed to each task by the parallel expansion.
+	 */
+	private static final int EXPAND_BATCH = 1 << 14;
+
+	private OBJParser parsed;
 	private float triangleList[];
 	private float normalList[];
-	
+
+	/*
+	 * Indexed form of the mesh, built on first request.  Every distinct
+	 * (position, normal, texture) combination becomes one vertex and
+	 * indexList holds three vertex numbers per triangle.
+	 */
+	private float indexedVertexList[];
+	private float indexedNormalList[];
+	private float indexedTextureList[];
+	private int indexList[];
+
+	/*
+	 * Direct buffer form of the indexed mesh.  When the mesh came from
+	 * the binary cache these are views of the mapped cache file and the
+	 * arrays above are only filled in if somebody asks for them.
+	 */
+	private MeshCache.Mesh mesh;
+
+	/*
+	 * Bounding volumes: the axis aligned box comes from the parser, the
+	 * sphere is centred on the box.  Null until the mesh is read.
+	 */
+	private float boundsMin[];
+	private float boundsMax[];
+	private float boundsCenter[];
+	private float boundsRadius;
+
+	/*
+	 * Replace the file's normals with generated ones on the next read.
+	 */
+	private boolean regenerateNormals;
+
 	/**
-	 * Process a string of tokens that represent a vertex. 
-	 * the coordinates of the vertex will be added at the 
-	 * end of the vertices arrayList.
+	 * Choose whether the next read keeps the normals in the file or
+	 * replaces them with smooth normals generated from the triangles and
+	 * smoothing groups.  Faces without normals get generated ones either
+	 * way.
 	 * 
-	 * @param tokens  The tokens for the vertex line. 
+	 * @param regenerate  true to ignore the file's normals.
 	 */
-	private void processVertex(String[] tokens) {
-		if (tokens.length != 4) {
-			System.out.println("Vertex without 4 tokens!");
-			for (String str:tokens) {
-				System.out.println("Token :"+str);
-			}
-		}
-		vertices.add(Float.parseFloat(tokens[1]));
-		vertices.add(Float.parseFloat(tokens[2]));
-		vertices.add(Float.parseFloat(tokens[3]));
+	public void setRegenerateNormals(boolean regenerate) {
+		regenerateNormals = regenerate;
 	}
 
 	/**
-	 * Process a string of tokens that represent a normal at
-	 * a vertex.  The normal will be added to the normals
-	 * ArrayList.
+	 * Read the OBJ file.  The file is streamed through OBJParser, which
+	 * tokenizes the raw bytes and stores coordinates and face indices in
+	 * primitive arrays, and the triangles are then expanded into the
+	 * vertex and normal arrays handed to OpenGL.
 	 * 
-	 * @param tokens  The tokens that make up the vertex normal line. 
-	 */ 
-	private void processVertexNormal(String[] tokens) {
-		if (tokens.length != 4) {
-			System.out.println("Normal without 4 tokens!");
-			for (String str:tokens) {
-				System.out.println("Token :"+str);
-			}
+	 * @param filename  The filename for the file to be read.  
+	 */
+	public void readOBJFile(String filename) {
+		try (InputStream in = new FileInputStream(filename)) {
+			parsed.parse(in);
+			finishReading(false);
+		} catch (FileNotFoundException e) {
+			// TODO Auto-generated catch block
+			e.printStackTrace();
+		} catch (IOException e) {
+			e.printStackTrace();
 		}
-		normals.add(Float.parseFloat(tokens[1]));
-		normals.add(Float.parseFloat(tokens[2]));
-		normals.add(Float.parseFloat(tokens[3]));
 	}
 
 	/**
-	 * Routine to parse and add texture coordinate data 
-	 * to the textures ArrayList.  This is not currently
-	 * used or tested.
+	 * Read the OBJ file using every core.  The file is memory-mapped and
+	 * parsed in line aligned chunks on the common ForkJoinPool (see
+	 * ParallelOBJLoader), and the triangle expansion is split across the
+	 * pool as well.  The resulting arrays are identical to readOBJFile's.
 	 * 
-	 * @param tokens  the tokens that make up the texture coordinate line. 
+	 * @param filename  The filename for the file to be read.
 	 */
-	private void processTextureCoordinate(String[] tokens) {
-		texture.add(Float.parseFloat(tokens[1]));
-		texture.add(Float.parseFloat(tokens[2]));
-	}
-    /**
-     * Routine to parse information about smoothing.  
-     * Currently not used -- ignores its input. 
-     * @param tokens  the tokens that make up a smoothing line.
-     */
-	private void processSmoothing(String[] tokens) {
-		// do nothing right now.
+	public void readOBJFileParallel(String filename) {
+		try {
+			parsed = ParallelOBJLoader.load(filename);
+			finishReading(true);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
 	}
 
 	/**
-	 * Routine to process a face.  Currently this is very limited. 
+	 * Read the OBJ file through the binary mesh cache.  If an up to date
+	 * cache exists next to the file it is memory-mapped and nothing is
+	 * parsed; otherwise the file is read with readOBJFile and the cache is
+	 * written for next time.  See MeshCache for the format.
 	 * 
-	 * This is assuming it has vertices with normals. It will NOT process texture
-	 * coordinates as written. I will change it (eventually) to handle vertices
-	 * without normals or textures.
+	 * @param filename  The filename for the file to be read.
+	 */
+	public void readOBJFileCached(String filename) {
+		readOBJFileCached(filename, false);
+	}
+
+	/**
+	 * Read the OBJ file through the binary mesh cache, optionally running
+	 * the vertex cache optimization (see optimizeVertexCache) before the
+	 * mesh is cached.  Optimized and unoptimized meshes, and meshes with
+	 * the file's and with regenerated normals, are cached separately.
 	 * 
-	 * @param tokens  the tokens that make up the face description line. 
-	 * 	 
-	 */
-	private void processFace(String[] tokens) {
-		if (tokens.length != 10) {
-			System.out.println("Unexpected number of tokens!");
-			for (String str : tokens ) {
-				System.out.println("token: "+str);
+	 * @param filename  The filename for the file to be read.
+	 * @param optimize  true to reorder the mesh for the GPU vertex caches.
+	 */
+	public void readOBJFileCached(String filename, boolean optimize) {
+		int options = (optimize ? MeshCache.OPTIMIZED : 0)
+				| (regenerateNormals ? MeshCache.REGENERATED_NORMALS : 0);
+		MeshCache.Mesh cached = MeshCache.read(filename, options);
+		if (cached != null) {
+			mesh = cached;
+			computeBounds(mesh.vertices, 4);
+			System.out.println("Loaded " + filename + " from " + MeshCache.cacheFileFor(filename));
+			return;
+		}
+		readOBJFile(filename);
+		if (triangleList != null) {
+			if (optimize) {
+				optimizeVertexCache();
+			}
+			MeshCache.write(filename, options, getMesh());
+		}
+	}
+
+	/*
+	 * Finished reading file.
+	 */
+	private void finishReading(boolean parallel) {
+		System.out.println(parsed.vertices.size()/3 + " vertices");
+		System.out.println(parsed.normals.size()/3 + " normals");
+		System.out.println(parsed.texture.size()/2 + " texture coordinates");
+		System.out.println(parsed.triangles.size()/6 + " faces");
+		long start = System.nanoTime();
+		int flipped = MeshNormals.orient(parsed);
+		int generated = MeshNormals.generate(parsed, regenerateNormals);
+		if (flipped > 0 || generated > 0) {
+			System.out.printf("%d triangles turned over, %d normals generated in %.1f ms%n", flipped, generated,
+					(System.nanoTime() - start) / 1e6);
+		}
+		expand(parallel);
+	}
+
+	/*
+	 * Take over a mesh that has already been parsed and expand it,
+	 * without the console summary.  LoaderBenchmark uses this to time the
+	 * expansion on its own.
+	 */
+	void expandParsed(OBJParser source, boolean parallel) {
+		parsed = source;
+		expand(parallel);
+	}
+
+	private void expand(boolean parallel) {
+		int triangleCount = parsed.triangles.size() / 6;
+		triangleList = new float[triangleCount * 3 * 4];
+		normalList = new float[triangleCount * 3 * 3];
+		if (parallel) {
+			IntStream.range(0, (triangleCount + EXPAND_BATCH - 1) / EXPAND_BATCH).parallel()
+					.forEach(batch -> expandTriangles(batch * EXPAND_BATCH,
+							Math.min(triangleCount, (batch + 1) * EXPAND_BATCH)));
+		} else {
+			expandTriangles(0, triangleCount);
+		}
+		if (parsed.vertices.size() > 0) {
+			boundsMin = parsed.min.clone();
+			boundsMax = parsed.max.clone();
+			computeSphere(FloatBuffer.wrap(parsed.vertices.array(), 0, parsed.vertices.size()), 3);
+		}
+	}
+
+	/*
+	 * Bounds of vertices that were not parsed (a cached mesh).
+	 */
+	private void computeBounds(FloatBuffer vertices, int stride) {
+		boundsMin = new float[] { Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE };
+		boundsMax = new float[] { -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE };
+		int base = vertices.position();
+		for (int i = base; i + 2 < vertices.limit(); i += stride) {
+			for (int axis = 0; axis < 3; axis++) {
+				float value = vertices.get(i + axis);
+				boundsMin[axis] = Math.min(boundsMin[axis], value);
+				boundsMax[axis] = Math.max(boundsMax[axis], value);
 			}
 		}
-		triangles.add(Integer.parseInt(tokens[1]));
-		triangles.add(Integer.parseInt(tokens[4]));
-		triangles.add(Integer.parseInt(tokens[7]));
-		triangles.add(Integer.parseInt(tokens[3]));
-		triangles.add(Integer.parseInt(tokens[6]));
-		triangles.add(Integer.parseInt(tokens[9]));
+		computeSphere(vertices, stride);
 	}
 
-	private void processGroup(String[] tokens) {
-		// do nothing right now
+	/*
+	 * Sphere centred on the box, with the radius of the farthest vertex.
+	 */
+	private void computeSphere(FloatBuffer vertices, int stride) {
+		boundsCenter = new float[3];
+		for (int axis = 0; axis < 3; axis++) {
+			boundsCenter[axis] = (boundsMin[axis] + boundsMax[axis]) * 0.5f;
+		}
+		float radiusSquared = 0.0f;
+		for (int i = vertices.position(); i + 2 < vertices.limit(); i += stride) {
+			float dx = vertices.get(i) - boundsCenter[0];
+			float dy = vertices.get(i + 1) - boundsCenter[1];
+			float dz = vertices.get(i + 2) - boundsCenter[2];
+			radiusSquared = Math.max(radiusSquared, dx * dx + dy * dy + dz * dz);
+		}
+		boundsRadius = (float) Math.sqrt(radiusSquared);
 	}
 
 	/**
-	 * Read the OBJ file -- This looks at the first token in the
-	 * line and determines the type of directive.  It then hands 
-	 * off all the tokens in the line to the appropriate "process"
-	 * method.  
+	 * Dump triangles and normals -- every face corner gets its own xyzw
+	 * vertex and xyz normal.  Each triangle writes only its own slots so
+	 * ranges can be expanded concurrently.
 	 * 
-	 * @param filename  The filename for the file to be read.  
+	 * @param first  the first triangle to expand.
+	 * @param end    one past the last triangle to expand.
 	 */
-	public void readOBJFile(String filename) {
-		try {
-			Scanner scanner = new Scanner(new File(filename));
-
-			while (scanner.hasNextLine()) {
-				String line = scanner.nextLine();
-				String[] tokens = line.split("[ /]");
-				if (tokens.length > 0) { // handle blank line.
-					if (tokens[0].equals("#")) {
-						// do nothing -- it is a comment.
-					} else if (tokens[0].equals("v")) {
-						processVertex(tokens);
-					} else if (tokens[0].equals("vn")) {
-						processVertexNormal(tokens);
-					} else if (tokens[0].equals("vt")) {
-						processTextureCoordinate(tokens);
-					} else if (tokens[0].equals("f")) {
-						processFace(tokens);
-					} else if (tokens[0].equals("s")) {
-						processSmoothing(tokens);
-					} else if (tokens[0].equals("g")) {
-						processGroup(tokens);
+	private void expandTriangles(int first, int end) {
+		float[] vertices = parsed.vertices.array();
+		float[] normals = parsed.normals.array();
+		int[] triangles = parsed.triangles.array();
+		int last = first * 3 * 4, lastNormal = first * 3 * 3;
+		for (int current = first * 6; current < end * 6; current += 6) {
+			for (int coord = 0; coord < 3; coord++) {
+				int vertex = (triangles[current + coord] - 1) * 3;
+				int normal = (triangles[current + coord + 3] - 1) * 3;
+				triangleList[last++] = vertices[vertex];
+				triangleList[last++] = vertices[vertex + 1];
+				triangleList[last++] = vertices[vertex + 2];
+				triangleList[last++] = 1.0f;
+				normalList[lastNormal++] = normals[normal];
+				normalList[lastNormal++] = normals[normal + 1];
+				normalList[lastNormal++] = normals[normal + 2];
+			}
+		}
+	}
+
+	private void ensureIndexed() {
+		if (indexList != null) {
+			return;
+		}
+		if (mesh != null && parsed.triangles.size() == 0) {
+			indexedVertexList = toArray(mesh.vertices);
+			indexedNormalList = toArray(mesh.normals);
+			indexedTextureList = toArray(mesh.texture);
+			if (mesh.indices instanceof ShortBuffer) {
+				ShortBuffer indices = ((ShortBuffer) mesh.indices).duplicate();
+				indexList = new int[indices.remaining()];
+				for (int i = 0; i < indexList.length; i++) {
+					indexList[i] = indices.get(i) & 0xFFFF;
+				}
+			} else {
+				IntBuffer indices = ((IntBuffer) mesh.indices).duplicate();
+				indexList = new int[indices.remaining()];
+				indices.get(indexList);
+			}
+		} else {
+			buildIndexedMesh();
+		}
+	}
+
+	/*
+	 * Expand the indexed arrays back into one vertex per face corner.
+	 * Only needed when the mesh came from the cache.
+	 */
+	private void expandIndexed() {
+		ensureIndexed();
+		triangleList = new float[indexList.length * 4];
+		normalList = new float[indexList.length * 3];
+		for (int i = 0; i < indexList.length; i++) {
+			System.arraycopy(indexedVertexList, indexList[i] * 4, triangleList, i * 4, 4);
+			System.arraycopy(indexedNormalList, indexList[i] * 3, normalList, i * 3, 3);
+		}
+	}
+
+	/*
+	 * The indexed mesh as direct buffers, built from the arrays if it did
+	 * not come from the cache.  Indices are unsigned shorts when every
+	 * vertex can be addressed that way.
+	 */
+	private MeshCache.Mesh getMesh() {
+		if (mesh == null) {
+			ensureIndexed();
+			java.nio.Buffer indices;
+			if (getUniqueVertexCount() <= 0x10000) {
+				ShortBuffer shortIndices = newDirectBuffer(indexList.length * 2).asShortBuffer();
+				for (int index : indexList) {
+					shortIndices.put((short) index);
+				}
+				indices = shortIndices.flip();
+			} else {
+				indices = newDirectBuffer(indexList.length * 4).asIntBuffer().put(indexList).flip();
+			}
+			mesh = new MeshCache.Mesh(toBuffer(indexedVertexList), toBuffer(indexedNormalList),
+					toBuffer(indexedTextureList), indices);
+		}
+		return mesh;
+	}
+
+	private static ByteBuffer newDirectBuffer(int bytes) {
+		return ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+	}
+
+	private static FloatBuffer toBuffer(float[] array) {
+		return newDirectBuffer(array.length * 4).asFloatBuffer().put(array).flip();
+	}
+
+	private static float[] toArray(FloatBuffer buffer) {
+		float[] array = new float[buffer.remaining()];
+		buffer.duplicate().get(array);
+		return array;
+	}
+
+	/**
+	 * Build the indexed mesh.  Face corners are deduplicated on their
+	 * (vertex, normal, texture) index triple with a TripleIndexMap, so a
+	 * corner shared by several triangles is stored once.
+	 */
+	private void buildIndexedMesh() {
+		float[] vertices = parsed.vertices.array();
+		float[] normals = parsed.normals.array();
+		float[] texture = parsed.texture.array();
+		int[] triangles = parsed.triangles.array();
+		int[] textures = parsed.triangleTextures.array();
+		int triangleCount = parsed.triangles.size() / 6;
+		TripleIndexMap unique = new TripleIndexMap(Math.max(parsed.vertices.size(), parsed.normals.size()) / 3);
+		FloatList uniqueVertices = new FloatList(parsed.vertices.size() / 3 * 4);
+		FloatList uniqueNormals = new FloatList(parsed.normals.size());
+		FloatList uniqueTexture = new FloatList(parsed.texture.size());
+		indexList = new int[triangleCount * 3];
+		int last = 0;
+		for (int current = 0; current < triangleCount * 6; current += 6) {
+			for (int coord = 0; coord < 3; coord++) {
+				int vertexIndex = triangles[current + coord];
+				int normalIndex = triangles[current + coord + 3];
+				int textureIndex = textures[current / 2 + coord];
+				int next = uniqueVertices.size() / 4;
+				int index = unique.putIfAbsent(vertexIndex, normalIndex, textureIndex, next);
+				if (index == next) {
+					int vertex = (vertexIndex - 1) * 3;
+					int normal = (normalIndex - 1) * 3;
+					uniqueVertices.add(vertices[vertex], vertices[vertex + 1], vertices[vertex + 2]);
+					uniqueVertices.add(1.0f);
+					uniqueNormals.add(normals[normal], normals[normal + 1], normals[normal + 2]);
+					if (textureIndex > 0) {
+						uniqueTexture.add(texture[(textureIndex - 1) * 2]);
+						uniqueTexture.add(texture[(textureIndex - 1) * 2 + 1]);
 					} else {
-						// Unknown -- skip it for now.
+						uniqueTexture.add(0.0f);
+						uniqueTexture.add(0.0f);
 					}
 				}
+				indexList[last++] = index;
 			}
-			/*
-			 * Finished reading file.
-			 */
-			System.out.println(vertices.size()/3 + " vertices");
-			System.out.println(normals.size()/3 + " normals");
-			System.out.println(texture.size() + " textures");
-			System.out.println(triangles.size()/6 + " faces");
-			/*
-			 * Dump Triangles and normals.
-			 */
-			int last = 0, lastNormal = 0;
-			triangleList = new float[triangles.size()/6 *3 *4];
-			normalList = new float [triangles.size() / 6 *3 * 3];
-			for (int current = 0; current < triangles.size(); current += 6) {
-				for (int coord = 0; coord < 3; coord++) {
-					triangleList[last++] = vertices.get((triangles.get(current+coord) - 1)*3);
-					triangleList[last++] = vertices.get((triangles.get(current+coord) - 1)*3+1);
-					triangleList[last++] = vertices.get((triangles.get(current+coord) - 1)*3+2);
-					triangleList[last++] = 1.0f;
-					normalList[lastNormal++] = normals.get((triangles.get(current+coord+3) - 1)*3);
-					normalList[lastNormal++] = normals.get((triangles.get(current+coord+3) - 1)*3 + 1);
-					normalList[lastNormal++] = normals.get((triangles.get(current+coord+3) - 1)*3 + 2);
-				}
+		}
+		indexedVertexList = uniqueVertices.toArray();
+		indexedNormalList = uniqueNormals.toArray();
+		indexedTextureList = uniqueTexture.toArray();
+		System.out.println(getUniqueVertexCount() + " unique vertices for " + indexList.length + " indices");
+	}
+
+	/**
+	 * Reorder the indexed mesh for the GPU.  Triangles are reordered for
+	 * the post-transform vertex cache with Forsyth's algorithm and then
+	 * vertices are renumbered in first use order for pre-transform fetch
+	 * locality (see MeshOptimizer).  The average cache miss ratio and
+	 * average transform to vertex ratio are printed before and after.
+	 * The expanded arrays from getVertexList/getNormalList keep the file's
+	 * order.
+	 */
+	public void optimizeVertexCache() {
+		ensureIndexed();
+		int vertexCount = getUniqueVertexCount();
+		float acmrBefore = MeshOptimizer.acmr(indexList, vertexCount);
+		float atvrBefore = MeshOptimizer.atvr(indexList, vertexCount);
+		int[] optimized = MeshOptimizer.optimizeTriangleOrder(indexList, vertexCount);
+		int[] remap = MeshOptimizer.optimizeVertexOrder(optimized, vertexCount);
+		int newCount = 0;
+		for (int target : remap) {
+			if (target >= 0) {
+				newCount++;
 			}
-		} catch (FileNotFoundException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
 		}
+		indexedVertexList = MeshOptimizer.remapVertices(indexedVertexList, 4, remap, newCount);
+		indexedNormalList = MeshOptimizer.remapVertices(indexedNormalList, 3, remap, newCount);
+		indexedTextureList = MeshOptimizer.remapVertices(indexedTextureList, 2, remap, newCount);
+		indexList = optimized;
+		mesh = null;
+		System.out.printf("vertex cache: ACMR %.3f -> %.3f, ATVR %.3f -> %.3f%n", acmrBefore,
+				MeshOptimizer.acmr(indexList, newCount), atvrBefore, MeshOptimizer.atvr(indexList, newCount));
 	}
 
 	/**
-	 * default constructor.  Sets up original ArrayLists. 
+	 * default constructor.  Sets up the empty parser.
 	 */
 	public OBJinfo() {
-		vertices = new ArrayList<Float>(1000);
-		normals = new ArrayList<Float>(1000);
-		texture = new ArrayList<Float>(1000);
-		triangles = new ArrayList<Integer>(1000);
+		parsed = new OBJParser();
 	}
 	
 	/**
@@ -222,6 +466,9 @@ public class OBJinfo {
 	 * @return  the array of vertices for this OBJ.
 	 */
 	public float[] getVertexList() {
+		if (triangleList == null && mesh != null) {
+			expandIndexed();
+		}
 		return triangleList;
 	}
 	/**
@@ -230,9 +477,133 @@ public class OBJinfo {
 	 * @return  the array of normals for this OBJ.
 	 */	
 	public float[] getNormalList() {
+		if (normalList == null && mesh != null) {
+			expandIndexed();
+		}
 		return normalList;
 	}
 
+	/**
+	 * Get the vertices of the indexed mesh -- xyzw groups, one per
+	 * unique vertex.  Use with getIndexList.
+	 * 
+	 * @return  the array of unique vertices for this OBJ.
+	 */
+	public float[] getIndexedVertexList() {
+		ensureIndexed();
+		return indexedVertexList;
+	}
+
+	/**
+	 * Get the normals of the indexed mesh, one xyz group per unique
+	 * vertex.
+	 * 
+	 * @return  the array of unique normals for this OBJ.
+	 */
+	public float[] getIndexedNormalList() {
+		ensureIndexed();
+		return indexedNormalList;
+	}
+
+	/**
+	 * Get the texture coordinates of the indexed mesh, one uv pair per
+	 * unique vertex.  Vertices without texture coordinates get (0, 0).
+	 * 
+	 * @return  the array of unique texture coordinates for this OBJ.
+	 */
+	public float[] getIndexedTextureList() {
+		ensureIndexed();
+		return indexedTextureList;
+	}
+
+	/**
+	 * Get the triangle indices into the indexed vertex, normal and
+	 * texture arrays -- three per triangle.
+	 * 
+	 * @return  the index array for this OBJ.
+	 */
+	public int[] getIndexList() {
+		ensureIndexed();
+		return indexList;
+	}
+
+	/**
+	 * @return  the smallest x, y and z of the model's vertices.
+	 */
+	public float[] getBoundingBoxMin() {
+		return boundsMin;
+	}
+
+	/**
+	 * @return  the largest x, y and z of the model's vertices.
+	 */
+	public float[] getBoundingBoxMax() {
+		return boundsMax;
+	}
+
+	/**
+	 * @return  the centre of the model's bounding sphere (the centre of
+	 *          its bounding box).
+	 */
+	public float[] getBoundingSphereCenter() {
+		return boundsCenter;
+	}
+
+	/**
+	 * @return  the radius of the model's bounding sphere.
+	 */
+	public float getBoundingSphereRadius() {
+		return boundsRadius;
+	}
+
+	/**
+	 * @return  the number of unique vertices in the indexed mesh.
+	 */
+	public int getUniqueVertexCount() {
+		if (indexList == null && mesh != null) {
+			return mesh.vertices.remaining() / 4;
+		}
+		return getIndexedVertexList().length / 4;
+	}
+
+	/**
+	 * Get the indexed vertices as a direct, native order buffer that can
+	 * be handed to OpenGL without copying.  For a mesh loaded from the
+	 * cache this is a view of the mapped cache file.
+	 * 
+	 * @return  the unique vertices, xyzw groups.
+	 */
+	public FloatBuffer getIndexedVertexBuffer() {
+		return getMesh().vertices.duplicate();
+	}
+
+	/**
+	 * @return  the unique normals as a direct buffer, xyz groups.
+	 */
+	public FloatBuffer getIndexedNormalBuffer() {
+		return getMesh().normals.duplicate();
+	}
+
+	/**
+	 * @return  the unique texture coordinates as a direct buffer, uv pairs.
+	 */
+	public FloatBuffer getIndexedTextureBuffer() {
+		return getMesh().texture.duplicate();
+	}
+
+	/**
+	 * Get the triangle indices as a direct buffer.  This is a ShortBuffer
+	 * of unsigned shorts when the mesh has at most 65536 vertices and an
+	 * IntBuffer otherwise.
+	 * 
+	 * @return  the index buffer.
+	 */
+	public java.nio.Buffer getIndexBuffer() {
+		java.nio.Buffer indices = getMesh().indices;
+		return indices instanceof ShortBuffer ? ((ShortBuffer) indices).duplicate()
+				: ((IntBuffer) indices).duplicate();
+	}
+
 	/**
 	 * An obsolete test stub...
 	 * @param arguments  Command Line Arguments.
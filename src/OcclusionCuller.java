@@ -0,0 +1,122 @@
+import com.jogamp.opengl.GL2ES2;
+import com.jogamp.opengl.GL2ES3;
+import com.jogamp.opengl.GL4;
+
+import java.util.Arrays;
+
+/**
+ * Hardware occlusion queries for a fixed set of objects.
+ *
+ * <P>
+ * After the visible objects have been drawn, each object's bounding box
+ * is drawn inside a GL_ANY_SAMPLES_PASSED query with colour and depth
+ * writes off: if no fragment of the box passes the depth test, whatever
+ * is inside it is hidden behind what is already in the depth buffer.  An
+ * object whose last result says so is left out of the next frames'
+ * draws, and its box keeps being tested so it comes back as soon as it
+ * is uncovered.
+ *
+ * <P>
+ * Results are only read once GL_QUERY_RESULT_AVAILABLE says they are
+ * there, and an object has at most one query in flight, so the CPU never
+ * waits on the GPU.  The price is latency: an object is drawn or skipped
+ * on a result a frame or two old, so one that comes out from behind an
+ * occluder can be missing for that long.  Objects without a result yet
+ * count as visible.  Nothing is allocated per frame.
+ */
+final class OcclusionCuller {
+
+	private final int[] queries;
+	private final boolean[] pending;
+	private final boolean[] ignore;
+	private final boolean[] visible;
+	private final int[] result = new int[1];
+
+	/**
+	 * @param objects  the number of objects; they are numbered from 0.
+	 */
+	OcclusionCuller(int objects) {
+		queries = new int[objects];
+		pending = new boolean[objects];
+		ignore = new boolean[objects];
+		visible = new boolean[objects];
+		Arrays.fill(visible, true);
+	}
+
+	/**
+	 * Create the query objects.
+	 */
+	void init(GL4 gl) {
+		gl.glGenQueries(queries.length, queries, 0);
+	}
+
+	/**
+	 * Pick up the results that have arrived.  Call once a frame before
+	 * asking isVisible.
+	 */
+	void collect(GL4 gl) {
+		for (int object = 0; object < queries.length; object++) {
+			if (!pending[object]) {
+				continue;
+			}
+			gl.glGetQueryObjectiv(queries[object], GL2ES2.GL_QUERY_RESULT_AVAILABLE, result, 0);
+			if (result[0] == 0) {
+				continue;
+			}
+			gl.glGetQueryObjectiv(queries[object], GL2ES2.GL_QUERY_RESULT, result, 0);
+			if (!ignore[object]) {
+				visible[object] = result[0] != 0;
+			}
+			pending[object] = false;
+			ignore[object] = false;
+		}
+	}
+
+	/**
+	 * @return  false if the object's last test found it hidden.
+	 */
+	boolean isVisible(int object) {
+		return visible[object];
+	}
+
+	/**
+	 * @return  true if the object has no test in flight, so a new one
+	 *          may be started.
+	 */
+	boolean canTest(int object) {
+		return !pending[object];
+	}
+
+	/**
+	 * Forget what is known about an object -- it left the view, say, or
+	 * the camera is inside its box -- so it counts as visible until a new
+	 * test says otherwise.  A test in flight is thrown away.
+	 */
+	void reset(int object) {
+		visible[object] = true;
+		ignore[object] = pending[object];
+	}
+
+	/**
+	 * Start testing an object.  Draw its box, then call end.  Only one
+	 * test can be active at a time.
+	 */
+	void begin(GL4 gl, int object) {
+		gl.glBeginQuery(GL2ES3.GL_ANY_SAMPLES_PASSED, queries[object]);
+	}
+
+	/**
+	 * End the test started last.
+	 */
+	void end(GL4 gl, int object) {
+		gl.glEndQuery(GL2ES3.GL_ANY_SAMPLES_PASSED);
+		pending[object] = true;
+	}
+
+	/**
+	 * Delete the query objects.
+	 */
+	void dispose(GL4 gl) {
+		gl.glDeleteQueries(queries.length, queries, 0);
+	}
+}
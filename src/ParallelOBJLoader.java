@@ -0,0 +1,141 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Loads an OBJ file on several cores.  The file is split into line
+ * aligned chunks, each chunk is memory-mapped and parsed by its own
+ * OBJParser on a ForkJoinPool, and the chunk results are appended in file
+ * order.  Because OBJ indices are file-global the only indices that need
+ * correcting during the merge are relative (negative) ones, which
+ * OBJParser tracks per chunk.  The merged result is identical to what a
+ * single OBJParser produces for the same file.
+ */
+final class ParallelOBJLoader {
+
+	/*
+	 * Chunks are kept between these sizes.  Small files end up as a
+	 * single chunk and are effectively parsed sequentially.
+	 */
+	private static final long MIN_CHUNK = 1L << 20;
+	private static final long MAX_CHUNK = 64L << 20;
+	private static final int CHUNKS_PER_THREAD = 4;
+	private static final int PROBE_SIZE = 4096;
+
+	private ParallelOBJLoader() {
+	}
+
+	/**
+	 * Parse a file on the common ForkJoinPool.
+	 *
+	 * @param filename  the OBJ file to read.
+	 * @return  the merged parser holding the whole file.
+	 * @throws IOException  if the file cannot be read.
+	 */
+	static OBJParser load(String filename) throws IOException {
+		return load(filename, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Parse a file on the given pool.
+	 *
+	 * @param filename  the OBJ file to read.
+	 * @param pool      the pool the chunks are parsed on.
+	 * @return  the merged parser holding the whole file.
+	 * @throws IOException  if the file cannot be read.
+	 */
+	static OBJParser load(String filename, ForkJoinPool pool) throws IOException {
+		try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+			long[] bounds = chunkBounds(channel, pool.getParallelism());
+			List<ForkJoinTask<OBJParser>> tasks = new ArrayList<>(bounds.length - 1);
+			for (int i = 0; i + 1 < bounds.length; i++) {
+				long start = bounds[i];
+				long end = bounds[i + 1];
+				tasks.add(pool.submit(() -> parseChunk(channel, start, end)));
+			}
+			OBJParser merged = tasks.get(0).join();
+			for (int i = 1; i < tasks.size(); i++) {
+				merged.append(tasks.get(i).join());
+			}
+			return merged;
+		} catch (RuntimeException e) {
+			// join() wraps the IOException a chunk may throw.
+			for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+				if (cause instanceof IOException) {
+					throw (IOException) cause;
+				}
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Map one chunk and parse it.  The chunk's lists are pre-sized from
+	 * the number of bytes; each v/vn/f line is typically 20-40 bytes and
+	 * yields 3 to 6 numbers, spread over the four lists.
+	 */
+	private static OBJParser parseChunk(FileChannel channel, long start, long end) throws IOException {
+		MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+		OBJParser chunk = new OBJParser((int) ((end - start) / 32), true);
+		chunk.parse(mapped);
+		return chunk;
+	}
+
+	/**
+	 * Split the file into chunks that each begin at the start of a line.
+	 *
+	 * @return  chunk boundaries; chunk i covers [bounds[i], bounds[i+1]).
+	 */
+	private static long[] chunkBounds(FileChannel channel, int parallelism) throws IOException {
+		long size = channel.size();
+		long target = size / Math.max(1, parallelism * CHUNKS_PER_THREAD);
+		target = Math.max(MIN_CHUNK, Math.min(MAX_CHUNK, target));
+		List<Long> bounds = new ArrayList<>();
+		bounds.add(0L);
+		long position = target;
+		ByteBuffer probe = ByteBuffer.allocate(PROBE_SIZE);
+		while (position < size) {
+			long lineStart = nextLineStart(channel, position, size, probe);
+			if (lineStart >= size) {
+				break;
+			}
+			bounds.add(lineStart);
+			position = lineStart + target;
+		}
+		bounds.add(size);
+		long[] result = new long[bounds.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = bounds.get(i);
+		}
+		return result;
+	}
+
+	/**
+	 * @return  the offset just past the first newline at or after position,
+	 *          or size if there is none.
+	 */
+	private static long nextLineStart(FileChannel channel, long position, long size, ByteBuffer probe)
+			throws IOException {
+		while (position < size) {
+			probe.clear();
+			int read = channel.read(probe, position);
+			if (read <= 0) {
+				break;
+			}
+			for (int i = 0; i < read; i++) {
+				if (probe.get(i) == '\n') {
+					return position + i + 1;
+				}
+			}
+			position += read;
+		}
+		return size;
+	}
+}
@@ -0,0 +1,150 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * A mesh read and packed off the rendering thread, ready to be copied to
+ * the GPU as is.
+ *
+ * <P>
+ * load does everything that does not need an OpenGL context: reading the
+ * OBJ file through the mesh cache, quantizing the vertices, building the
+ * levels of detail, building the triangles' bounding volume hierarchy and
+ * laying the vertices out as the mesh's VertexLayout says and the indices
+ * after them, in direct buffers exactly as they will sit in the mesh
+ * arena's buffers.  It
+ * is meant to run on a worker thread; the rendering thread only finds room
+ * in the arena and streams the bytes.  What load measured along the way
+ * is kept for the caller's report; load prints nothing itself.
+ */
+final class PreparedMesh {
+
+	/** The file name without its directory or .obj extension. */
+	final String name;
+	/** How vertexData is laid out. */
+	final VertexLayout layout;
+	/** The vertices, one buffer per stream of the layout. */
+	final ByteBuffer[] vertexData;
+	/**
+	 * The unsigned int indices of every level of detail, one after the
+	 * other, relative to the mesh's first vertex.
+	 */
+	final ByteBuffer indexData;
+	final int vertexCount;
+	final int indexCount;
+	/** position = stored position * positionScale + positionOffset. */
+	final float[] positionScale;
+	final float[] positionOffset;
+	final float[] boundsMin;
+	final float[] boundsMax;
+	final float[] boundingCenter;
+	final float boundingRadius;
+	final LodChain lods;
+	/** The full resolution triangles in model space, for picking and collisions. */
+	final MeshBVH bvh;
+	/** Milliseconds it took to build bvh. */
+	final double bvhMillis;
+	/** The largest quantization errors, all 0 for FLOAT vertices. */
+	final float maxPositionError;
+	final float maxNormalErrorDegrees;
+	final float maxTexCoordError;
+
+	private PreparedMesh(String name, VertexLayout layout, ByteBuffer[] vertexData, ByteBuffer indexData,
+			int vertexCount, float[] positionScale, float[] positionOffset, OBJinfo obj,
+			LodChain lods, MeshBVH bvh, double bvhMillis, float[] errors) {
+		this.name = name;
+		this.layout = layout;
+		this.vertexData = vertexData;
+		this.indexData = indexData;
+		this.vertexCount = vertexCount;
+		this.indexCount = lods.indices.length;
+		this.positionScale = positionScale;
+		this.positionOffset = positionOffset;
+		this.boundsMin = obj.getBoundingBoxMin();
+		this.boundsMax = obj.getBoundingBoxMax();
+		this.boundingCenter = obj.getBoundingSphereCenter();
+		this.boundingRadius = obj.getBoundingSphereRadius();
+		this.lods = lods;
+		this.bvh = bvh;
+		this.bvhMillis = bvhMillis;
+		this.maxPositionError = errors[0];
+		this.maxNormalErrorDegrees = errors[1];
+		this.maxTexCoordError = errors[2];
+	}
+
+	/**
+	 * Read and pack a mesh.  Safe to call from any thread.
+	 *
+	 * @param filename   the OBJ file.
+	 * @param optimize   reorder the mesh for the vertex caches when it is
+	 *                   first cached.
+	 * @param regenerateNormals  replace the file's normals with generated
+	 *                           smooth ones (see MeshNormals).
+	 * @param layout     how to store the vertices.
+	 * @param lodLevels  the most levels of detail to build.
+	 * @return  the packed mesh.
+	 */
+	static PreparedMesh load(String filename, boolean optimize, boolean regenerateNormals, VertexLayout layout,
+			int lodLevels) {
+		OBJinfo obj = new OBJinfo();
+		obj.setRegenerateNormals(regenerateNormals);
+		obj.readOBJFileCached(filename, optimize);
+		FloatBuffer vertexBuffer = obj.getIndexedVertexBuffer();
+		FloatBuffer normalBuffer = obj.getIndexedNormalBuffer();
+		FloatBuffer textureBuffer = obj.getIndexedTextureBuffer();
+
+		int vertexCount = vertexBuffer.capacity() / 4;
+		ByteBuffer[] vertexData;
+		float[] scale;
+		float[] offset;
+		// position, normal (degrees) and texture coordinate.
+		float[] errors = new float[3];
+		if (layout.format == VertexQuantizer.Format.FLOAT) {
+			// xyzw positions; arrange drops the w.
+			ByteBuffer positions = newBuffer(vertexBuffer.capacity(), 4);
+			positions.asFloatBuffer().put(vertexBuffer);
+			ByteBuffer normals = newBuffer(normalBuffer.capacity(), 4);
+			normals.asFloatBuffer().put(normalBuffer);
+			ByteBuffer texture = newBuffer(textureBuffer.capacity(), 4);
+			texture.asFloatBuffer().put(textureBuffer);
+			vertexData = layout.arrange(vertexCount, positions, normals, texture);
+			scale = new float[] { 1.0f, 1.0f, 1.0f };
+			offset = new float[] { 0.0f, 0.0f, 0.0f };
+		} else {
+			VertexQuantizer.Quantized packed = VertexQuantizer.quantize(layout.format, vertexBuffer, normalBuffer,
+					textureBuffer);
+			vertexData = layout.arrange(vertexCount, packed.positions, packed.normals, packed.texCoords);
+			scale = packed.scale;
+			offset = packed.offset;
+			errors[0] = packed.maxPositionError;
+			errors[1] = packed.maxNormalErrorDegrees;
+			errors[2] = packed.maxTexCoordError;
+		}
+
+		// level 0 comes straight from the mesh; the simplified levels
+		// follow it.  Every mesh in the arena shares one index type, so
+		// indices are always 32 bit here.
+		LodChain lods = LodChain.build(obj.getIndexedVertexList(), obj.getIndexList(), lodLevels,
+				obj.getBoundingSphereRadius() * 0.25f);
+		ByteBuffer indexData = newBuffer(lods.indices.length, 4);
+		indexData.asIntBuffer().put(lods.indices);
+
+		long bvhStart = System.nanoTime();
+		MeshBVH bvh = new MeshBVH(obj.getIndexedVertexList(), 4, obj.getIndexList());
+		double bvhMillis = (System.nanoTime() - bvhStart) / 1.0e6;
+		return new PreparedMesh(nameOf(filename), layout, vertexData, indexData, vertexCount, scale, offset, obj,
+				lods, bvh, bvhMillis, errors);
+	}
+
+	/**
+	 * @return  a file name without its directory or .obj extension.
+	 */
+	static String nameOf(String filename) {
+		String name = filename.substring(filename.lastIndexOf('/') + 1);
+		return name.endsWith(".obj") ? name.substring(0, name.length() - 4) : name;
+	}
+
+	private static ByteBuffer newBuffer(int elements, int elementSize) {
+		return ByteBuffer.allocateDirect(elements * elementSize).order(ByteOrder.nativeOrder());
+	}
+}
@@ -0,0 +1,112 @@
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * First fit allocation of runs of elements (vertices, indices, ...) from a
+ * pool of a fixed capacity.
+ *
+ * <P>
+ * Free runs are kept sorted by offset.  Freeing a run merges it with the
+ * free runs on either side, so the pool only fragments when runs in the
+ * middle are freed while their neighbours stay live.  Once the free space
+ * would hold a request but no single run does, the owner compacts its live
+ * runs and calls reset.
+ */
+final class RangeAllocator {
+
+	/** offset -> length of each free run. */
+	private final TreeMap<Integer, Integer> free = new TreeMap<>();
+	private int capacity;
+	private int used;
+
+	/**
+	 * @param capacity  the number of elements in the pool.
+	 */
+	RangeAllocator(int capacity) {
+		reset(0, capacity);
+	}
+
+	/**
+	 * Take a run of elements.
+	 *
+	 * @param length  how many.
+	 * @return  the offset of the first, or -1 if no free run is long
+	 *          enough.
+	 */
+	int allocate(int length) {
+		for (Map.Entry<Integer, Integer> run : free.entrySet()) {
+			if (run.getValue() >= length) {
+				// read both before removing: TreeMap may reuse the entry's
+				// node for its successor.
+				int offset = run.getKey();
+				int runLength = run.getValue();
+				free.remove(offset);
+				if (runLength > length) {
+					free.put(offset + length, runLength - length);
+				}
+				used += length;
+				return offset;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Give back a run taken with allocate.
+	 */
+	void free(int offset, int length) {
+		int start = offset;
+		int end = offset + length;
+		Map.Entry<Integer, Integer> before = free.floorEntry(offset);
+		if (before != null && before.getKey() + before.getValue() == offset) {
+			start = before.getKey();
+			free.remove(start);
+		}
+		Integer after = free.get(end);
+		if (after != null) {
+			free.remove(end);
+			end += after;
+		}
+		free.put(start, end - start);
+		used -= length;
+	}
+
+	/**
+	 * Forget every run: the first used elements are live and the rest, up
+	 * to the new capacity, are free.  Called after compacting or growing
+	 * the pool.
+	 */
+	void reset(int used, int capacity) {
+		this.used = used;
+		this.capacity = capacity;
+		free.clear();
+		if (capacity > used) {
+			free.put(used, capacity - used);
+		}
+	}
+
+	/**
+	 * @return  the length of the longest free run.
+	 */
+	int largestFree() {
+		int largest = 0;
+		for (int length : free.values()) {
+			largest = Math.max(largest, length);
+		}
+		return largest;
+	}
+
+	/**
+	 * @return  the number of elements in the pool.
+	 */
+	int capacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return  the number of elements in live runs.
+	 */
+	int used() {
+		return used;
+	}
+}
@@ -0,0 +1,33 @@
+/**
+ * The nearest hit found by a ray cast so far.  Start a cast with reset;
+ * the casts only accept hits closer than distance and overwrite the
+ * fields when they find one.
+ */
+final class RayHit {
+
+	/** How far along the ray, in multiples of its direction. */
+	float distance;
+	/** The triangle hit, an index into its mesh's triangles. */
+	int triangle;
+	/** The entity hit, or -1 for a cast against a single mesh. */
+	int entity;
+
+	/**
+	 * Forget any hit and only accept ones nearer than maxDistance.
+	 *
+	 * @return  this hit.
+	 */
+	RayHit reset(float maxDistance) {
+		distance = maxDistance;
+		triangle = -1;
+		entity = -1;
+		return this;
+	}
+
+	/**
+	 * @return  true once something has been hit.
+	 */
+	boolean found() {
+		return triangle >= 0;
+	}
+}
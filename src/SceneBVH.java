@@ -0,0 +1,308 @@
+import java.util.stream.IntStream;
+
+/**
+ * A bounding volume hierarchy over a run of an EntityStore's entities, for
+ * picking what is under a ray and finding what might be touching what.
+ *
+ * <P>
+ * Each entity's world box is its mesh's box carried through its modeling
+ * matrix (Arvo, "Transforming Axis-Aligned Bounding Boxes"), and the tree
+ * is built over those boxes once.  As the entities move, refit recomputes
+ * the boxes and the node bounds bottom up without changing the tree's
+ * shape, which costs a fraction of a rebuild and stays tight as long as
+ * entities wander around where they started -- as they do on their paths.
+ *
+ * <P>
+ * Ray casts walk this tree, then take the ray into each candidate's model
+ * space with the inverse of its matrix and walk the mesh's MeshBVH.  The
+ * direction is carried through unnormalized, so distances along the ray
+ * are the same in both spaces and hits on different entities compare
+ * directly.  Queries share scratch space, so they allocate nothing but
+ * may only be made from one thread at a time.
+ *
+ * <P>
+ * An entity whose mesh has no tree (it failed to load, say) keeps a
+ * point box at its origin so the tree can still be built, and every
+ * query passes it over.
+ */
+final class SceneBVH {
+
+	static final int MAX_LEAF = 2;
+
+	private final EntityStore entities;
+	private final MeshBVH[] meshes;
+	private final float[][] meshBounds;
+	private final int first;
+	private final int count;
+	/** World box of entity first + i at 6 * i. */
+	private final float[] boxes;
+	private final BVH tree;
+	private final float[] inverse = new float[12];
+	private final float[] shared = new float[6];
+	private final float[] local = new float[6];
+	private final float[] matrix = new float[16];
+	private final int[] stack;
+	private final int[] meshStack;
+
+	/**
+	 * Build the tree for entities first to end - 1 where they are now.
+	 *
+	 * @param meshes  the tree of each mesh id the entities use.
+	 */
+	SceneBVH(EntityStore entities, MeshBVH[] meshes, int first, int end) {
+		this.entities = entities;
+		this.meshes = meshes;
+		this.first = first;
+		this.count = end - first;
+		meshBounds = new float[meshes.length][];
+		for (int i = 0; i < meshes.length; i++) {
+			meshBounds[i] = meshes[i] == null ? null : meshes[i].bounds();
+		}
+		boxes = new float[count * 6];
+		computeBoxes();
+		tree = new BVH(boxes, MAX_LEAF);
+		stack = new int[tree.depth() + 1];
+		int meshStackSize = 0;
+		for (MeshBVH mesh : meshes) {
+			meshStackSize = Math.max(meshStackSize, mesh == null ? 0 : mesh.stackSize());
+		}
+		meshStack = new int[meshStackSize];
+	}
+
+	/**
+	 * Follow the entities to where they are now.  Large runs compute their
+	 * boxes in parallel chunks.
+	 */
+	void refit() {
+		computeBoxes();
+		tree.refit(boxes);
+	}
+
+	/**
+	 * Copy an entity's world box.
+	 *
+	 * @param box  min x, y, z, max x, y, z.
+	 */
+	void bounds(int entity, float[] box) {
+		System.arraycopy(boxes, (entity - first) * 6, box, 0, 6);
+	}
+
+	/**
+	 * Find the nearest triangle of any entity a world space ray hits.
+	 *
+	 * @param hit  as for MeshBVH.raycast; on a hit its entity is set too.
+	 * @return  true if a closer triangle was found.
+	 */
+	boolean raycast(float originX, float originY, float originZ, float directionX, float directionY,
+			float directionZ, RayHit hit) {
+		float inverseX = MeshBVH.inverse(directionX);
+		float inverseY = MeshBVH.inverse(directionY);
+		float inverseZ = MeshBVH.inverse(directionZ);
+		int top = 0;
+		boolean found = false;
+		stack[top++] = 0;
+		while (top > 0) {
+			int node = stack[--top];
+			if (tree.intersect(node, originX, originY, originZ, inverseX, inverseY, inverseZ,
+					hit.distance) == Float.POSITIVE_INFINITY) {
+				continue;
+			}
+			if (!tree.isLeaf(node)) {
+				stack[top++] = tree.start[node] + 1;
+				stack[top++] = tree.start[node];
+				continue;
+			}
+			for (int i = tree.start[node]; i < tree.start[node] + tree.count[node]; i++) {
+				int index = tree.primitives[i];
+				int entity = first + index;
+				if (meshes[entities.mesh[entity]] == null
+						|| BVH.intersect(boxes, index, originX, originY, originZ, inverseX, inverseY, inverseZ,
+								hit.distance) == Float.POSITIVE_INFINITY) {
+					continue;
+				}
+				float[] m = invert(entity);
+				float x = originX - m[9], y = originY - m[10], z = originZ - m[11];
+				if (meshes[entities.mesh[entity]].raycast(m[0] * x + m[3] * y + m[6] * z,
+						m[1] * x + m[4] * y + m[7] * z, m[2] * x + m[5] * y + m[8] * z,
+						m[0] * directionX + m[3] * directionY + m[6] * directionZ,
+						m[1] * directionX + m[4] * directionY + m[7] * directionZ,
+						m[2] * directionX + m[5] * directionY + m[8] * directionZ, hit, meshStack)) {
+					hit.entity = entity;
+					found = true;
+				}
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Find every entity whose world box overlaps a box.
+	 *
+	 * @param box    min x, y, z, max x, y, z.
+	 * @param found  the entities are appended here.
+	 * @return  the number appended.
+	 */
+	int overlaps(float[] box, IntList found) {
+		return overlaps(box, -1, found);
+	}
+
+	/**
+	 * Find the other entities whose world boxes overlap an entity's: the
+	 * candidates for collide.
+	 *
+	 * @param found  the entities are appended here.
+	 * @return  the number appended.
+	 */
+	int overlapping(int entity, IntList found) {
+		bounds(entity, local);
+		return overlaps(local, entity, found);
+	}
+
+	private int overlaps(float[] box, int exclude, IntList found) {
+		int top = 0;
+		int appended = 0;
+		stack[top++] = 0;
+		while (top > 0) {
+			int node = stack[--top];
+			if (!tree.overlaps(node, box)) {
+				continue;
+			}
+			if (!tree.isLeaf(node)) {
+				stack[top++] = tree.start[node] + 1;
+				stack[top++] = tree.start[node];
+				continue;
+			}
+			for (int i = tree.start[node]; i < tree.start[node] + tree.count[node]; i++) {
+				int entity = first + tree.primitives[i];
+				if (entity != exclude && meshes[entities.mesh[entity]] != null
+						&& BVH.overlaps(boxes, tree.primitives[i], box)) {
+					found.add(entity);
+					appended++;
+				}
+			}
+		}
+		return appended;
+	}
+
+	/**
+	 * Test whether two entities touch.  Their world boxes are intersected
+	 * and the result taken into each one's model space; they collide when
+	 * both meshes have a triangle inside that shared region.  Each
+	 * triangle test is exact, but the answer is conservative: two
+	 * triangles in the shared region need not touch each other.
+	 */
+	boolean collide(int a, int b) {
+		if (meshes[entities.mesh[a]] == null || meshes[entities.mesh[b]] == null) {
+			return false;
+		}
+		int baseA = (a - first) * 6;
+		int baseB = (b - first) * 6;
+		for (int axis = 0; axis < 3; axis++) {
+			shared[axis] = Math.max(boxes[baseA + axis], boxes[baseB + axis]);
+			shared[axis + 3] = Math.min(boxes[baseA + 3 + axis], boxes[baseB + 3 + axis]);
+			if (shared[axis] > shared[axis + 3]) {
+				return false;
+			}
+		}
+		return meshes[entities.mesh[a]].anyOverlaps(toModel(a, shared, local), meshStack)
+				&& meshes[entities.mesh[b]].anyOverlaps(toModel(b, shared, local), meshStack);
+	}
+
+	private void computeBoxes() {
+		if (count <= EntityStore.CHUNK) {
+			computeBoxes(0, count);
+			return;
+		}
+		IntStream.range(0, (count + EntityStore.CHUNK - 1) / EntityStore.CHUNK).parallel().forEach(chunk -> {
+			int from = chunk * EntityStore.CHUNK;
+			computeBoxes(from, Math.min(count, from + EntityStore.CHUNK));
+		});
+	}
+
+	private void computeBoxes(int from, int end) {
+		float[] transforms = entities.transforms;
+		for (int i = from; i < end; i++) {
+			int entity = first + i;
+			float[] bounds = meshBounds[entities.mesh[entity]];
+			if (bounds == null) {
+				for (int axis = 0; axis < 3; axis++) {
+					boxes[i * 6 + axis] = transforms[entity * 16 + 12 + axis];
+					boxes[i * 6 + 3 + axis] = transforms[entity * 16 + 12 + axis];
+				}
+				continue;
+			}
+			transformBox(transforms, entity * 16, bounds, boxes, i * 6);
+		}
+	}
+
+	/**
+	 * The box around a box carried through the affine matrix at
+	 * m[offset]: for each world axis, the translation plus the smaller
+	 * (larger) of each column's contribution at the box's min and max.
+	 *
+	 * @param box     min x, y, z, max x, y, z.
+	 * @param result  the transformed box is written at result[base].
+	 */
+	static void transformBox(float[] m, int offset, float[] box, float[] result, int base) {
+		for (int row = 0; row < 3; row++) {
+			float low = m[offset + 12 + row];
+			float high = low;
+			for (int column = 0; column < 3; column++) {
+				float element = m[offset + column * 4 + row];
+				float a = element * box[column];
+				float b = element * box[column + 3];
+				low += Math.min(a, b);
+				high += Math.max(a, b);
+			}
+			result[base + row] = low;
+			result[base + 3 + row] = high;
+		}
+	}
+
+	/*
+	 * A world box carried into an entity's model space.
+	 */
+	private float[] toModel(int entity, float[] box, float[] result) {
+		float[] m = invert(entity);
+		// the inverse as a column major 4x4 for transformBox.
+		for (int column = 0; column < 3; column++) {
+			matrix[column * 4] = m[column * 3];
+			matrix[column * 4 + 1] = m[column * 3 + 1];
+			matrix[column * 4 + 2] = m[column * 3 + 2];
+		}
+		for (int row = 0; row < 3; row++) {
+			matrix[12 + row] = -(m[row] * m[9] + m[3 + row] * m[10] + m[6 + row] * m[11]);
+		}
+		transformBox(matrix, 0, box, result, 0);
+		return result;
+	}
+
+	/*
+	 * The inverse of an entity's upper 3x3, column major in inverse[0..8],
+	 * followed by its translation in inverse[9..11]: model = inverse *
+	 * (world - translation).
+	 */
+	private float[] invert(int entity) {
+		float[] t = entities.transforms;
+		int o = entity * 16;
+		float a = t[o], b = t[o + 4], c = t[o + 8];
+		float d = t[o + 1], e = t[o + 5], f = t[o + 9];
+		float g = t[o + 2], h = t[o + 6], i = t[o + 10];
+		float c00 = e * i - f * h, c01 = f * g - d * i, c02 = d * h - e * g;
+		float determinant = a * c00 + b * c01 + c * c02;
+		float s = determinant == 0.0f ? 0.0f : 1.0f / determinant;
+		inverse[0] = c00 * s;
+		inverse[1] = c01 * s;
+		inverse[2] = c02 * s;
+		inverse[3] = (c * h - b * i) * s;
+		inverse[4] = (a * i - c * g) * s;
+		inverse[5] = (b * g - a * h) * s;
+		inverse[6] = (b * f - c * e) * s;
+		inverse[7] = (c * d - a * f) * s;
+		inverse[8] = (a * e - b * d) * s;
+		inverse[9] = t[o + 12];
+		inverse[10] = t[o + 13];
+		inverse[11] = t[o + 14];
+		return inverse;
+	}
+}
@@ -0,0 +1,235 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks of invariants that break without anything showing on screen
+ * until much later: each one drives a class the way the demo does,
+ * compares what it does with what it should, and reports the first
+ * difference.  Random checks use fixed seeds, so a failure names a trial
+ * and step that can be replayed.
+ *
+ * <P>
+ * Usage: java SelfCheck.  Prints each check's result and exits with
+ * status 1 if any failed.
+ */
+final class SelfCheck {
+
+	private interface Check {
+		void run();
+	}
+
+	private static int failures;
+
+	private SelfCheck() {
+	}
+
+	public static void main(String[] args) {
+		check("range allocator", SelfCheck::rangeAllocator);
+		check("entity placement", SelfCheck::entityPlacement);
+		check("clustered lights allocate nothing", SelfCheck::clusteredLightsAllocation);
+		check("scene transforms", SelfCheck::sceneTransforms);
+		if (failures > 0) {
+			System.out.println(failures + " failed");
+			System.exit(1);
+		}
+		System.out.println("all passed");
+	}
+
+	private static void check(String name, Check check) {
+		try {
+			check.run();
+			System.out.println("ok    " + name);
+		} catch (IllegalStateException e) {
+			System.out.println("FAIL  " + name + ": " + e.getMessage());
+			failures++;
+		}
+	}
+
+	private static void require(boolean condition, String message) {
+		if (!condition) {
+			throw new IllegalStateException(message);
+		}
+	}
+
+	/*
+	 * Random allocates and frees: no two live runs may overlap or leave
+	 * the pool, and freeing everything must merge the pool back into one
+	 * run.
+	 */
+	private static void rangeAllocator() {
+		final int capacity = 1000;
+		for (int trial = 0; trial < 200; trial++) {
+			Random random = new Random(trial);
+			RangeAllocator allocator = new RangeAllocator(capacity);
+			// offset and length of each live run.
+			List<int[]> live = new ArrayList<>();
+			for (int step = 0; step < 500; step++) {
+				if (live.isEmpty() || random.nextInt(3) != 0) {
+					int length = 1 + random.nextInt(64);
+					int offset = allocator.allocate(length);
+					if (offset < 0) {
+						continue;
+					}
+					require(offset + length <= capacity, "trial " + trial + " step " + step + " run " + offset
+							+ "+" + length + " leaves the pool");
+					for (int[] run : live) {
+						require(offset + length <= run[0] || run[0] + run[1] <= offset, "trial " + trial
+								+ " step " + step + " run " + offset + "+" + length + " overlaps " + run[0] + "+"
+								+ run[1]);
+					}
+					live.add(new int[] { offset, length });
+				} else {
+					int[] run = live.remove(random.nextInt(live.size()));
+					allocator.free(run[0], run[1]);
+				}
+			}
+			for (int[] run : live) {
+				allocator.free(run[0], run[1]);
+			}
+			require(allocator.used() == 0, "trial " + trial + " has " + allocator.used() + " used after freeing all");
+			require(allocator.largestFree() == capacity, "trial " + trial + " frees back into runs of at most "
+					+ allocator.largestFree());
+		}
+	}
+
+	/*
+	 * A turned entity stays at its base position, and only its path is
+	 * turned and scaled: the crowd's grid and the cow's figure eight as
+	 * they were drawn before the entity store.
+	 */
+	private static void entityPlacement() {
+		EntityStore entities = new EntityStore(2);
+		int still = entities.add(0, 10.0f, -4.0f, 0.0f, (float) Math.toDegrees(2.3999632f), 1.0f);
+		int moving = entities.add(0, 1.0f, 0.0f, 2.0f, 90.0f, 2.0f);
+		entities.setPath(moving, 5.0f, 5.0f, 1.0f, 0.0f);
+		float t = 0.3f;
+		entities.updateRange(t, 0, entities.count());
+		requireTranslation(entities, still, 10.0f, -4.0f, 0.0f);
+		// Ry(90) takes x to -z and z to x.
+		float offsetX = (float) (5.0 * Math.sin(t + Math.PI / 2.0));
+		float offsetZ = (float) (5.0 * Math.sin(2.0 * t));
+		requireTranslation(entities, moving, 1.0f + 2.0f * offsetZ, 0.0f, 2.0f - 2.0f * offsetX);
+	}
+
+	private static void requireTranslation(EntityStore entities, int entity, float x, float y, float z) {
+		float[] m = entities.transforms;
+		int base = entity * 16;
+		require(Math.abs(m[base + 12] - x) < 1.0e-4f && Math.abs(m[base + 13] - y) < 1.0e-4f
+				&& Math.abs(m[base + 14] - z) < 1.0e-4f, "entity " + entity + " is at (" + m[base + 12] + ", "
+				+ m[base + 13] + ", " + m[base + 14] + "), not (" + x + ", " + y + ", " + z + ")");
+	}
+
+	/*
+	 * Building the clusters each frame for the demo's 1024 lights
+	 * allocates nothing once the arrays have grown to fit.
+	 */
+	private static void clusteredLightsAllocation() {
+		if (!AllocationMeter.isSupported()) {
+			throw new IllegalStateException("this JVM cannot count allocations");
+		}
+		int count = 1024;
+		ClusteredLights clusters = new ClusteredLights(16, 9, 24, 1.0f, 200.0f);
+		float[] lights = new float[count * ClusteredLights.LIGHT_FLOATS];
+		Random random = new Random(1);
+		for (int light = 0; light < count; light++) {
+			int base = light * ClusteredLights.LIGHT_FLOATS;
+			lights[base] = random.nextFloat() * 40.0f - 20.0f;
+			lights[base + 1] = random.nextFloat() * 10.0f - 5.0f;
+			lights[base + 2] = random.nextFloat() * 40.0f - 20.0f;
+			lights[base + 3] = 2.0f;
+		}
+		// looking down -z from z = 25 through a 60 degree perspective.
+		float[] viewing = { 1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1, 0, 0, 0, -25, 1 };
+		float f = (float) (1.0 / Math.tan(Math.toRadians(30.0)));
+		float[] projection = { f / 1.6f, 0, 0, 0, 0, f, 0, 0, 0, 0, -1.01f, -1, 0, 0, -2.01f, 0 };
+		for (int frame = 0; frame < 200; frame++) {
+			clusters.build(lights, count, viewing, projection);
+		}
+		long before = AllocationMeter.allocatedBytes();
+		for (int frame = 0; frame < 100; frame++) {
+			clusters.build(lights, count, viewing, projection);
+		}
+		long allocated = AllocationMeter.allocatedBytes() - before;
+		require(allocated == 0, "100 builds of " + count + " lights allocated " + allocated + " bytes");
+	}
+
+	/*
+	 * The per-frame scene path of the demo -- moving the entities, refitting
+	 * and querying the scene BVH, copying each matrix and culling and
+	 * lighting it -- takes the rigid normal matrix path and allocates
+	 * nothing once warmed up.
+	 */
+	private static void sceneTransforms() {
+		if (!AllocationMeter.isSupported()) {
+			throw new IllegalStateException("this JVM cannot count allocations");
+		}
+		// a unit cube, xyzw corners.
+		float[] corners = new float[32];
+		for (int corner = 0; corner < 8; corner++) {
+			corners[corner * 4] = (corner & 1) == 0 ? -0.5f : 0.5f;
+			corners[corner * 4 + 1] = (corner & 2) == 0 ? -0.5f : 0.5f;
+			corners[corner * 4 + 2] = (corner & 4) == 0 ? -0.5f : 0.5f;
+			corners[corner * 4 + 3] = 1.0f;
+		}
+		int[] faces = { 0, 2, 1, 1, 2, 3, 4, 5, 6, 5, 7, 6, 0, 1, 4, 1, 5, 4, 2, 6, 3, 3, 6, 7, 0, 4, 2, 2, 4,
+				6, 1, 3, 5, 3, 7, 5 };
+		MeshBVH cube = new MeshBVH(corners, 4, faces);
+		MeshBVH[] meshes = { cube, cube, cube };
+		float[] min = { -0.5f, -0.5f, -0.5f };
+		float[] max = { 0.5f, 0.5f, 0.5f };
+		float[] center = new float[3];
+		float radius = (float) Math.sqrt(0.75);
+
+		EntityStore entities = new EntityStore(3);
+		entities.setPath(entities.add(0, 0.0f, 0.0f, 0.0f, 30.0f, 1.0f), 5.0f, 5.0f, 1.0f, 0.0f);
+		entities.add(1, -2.0f, 0.0f, 0.0f, 0.0f, 1.0f);
+		entities.add(2, 2.0f, 0.0f, 0.0f, 0.0f, 1.0f);
+		entities.update(0.0f, 0, entities.count());
+		SceneBVH scene = new SceneBVH(entities, meshes, 0, entities.count());
+		IntList candidates = new IntList(8);
+		Frustum frustum = new Frustum();
+		float[] viewing = { 1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1, 0, 0, 0, -25, 1 };
+		float[] projection = { 1.5f, 0, 0, 0, 0, 1.5f, 0, 0, 0, 0, -1.01f, -1, 0, 0, -2.01f, 0 };
+		Matrix4 model = new Matrix4();
+		Matrix4 normal = new Matrix4();
+		Matrix4 general = new Matrix4();
+		Matrix4 inverseTranspose = new Matrix4();
+
+		long before = 0;
+		long sink = 0;
+		for (int frame = 0; frame < 4000; frame++) {
+			if (frame == 2000) {
+				before = AllocationMeter.allocatedBytes();
+			}
+			entities.update(frame * 0.01f, 0, entities.count());
+			scene.refit();
+			candidates.clear();
+			scene.overlapping(0, candidates);
+			for (int i = 0; i < candidates.size(); i++) {
+				sink += scene.collide(0, candidates.get(i)) ? 1 : 0;
+			}
+			frustum.update(projection, viewing);
+			for (int entity = 0; entity < entities.count(); entity++) {
+				model.set(entities.transforms, entity * 16, entities.type(entity));
+				sink += frustum.intersects(model.m, min, max, center, radius) ? 1 : 0;
+				// the message is only built on failure, which would allocate.
+				if (model.normalMatrix(normal).type() != Matrix4.RIGID) {
+					require(false, "entity " + entity + " took the type " + normal.type() + " normal matrix path");
+				}
+			}
+		}
+		long allocated = AllocationMeter.allocatedBytes() - before;
+		require(allocated == 0, "2000 frames allocated " + allocated + " bytes (sink " + sink + ")");
+
+		// the rigid path gives what the full inverse transpose does.
+		for (int entity = 0; entity < entities.count(); entity++) {
+			model.set(entities.transforms, entity * 16, entities.type(entity)).normalMatrix(normal);
+			general.set(entities.transforms, entity * 16).normalMatrix(inverseTranspose);
+			for (int i = 0; i < 16; i++) {
+				require(Math.abs(normal.m[i] - inverseTranspose.m[i]) < 1.0e-5f, "entity " + entity
+						+ " normal matrix element " + i + " is " + normal.m[i] + ", not " + inverseTranspose.m[i]);
+			}
+		}
+	}
+}
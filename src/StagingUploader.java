@@ -0,0 +1,145 @@
+import com.jogamp.opengl.GL2ES3;
+import com.jogamp.opengl.GL4;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Streams data into GPU buffers through one persistently mapped staging
+ * buffer.
+ *
+ * <P>
+ * The staging buffer is created with glBufferStorage and mapped once,
+ * persistent and coherent, so writing to it is a plain memory copy with no
+ * map or unmap per upload.  It is split into segments used round robin: a
+ * chunk of data is copied into a segment, glCopyBufferSubData moves it on
+ * the GPU into its destination, and a fence marks when the segment may be
+ * written again.  A segment whose fence has not signalled is never waited
+ * for -- the upload stops and carries on next frame -- and no more than
+ * frameBudget bytes are copied per frame, so streaming a large model cannot
+ * stall the frame that is being drawn.
+ */
+final class StagingUploader {
+
+	private final int segmentSize;
+	private final int frameBudget;
+	private final long[] fences;
+
+	private GpuMemory memory;
+	private int buffer;
+	private ByteBuffer mapped;
+	private int next;
+	private int usedThisFrame;
+	private long bytesUploaded;
+
+	/**
+	 * @param segmentSize  bytes per segment, the largest single copy.
+	 * @param segments     number of segments in the staging buffer.
+	 * @param frameBudget  the most bytes to copy in one frame.
+	 */
+	StagingUploader(int segmentSize, int segments, int frameBudget) {
+		this.segmentSize = segmentSize;
+		this.frameBudget = frameBudget;
+		fences = new long[segments];
+	}
+
+	/**
+	 * Create and map the staging buffer.
+	 *
+	 * @param memory  where the buffer comes from; dispose gives it back.
+	 */
+	void init(GL4 gl, GpuMemory memory) {
+		int flags = GL4.GL_MAP_WRITE_BIT | GL4.GL_MAP_PERSISTENT_BIT | GL4.GL_MAP_COHERENT_BIT;
+		long size = (long) segmentSize * fences.length;
+		this.memory = memory;
+		buffer = memory.createStorage(gl, "staging", fences.length + " segments", size, null, flags);
+		gl.glBindBuffer(GL2ES3.GL_COPY_READ_BUFFER, buffer);
+		mapped = gl.glMapBufferRange(GL2ES3.GL_COPY_READ_BUFFER, 0L, size, flags);
+		gl.glBindBuffer(GL2ES3.GL_COPY_READ_BUFFER, 0);
+	}
+
+	/**
+	 * Start a new frame's budget.
+	 */
+	void beginFrame() {
+		usedThisFrame = 0;
+	}
+
+	/**
+	 * Copy as much of the source as this frame allows into a buffer.  The
+	 * source's position advances past what was sent, so calling again with
+	 * the same buffer next frame carries on where this call stopped.
+	 *
+	 * @param gl           opengl context.
+	 * @param source       the data; byte i goes to destinationOffset + i.
+	 * @param destination  name of the buffer to fill.
+	 * @param destinationOffset  where in the destination byte 0 of the
+	 *                     source goes.
+	 * @return  true once all of the source has been sent.
+	 */
+	boolean upload(GL4 gl, ByteBuffer source, int destination, long destinationOffset) {
+		boolean bound = false;
+		while (source.hasRemaining() && usedThisFrame < frameBudget) {
+			long fence = fences[next];
+			if (fence != 0L) {
+				int status = gl.glClientWaitSync(fence, 0, 0L);
+				if (status == GL2ES3.GL_TIMEOUT_EXPIRED) {
+					break; // the GPU is still reading this segment.
+				}
+				gl.glDeleteSync(fence);
+				fences[next] = 0L;
+			}
+			if (!bound) {
+				gl.glBindBuffer(GL2ES3.GL_COPY_READ_BUFFER, buffer);
+				gl.glBindBuffer(GL2ES3.GL_COPY_WRITE_BUFFER, destination);
+				bound = true;
+			}
+			int chunk = Math.min(source.remaining(), Math.min(segmentSize, frameBudget - usedThisFrame));
+			int segmentOffset = next * segmentSize;
+			long target = destinationOffset + source.position();
+			int limit = source.limit();
+			source.limit(source.position() + chunk);
+			mapped.clear();
+			mapped.position(segmentOffset);
+			mapped.put(source);
+			source.limit(limit);
+			gl.glCopyBufferSubData(GL2ES3.GL_COPY_READ_BUFFER, GL2ES3.GL_COPY_WRITE_BUFFER, segmentOffset, target,
+					chunk);
+			fences[next] = gl.glFenceSync(GL2ES3.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+			next = (next + 1) % fences.length;
+			usedThisFrame += chunk;
+			bytesUploaded += chunk;
+		}
+		if (bound) {
+			gl.glBindBuffer(GL2ES3.GL_COPY_READ_BUFFER, 0);
+			gl.glBindBuffer(GL2ES3.GL_COPY_WRITE_BUFFER, 0);
+		}
+		return !source.hasRemaining();
+	}
+
+	/**
+	 * @return  the bytes sent since the uploader was created.
+	 */
+	long bytesUploaded() {
+		return bytesUploaded;
+	}
+
+	/**
+	 * Unmap and delete the staging buffer and any fences still pending.
+	 */
+	void dispose(GL4 gl) {
+		for (int i = 0; i < fences.length; i++) {
+			if (fences[i] != 0L) {
+				gl.glDeleteSync(fences[i]);
+				fences[i] = 0L;
+			}
+		}
+		if (buffer != 0) {
+			gl.glBindBuffer(GL2ES3.GL_COPY_READ_BUFFER, buffer);
+			gl.glUnmapBuffer(GL2ES3.GL_COPY_READ_BUFFER);
+			gl.glBindBuffer(GL2ES3.GL_COPY_READ_BUFFER, 0);
+			memory.deleteBuffer(gl, buffer);
+			buffer = 0;
+			mapped = null;
+		}
+	}
+}
@@ -0,0 +1,283 @@
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads OBJ files of any size in a fixed amount of heap, handing the
+ * expanded triangles to a consumer a batch at a time.
+ *
+ * <P>
+ * Faces may refer to any vertex in the file, so the file is read twice.
+ * The first pass parses it a block at a time with OBJParser and spills
+ * every position and normal, as binary floats, to temporary files; the
+ * second parses it again and expands each face by looking its corners up
+ * in memory mappings of those files.  The expanded corners are laid out
+ * the way OBJinfo.getVertexList and getNormalList lay them out -- xyzw
+ * and xyz per corner -- in direct buffers that are filled and handed on
+ * every batchTriangles triangles and then reused.  The parser's lists
+ * are emptied after every block, so the heap holds one block's worth of
+ * numbers whatever the size of the model; the spilled data lives in the
+ * operating system's page cache, not on the heap.
+ *
+ * <P>
+ * Faces without normals get their face normal, since smoothing them
+ * (see MeshNormals) needs every triangle at once.  Texture coordinates
+ * are not expanded, as in OBJinfo.
+ */
+final class StreamingOBJLoader {
+
+	/** Triangles per batch when the caller does not say. */
+	static final int DEFAULT_BATCH = 1 << 16;
+
+	/* floats per mapping of a spill file, 1 GB. */
+	private static final int SEGMENT_SHIFT = 28;
+
+	/* bytes gathered before they are written to a spill file. */
+	private static final int SPILL_BUFFER = 1 << 20;
+
+	/**
+	 * Receives the expanded triangles.
+	 */
+	interface BatchConsumer {
+		/**
+		 * Called once, after the first pass and before any batch -- to
+		 * size or map the buffers the batches go into, say.
+		 *
+		 * @param triangles  the number of triangles that will follow.
+		 */
+		default void begin(long triangles) throws IOException {
+		}
+
+		/**
+		 * Take a batch.  The buffers are only valid during the call.
+		 *
+		 * @param vertices   xyzw of each corner, three corners per triangle.
+		 * @param normals    xyz of each corner.
+		 * @param triangles  the number of triangles in the batch.
+		 */
+		void accept(FloatBuffer vertices, FloatBuffer normals, int triangles) throws IOException;
+	}
+
+	private StreamingOBJLoader() {
+	}
+
+	/**
+	 * Stream a file in batches of DEFAULT_BATCH triangles.
+	 *
+	 * @return  the number of triangles streamed.
+	 */
+	static long load(String filename, BatchConsumer consumer) throws IOException {
+		return load(filename, DEFAULT_BATCH, consumer);
+	}
+
+	/**
+	 * Stream a file.
+	 *
+	 * @param filename        the OBJ file.
+	 * @param batchTriangles  the most triangles per batch.
+	 * @param consumer        where the batches go.
+	 * @return  the number of triangles streamed.
+	 * @throws IOException  if the file cannot be read, a face refers to a
+	 *                      vertex or normal the file does not have, or the
+	 *                      consumer throws it.
+	 */
+	static long load(String filename, int batchTriangles, BatchConsumer consumer) throws IOException {
+		Path directory = Files.createTempDirectory("obj-stream");
+		Path positionFile = directory.resolve("positions");
+		Path normalFile = directory.resolve("normals");
+		try (FileChannel positions = spillChannel(positionFile); FileChannel normals = spillChannel(normalFile)) {
+			long[] counts = spill(filename, positions, normals);
+			consumer.begin(counts[2]);
+			return expand(filename, new MappedFloats(positions, counts[0] * 3),
+					new MappedFloats(normals, counts[1] * 3), batchTriangles, consumer);
+		} finally {
+			Files.deleteIfExists(directory);
+		}
+	}
+
+	/**
+	 * A consumer that appends every batch to two buffers, such as ranges
+	 * of GPU buffers mapped with glMapBufferRange or a mapped file.  The
+	 * buffers need room for 48 and 36 bytes per triangle.
+	 *
+	 * @param vertices  where the xyzw corners go.
+	 * @param normals   where the xyz normals go.
+	 */
+	static BatchConsumer into(ByteBuffer vertices, ByteBuffer normals) {
+		FloatBuffer vertexTarget = vertices.duplicate().order(ByteOrder.nativeOrder()).asFloatBuffer();
+		FloatBuffer normalTarget = normals.duplicate().order(ByteOrder.nativeOrder()).asFloatBuffer();
+		return (batchVertices, batchNormals, triangles) -> {
+			vertexTarget.put(batchVertices);
+			normalTarget.put(batchNormals);
+		};
+	}
+
+	private static FileChannel spillChannel(Path file) throws IOException {
+		return FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+	}
+
+	/*
+	 * First pass: write every position and normal to the spill files.
+	 * Returns the number of positions, normals and triangles.
+	 */
+	private static long[] spill(String filename, FileChannel positions, FileChannel normals) throws IOException {
+		OBJParser parser = new OBJParser(1 << 14);
+		ByteBuffer positionBuffer = ByteBuffer.allocateDirect(SPILL_BUFFER).order(ByteOrder.nativeOrder());
+		ByteBuffer normalBuffer = ByteBuffer.allocateDirect(SPILL_BUFFER).order(ByteOrder.nativeOrder());
+		long[] counts = new long[3];
+		try (InputStream in = new FileInputStream(filename)) {
+			parser.parse(in, () -> {
+				counts[0] += parser.vertices.size() / 3;
+				counts[1] += parser.normals.size() / 3;
+				counts[2] += parser.triangles.size() / 6;
+				write(parser.vertices, positionBuffer, positions);
+				write(parser.normals, normalBuffer, normals);
+				parser.discard();
+			});
+		}
+		flush(positionBuffer, positions);
+		flush(normalBuffer, normals);
+		return counts;
+	}
+
+	private static void write(FloatList values, ByteBuffer buffer, FileChannel channel) throws IOException {
+		float[] array = values.array();
+		for (int i = 0; i < values.size(); i++) {
+			if (!buffer.hasRemaining()) {
+				flush(buffer, channel);
+			}
+			buffer.putFloat(array[i]);
+		}
+	}
+
+	private static void flush(ByteBuffer buffer, FileChannel channel) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	/*
+	 * Second pass: expand the faces a block at a time into the batch
+	 * buffers, handing them on whenever they fill up.
+	 */
+	private static long expand(String filename, MappedFloats positions, MappedFloats normals, int batchTriangles,
+			BatchConsumer consumer) throws IOException {
+		OBJParser parser = new OBJParser(1 << 14);
+		FloatBuffer vertexBatch = ByteBuffer.allocateDirect(batchTriangles * 3 * 4 * 4)
+				.order(ByteOrder.nativeOrder()).asFloatBuffer();
+		FloatBuffer normalBatch = ByteBuffer.allocateDirect(batchTriangles * 3 * 3 * 4)
+				.order(ByteOrder.nativeOrder()).asFloatBuffer();
+		long[] streamed = new long[1];
+		float[] face = new float[3];
+		try (InputStream in = new FileInputStream(filename)) {
+			parser.parse(in, () -> {
+				int[] triangles = parser.triangles.array();
+				for (int current = 0; current < parser.triangles.size(); current += 6) {
+					if (triangles[current + 3] == 0) {
+						faceNormal(positions, triangles, current, face);
+					}
+					for (int coord = 0; coord < 3; coord++) {
+						long vertex = (triangles[current + coord] - 1L) * 3;
+						if (vertex < 0 || vertex >= positions.count) {
+							throw new IOException(filename + ": face refers to vertex "
+									+ triangles[current + coord] + " of " + positions.count / 3);
+						}
+						vertexBatch.put(positions.get(vertex)).put(positions.get(vertex + 1))
+								.put(positions.get(vertex + 2)).put(1.0f);
+						if (triangles[current + 3] == 0) {
+							normalBatch.put(face);
+							continue;
+						}
+						long normal = (triangles[current + coord + 3] - 1L) * 3;
+						if (normal < 0 || normal >= normals.count) {
+							throw new IOException(filename + ": face refers to normal "
+									+ triangles[current + coord + 3] + " of " + normals.count / 3);
+						}
+						normalBatch.put(normals.get(normal)).put(normals.get(normal + 1))
+								.put(normals.get(normal + 2));
+					}
+					if (!vertexBatch.hasRemaining()) {
+						streamed[0] += handOn(vertexBatch, normalBatch, consumer);
+					}
+				}
+				parser.discard();
+			});
+		}
+		if (vertexBatch.position() > 0) {
+			streamed[0] += handOn(vertexBatch, normalBatch, consumer);
+		}
+		return streamed[0];
+	}
+
+	private static int handOn(FloatBuffer vertexBatch, FloatBuffer normalBatch, BatchConsumer consumer)
+			throws IOException {
+		int triangles = vertexBatch.position() / 12;
+		vertexBatch.flip();
+		normalBatch.flip();
+		consumer.accept(vertexBatch, normalBatch, triangles);
+		vertexBatch.clear();
+		normalBatch.clear();
+		return triangles;
+	}
+
+	/*
+	 * The unit normal of a face as it is wound, or +y if it has no area.
+	 */
+	private static void faceNormal(MappedFloats positions, int[] triangles, int current, float[] normal) {
+		long a = (triangles[current] - 1L) * 3;
+		long b = (triangles[current + 1] - 1L) * 3;
+		long c = (triangles[current + 2] - 1L) * 3;
+		normal[0] = 0.0f;
+		normal[1] = 1.0f;
+		normal[2] = 0.0f;
+		if (a < 0 || b < 0 || c < 0 || a >= positions.count || b >= positions.count || c >= positions.count) {
+			return; // reported when the corners are looked up.
+		}
+		float ux = positions.get(b) - positions.get(a), uy = positions.get(b + 1) - positions.get(a + 1),
+				uz = positions.get(b + 2) - positions.get(a + 2);
+		float vx = positions.get(c) - positions.get(a), vy = positions.get(c + 1) - positions.get(a + 1),
+				vz = positions.get(c + 2) - positions.get(a + 2);
+		float x = uy * vz - uz * vy, y = uz * vx - ux * vz, z = ux * vy - uy * vx;
+		double length = Math.sqrt(x * x + y * y + z * z);
+		if (length > 0.0) {
+			normal[0] = (float) (x / length);
+			normal[1] = (float) (y / length);
+			normal[2] = (float) (z / length);
+		}
+	}
+
+	/**
+	 * A spill file read through mappings of at most 2^SEGMENT_SHIFT
+	 * floats each, since one mapping cannot exceed 2 GB.
+	 */
+	private static final class MappedFloats {
+		final long count;
+		private final FloatBuffer[] segments;
+
+		MappedFloats(FileChannel channel, long count) throws IOException {
+			this.count = count;
+			segments = new FloatBuffer[(int) ((count + (1L << SEGMENT_SHIFT) - 1) >> SEGMENT_SHIFT)];
+			for (int i = 0; i < segments.length; i++) {
+				long first = (long) i << SEGMENT_SHIFT;
+				long floats = Math.min(1L << SEGMENT_SHIFT, count - first);
+				MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, first * 4, floats * 4);
+				segments[i] = mapped.order(ByteOrder.nativeOrder()).asFloatBuffer();
+			}
+		}
+
+		float get(long index) {
+			return segments[(int) (index >> SEGMENT_SHIFT)].get((int) (index & ((1L << SEGMENT_SHIFT) - 1)));
+		}
+	}
+}
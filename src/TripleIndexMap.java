@@ -0,0 +1,95 @@
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map from a triple of ints to an int.  The OBJ
+ * loader uses it to find the unique (position, normal, texture) index
+ * combinations of a mesh without creating a key object per face corner.
+ * Keys and values live in flat primitive arrays and the table is probed
+ * linearly.
+ */
+final class TripleIndexMap {
+
+	private static final int EMPTY = -1;
+
+	private int[] keys;
+	private int[] values;
+	private int mask;
+	private int size;
+
+	/**
+	 * Create a map that can hold the expected number of entries without
+	 * rehashing.
+	 *
+	 * @param expected  the expected number of distinct keys.
+	 */
+	TripleIndexMap(int expected) {
+		int capacity = Integer.highestOneBit(Math.max(4, expected * 2 - 1)) << 1;
+		allocate(capacity);
+	}
+
+	/**
+	 * Look up a key and add it with the given value if it is not present.
+	 *
+	 * @param a      first part of the key.
+	 * @param b      second part of the key.
+	 * @param c      third part of the key.
+	 * @param value  the value stored if the key is new.
+	 * @return  the value already stored for the key, or value if it was
+	 *          added by this call.
+	 */
+	int putIfAbsent(int a, int b, int c, int value) {
+		int slot = hash(a, b, c) & mask;
+		while (values[slot] != EMPTY) {
+			int key = slot * 3;
+			if (keys[key] == a && keys[key + 1] == b && keys[key + 2] == c) {
+				return values[slot];
+			}
+			slot = (slot + 1) & mask;
+		}
+		int key = slot * 3;
+		keys[key] = a;
+		keys[key + 1] = b;
+		keys[key + 2] = c;
+		values[slot] = value;
+		if (++size * 2 > values.length) {
+			rehash();
+		}
+		return value;
+	}
+
+	int size() {
+		return size;
+	}
+
+	private static int hash(int a, int b, int c) {
+		int h = a * 0x9E3779B9 + b * 0x85EBCA6B + c * 0xC2B2AE35;
+		return h ^ (h >>> 16);
+	}
+
+	private void allocate(int capacity) {
+		keys = new int[capacity * 3];
+		values = new int[capacity];
+		Arrays.fill(values, EMPTY);
+		mask = capacity - 1;
+	}
+
+	private void rehash() {
+		int[] oldKeys = keys;
+		int[] oldValues = values;
+		allocate(oldValues.length * 2);
+		for (int slot = 0; slot < oldValues.length; slot++) {
+			if (oldValues[slot] != EMPTY) {
+				int key = slot * 3;
+				int a = oldKeys[key], b = oldKeys[key + 1], c = oldKeys[key + 2];
+				int target = hash(a, b, c) & mask;
+				while (values[target] != EMPTY) {
+					target = (target + 1) & mask;
+				}
+				keys[target * 3] = a;
+				keys[target * 3 + 1] = b;
+				keys[target * 3 + 2] = c;
+				values[target] = oldValues[slot];
+			}
+		}
+	}
+}
@@ -0,0 +1,167 @@
+import com.jogamp.opengl.GL;
+import com.jogamp.opengl.GL2ES3;
+import com.jogamp.opengl.GL4;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Where each vertex attribute of a mesh sits in its vertex buffers: the
+ * one description the mesh packer, the arena and the VAO setup all work
+ * from.
+ *
+ * <P>
+ * Every mesh has a position, a normal and a texture coordinate, encoded
+ * as its VertexQuantizer.Format says.  A planar layout keeps each
+ * attribute in a stream (buffer) of its own; an interleaved one puts all
+ * three of a vertex's attributes next to each other in a single stream,
+ * so the vertex fetch for one vertex touches one cache line instead of
+ * three.  FLOAT vertices take 32 bytes (the position's constant w is
+ * dropped -- the attribute defaults it to 1.0) and the packed formats 16.
+ *
+ * <P>
+ * Attributes are numbered POSITION, NORMAL and TEXCOORD.  Their data is
+ * handed to arrange tightly packed, one buffer per attribute, except that
+ * FLOAT positions may come as the xyzw groups OBJinfo keeps.
+ */
+final class VertexLayout {
+
+	static final int POSITION = 0, NORMAL = 1, TEXCOORD = 2;
+	private static final int ATTRIBUTES = 3;
+	private static final String[] NAMES = { "positions", "normals", "texture coordinates" };
+
+	final VertexQuantizer.Format format;
+	final boolean interleaved;
+
+	private final int[] components = new int[ATTRIBUTES];
+	private final int[] types = new int[ATTRIBUTES];
+	private final boolean[] normalized = new boolean[ATTRIBUTES];
+	private final int[] sizes = new int[ATTRIBUTES];
+	private final int[] offsets = new int[ATTRIBUTES];
+	private final int[] strides;
+
+	/**
+	 * @param format       how each attribute is encoded.
+	 * @param interleaved  true for one stream, false for one per attribute.
+	 */
+	VertexLayout(VertexQuantizer.Format format, boolean interleaved) {
+		this.format = format;
+		this.interleaved = interleaved;
+		if (format == VertexQuantizer.Format.FLOAT) {
+			set(POSITION, 3, GL.GL_FLOAT, false, 12);
+			set(NORMAL, 3, GL.GL_FLOAT, false, 12);
+			set(TEXCOORD, 2, GL.GL_FLOAT, false, 8);
+		} else {
+			// xyz plus a padding value that is not read.
+			set(POSITION, 3, format == VertexQuantizer.Format.HALF_FLOAT ? GL2ES3.GL_HALF_FLOAT : GL.GL_SHORT,
+					format == VertexQuantizer.Format.SNORM16, VertexQuantizer.POSITION_STRIDE);
+			set(NORMAL, 4, GL2ES3.GL_INT_2_10_10_10_REV, true, VertexQuantizer.NORMAL_STRIDE);
+			set(TEXCOORD, 2, GL2ES3.GL_HALF_FLOAT, false, VertexQuantizer.TEXCOORD_STRIDE);
+		}
+		strides = new int[interleaved ? 1 : ATTRIBUTES];
+		for (int attribute = 0; attribute < ATTRIBUTES; attribute++) {
+			int stream = stream(attribute);
+			offsets[attribute] = strides[stream];
+			strides[stream] += sizes[attribute];
+		}
+	}
+
+	private void set(int attribute, int count, int type, boolean normalize, int size) {
+		components[attribute] = count;
+		types[attribute] = type;
+		normalized[attribute] = normalize;
+		sizes[attribute] = size;
+	}
+
+	/**
+	 * @return  the number of vertex buffers a mesh needs.
+	 */
+	int streamCount() {
+		return strides.length;
+	}
+
+	/**
+	 * @return  the stream an attribute is stored in.
+	 */
+	int stream(int attribute) {
+		return interleaved ? 0 : attribute;
+	}
+
+	/**
+	 * @return  the bytes per vertex in a stream.
+	 */
+	int stride(int stream) {
+		return strides[stream];
+	}
+
+	/**
+	 * @return  the bytes per vertex over every stream.
+	 */
+	int bytesPerVertex() {
+		return sizes[POSITION] + sizes[NORMAL] + sizes[TEXCOORD];
+	}
+
+	/**
+	 * @return  what a stream holds, for memory reports.
+	 */
+	String streamName(int stream) {
+		return interleaved ? "vertices" : NAMES[stream];
+	}
+
+	/**
+	 * Lay a mesh's attributes out in its streams.  A planar stream whose
+	 * data already has the right layout is used as it is.
+	 *
+	 * @param vertexCount  the mesh's vertex count.
+	 * @param attributes   the positions, normals and texture coordinates,
+	 *                     native order, from position 0.
+	 * @return  one native order buffer per stream, ready to upload.
+	 */
+	ByteBuffer[] arrange(int vertexCount, ByteBuffer... attributes) {
+		ByteBuffer[] streams = new ByteBuffer[streamCount()];
+		for (int attribute = 0; attribute < ATTRIBUTES; attribute++) {
+			int stream = stream(attribute);
+			int sourceStride = attributes[attribute].capacity() / Math.max(vertexCount, 1);
+			if (!interleaved && sourceStride == sizes[attribute]) {
+				streams[stream] = attributes[attribute];
+				continue;
+			}
+			if (streams[stream] == null) {
+				streams[stream] = ByteBuffer.allocateDirect(vertexCount * strides[stream])
+						.order(ByteOrder.nativeOrder());
+			}
+			// every size is a whole number of ints.
+			ByteBuffer source = attributes[attribute];
+			ByteBuffer target = streams[stream];
+			for (int vertex = 0; vertex < vertexCount; vertex++) {
+				int from = vertex * sourceStride;
+				int to = vertex * strides[stream] + offsets[attribute];
+				for (int i = 0; i < sizes[attribute]; i += 4) {
+					target.putInt(to + i, source.getInt(from + i));
+				}
+			}
+		}
+		return streams;
+	}
+
+	/**
+	 * Point each attribute of the bound VAO at its stream.
+	 *
+	 * @param buffers    the buffer of each stream.
+	 * @param locations  the location of each attribute.
+	 */
+	void bind(GL4 gl, int[] buffers, int[] locations) {
+		for (int attribute = 0; attribute < ATTRIBUTES; attribute++) {
+			int stream = stream(attribute);
+			gl.glBindBuffer(GL.GL_ARRAY_BUFFER, buffers[stream]);
+			gl.glVertexAttribPointer(locations[attribute], components[attribute], types[attribute],
+					normalized[attribute], strides[stream], offsets[attribute]);
+		}
+		gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+	}
+
+	@Override
+	public String toString() {
+		return format + (interleaved ? " interleaved" : " planar") + ", " + bytesPerVertex() + " bytes/vertex";
+	}
+}
@@ -0,0 +1,251 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Packs mesh vertices into compressed formats for upload.
+ *
+ * <P>
+ * Positions drop the constant w and are stored as three 16 bit values
+ * padded to 8 bytes so every vertex stays 4 byte aligned.  HALF_FLOAT keeps
+ * IEEE half floats of the position relative to the centre of the mesh's
+ * bounding box; SNORM16 stores normalized signed shorts that the vertex
+ * shader scales by the half extent of the box and offsets by its centre.
+ * Normals are packed into one GL_INT_2_10_10_10_REV word and texture
+ * coordinates into two half floats.  Either way a vertex takes 16 bytes
+ * instead of the 32 of the float layout.  How the packed attributes are
+ * placed in the vertex buffers is up to VertexLayout.
+ *
+ * <P>
+ * The worst position and texture coordinate error and normal error (in
+ * degrees) are measured by decoding the packed data the way the GPU will.
+ */
+final class VertexQuantizer {
+
+	/**
+	 * The vertex encodings the renderer can upload.
+	 */
+	enum Format {
+		/** xyz floats, xyz float normals and uv floats -- 32 bytes per vertex. */
+		FLOAT,
+		/** half float xyz, 2_10_10_10 normals and half float uv -- 16 bytes per vertex. */
+		HALF_FLOAT,
+		/** normalized short xyz, 2_10_10_10 normals and half float uv -- 16 bytes per vertex. */
+		SNORM16
+	}
+
+	/** Bytes per packed position: three 16 bit values and one of padding. */
+	static final int POSITION_STRIDE = 8;
+
+	/** Bytes per packed normal. */
+	static final int NORMAL_STRIDE = 4;
+
+	/** Bytes per packed texture coordinate. */
+	static final int TEXCOORD_STRIDE = 4;
+
+	/**
+	 * Packed vertex data for one mesh plus what the shader needs to
+	 * decode it: position = packed * scale + offset.
+	 */
+	static final class Quantized {
+		final Format format;
+		final ByteBuffer positions;
+		final ByteBuffer normals;
+		final ByteBuffer texCoords;
+		final float[] scale;
+		final float[] offset;
+		final float maxPositionError;
+		final float maxNormalErrorDegrees;
+		final float maxTexCoordError;
+
+		Quantized(Format format, ByteBuffer positions, ByteBuffer normals, ByteBuffer texCoords, float[] scale,
+				float[] offset, float maxPositionError, float maxNormalErrorDegrees, float maxTexCoordError) {
+			this.format = format;
+			this.positions = positions;
+			this.normals = normals;
+			this.texCoords = texCoords;
+			this.scale = scale;
+			this.offset = offset;
+			this.maxPositionError = maxPositionError;
+			this.maxNormalErrorDegrees = maxNormalErrorDegrees;
+			this.maxTexCoordError = maxTexCoordError;
+		}
+
+		int bytesPerVertex() {
+			return POSITION_STRIDE + NORMAL_STRIDE + TEXCOORD_STRIDE;
+		}
+	}
+
+	private VertexQuantizer() {
+	}
+
+	/**
+	 * Pack a mesh.
+	 *
+	 * @param format    HALF_FLOAT or SNORM16.
+	 * @param vertices  xyzw positions.
+	 * @param normals   xyz normals, one per position.
+	 * @param texture   uv pairs, one per position.
+	 * @return  the packed mesh.
+	 */
+	static Quantized quantize(Format format, FloatBuffer vertices, FloatBuffer normals, FloatBuffer texture) {
+		if (format == Format.FLOAT) {
+			throw new IllegalArgumentException("FLOAT vertices are uploaded unpacked");
+		}
+		int count = vertices.remaining() / 4;
+		float[] min = { Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE };
+		float[] max = { -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE };
+		int base = vertices.position();
+		for (int i = 0; i < count; i++) {
+			for (int axis = 0; axis < 3; axis++) {
+				float value = vertices.get(base + i * 4 + axis);
+				min[axis] = Math.min(min[axis], value);
+				max[axis] = Math.max(max[axis], value);
+			}
+		}
+		float[] offset = new float[3];
+		float[] scale = new float[3];
+		for (int axis = 0; axis < 3; axis++) {
+			offset[axis] = count == 0 ? 0.0f : (min[axis] + max[axis]) * 0.5f;
+			float halfExtent = count == 0 ? 0.0f : (max[axis] - min[axis]) * 0.5f;
+			// half floats are only recentred; a flat axis still needs a
+			// non-zero scale to decode.
+			scale[axis] = format == Format.HALF_FLOAT || halfExtent == 0.0f ? 1.0f : halfExtent;
+		}
+
+		ByteBuffer positions = ByteBuffer.allocateDirect(count * POSITION_STRIDE).order(ByteOrder.nativeOrder());
+		float maxPositionError = 0.0f;
+		for (int i = 0; i < count; i++) {
+			for (int axis = 0; axis < 3; axis++) {
+				float value = vertices.get(base + i * 4 + axis);
+				float relative = (value - offset[axis]) / scale[axis];
+				short packed;
+				float decoded;
+				if (format == Format.HALF_FLOAT) {
+					packed = toHalf(relative);
+					decoded = fromHalf(packed);
+				} else {
+					packed = (short) Math.round(Math.max(-1.0f, Math.min(1.0f, relative)) * 32767.0f);
+					decoded = Math.max(packed / 32767.0f, -1.0f);
+				}
+				positions.putShort(packed);
+				maxPositionError = Math.max(maxPositionError,
+						Math.abs(decoded * scale[axis] + offset[axis] - value));
+			}
+			positions.putShort((short) 0);
+		}
+		positions.flip();
+
+		ByteBuffer packedNormals = ByteBuffer.allocateDirect(count * NORMAL_STRIDE).order(ByteOrder.nativeOrder());
+		int normalBase = normals.position();
+		double minCosine = 1.0;
+		for (int i = 0; i < count; i++) {
+			float x = normals.get(normalBase + i * 3);
+			float y = normals.get(normalBase + i * 3 + 1);
+			float z = normals.get(normalBase + i * 3 + 2);
+			int word = packNormal(x, y, z);
+			packedNormals.putInt(word);
+			float dx = unpack10(word), dy = unpack10(word >> 10), dz = unpack10(word >> 20);
+			double length = Math.sqrt((double) x * x + y * y + z * z)
+					* Math.sqrt((double) dx * dx + dy * dy + dz * dz);
+			if (length > 0.0) {
+				minCosine = Math.min(minCosine, (x * dx + y * dy + z * dz) / length);
+			}
+		}
+		packedNormals.flip();
+		float maxNormalError = (float) Math.toDegrees(Math.acos(Math.max(-1.0, Math.min(1.0, minCosine))));
+
+		// uv usually lies in [0, 1] or a few repeats of it, where halves
+		// are good to a texel of a 2048 texture.
+		ByteBuffer texCoords = ByteBuffer.allocateDirect(count * TEXCOORD_STRIDE).order(ByteOrder.nativeOrder());
+		int textureBase = texture.position();
+		float maxTexCoordError = 0.0f;
+		for (int i = 0; i < count * 2; i++) {
+			float value = texture.get(textureBase + i);
+			short packed = toHalf(value);
+			texCoords.putShort(packed);
+			maxTexCoordError = Math.max(maxTexCoordError, Math.abs(fromHalf(packed) - value));
+		}
+		texCoords.flip();
+		return new Quantized(format, positions, packedNormals, texCoords, scale, offset, maxPositionError,
+				maxNormalError, maxTexCoordError);
+	}
+
+	/**
+	 * Pack a normal as signed normalized 10 bit x, y and z with w = 0, in
+	 * GL_INT_2_10_10_10_REV order (x in the low bits).
+	 */
+	static int packNormal(float x, float y, float z) {
+		return (pack10(x)) | (pack10(y) << 10) | (pack10(z) << 20);
+	}
+
+	private static int pack10(float value) {
+		int packed = Math.round(Math.max(-1.0f, Math.min(1.0f, value)) * 511.0f);
+		return packed & 0x3FF;
+	}
+
+	/*
+	 * Decode the low 10 bits as the GPU does for a normalized signed
+	 * component: sign extend, divide by 511 and clamp to -1.
+	 */
+	private static float unpack10(int bits) {
+		int value = (bits << 22) >> 22;
+		return Math.max(value / 511.0f, -1.0f);
+	}
+
+	/**
+	 * Convert a float to an IEEE 754 half float with round to nearest
+	 * even.  Values too large for a half become infinity.
+	 */
+	static short toHalf(float value) {
+		int bits = Float.floatToRawIntBits(value);
+		int sign = (bits >>> 16) & 0x8000;
+		int exponent = ((bits >>> 23) & 0xFF) - 127 + 15;
+		int mantissa = bits & 0x7FFFFF;
+		if (((bits >>> 23) & 0xFF) == 0xFF) {
+			// infinity or NaN
+			return (short) (sign | 0x7C00 | (mantissa != 0 ? 0x200 : 0));
+		}
+		if (exponent >= 0x1F) {
+			return (short) (sign | 0x7C00);
+		}
+		if (exponent <= 0) {
+			if (exponent < -10) {
+				return (short) sign; // too small -- signed zero.
+			}
+			// subnormal half: shift the mantissa, with its hidden bit, into place.
+			mantissa |= 0x800000;
+			int shift = 14 - exponent;
+			int half = mantissa >> shift;
+			int remainder = mantissa & ((1 << shift) - 1);
+			int halfway = 1 << (shift - 1);
+			if (remainder > halfway || (remainder == halfway && (half & 1) != 0)) {
+				half++;
+			}
+			return (short) (sign | half);
+		}
+		int half = (exponent << 10) | (mantissa >> 13);
+		int remainder = mantissa & 0x1FFF;
+		if (remainder > 0x1000 || (remainder == 0x1000 && (half & 1) != 0)) {
+			half++; // may carry into the exponent, which is still correct.
+		}
+		return (short) (sign | half);
+	}
+
+	/**
+	 * Convert an IEEE 754 half float back to a float.
+	 */
+	static float fromHalf(short half) {
+		int sign = (half & 0x8000) << 16;
+		int exponent = (half >>> 10) & 0x1F;
+		int mantissa = half & 0x3FF;
+		if (exponent == 0) {
+			float value = mantissa / 16777216.0f; // 2^-24
+			return sign != 0 ? -value : value;
+		}
+		if (exponent == 0x1F) {
+			return Float.intBitsToFloat(sign | 0x7F800000 | (mantissa << 13));
+		}
+		return Float.intBitsToFloat(sign | ((exponent - 15 + 127) << 23) | (mantissa << 13));
+	}
+}
@@ -1,26 +1,76 @@
-#version 330 core
-// passthrough Fragment shader 
+#version 430 core
+// Directional and clustered point light fragment shader
 // Last update October 30, 2020
-// 
-// This version is used for testing and debugging
-// it simply gets the color passed through from the 
-// vertex shader.  No lighting calculations are done.
 //
-uniform vec3 ambientLight;
-uniform vec3 lightDirection;
-uniform vec3 lightColor;
-uniform vec3 halfVector;
-uniform float shininess;
-uniform float strength;
+// One directional light from the Lighting block, plus the point lights
+// of the fragment's cluster.  The view frustum is cut into
+// clusterCount.x by clusterCount.y screen tiles and clusterCount.z depth
+// slices (see ClusteredLights); the CPU lists the lights that can reach
+// each cluster, so the loop below only visits those whatever the total
+// number of lights.
+// semantic.glsl is inserted after the version line.
+//
+// std140: each vec3 starts a new 16 byte slot, so the floats fill the
+// gaps after the first two.
+layout(binding = LIGHTING) uniform Lighting {
+	vec3 ambientLight;
+	float shininess;
+	vec3 lightDirection;
+	float strength;
+	vec3 lightColor;
+	vec3 halfVector;
+	// tiles across, tiles up, depth slices, point lights.
+	uvec4 clusterCount;
+	// viewport width and height, where slice 1 starts, slices per
+	// factor of e in depth.
+	vec4 clusterScale;
+};
+
+layout(binding = TRANSFORM0) uniform Camera {
+	mat4 viewingMatrix;
+	mat4 projectionMatrix;
+};
+
+// world position and radius, and colour (32 bytes each in std430).
+struct PointLight {
+	vec4 positionRadius;
+	vec4 color;
+};
+
+layout(binding = POINT_LIGHTS) buffer PointLights {
+	PointLight light[];
+} pointLights;
+
+// offset and count of each cluster's run in lightIndex.
+layout(binding = LIGHT_GRID) buffer LightGrid {
+	uvec2 cluster[];
+} lightGrid;
+
+layout(binding = LIGHT_INDICES) buffer LightIndices {
+	uint lightIndex[];
+} lightIndices;
 
 in vec4 Color;
 in vec3 Normal;
+in vec3 WorldPosition;
+
+layout(location = FRAG_COLOR) out vec4 FragColor;
+
+uint clusterOf(float depth)
+{
+	uvec2 tile = min(uvec2(gl_FragCoord.xy * vec2(clusterCount.xy) / clusterScale.xy), clusterCount.xy - 1u);
+	uint slice = 0u;
+	if (depth >= clusterScale.z) {
+		slice = min(1u + uint(floor(log(depth / clusterScale.z) * clusterScale.w)), clusterCount.z - 1u);
+	}
+	return tile.x + clusterCount.x * (tile.y + clusterCount.y * slice);
+}
 
-out vec4 FragColor;
 void main()
 {
-	float diffuse = max(0.0, dot(Normal, lightDirection));
-	float specular = max(0.0, dot(Normal, halfVector));
+	vec3 normal = normalize(Normal);
+	float diffuse = max(0.0, dot(normal, lightDirection));
+	float specular = max(0.0, dot(normal, halfVector));
 	if (diffuse == 0.0) {
 		specular = 0.0;
 	} else {
@@ -28,11 +78,32 @@ void main()
 	}
 	vec3 scatteredLight = ambientLight + lightColor * diffuse;
 	vec3 reflectedLight = lightColor * specular * strength;
+
+	if (clusterCount.w > 0u) {
+		// the eye is -R^T t for a viewing matrix with rotation R and
+		// translation t.
+		vec3 eye = -(transpose(mat3(viewingMatrix)) * viewingMatrix[3].xyz);
+		vec3 toEye = normalize(eye - WorldPosition);
+		float depth = -(viewingMatrix * vec4(WorldPosition, 1.0)).z;
+		uvec2 run = lightGrid.cluster[clusterOf(depth)];
+		for (uint i = run.x; i < run.x + run.y; i++) {
+			PointLight point = pointLights.light[lightIndices.lightIndex[i]];
+			vec3 toLight = point.positionRadius.xyz - WorldPosition;
+			float distanceSquared = dot(toLight, toLight);
+			float radius = point.positionRadius.w;
+			// falls smoothly to nothing at the radius.
+			float falloff = max(0.0, 1.0 - distanceSquared / (radius * radius));
+			falloff *= falloff;
+			vec3 direction = toLight * inversesqrt(max(distanceSquared, 1.0e-8));
+			float pointDiffuse = max(0.0, dot(normal, direction));
+			if (falloff == 0.0 || pointDiffuse == 0.0) {
+				continue;
+			}
+			float pointSpecular = pow(max(0.0, dot(normal, normalize(direction + toEye))), shininess);
+			scatteredLight += point.color.rgb * pointDiffuse * falloff;
+			reflectedLight += point.color.rgb * pointSpecular * falloff * strength;
+		}
+	}
 	vec3 rgb = min(Color.rgb * scatteredLight + reflectedLight, vec3(1.0));
-    FragColor = vec4(rgb, Color.a);
-    if (diffuse == 0.0) {
-    	FragColor = vec4(0.85, 0.84, 0.63, 1.0);
-    }
-//	FragColor = vec4(Color.rgb * ambientLight, Color.a);
-	
-}
\ No newline at end of file
+	FragColor = vec4(rgb, Color.a);
+}
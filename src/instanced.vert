@@ -0,0 +1,42 @@
+#version 430 core
+//
+// Instanced vertex shader.
+// Same as passthrough.vert except that the modeling matrix comes from a
+// shader storage buffer indexed by gl_InstanceID, so one draw call
+// renders every copy of the mesh.  semantic.glsl is inserted after the
+// version line when the program is built.
+//
+// the camera block, shared with passthrough.vert.
+layout(binding = TRANSFORM0) uniform Camera {
+	mat4 viewingMatrix;
+	mat4 projectionMatrix;
+};
+// positions may be quantized: model position = vPosition * scale + offset.
+uniform vec3 positionScale;
+uniform vec3 positionOffset;
+
+// one column major matrix per instance (64 bytes each in std430).
+layout(binding = TRANSFORM1) buffer Transforms {
+	mat4 modelingMatrix[];
+} transforms;
+
+layout(location = POSITION) in vec4 vPosition;
+layout(location = NORMAL) in vec3 vNormal;
+
+out vec4 Color;
+out vec3 Normal;
+// for the point lights.
+out vec3 WorldPosition;
+
+void main()
+{
+	mat4 modelingMatrix = transforms.modelingMatrix[gl_InstanceID];
+	Color = vec4(0.8,0.8,0.8,1.0);
+	// instance transforms are rotations and translations, so the
+	// modeling matrix is its own normal matrix.
+	Normal = mat3(modelingMatrix) * vNormal;
+	vec4 position = vec4(vPosition.xyz * positionScale + positionOffset, 1.0);
+	vec4 world = modelingMatrix * position;
+	WorldPosition = world.xyz;
+	gl_Position = projectionMatrix * viewingMatrix * world;
+}
@@ -0,0 +1,48 @@
+#version 430 core
+//
+// Scene vertex shader.
+// Every mesh lives in one vertex arena and the whole scene is drawn with
+// one glMultiDrawElementsIndirect.  Each draw's base instance is its
+// index into the Draws buffer, and arrives as the DRAW_ID attribute (an
+// instanced attribute holding 0, 1, 2, ...).  semantic.glsl is inserted
+// after the version line when the program is built.
+//
+// the camera block, shared with passthrough.vert.
+layout(binding = TRANSFORM0) uniform Camera {
+	mat4 viewingMatrix;
+	mat4 projectionMatrix;
+};
+
+// what passthrough.vert takes as uniforms, one per draw (160 bytes each
+// in std430).  Positions may be quantized: model position =
+// vPosition * positionScale + positionOffset.
+struct Draw {
+	mat4 modelingMatrix;
+	mat4 normalMatrix;
+	vec4 positionScale;
+	vec4 positionOffset;
+};
+
+layout(binding = DRAW_DATA) buffer Draws {
+	Draw draw[];
+} draws;
+
+layout(location = POSITION) in vec4 vPosition;
+layout(location = NORMAL) in vec3 vNormal;
+layout(location = DRAW_ID) in uint drawID;
+
+out vec4 Color;
+out vec3 Normal;
+// for the point lights.
+out vec3 WorldPosition;
+
+void main()
+{
+	Draw current = draws.draw[drawID];
+	Color = vec4(0.8,0.8,0.8,1.0);
+	Normal = mat3(current.normalMatrix) * vNormal;
+	vec4 position = vec4(vPosition.xyz * current.positionScale.xyz + current.positionOffset.xyz, 1.0);
+	vec4 world = current.modelingMatrix * position;
+	WorldPosition = world.xyz;
+	gl_Position = projectionMatrix * viewingMatrix * world;
+}
@@ -0,0 +1,10 @@
+#version 430 core
+//
+// Occlusion test fragment shader.
+// Nothing is written: colour writes are off while the boxes are drawn,
+// and the occlusion query only counts the fragments that pass the depth
+// test.  semantic.glsl is inserted after the version line.
+//
+void main()
+{
+}
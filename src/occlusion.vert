@@ -0,0 +1,33 @@
+#version 430 core
+//
+// Occlusion test vertex shader.
+// Draws a world space box, given by its corners, as 36 vertices with no
+// vertex buffer: gl_VertexID picks one of the box's 8 corners, whose
+// bits say which of boxMin and boxMax each coordinate comes from.  Used
+// with colour and depth writes off inside an occlusion query, so only
+// whether any fragment passes the depth test matters.  semantic.glsl is
+// inserted after the version line when the program is built.
+//
+// the camera block, shared with passthrough.vert.
+layout(binding = TRANSFORM0) uniform Camera {
+	mat4 viewingMatrix;
+	mat4 projectionMatrix;
+};
+uniform vec3 boxMin;
+uniform vec3 boxMax;
+
+// two triangles per face.
+const int corners[36] = int[36](
+	0, 2, 1, 1, 2, 3,	// -z
+	4, 5, 6, 5, 7, 6,	// +z
+	0, 1, 4, 1, 5, 4,	// -y
+	2, 6, 3, 3, 6, 7,	// +y
+	0, 4, 2, 2, 4, 6,	// -x
+	1, 3, 5, 3, 7, 5);	// +x
+
+void main()
+{
+	int corner = corners[gl_VertexID];
+	vec3 position = mix(boxMin, boxMax, vec3(corner & 1, (corner >> 1) & 1, (corner >> 2) & 1));
+	gl_Position = projectionMatrix * viewingMatrix * vec4(position, 1.0);
+}
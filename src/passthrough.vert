@@ -1,23 +1,40 @@
-#version 330 core
+#version 430 core
 //
 // Pass through Vertex shader.  
 // Passes vertex information through without changing it.
 //  Being used for debugging purposes.
+// semantic.glsl is inserted after the version line when the program
+// is built.
 // 
 uniform mat4 modelingMatrix;
-uniform mat4 viewingMatrix;
-uniform mat4 projectionMatrix;
+// camera matrices, shared by every program and only updated when
+// the view changes.
+layout(binding = TRANSFORM0) uniform Camera {
+	mat4 viewingMatrix;
+	mat4 projectionMatrix;
+};
 uniform mat4 normalMatrix;
+// positions may be quantized: model position = vPosition * scale + offset.
+// Unpacked float meshes use a scale of 1 and an offset of 0.
+uniform vec3 positionScale;
+uniform vec3 positionOffset;
 
-in vec4 vPosition;
-in vec3 vNormal;
+// vPosition has 3 components when quantized, so w defaults to 1.0.
+// vNormal may come from a normalized GL_INT_2_10_10_10_REV attribute.
+layout(location = POSITION) in vec4 vPosition;
+layout(location = NORMAL) in vec3 vNormal;
 
 out vec4 Color;
 out vec3 Normal;
+// for the point lights.
+out vec3 WorldPosition;
 
 void main()
 {
 	Color = vec4(0.8,0.8,0.8,1.0);
 	Normal = mat3(normalMatrix) * vNormal;
-    gl_Position = projectionMatrix * viewingMatrix * modelingMatrix * vPosition;
+	vec4 position = vec4(vPosition.xyz * positionScale + positionOffset, 1.0);
+    vec4 world = modelingMatrix * position;
+    WorldPosition = world.xyz;
+    gl_Position = projectionMatrix * viewingMatrix * world;
 }
\ No newline at end of file
@@ -9,6 +9,11 @@
 // Uniform
 #define TRANSFORM0  1
 #define TRANSFORM1  2
+#define LIGHTING    3
+#define DRAW_DATA   4
+#define POINT_LIGHTS    5
+#define LIGHT_GRID      6
+#define LIGHT_INDICES   7
 
 // Samplers
 #define DIFFUSE 0